@@ -0,0 +1,58 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Cliente del servidor para los benchmarks: un ClienteGestorHilos real,
+conectado por un socket local y con la sesión ya iniciada, pero con la
+cola de salida cerrada. Así los comandos se procesan igual que en el
+servidor (análisis, despacho y preparación de la respuesta) pero las
+respuestas se descartan al encolarlas y ningún escritor compite con el
+benchmark.
+*/
+final class ClientePrueba implements AutoCloseable {
+
+	private static final AtomicLong siguiente = new AtomicLong();
+
+	private final ServerSocket servidor;
+	private final Socket remoto;
+	private final Socket aceptado;
+	private final ClienteGestorHilos cliente;
+
+	// Pre: Ninguna.
+	// Post: Se conecta un socket local, se crea el gestor del lado del servidor y
+	// se inicia sesión con un nombre nuevo. Después se cierra su cola de salida.
+	ClientePrueba() throws IOException {
+		InetAddress local = InetAddress.getLoopbackAddress();
+		servidor = new ServerSocket(0, 1, local);
+		remoto = new Socket(local, servidor.getLocalPort());
+		aceptado = servidor.accept();
+		cliente = new ClienteGestorHilos(aceptado);
+		byte[] nombre = ("bench" + siguiente.incrementAndGet() + "_" + System.nanoTime())
+				.getBytes(StandardCharsets.UTF_8);
+		ComandoTexto login = new ComandoTexto();
+		login.analizar(nombre, 0, nombre.length);
+		cliente.procesarLineaEntrante(login);
+		cliente.getColaSalida().cerrar();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el gestor del cliente.
+	ClienteGestorHilos getCliente() {
+		return cliente;
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cierran los sockets.
+	@Override
+	public void close() throws IOException {
+		remoto.close();
+		aceptado.close();
+		servidor.close();
+	}
+}
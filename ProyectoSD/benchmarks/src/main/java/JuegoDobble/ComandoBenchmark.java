@@ -0,0 +1,66 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Análisis y despacho de un comando de texto (ComandoTexto.analizar sobre
+los bytes de la línea y ClienteGestorHilos.manejarComando, a través de
+procesarLineaEntrante) en un cliente con la sesión iniciada que no está
+en ninguna partida. Las respuestas se preparan pero se descartan (ver
+ClientePrueba).
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Ddobble.log.nivel=aviso")
+@State(Scope.Thread)
+public class ComandoBenchmark {
+
+	@Param({ "INTENTO|17", "JUGAR|9|7", "HISTORIAL|x|10", "EMPAREJAMIENTO", "NOEXISTE|1" })
+	public String comando;
+
+	private ClientePrueba cliente;
+	// bytes del comando, como llegarían por la conexión, y el analizador que la
+	// conexión reutiliza
+	private byte[] linea;
+	private final ComandoTexto analizador = new ComandoTexto();
+
+	// Pre: Ninguna.
+	// Post: Se conecta un cliente con la sesión iniciada y se codifica el comando.
+	@Setup
+	public void preparar() throws IOException {
+		cliente = new ClientePrueba();
+		linea = comando.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cierra la conexión del cliente.
+	@TearDown
+	public void cerrar() throws IOException {
+		cliente.close();
+	}
+
+	// Pre: Ninguna.
+	// Post: Se analiza y procesa el comando como si llegara por la conexión.
+	@Benchmark
+	public void manejarComando() {
+		analizador.analizar(linea, 0, linea.length);
+		cliente.getCliente().procesarLineaEntrante(analizador);
+	}
+}
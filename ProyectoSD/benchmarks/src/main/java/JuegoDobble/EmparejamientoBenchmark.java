@@ -0,0 +1,65 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Entrada y salida de la sala de espera (CoordinadorPartida
+.joinWaitingList y removerJugador) con varios hilos a la vez sobre la
+misma sala. La sala es de 8 jugadores y hay menos hilos, así que nunca se
+llena: se mide solo la sala sin cerrojos bajo contención.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Ddobble.log.nivel=aviso")
+@Threads(4)
+@State(Scope.Thread)
+public class EmparejamientoBenchmark {
+
+	private static final int JUGADORES_SALA = 8;
+
+	private ClientePrueba cliente;
+	private CoordinadorPartida coordinador;
+
+	// Pre: Ninguna.
+	// Post: Cada hilo conecta su propio cliente con la sesión iniciada.
+	@Setup
+	public void preparar() throws IOException {
+		cliente = new ClientePrueba();
+		coordinador = DobbleServer.getCoordinadorPartida();
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cierra la conexión del cliente.
+	@TearDown
+	public void cerrar() throws IOException {
+		coordinador.removerJugador(cliente.getCliente());
+		cliente.close();
+	}
+
+	// Pre: El cliente no espera en ninguna sala.
+	// Post: El cliente entra en la sala de 8 jugadores del mazo clásico y la
+	// abandona.
+	@Benchmark
+	public boolean entrarYSalir() {
+		ClienteGestorHilos jugador = cliente.getCliente();
+		coordinador.joinWaitingList(jugador, JUGADORES_SALA, MazoDobble.ORDEN_ESTANDAR, JUGADORES_SALA,
+				CoordinadorPartida.ESPERA_MAXIMA_DEFECTO);
+		return coordinador.removerJugador(jugador);
+	}
+}
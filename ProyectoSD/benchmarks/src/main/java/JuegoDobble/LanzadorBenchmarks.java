@@ -0,0 +1,26 @@
+package JuegoDobble;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+Punto de entrada de target/benchmarks.jar, que se genera con "mvn package"
+desde la raíz del repositorio. Acepta las mismas opciones que
+el lanzador de JMH (por ejemplo un filtro "Ranking" o "-p jugadores=10000")
+y añade siempre el perfilador de GC, así que cada benchmark informa de su
+rendimiento (operaciones por segundo) y de la memoria que reserva por
+operación (gc.alloc.rate.norm).
+*/
+public class LanzadorBenchmarks {
+
+	// Pre: 'args' son opciones de línea de comandos de JMH.
+	// Post: Se ejecutan los benchmarks elegidos con el perfilador de GC.
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).addProfiler(GCProfiler.class).build())
+				.run();
+	}
+}
@@ -0,0 +1,91 @@
+package JuegoDobble;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+Reglas del juego (DobbleLogic): copia del mazo, barajado y reparto de
+todas las cartas, y validación de un intento.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Ddobble.log.nivel=aviso")
+@State(Scope.Thread)
+public class MazoBenchmark {
+
+	// intentos precalculados que se recorren en bucle
+	private static final int INTENTOS = 1024;
+
+	@Param({ "7", "13" })
+	public int orden;
+
+	private MazoDobble mazo;
+	private DobbleLogic logica;
+	private final int[] simbolos = new int[INTENTOS];
+	private final int[] cartasJugador = new int[INTENTOS];
+	private final int[] cartasCentrales = new int[INTENTOS];
+	private int siguienteIntento;
+
+	// Pre: Ninguna.
+	// Post: Se prepara el mazo del orden elegido y INTENTOS pares de cartas
+	// distintas con un símbolo, la mitad de ellos la coincidencia correcta.
+	@Setup
+	public void preparar() {
+		mazo = MazoDobble.deOrden(orden);
+		ThreadLocalRandom azar = ThreadLocalRandom.current();
+		logica = new DobbleLogic(mazo, azar.nextLong());
+		for (int i = 0; i < INTENTOS; i++) {
+			int a = azar.nextInt(mazo.getNumeroCartas());
+			int b;
+			do {
+				b = azar.nextInt(mazo.getNumeroCartas());
+			} while (b == a);
+			cartasJugador[i] = a;
+			cartasCentrales[i] = b;
+			simbolos[i] = i % 2 == 0 ? mazo.getSimboloComun(a, b) : mazo.getSimbolo(a, azar.nextInt(orden + 1));
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna una copia del mazo completo como listas de símbolos.
+	@Benchmark
+	public List<List<Integer>> generarMazoDobble() {
+		return logica.generarMazoDobble();
+	}
+
+	// Pre: Ninguna.
+	// Post: Se crea la lógica de una partida y se reparten (barajando) todas las
+	// cartas del mazo.
+	@Benchmark
+	public void barajarYRepartir(Blackhole bh) {
+		DobbleLogic partida = new DobbleLogic(mazo, ThreadLocalRandom.current().nextLong());
+		int carta;
+		while ((carta = partida.repartirCarta()) != DobbleLogic.SIN_CARTA) {
+			bh.consume(carta);
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Se valida el siguiente intento precalculado.
+	@Benchmark
+	public boolean esCoincidenciaValida() {
+		int i = siguienteIntento++ & (INTENTOS - 1);
+		return logica.esCoincidenciaValida(simbolos[i], cartasJugador[i], cartasCentrales[i]);
+	}
+}
@@ -0,0 +1,75 @@
+package JuegoDobble;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Codificación de los mensajes de la partida: una carta en texto (lo que
+antes hacía DobblePartida.serializarCarta), una trama OP_NUEVA_RONDA y el
+marcador en texto (DobblePartida.serializarPuntuaciones).
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Ddobble.log.nivel=aviso")
+@State(Scope.Thread)
+public class ProtocoloBenchmark {
+
+	@Param({ "2", "8" })
+	public int jugadores;
+
+	private final MazoDobble mazo = MazoDobble.ESTANDAR;
+	private final TramaBinaria trama = new TramaBinaria(256);
+	private final Map<String, Integer> puntuaciones = new LinkedHashMap<>();
+	private int[] puntos;
+
+	// Pre: Ninguna.
+	// Post: Se prepara un marcador con 'jugadores' jugadores.
+	@Setup
+	public void preparar() {
+		puntos = new int[jugadores];
+		for (int i = 0; i < jugadores; i++) {
+			puntuaciones.put("jugador" + i, i * 3);
+			puntos[i] = i * 3;
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Se codifica una carta en texto en una trama OP_TEXTO.
+	@Benchmark
+	public int serializarCarta() {
+		trama.iniciar(ProtocoloBinario.OP_TEXTO);
+		trama.escribirCartaTexto(mazo, 12);
+		trama.terminar();
+		return trama.getFin();
+	}
+
+	// Pre: Ninguna.
+	// Post: Se codifica una trama OP_NUEVA_RONDA con el marcador por asiento.
+	@Benchmark
+	public int codificarNuevaRonda() {
+		ProtocoloBinario.codificarNuevaRonda(trama, mazo, 12, 40, puntos);
+		return trama.getFin();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el marcador serializado en texto.
+	@Benchmark
+	public String serializarPuntuaciones() {
+		return DobblePartida.serializarPuntuaciones(puntuaciones);
+	}
+}
@@ -0,0 +1,66 @@
+package JuegoDobble;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Consulta del ranking (DobbleRanking.getRankingSerializado) con 10.000,
+100.000 y 1.000.000 de jugadores: sin cambios (sale de la caché) y justo
+después de una victoria (se reconstruye el TOP_K).
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Ddobble.log.nivel=aviso", "-Xmx2g" })
+@State(Scope.Benchmark)
+public class RankingBenchmark {
+
+	@Param({ "10000", "100000", "1000000" })
+	public int jugadores;
+
+	private DobbleRanking ranking;
+	private String[] nombres;
+
+	// Pre: Ninguna.
+	// Post: Se crea un ranking en memoria con 'jugadores' jugadores con entre 1 y
+	// 1000 victorias.
+	@Setup
+	public void preparar() {
+		ranking = new DobbleRanking();
+		nombres = new String[jugadores];
+		ThreadLocalRandom azar = ThreadLocalRandom.current();
+		for (int i = 0; i < jugadores; i++) {
+			nombres[i] = "jugador" + i;
+			ranking.establecerVictorias(nombres[i], 1 + azar.nextInt(1000));
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el TOP_K serializado sin que el ranking haya cambiado.
+	@Benchmark
+	public String rankingSinCambios() {
+		return ranking.getRankingSerializado();
+	}
+
+	// Pre: Ninguna.
+	// Post: Un jugador al azar gana una partida y se retorna el TOP_K, que hay que
+	// volver a construir.
+	@Benchmark
+	public String rankingTrasVictoria() {
+		ranking.registrarGanador(nombres[ThreadLocalRandom.current().nextInt(nombres.length)]);
+		return ranking.getRankingSerializado();
+	}
+}
@@ -0,0 +1,505 @@
+package JuegoDobble;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/*
+Almacén duradero del ranking y de los nombres reservados. Cada cambio se
+apunta en un registro de escritura anticipada (WAL): ficheros
+ranking-<generación>.wal a los que solo se añade al final. Los registros
+guardan valores absolutos ("fulano tiene 12 victorias", "el nombre X está
+reservado"), así que volver a aplicarlos no cambia nada y el orden entre
+jugadores distintos no importa.
+Quien registra un cambio solo lo encola; un único hilo escritor junta
+todo lo pendiente, lo escribe de una vez y hace un solo fsync para todo
+el lote (group commit).
+Cuando el WAL crece, el escritor solo empieza una generación nueva del
+WAL; otro hilo vuelca entonces el estado en memoria a una instantánea
+(ranking.snap, escrita con un fichero proyectado en memoria), la sustituye
+de forma atómica y borra las generaciones anteriores. Así el group commit
+no se detiene mientras se escribe la instantánea.
+Al arrancar se proyecta la instantánea en memoria, se carga de una vez
+(ya viene ordenada, ver DobbleRanking.cargarOrdenado()) y solo se
+reaplican los WAL posteriores a ella. Un registro final incompleto o con
+el CRC erróneo (el servidor se paró mientras se escribía) se descarta.
+*/
+public class AlmacenRanking implements Runnable {
+
+	// tamaño del WAL a partir del cual se compacta en una instantánea
+	private static final long UMBRAL_COMPACTACION = Long.getLong("dobble.ranking.compactar", 4L * 1024 * 1024);
+	// registros que se escriben como mucho en un lote
+	private static final int MAX_LOTE = 4096;
+	private static final String FICHERO_INSTANTANEA = "ranking.snap";
+	private static final String PREFIJO_WAL = "ranking-";
+	private static final String SUFIJO_WAL = ".wal";
+	// cabecera de la instantánea: marca, versión del formato, primera generación
+	// del WAL que hay que reaplicar, número de jugadores y de nombres
+	private static final int MARCA_INSTANTANEA = 0x44424C52; // "DBLR"
+	private static final int VERSION_INSTANTANEA = 1;
+	private static final int TAMANO_CABECERA = 4 + 4 + 8 + 4 + 4;
+
+	// longitud máxima de un nombre en UTF-8: se guarda en 16 bits
+	public static final int MAX_BYTES_NOMBRE = 0xFFFF;
+
+	// tipos de registro del WAL
+	private static final byte TIPO_VICTORIAS = 1;
+	private static final byte TIPO_NOMBRE = 2;
+	// registro especial que pide al escritor que termine
+	private static final Registro FIN = new Registro((byte) 0, "", 0);
+
+	// registro pendiente de escribir
+	private static final class Registro {
+		final byte tipo;
+		final String nombre;
+		final long victorias;
+
+		Registro(byte tipo, String nombre, long victorias) {
+			this.tipo = tipo;
+			this.nombre = nombre;
+			this.victorias = victorias;
+		}
+	}
+
+	// métricas del group commit: lotes == fsyncs
+	private static final LongAdder registrosEscritos = new LongAdder();
+	private static final LongAdder lotesEscritos = new LongAdder();
+	private static final LongAdder compactaciones = new LongAdder();
+
+	private final Path directorio;
+	private final DobbleRanking ranking;
+	private final Set<String> nombresReservados;
+	private final BlockingQueue<Registro> pendientes = new LinkedBlockingQueue<>();
+	private final Thread escritor;
+	// hilo en el que se escriben las instantáneas, fuera del escritor del WAL
+	private final ExecutorService compactador = Executors.newSingleThreadExecutor(tarea -> {
+		Thread hilo = new Thread(tarea, "dobble-instantanea");
+		hilo.setDaemon(true);
+		return hilo;
+	});
+	// 'true' mientras se escribe una instantánea: hasta que termine no se empieza
+	// otra generación del WAL
+	private final AtomicBoolean compactando = new AtomicBoolean();
+	// WAL actual, su generación y su tamaño. Solo los usa el hilo escritor (y el
+	// constructor antes de arrancarlo)
+	private FileChannel wal;
+	private long generacion;
+	private long tamanoWal;
+	// búfer donde se codifica cada lote
+	private ByteBuffer bufer = ByteBuffer.allocateDirect(64 * 1024);
+	private final CRC32 crc = new CRC32();
+
+	// Pre: 'directorio' es donde se guardan los ficheros del almacén. 'ranking' y
+	// 'nombresReservados' están vacíos.
+	// Post: Se restaura el estado guardado en 'ranking' y 'nombresReservados'
+	// (instantánea más WAL posteriores), se abre una generación nueva del WAL y
+	// se arranca el hilo escritor. Lanza IOException si no se puede usar el
+	// directorio.
+	public AlmacenRanking(Path directorio, DobbleRanking ranking, Set<String> nombresReservados)
+			throws IOException {
+		this.directorio = directorio;
+		this.ranking = ranking;
+		this.nombresReservados = nombresReservados;
+		Files.createDirectories(directorio);
+
+		long inicio = System.nanoTime();
+		long primeraGeneracion = cargarInstantanea();
+		long ultimaGeneracion = primeraGeneracion - 1;
+		for (long g : generacionesWal()) {
+			if (g >= primeraGeneracion) {
+				reaplicarWal(g);
+			}
+			ultimaGeneracion = Math.max(ultimaGeneracion, g);
+		}
+		Bitacora.info(Bitacora.PERSISTENCIA, "Ranking restaurado en {} ms: {} jugadores y {} nombres reservados.",
+				(System.nanoTime() - inicio) / 1_000_000, ranking.getNumeroJugadores(), nombresReservados.size());
+
+		// cada arranque escribe en una generación nueva: la anterior puede acabar en
+		// un registro truncado
+		abrirWal(ultimaGeneracion + 1);
+		this.escritor = new Thread(this, "dobble-wal");
+		escritor.setDaemon(true);
+		escritor.start();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si 'nombre' ocupa como mucho MAX_BYTES_NOMBRE bytes en
+	// UTF-8, así que se puede guardar en el almacén.
+	public static boolean cabeNombre(String nombre) {
+		// cada carácter (char) ocupa como mucho 3 bytes en UTF-8
+		if (nombre.length() * 3L <= MAX_BYTES_NOMBRE) {
+			return true;
+		}
+		return nombre.getBytes(StandardCharsets.UTF_8).length <= MAX_BYTES_NOMBRE;
+	}
+
+	// Pre: 'nombre' acaba de pasar a tener 'victorias' partidas ganadas. Las
+	// llamadas para un mismo jugador llegan en orden (DobbleRanking las hace
+	// dentro de su 'compute'). Puede llamarse desde cualquier hilo.
+	// Post: El cambio se encola para el siguiente lote del WAL.
+	public void registrarVictorias(String nombre, long victorias) {
+		pendientes.add(new Registro(TIPO_VICTORIAS, nombre, victorias));
+	}
+
+	// Pre: 'nombre' se acaba de reservar. Puede llamarse desde cualquier hilo.
+	// Post: La reserva se encola para el siguiente lote del WAL.
+	public void registrarNombre(String nombre) {
+		pendientes.add(new Registro(TIPO_NOMBRE, nombre, 0));
+	}
+
+	// Pre: Ninguna.
+	// Post: Se escriben y sincronizan en disco todos los cambios encolados y el
+	// escritor termina; si se estaba escribiendo una instantánea, se espera a que
+	// termine. Los cambios posteriores ya no se guardan.
+	public void cerrar() {
+		pendientes.add(FIN);
+		try {
+			escritor.join(5000);
+			compactador.shutdown();
+			compactador.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Pre: Se ejecuta en el hilo escritor.
+	// Post: Mientras no llegue FIN, se espera a que haya cambios, se escriben
+	// todos los pendientes (hasta MAX_LOTE) con un solo fsync y, si el WAL ha
+	// superado UMBRAL_COMPACTACION y no se está escribiendo ya una instantánea,
+	// se compacta (ver 'compactar()').
+	@Override
+	public void run() {
+		List<Registro> lote = new ArrayList<>();
+		boolean terminar = false;
+		while (!terminar) {
+			try {
+				lote.add(pendientes.take());
+				pendientes.drainTo(lote, MAX_LOTE - 1);
+				terminar = lote.remove(FIN);
+				if (!lote.isEmpty()) {
+					escribirLote(lote);
+				}
+				if (tamanoWal >= UMBRAL_COMPACTACION && compactando.compareAndSet(false, true)) {
+					compactar();
+				}
+			} catch (InterruptedException e) {
+				terminar = true;
+			} catch (IOException e) {
+				Bitacora.error(Bitacora.PERSISTENCIA, "Error al guardar el ranking: {}", e.getMessage());
+			}
+			lote.clear();
+		}
+		try {
+			wal.close();
+		} catch (IOException e) {
+		}
+	}
+
+	// Pre: Se ejecuta en el hilo escritor. 'lote' no está vacío.
+	// Post: Se codifican los registros de 'lote', se añaden al WAL con una sola
+	// escritura y se sincroniza el fichero una sola vez.
+	private void escribirLote(List<Registro> lote) throws IOException {
+		bufer.clear();
+		for (Registro r : lote) {
+			byte[] nombre = r.nombre.getBytes(StandardCharsets.UTF_8);
+			if (nombre.length > MAX_BYTES_NOMBRE) {
+				// el login no los acepta; si llega uno, no se puede guardar sin dañar el WAL
+				Bitacora.aviso(Bitacora.PERSISTENCIA, "Nombre de {} bytes demasiado largo: no se guarda.",
+						nombre.length);
+				continue;
+			}
+			int carga = 1 + 2 + nombre.length + (r.tipo == TIPO_VICTORIAS ? 8 : 0);
+			asegurarEspacio(4 + carga + 4);
+			int inicioCarga = bufer.position() + 4;
+			bufer.putInt(carga);
+			bufer.put(r.tipo);
+			bufer.putShort((short) nombre.length);
+			bufer.put(nombre);
+			if (r.tipo == TIPO_VICTORIAS) {
+				bufer.putLong(r.victorias);
+			}
+			crc.reset();
+			crc.update(bufer.duplicate().position(inicioCarga).limit(inicioCarga + carga));
+			bufer.putInt((int) crc.getValue());
+		}
+		bufer.flip();
+		while (bufer.hasRemaining()) {
+			tamanoWal += wal.write(bufer);
+		}
+		wal.force(false);
+		registrosEscritos.add(lote.size());
+		lotesEscritos.increment();
+	}
+
+	// Pre: Se ejecuta en el hilo escritor.
+	// Post: Si en 'bufer' no caben 'bytes' más, se sustituye por uno más grande
+	// con el mismo contenido.
+	private void asegurarEspacio(int bytes) {
+		if (bufer.remaining() < bytes) {
+			ByteBuffer mayor = ByteBuffer.allocateDirect(Math.max(bufer.capacity() * 2, bufer.position() + bytes));
+			bufer.flip();
+			mayor.put(bufer);
+			bufer = mayor;
+		}
+	}
+
+	// Pre: Se ejecuta en el hilo escritor, que ha puesto 'compactando' a 'true'.
+	// Post: Se abre una generación nueva del WAL (los cambios siguientes van a
+	// ella) y se encarga al compactador la instantánea que reaplica desde esa
+	// generación (ver 'escribirInstantanea()'). El escritor sigue con el group
+	// commit mientras tanto.
+	private void compactar() throws IOException {
+		long nuevaGeneracion = generacion + 1;
+		try {
+			wal.close();
+			abrirWal(nuevaGeneracion);
+		} catch (IOException e) {
+			compactando.set(false);
+			throw e;
+		}
+		try {
+			compactador.execute(() -> {
+				try {
+					escribirInstantanea(nuevaGeneracion);
+				} catch (IOException | RuntimeException e) {
+					Bitacora.error(Bitacora.PERSISTENCIA, "Error al escribir la instantánea del ranking: {}",
+							e.toString());
+				} finally {
+					compactando.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// el almacén se está cerrando: la instantánea se hará en el próximo arranque
+			compactando.set(false);
+		}
+	}
+
+	// Pre: Se ejecuta en el compactador. Todos los cambios de las generaciones
+	// anteriores a 'nuevaGeneracion' ya están escritos.
+	// Post: Se escribe una instantánea del estado en memoria que indica que hay
+	// que reaplicar desde 'nuevaGeneracion', se sustituye la instantánea anterior
+	// de forma atómica y se borran los WAL anteriores. Como los registros son
+	// absolutos, no importa que la instantánea incluya ya cambios que también
+	// están en el WAL nuevo.
+	private void escribirInstantanea(long nuevaGeneracion) throws IOException {
+		// se copia el estado antes de calcular el tamaño del fichero. El ranking se
+		// guarda ordenado, así al restaurarlo el índice se construye de una vez
+		List<byte[]> nombres = new ArrayList<>();
+		List<Long> victorias = new ArrayList<>();
+		// los nombres que no caben en 16 bits tampoco están en el WAL (ver escribirLote())
+		ranking.recorrerEnOrden((nombre, v) -> {
+			byte[] bytes = nombre.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length <= MAX_BYTES_NOMBRE) {
+				nombres.add(bytes);
+				victorias.add(v);
+			}
+		});
+		long tamano = TAMANO_CABECERA;
+		for (byte[] nombre : nombres) {
+			tamano += 2 + nombre.length + 8;
+		}
+		List<byte[]> reservados = new ArrayList<>();
+		for (String nombre : nombresReservados) {
+			byte[] bytes = nombre.getBytes(StandardCharsets.UTF_8);
+			if (bytes.length > MAX_BYTES_NOMBRE) {
+				continue;
+			}
+			reservados.add(bytes);
+			tamano += 2 + bytes.length;
+		}
+
+		Path temporal = directorio.resolve(FICHERO_INSTANTANEA + ".tmp");
+		try (FileChannel canal = FileChannel.open(temporal, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_WRITE, 0, tamano);
+			mapa.putInt(MARCA_INSTANTANEA).putInt(VERSION_INSTANTANEA).putLong(nuevaGeneracion)
+					.putInt(nombres.size()).putInt(reservados.size());
+			for (int i = 0; i < nombres.size(); i++) {
+				mapa.putShort((short) nombres.get(i).length).put(nombres.get(i)).putLong(victorias.get(i));
+			}
+			for (byte[] nombre : reservados) {
+				mapa.putShort((short) nombre.length).put(nombre);
+			}
+			mapa.force();
+		}
+		Files.move(temporal, directorio.resolve(FICHERO_INSTANTANEA), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+
+		for (long g : generacionesWal()) {
+			if (g < nuevaGeneracion) {
+				Files.deleteIfExists(ficheroWal(g));
+			}
+		}
+		compactaciones.increment();
+	}
+
+	// Pre: Solo se llama al arrancar.
+	// Post: Si hay instantánea, se proyecta en memoria y se cargan sus jugadores y
+	// nombres. Retorna la primera generación del WAL que hay que reaplicar (0 si
+	// no hay instantánea).
+	private long cargarInstantanea() throws IOException {
+		Path fichero = directorio.resolve(FICHERO_INSTANTANEA);
+		if (!Files.exists(fichero)) {
+			return 0;
+		}
+		try (FileChannel canal = FileChannel.open(fichero, StandardOpenOption.READ)) {
+			MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, canal.size());
+			if (mapa.remaining() < TAMANO_CABECERA || mapa.getInt() != MARCA_INSTANTANEA
+					|| mapa.getInt() != VERSION_INSTANTANEA) {
+				throw new IOException("Instantánea del ranking no válida: " + fichero);
+			}
+			long primeraGeneracion = mapa.getLong();
+			int jugadores = mapa.getInt();
+			int nombres = mapa.getInt();
+			byte[] nombre = new byte[0x10000];
+			String[] nombresRanking = new String[jugadores];
+			long[] victorias = new long[jugadores];
+			for (int i = 0; i < jugadores; i++) {
+				int longitud = mapa.getShort() & 0xFFFF;
+				mapa.get(nombre, 0, longitud);
+				nombresRanking[i] = new String(nombre, 0, longitud, StandardCharsets.UTF_8);
+				victorias[i] = mapa.getLong();
+			}
+			ranking.cargarOrdenado(nombresRanking, victorias);
+			for (int i = 0; i < nombres; i++) {
+				int longitud = mapa.getShort() & 0xFFFF;
+				mapa.get(nombre, 0, longitud);
+				nombresReservados.add(new String(nombre, 0, longitud, StandardCharsets.UTF_8));
+			}
+			return primeraGeneracion;
+		}
+	}
+
+	// Pre: Solo se llama al arrancar. Existe el WAL de la generación 'g'.
+	// Post: Se aplican en orden sus registros completos y con CRC correcto. Si el
+	// final del fichero está incompleto o dañado, se trunca en el último registro
+	// bueno; si no queda ninguno, se borra el fichero.
+	private void reaplicarWal(long g) throws IOException {
+		boolean vacio;
+		try (FileChannel canal = FileChannel.open(ficheroWal(g), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long tamano = canal.size();
+			MappedByteBuffer mapa = canal.map(FileChannel.MapMode.READ_ONLY, 0, tamano);
+			byte[] nombre = new byte[0x10000];
+			long valido = 0;
+			while (mapa.remaining() >= 4) {
+				int carga = mapa.getInt();
+				if (carga < 3 || carga > mapa.remaining() - 4) {
+					break;
+				}
+				int inicioCarga = mapa.position();
+				crc.reset();
+				crc.update(mapa.duplicate().position(inicioCarga).limit(inicioCarga + carga));
+				if (mapa.getInt(inicioCarga + carga) != (int) crc.getValue()) {
+					break;
+				}
+				byte tipo = mapa.get();
+				int longitud = mapa.getShort() & 0xFFFF;
+				mapa.get(nombre, 0, longitud);
+				String texto = new String(nombre, 0, longitud, StandardCharsets.UTF_8);
+				if (tipo == TIPO_VICTORIAS) {
+					ranking.establecerVictorias(texto, mapa.getLong());
+				} else if (tipo == TIPO_NOMBRE) {
+					nombresReservados.add(texto);
+				}
+				mapa.position(inicioCarga + carga + 4);
+				valido = mapa.position();
+			}
+			if (valido < tamano) {
+				Bitacora.aviso(Bitacora.PERSISTENCIA, "WAL del ranking {} incompleto: se descartan {} bytes.",
+						ficheroWal(g).getFileName(), tamano - valido);
+				canal.truncate(valido);
+			}
+			vacio = valido == 0;
+		}
+		// un WAL sin registros (el servidor paró sin cambios) no hace falta guardarlo
+		if (vacio) {
+			Files.delete(ficheroWal(g));
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Se crea (o abre al final) el WAL de la generación 'g' y pasa a ser el
+	// actual.
+	private void abrirWal(long g) throws IOException {
+		wal = FileChannel.open(ficheroWal(g), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		generacion = g;
+		tamanoWal = wal.size();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la ruta del WAL de la generación 'g'.
+	private Path ficheroWal(long g) {
+		return directorio.resolve(String.format("%s%016d%s", PREFIJO_WAL, g, SUFIJO_WAL));
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna las generaciones de los WAL que hay en el directorio,
+	// ordenadas de menor a mayor. Los ficheros con el prefijo y el sufijo de un
+	// WAL pero otro nombre (por ejemplo, "ranking-old.wal") no cuentan.
+	private long[] generacionesWal() {
+		File[] ficheros = directorio.toFile()
+				.listFiles((d, n) -> n.startsWith(PREFIJO_WAL) && n.endsWith(SUFIJO_WAL));
+		if (ficheros == null) {
+			return new long[0];
+		}
+		long[] generaciones = new long[ficheros.length];
+		int n = 0;
+		for (File f : ficheros) {
+			String nombre = f.getName();
+			long g;
+			try {
+				g = Long.parseLong(nombre.substring(PREFIJO_WAL.length(), nombre.length() - SUFIJO_WAL.length()));
+			} catch (NumberFormatException e) {
+				// no es un WAL del almacén
+				continue;
+			}
+			// solo es un WAL si se llama exactamente como 'ficheroWal(g)' (descarta
+			// "+5", "-5" o ceros de más)
+			if (g >= 0 && ficheroWal(g).getFileName().toString().equals(nombre)) {
+				generaciones[n++] = g;
+			}
+		}
+		generaciones = Arrays.copyOf(generaciones, n);
+		Arrays.sort(generaciones);
+		return generaciones;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos registros se han escrito en el WAL.
+	public static long getRegistrosEscritos() {
+		return registrosEscritos.sum();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos lotes (y por tanto fsyncs) se han escrito en el WAL.
+	public static long getLotesEscritos() {
+		return lotesEscritos.sum();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántas veces se ha compactado el WAL en una instantánea.
+	public static long getCompactaciones() {
+		return compactaciones.sum();
+	}
+}
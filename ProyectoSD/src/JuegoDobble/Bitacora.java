@@ -0,0 +1,346 @@
+package JuegoDobble;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Bitácora (registro de mensajes) asíncrona del servidor. Quien registra un
+mensaje no escribe en la consola: solo copia la plantilla y sus
+argumentos en un hueco de un anillo reservado al arrancar y sigue. Un
+único hilo escritor recorre el anillo, da formato a los mensajes y los
+escribe por lotes, así que el hilo de un jugador nunca espera al cerrojo
+de System.out ni a la consola.
+Cada mensaje tiene una categoría y un nivel. Cada categoría tiene su
+nivel mínimo y puede muestrearse (registrar solo uno de cada N mensajes
+por debajo de AVISO, por ejemplo la traza de comandos). Se configuran
+con propiedades del sistema:
+- dobble.log.nivel: nivel por defecto (traza, depuracion, info, aviso,
+  error o nada). Por defecto info.
+- dobble.log.<categoria>: nivel de una categoría (por ejemplo
+  dobble.log.comando=aviso).
+- dobble.log.<categoria>.muestreo: registrar uno de cada N mensajes.
+- dobble.log.capacidad: huecos del anillo (se redondea a potencia de 2).
+Si el anillo se llena el mensaje se descarta (nunca se bloquea a quien
+registra) y el escritor avisa de cuántos se han perdido.
+Las plantillas usan "{}" para cada argumento, que se convierte a texto
+en el hilo escritor. Si sobra un argumento Throwable se escribe su traza.
+*/
+public final class Bitacora {
+
+	// niveles
+	public static final int TRAZA = 0;
+	public static final int DEPURACION = 1;
+	public static final int INFO = 2;
+	public static final int AVISO = 3;
+	public static final int ERROR = 4;
+	private static final int NADA = 5;
+	private static final String[] NOMBRES_NIVEL = { "traza", "depuracion", "info", "aviso", "error", "nada" };
+
+	// categorías
+	// arranque, modos y conexiones aceptadas
+	public static final int SERVIDOR = 0;
+	// sesiones de los clientes: login, pérdidas de conexión, reanudaciones
+	public static final int CONEXION = 1;
+	// traza de cada comando recibido (la más frecuente)
+	public static final int COMANDO = 2;
+	// salas de espera
+	public static final int EMPAREJAMIENTO = 3;
+	// ciclo de vida y eventos de las partidas
+	public static final int PARTIDA = 4;
+	// ranking e historial en disco
+	public static final int PERSISTENCIA = 5;
+	private static final String[] NOMBRES_CATEGORIA = { "servidor", "conexion", "comando", "emparejamiento",
+			"partida", "persistencia" };
+
+	// nivel mínimo y muestreo (1 de cada N) de cada categoría
+	private static final int[] niveles = new int[NOMBRES_CATEGORIA.length];
+	private static final int[] muestreos = new int[NOMBRES_CATEGORIA.length];
+
+	// hueco del anillo. 'secuencia' se escribe la última: cuando vale la
+	// secuencia que espera el escritor, el resto de campos están completos
+	private static final class Hueco {
+		volatile long secuencia = -1;
+		long instante;
+		int categoria;
+		int nivel;
+		String plantilla;
+		int numArgumentos;
+		Object a1;
+		Object a2;
+		Object a3;
+		Object a4;
+	}
+
+	private static final Hueco[] anillo;
+	private static final int MASCARA;
+	// siguiente secuencia libre (la reservan los productores) y siguiente
+	// secuencia que va a leer el escritor
+	private static final AtomicLong siguiente = new AtomicLong();
+	private static final AtomicLong leidos = new AtomicLong();
+	private static final LongAdder descartados = new LongAdder();
+	private static final LongAdder escritos = new LongAdder();
+	// espera del escritor cuando el anillo está vacío
+	private static final long ESPERA_VACIO_NS = TimeUnit.MILLISECONDS.toNanos(2);
+	private static final DateTimeFormatter FORMATO_HORA = DateTimeFormatter.ofPattern("HH:mm:ss.SSS")
+			.withZone(ZoneId.systemDefault());
+	private static final Thread escritor;
+
+	static {
+		int nivelDefecto = leerNivel(System.getProperty("dobble.log.nivel"), INFO);
+		for (int i = 0; i < NOMBRES_CATEGORIA.length; i++) {
+			niveles[i] = leerNivel(System.getProperty("dobble.log." + NOMBRES_CATEGORIA[i]), nivelDefecto);
+			muestreos[i] = Math.max(1, Integer.getInteger("dobble.log." + NOMBRES_CATEGORIA[i] + ".muestreo", 1));
+		}
+		int capacidad = Integer.highestOneBit(Math.max(64, Integer.getInteger("dobble.log.capacidad", 8192)) * 2 - 1);
+		anillo = new Hueco[capacidad];
+		for (int i = 0; i < capacidad; i++) {
+			anillo[i] = new Hueco();
+		}
+		MASCARA = capacidad - 1;
+		escritor = new Thread(Bitacora::escribir, "dobble-bitacora");
+		escritor.setDaemon(true);
+		escritor.start();
+		// lo pendiente se escribe antes de que termine la JVM
+		Runtime.getRuntime().addShutdownHook(new Thread(Bitacora::vaciar, "dobble-bitacora-cierre"));
+	}
+
+	private Bitacora() {
+	}
+
+	// Pre: 'categoria' es una de las categorías de la clase y 'nivel' uno de los
+	// niveles.
+	// Post: Retorna 'true' si los mensajes de ese nivel y categoría se registran.
+	// Sirve para no preparar argumentos caros que se van a descartar.
+	public static boolean activo(int categoria, int nivel) {
+		return nivel >= niveles[categoria];
+	}
+
+	// Pre: 'plantilla' es el texto del mensaje con un "{}" por argumento.
+	// Post: Se registra el mensaje con nivel INFO en 'categoria' (ver
+	// 'registrar()').
+	public static void info(int categoria, String plantilla) {
+		registrar(categoria, INFO, plantilla, 0, null, null, null, null);
+	}
+
+	public static void info(int categoria, String plantilla, Object a1) {
+		registrar(categoria, INFO, plantilla, 1, a1, null, null, null);
+	}
+
+	public static void info(int categoria, String plantilla, Object a1, Object a2) {
+		registrar(categoria, INFO, plantilla, 2, a1, a2, null, null);
+	}
+
+	public static void info(int categoria, String plantilla, Object a1, Object a2, Object a3) {
+		registrar(categoria, INFO, plantilla, 3, a1, a2, a3, null);
+	}
+
+	public static void info(int categoria, String plantilla, Object a1, Object a2, Object a3, Object a4) {
+		registrar(categoria, INFO, plantilla, 4, a1, a2, a3, a4);
+	}
+
+	// Pre: Igual que 'info()'.
+	// Post: Se registra el mensaje con nivel AVISO en 'categoria'.
+	public static void aviso(int categoria, String plantilla) {
+		registrar(categoria, AVISO, plantilla, 0, null, null, null, null);
+	}
+
+	public static void aviso(int categoria, String plantilla, Object a1) {
+		registrar(categoria, AVISO, plantilla, 1, a1, null, null, null);
+	}
+
+	public static void aviso(int categoria, String plantilla, Object a1, Object a2) {
+		registrar(categoria, AVISO, plantilla, 2, a1, a2, null, null);
+	}
+
+	public static void aviso(int categoria, String plantilla, Object a1, Object a2, Object a3) {
+		registrar(categoria, AVISO, plantilla, 3, a1, a2, a3, null);
+	}
+
+	// Pre: Igual que 'info()'.
+	// Post: Se registra el mensaje con nivel ERROR en 'categoria'.
+	public static void error(int categoria, String plantilla, Object a1) {
+		registrar(categoria, ERROR, plantilla, 1, a1, null, null, null);
+	}
+
+	public static void error(int categoria, String plantilla, Object a1, Object a2) {
+		registrar(categoria, ERROR, plantilla, 2, a1, a2, null, null);
+	}
+
+	// Pre: 'categoria' y 'nivel' son válidos, 'plantilla' tiene un "{}" por
+	// argumento y 'numArgumentos' es cuántos de 'a1'..'a4' se usan. Puede
+	// llamarse desde cualquier hilo.
+	// Post: Si el nivel está activo en la categoría (y el mensaje pasa el
+	// muestreo, para niveles por debajo de AVISO), se reserva el siguiente hueco
+	// del anillo, se copian en él los datos y se publica. No reserva memoria ni
+	// da formato. Si el anillo está lleno el mensaje se descarta.
+	private static void registrar(int categoria, int nivel, String plantilla, int numArgumentos, Object a1,
+			Object a2, Object a3, Object a4) {
+		if (nivel < niveles[categoria]) {
+			return;
+		}
+		int muestreo = muestreos[categoria];
+		if (muestreo > 1 && nivel < AVISO && ThreadLocalRandom.current().nextInt(muestreo) != 0) {
+			return;
+		}
+		long secuencia;
+		do {
+			secuencia = siguiente.get();
+			if (secuencia - leidos.get() >= anillo.length) {
+				descartados.increment();
+				return;
+			}
+		} while (!siguiente.compareAndSet(secuencia, secuencia + 1));
+		Hueco hueco = anillo[(int) (secuencia & MASCARA)];
+		hueco.instante = System.currentTimeMillis();
+		hueco.categoria = categoria;
+		hueco.nivel = nivel;
+		hueco.plantilla = plantilla;
+		hueco.numArgumentos = numArgumentos;
+		hueco.a1 = a1;
+		hueco.a2 = a2;
+		hueco.a3 = a3;
+		hueco.a4 = a4;
+		hueco.secuencia = secuencia;
+	}
+
+	// Pre: Se ejecuta en el hilo escritor.
+	// Post: Bucle del escritor: da formato a todos los mensajes publicados, los
+	// escribe de una vez (INFO y menores en System.out, AVISO y ERROR en
+	// System.err) y, si el anillo está vacío, espera un poco. Un mensaje al que no
+	// se puede dar formato se cambia por un aviso.
+	private static void escribir() {
+		StringBuilder salida = new StringBuilder(4096);
+		StringBuilder errores = new StringBuilder(1024);
+		long descartadosAvisados = 0;
+		while (true) {
+			long hasta = siguiente.get();
+			long actual = leidos.get();
+			if (actual == hasta) {
+				LockSupport.parkNanos(ESPERA_VACIO_NS);
+				continue;
+			}
+			for (; actual < hasta; actual++) {
+				Hueco hueco = anillo[(int) (actual & MASCARA)];
+				// el productor ya ha reservado el hueco: termina de copiar enseguida
+				while (hueco.secuencia != actual) {
+					Thread.onSpinWait();
+				}
+				StringBuilder destino = hueco.nivel >= AVISO ? errores : salida;
+				int antes = destino.length();
+				try {
+					formatear(hueco, destino);
+				} catch (RuntimeException e) {
+					// un argumento cuyo toString() falla no puede parar el escritor: se
+					// descarta lo formateado y se avisa en su lugar
+					destino.setLength(antes);
+					errores.append(FORMATO_HORA.format(Instant.ofEpochMilli(hueco.instante)))
+							.append(" aviso [servidor] No se puede dar formato al mensaje \"").append(hueco.plantilla)
+							.append("\": ").append(e.getClass().getName()).append('\n');
+				}
+				hueco.plantilla = null;
+				hueco.a1 = hueco.a2 = hueco.a3 = hueco.a4 = null;
+				leidos.set(actual + 1);
+				escritos.increment();
+			}
+			long perdidos = descartados.sum();
+			if (perdidos != descartadosAvisados) {
+				errores.append(FORMATO_HORA.format(Instant.now())).append(" aviso [servidor] Bitácora llena: ")
+						.append(perdidos - descartadosAvisados).append(" mensajes descartados.\n");
+				descartadosAvisados = perdidos;
+			}
+			if (salida.length() > 0) {
+				System.out.print(salida);
+				System.out.flush();
+				salida.setLength(0);
+			}
+			if (errores.length() > 0) {
+				System.err.print(errores);
+				System.err.flush();
+				errores.setLength(0);
+			}
+		}
+	}
+
+	// Pre: 'hueco' está publicado.
+	// Post: Se añade a 'destino' la línea "hora nivel [categoria] mensaje", con
+	// cada "{}" de la plantilla sustituido por su argumento. Si sobra un
+	// argumento Throwable se añade su traza.
+	private static void formatear(Hueco hueco, StringBuilder destino) {
+		destino.append(FORMATO_HORA.format(Instant.ofEpochMilli(hueco.instante))).append(' ')
+				.append(NOMBRES_NIVEL[hueco.nivel]).append(" [").append(NOMBRES_CATEGORIA[hueco.categoria])
+				.append("] ");
+		String plantilla = hueco.plantilla;
+		int usados = 0;
+		int desde = 0;
+		int marca;
+		while (usados < hueco.numArgumentos && (marca = plantilla.indexOf("{}", desde)) >= 0) {
+			destino.append(plantilla, desde, marca).append(argumento(hueco, usados++));
+			desde = marca + 2;
+		}
+		destino.append(plantilla, desde, plantilla.length()).append('\n');
+		if (usados < hueco.numArgumentos && argumento(hueco, usados) instanceof Throwable) {
+			StringWriter traza = new StringWriter();
+			((Throwable) argumento(hueco, usados)).printStackTrace(new PrintWriter(traza));
+			destino.append(traza);
+		}
+	}
+
+	// Pre: 0 <= 'i' < 4.
+	// Post: Retorna el argumento 'i' del hueco.
+	private static Object argumento(Hueco hueco, int i) {
+		switch (i) {
+		case 0:
+			return hueco.a1;
+		case 1:
+			return hueco.a2;
+		case 2:
+			return hueco.a3;
+		default:
+			return hueco.a4;
+		}
+	}
+
+	// Pre: Se llama al parar la JVM.
+	// Post: Se espera (como mucho un segundo) a que el escritor haya escrito todo
+	// lo registrado hasta ahora.
+	private static void vaciar() {
+		long hasta = siguiente.get();
+		long limite = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (leidos.get() < hasta && System.nanoTime() < limite) {
+			LockSupport.parkNanos(ESPERA_VACIO_NS);
+		}
+	}
+
+	// Pre: 'valor' es el nombre de un nivel o 'null'.
+	// Post: Retorna el nivel con ese nombre, o 'defecto' si no lo es.
+	private static int leerNivel(String valor, int defecto) {
+		if (valor != null) {
+			for (int i = 0; i < NOMBRES_NIVEL.length; i++) {
+				if (NOMBRES_NIVEL[i].equalsIgnoreCase(valor.trim())) {
+					return i;
+				}
+			}
+		}
+		return defecto;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos mensajes ha escrito el escritor.
+	public static long getEscritos() {
+		return escritos.sum();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos mensajes se han descartado por estar el anillo lleno.
+	public static long getDescartados() {
+		return descartados.sum();
+	}
+}
@@ -0,0 +1,319 @@
+package JuegoDobble;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/*
+Jugador automático del generador de carga (ver GeneradorCarga). Abre una
+conexión con el servidor y habla el mismo protocolo de texto que
+DobbleClient: login, JUGAR, INTENTO, RENDIRSE y DESCONECTAR. Lleva su
+carta y la central a partir de INICIO_PARTIDA, RONDA y NUEVA_RONDA y
+busca la coincidencia cruzando las dos cartas. Antes de cada intento
+espera un tiempo de reacción y, según su perfil, a veces falla a
+propósito. Cada bot se ejecuta en su propio hilo (virtual si la JVM lo
+permite) y se bloquea leyendo del socket.
+*/
+class BotCarga implements Runnable {
+
+	// sin respuesta del servidor durante este tiempo se da el bot por perdido
+	private static final int TIMEOUT_LECTURA_MS = 60000;
+	private static final int TIMEOUT_CONEXION_MS = 10000;
+	// espera antes de repetir un JUGAR que el servidor ha ignorado porque aún no
+	// había cerrado la partida anterior
+	private static final int ESPERA_REINTENTO_JUGAR_MS = 50;
+	// máximo de símbolos por carta que se aceptan (orden 13 -> 14)
+	private static final int MAX_SIMBOLOS = 32;
+
+	private final GeneradorCarga generador;
+	private final String nombre;
+	private final GeneradorCarga.Perfil perfil;
+	private final Random aleatorio;
+
+	// volatile: el generador lo cierra desde otro hilo al agotar la duración
+	private volatile Socket socket;
+	private BufferedReader lector;
+	private OutputStream out;
+
+	// estado de la partida en curso
+	private final int[] mano = new int[MAX_SIMBOLOS];
+	private final int[] central = new int[MAX_SIMBOLOS];
+	private int simbolosMano;
+	private int simbolosCentral;
+	private boolean enPartida;
+	// ronda de la partida en curso en la que se rendirá (-1 si no)
+	private int rondaRendicion;
+	private int rondasJugadas;
+	// hay un INTENTO enviado del que aún no ha llegado respuesta
+	private boolean esperandoRespuesta;
+	private boolean intentoErroneo;
+	private long instanteIntento;
+	private int partidasJugadas;
+
+	// Pre: 'generador' es el que lanza el bot y recoge sus resultados. 'nombre' no
+	// está reservado en el servidor. 'semilla' fija las decisiones aleatorias del
+	// bot.
+	// Post: Se crea el bot sin conectar.
+	BotCarga(GeneradorCarga generador, String nombre, GeneradorCarga.Perfil perfil, long semilla) {
+		this.generador = generador;
+		this.nombre = nombre;
+		this.perfil = perfil;
+		this.aleatorio = new Random(semilla);
+	}
+
+	// Pre: Se ejecuta en el hilo propio del bot.
+	// Post: El bot se conecta, inicia sesión, juega las partidas que indica el
+	// generador y se despide con DESCONECTAR. Cualquier error de red o respuesta
+	// inesperada se cuenta en el generador y termina el bot. El socket queda
+	// cerrado al salir.
+	@Override
+	public void run() {
+		try {
+			if (!conectar()) {
+				return;
+			}
+			enviar(generador.getComandoJugar());
+			String linea;
+			while ((linea = lector.readLine()) != null) {
+				if (!procesar(linea)) {
+					return;
+				}
+				// solo se juega con el búfer vacío: si quedan mensajes por leer, la
+				// ronda puede haber cambiado ya
+				if (enPartida && !esperandoRespuesta && !lector.ready()) {
+					dormir(perfil.reaccion(aleatorio));
+					if (!lector.ready()) {
+						jugarRonda();
+					}
+				}
+			}
+			generador.registrarError(nombre, "el servidor cerró la conexión");
+		} catch (SocketTimeoutException e) {
+			generador.registrarError(nombre, "sin respuesta en " + TIMEOUT_LECTURA_MS + " ms");
+		} catch (IOException e) {
+			if (!socket.isClosed()) {
+				generador.registrarError(nombre, e.getMessage());
+			}
+		} finally {
+			cerrar();
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si el bot ha abierto la conexión y el servidor ha
+	// respondido LOGIN_OK a su nombre; el tiempo que ha costado se cuenta en el
+	// generador. Si no, se cuenta como conexión fallida y retorna 'false'.
+	private boolean conectar() throws IOException {
+		long inicio = System.nanoTime();
+		socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(generador.getHost(), generador.getPuerto()), TIMEOUT_CONEXION_MS);
+			socket.setSoTimeout(TIMEOUT_LECTURA_MS);
+		} catch (IOException e) {
+			generador.registrarConexionFallida(nombre, e.getMessage());
+			return false;
+		}
+		out = socket.getOutputStream();
+		lector = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		enviar(nombre);
+		String respuesta = lector.readLine();
+		if (respuesta == null || !respuesta.startsWith("LOGIN_OK|")) {
+			generador.registrarConexionFallida(nombre, respuesta == null ? "conexión cerrada en el login" : respuesta);
+			return false;
+		}
+		generador.registrarConexion(System.nanoTime() - inicio);
+		return true;
+	}
+
+	// Pre: 'linea' es un mensaje de texto recibido del servidor.
+	// Post: Se actualiza el estado del bot según el mensaje. Retorna 'false' si el
+	// bot ha terminado (ha jugado todas sus partidas y se ha despedido).
+	private boolean procesar(String linea) throws IOException {
+		int separador = linea.indexOf('|');
+		String tipo = separador < 0 ? linea : linea.substring(0, separador);
+		String[] partes;
+		switch (tipo) {
+		case "INICIO_PARTIDA":
+			// INICIO_PARTIDA|mano|central|puntuaciones
+			partes = linea.split("\\|");
+			simbolosMano = leerCarta(partes[1], mano);
+			simbolosCentral = leerCarta(partes[2], central);
+			enPartida = true;
+			esperandoRespuesta = false;
+			rondasJugadas = 0;
+			rondaRendicion = generador.decidirRendicion(aleatorio);
+			generador.registrarInicioPartida();
+			break;
+		case "NUEVA_RONDA":
+			// NUEVA_RONDA|mano|central|puntuaciones (respuesta a RESYNC o reanudación)
+			partes = linea.split("\\|");
+			simbolosMano = leerCarta(partes[1], mano);
+			simbolosCentral = leerCarta(partes[2], central);
+			esperandoRespuesta = false;
+			break;
+		case "RONDA":
+			// RONDA|nombre|puntos|central[|mano]: la mano solo viene para quien puntuó
+			partes = linea.split("\\|");
+			if (esperandoRespuesta && partes[1].equals(nombre)) {
+				generador.registrarAcierto(System.nanoTime() - instanteIntento);
+				esperandoRespuesta = false;
+			}
+			simbolosCentral = leerCarta(partes[3], central);
+			if (partes.length > 4) {
+				simbolosMano = leerCarta(partes[4], mano);
+			}
+			rondasJugadas++;
+			break;
+		case "ERROR_JUEGO":
+			if (esperandoRespuesta) {
+				esperandoRespuesta = false;
+				// un intento bueno rechazado llegó tarde: otro jugador acertó antes
+				generador.registrarRechazo(intentoErroneo);
+			}
+			break;
+		case "FIN_PARTIDA":
+			enPartida = false;
+			esperandoRespuesta = false;
+			partidasJugadas++;
+			if (esGanador(linea)) {
+				generador.registrarFinPartida();
+			}
+			if (partidasJugadas >= generador.getPartidasPorBot()) {
+				enviar("DESCONECTAR");
+				generador.registrarBotTerminado();
+				return false;
+			}
+			enviar(generador.getComandoJugar());
+			break;
+		case "PING":
+			// latido del servidor: sin respuesta cerraría la conexión por inactividad
+			enviar("PONG");
+			break;
+		case "ESPERA":
+			// el servidor aún no ha cerrado la partida anterior: se repite el JUGAR
+			if (linea.startsWith("ESPERA|Ya estás")) {
+				dormir(ESPERA_REINTENTO_JUGAR_MS);
+				enviar(generador.getComandoJugar());
+			}
+			break;
+		default:
+			// EVENTO_ABANDONO, ERROR... no cambian lo que tiene que hacer el bot
+			break;
+		}
+		return true;
+	}
+
+	// Pre: El bot está en una partida, sin intentos pendientes, y conoce su carta
+	// y la central.
+	// Post: Se envía RENDIRSE si es la ronda elegida para rendirse. Si no, se envía
+	// un INTENTO con la coincidencia de las dos cartas o, con la probabilidad de
+	// error del perfil, con otro símbolo de la mano.
+	private void jugarRonda() throws IOException {
+		if (rondasJugadas == rondaRendicion) {
+			enPartida = false;
+			generador.registrarRendicion();
+			enviar("RENDIRSE");
+			return;
+		}
+		int coincidencia = buscarCoincidencia();
+		if (coincidencia < 0) {
+			generador.registrarError(nombre, "cartas sin coincidencia");
+			enPartida = false;
+			return;
+		}
+		int simbolo = coincidencia;
+		intentoErroneo = aleatorio.nextDouble() < perfil.tasaError && simbolosMano > 1;
+		if (intentoErroneo) {
+			do {
+				simbolo = mano[aleatorio.nextInt(simbolosMano)];
+			} while (simbolo == coincidencia);
+		}
+		esperandoRespuesta = true;
+		instanteIntento = System.nanoTime();
+		generador.registrarIntento();
+		enviar("INTENTO|" + simbolo);
+	}
+
+	// Pre: 'mano' y 'central' tienen 'simbolosMano' y 'simbolosCentral' símbolos.
+	// Post: Retorna el símbolo que tienen en común las dos cartas, o -1 si no hay
+	// ninguno (el estado del bot no es el del servidor).
+	private int buscarCoincidencia() {
+		for (int i = 0; i < simbolosMano; i++) {
+			for (int j = 0; j < simbolosCentral; j++) {
+				if (mano[i] == central[j]) {
+					return mano[i];
+				}
+			}
+		}
+		return -1;
+	}
+
+	// Pre: 'linea' es un mensaje FIN_PARTIDA.
+	// Post: Retorna 'true' si el bot es el ganador de la partida (o el primero de
+	// un empate), de modo que cada partida terminada se cuenta una sola vez.
+	private boolean esGanador(String linea) {
+		if (linea.contains("Has ganado")) {
+			return true;
+		}
+		if (linea.contains("Ganador: " + nombre + ".")) {
+			return true;
+		}
+		return linea.contains("Ganador: Empate entre: " + nombre + ",");
+	}
+
+	// Pre: 'texto' es una carta serializada ("3,17,25,...").
+	// Post: Los símbolos se copian en 'destino' y se retorna cuántos hay.
+	private static int leerCarta(String texto, int[] destino) {
+		int n = 0;
+		int valor = 0;
+		for (int i = 0; i < texto.length(); i++) {
+			char c = texto.charAt(i);
+			if (c == ',') {
+				destino[n++] = valor;
+				valor = 0;
+			} else {
+				valor = valor * 10 + (c - '0');
+			}
+		}
+		destino[n++] = valor;
+		return n;
+	}
+
+	// Pre: 'mensaje' es un comando del protocolo de texto sin salto de línea.
+	// Post: Se envía el comando al servidor terminado en '\n'.
+	private void enviar(String mensaje) throws IOException {
+		out.write((mensaje + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Pre: 'milisegundos' >= 0.
+	// Post: El hilo del bot se detiene ese tiempo (o menos si se interrumpe).
+	private static void dormir(long milisegundos) {
+		if (milisegundos <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(milisegundos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Pre: Ninguna. Puede llamarse desde otro hilo para cortar el bot.
+	// Post: Se cierra el socket del bot si estaba abierto.
+	void cerrar() {
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+			// ya estaba cerrado
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+Bucle de eventos del modo NIO. Cada instancia tiene su propio Selector
+y atiende, en un único hilo, la lectura y escritura de todas las
+conexiones que se le asignan. El servidor arranca unos pocos bucles
+(normalmente uno por núcleo) en lugar de un hilo por cliente. Si el
+selector falla, el bucle cierra sus conexiones y deja de estar activo: el
+servidor ya no le asigna conexiones nuevas.
+*/
+public class BucleEventosNIO implements Runnable {
+
+	private final Selector selector;
+	// tareas que otros hilos piden ejecutar dentro de este bucle (registrar
+	// canales, activar escrituras...)
+	private final Queue<Runnable> tareas = new ConcurrentLinkedQueue<>();
+	// hilo que ejecuta el bucle, se asigna al arrancar 'run()'
+	private volatile Thread hilo;
+	// pasa a 'false' cuando el selector falla y el bucle termina
+	private volatile boolean activo = true;
+
+	// Pre: Ninguna.
+	// Post: Se abre el Selector del bucle. Lanza IOException si el sistema
+	// operativo no permite crearlo.
+	public BucleEventosNIO() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	// Pre: 'canal' es un SocketChannel recién aceptado por el servidor.
+	// Post: Se programa en el bucle el registro del canal en modo no bloqueante,
+	// con interés de lectura y una nueva ConexionNIO como adjunto. Si el bucle ha
+	// terminado, la conexión se cierra en lugar de registrarse.
+	public void registrar(SocketChannel canal) {
+		ejecutar(() -> {
+			ConexionNIO conexion = new ConexionNIO(canal, this);
+			try {
+				canal.configureBlocking(false);
+				SelectionKey clave = canal.register(selector, SelectionKey.OP_READ, conexion);
+				conexion.registrar(clave);
+			} catch (IOException | ClosedSelectorException e) {
+				Bitacora.error(Bitacora.CONEXION, "Error al registrar la conexión: {}", e.toString());
+				conexion.cerrar();
+			}
+		});
+	}
+
+	// Pre: 'tarea' es un Runnable que debe ejecutarse en el hilo del bucle.
+	// Post: La tarea se encola y se despierta al selector para que la ejecute en
+	// la siguiente vuelta. Si el bucle ya ha terminado, las tareas pendientes se
+	// ejecutan en el hilo que llama (así un registro que llega tarde cierra su
+	// conexión en lugar de quedarse en la cola).
+	public void ejecutar(Runnable tarea) {
+		tareas.add(tarea);
+		if (activo) {
+			selector.wakeup();
+		} else {
+			ejecutarTareas();
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'false' si el selector del bucle ha fallado y el bucle ya no
+	// atiende conexiones.
+	public boolean isActivo() {
+		return activo;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si el hilo que llama es el que ejecuta este bucle.
+	public boolean esHiloDelBucle() {
+		return Thread.currentThread() == hilo;
+	}
+
+	// Pre: El bucle se ejecuta en su propio hilo.
+	// Post: El hilo se bloquea en el selector hasta que haya canales listos o
+	// tareas pendientes. Ejecuta las tareas encoladas y después atiende las
+	// lecturas y escrituras de cada conexión lista. Un fallo inesperado en una
+	// tarea o en una conexión se registra (y esa conexión se cierra) sin parar
+	// el bucle. Solo termina si el selector falla: entonces cierra todas sus
+	// conexiones (ver 'detener()').
+	@Override
+	public void run() {
+		hilo = Thread.currentThread();
+		try {
+			while (true) {
+				selector.select();
+
+				ejecutarTareas();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey clave = it.next();
+					it.remove();
+					ConexionNIO conexion = (ConexionNIO) clave.attachment();
+					try {
+						if (clave.isValid() && clave.isReadable()) {
+							conexion.alLeer();
+						}
+						if (clave.isValid() && clave.isWritable()) {
+							conexion.alEscribir();
+						}
+					} catch (RuntimeException e) {
+						cerrarTrasError(conexion, e);
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			detener(e);
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Se ejecutan las tareas encoladas hasta vaciar la cola. Un fallo en una
+	// tarea se registra y no impide ejecutar las siguientes.
+	private void ejecutarTareas() {
+		Runnable tarea;
+		while ((tarea = tareas.poll()) != null) {
+			try {
+				tarea.run();
+			} catch (RuntimeException e) {
+				Bitacora.error(Bitacora.SERVIDOR, "Error en una tarea del bucle de eventos: {}", e.toString());
+			}
+		}
+	}
+
+	// Pre: Se llama desde el hilo del bucle cuando el selector ha lanzado 'error'.
+	// Post: El bucle deja de estar activo, se cierran todas sus conexiones (cada
+	// cliente libera su sesión) y el selector, y se ejecutan las tareas que
+	// quedaban: los registros pendientes cierran su conexión.
+	private void detener(Exception error) {
+		activo = false;
+		List<SelectionKey> claves = new ArrayList<>();
+		try {
+			claves.addAll(selector.keys());
+		} catch (ClosedSelectorException e) {
+			// el selector ya estaba cerrado y sus claves canceladas
+		}
+		Bitacora.error(Bitacora.SERVIDOR, "Error en el bucle de eventos, se cierran sus {} conexiones: {}",
+				claves.size(), error.toString());
+		for (SelectionKey clave : claves) {
+			cerrarTrasError((ConexionNIO) clave.attachment(), null);
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Bitacora.error(Bitacora.SERVIDOR, "Error al cerrar el selector: {}", e.getMessage());
+		}
+		ejecutarTareas();
+	}
+
+	// Pre: Atender 'conexion' ha lanzado 'error', o 'error' es null si se cierra
+	// porque el bucle termina.
+	// Post: Se registra el error y se cierra esa conexión; el resto sigue
+	// atendiéndose. Un nuevo fallo al cerrarla solo se registra.
+	private static void cerrarTrasError(ConexionNIO conexion, RuntimeException error) {
+		if (error != null) {
+			Bitacora.error(Bitacora.CONEXION, "Error al atender una conexión, se cierra: {}", error.toString());
+		}
+		try {
+			conexion.cerrar();
+		} catch (RuntimeException e) {
+			Bitacora.error(Bitacora.CONEXION, "Error al cerrar la conexión: {}", e.toString());
+		}
+	}
+}
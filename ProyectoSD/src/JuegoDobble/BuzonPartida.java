@@ -0,0 +1,73 @@
+package JuegoDobble;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Buzón de una partida (modelo de actor). Los hilos lectores de los
+jugadores depositan en él las órdenes que modifican la partida (intentos,
+rendiciones, desconexiones) y vuelven enseguida a leer de su socket.
+Las órdenes se ejecutan de una en una, en orden de llegada y nunca en
+paralelo, sobre un ejecutor compartido por todas las partidas, así que
+el estado de la partida no necesita cerrojos.
+Cola con muchos productores y un solo consumidor, sin bloqueos: un
+contador atómico de órdenes pendientes decide quién programa el vaciado.
+*/
+public class BuzonPartida implements Runnable {
+
+	// órdenes que se ejecutan como mucho en cada vaciado antes de devolver el hilo
+	// al ejecutor, para que una partida muy activa no acapare un hilo
+	private static final int MAX_LOTE = 64;
+
+	private final Queue<Runnable> ordenes = new ConcurrentLinkedQueue<>();
+	// órdenes depositadas y aún no ejecutadas. Pasar de 0 a 1 significa que el
+	// buzón no estaba programado y hay que programarlo en el ejecutor
+	private final AtomicInteger pendientes = new AtomicInteger();
+	private final Executor ejecutor;
+
+	// Pre: 'ejecutor' es el ejecutor compartido de las partidas.
+	// Post: Se crea un buzón vacío que se vaciará en 'ejecutor'.
+	public BuzonPartida(Executor ejecutor) {
+		this.ejecutor = ejecutor;
+	}
+
+	// Pre: 'orden' es una acción sobre el estado de la partida. Puede llamarse
+	// desde cualquier hilo.
+	// Post: La orden se encola. Si el buzón estaba vacío se programa su vaciado en
+	// el ejecutor; si no, la ejecutará el vaciado que ya está en marcha.
+	public void enviar(Runnable orden) {
+		ordenes.add(orden);
+		if (pendientes.getAndIncrement() == 0) {
+			ejecutor.execute(this);
+		}
+	}
+
+	// Pre: Se ejecuta en el ejecutor, nunca a la vez que otro vaciado del mismo
+	// buzón (lo garantiza el contador 'pendientes').
+	// Post: Se ejecutan en orden hasta MAX_LOTE órdenes. Si quedan más, el buzón
+	// se vuelve a programar para seguir después. Un error en una orden se registra
+	// y no impide ejecutar las siguientes.
+	@Override
+	public void run() {
+		int ejecutadas = 0;
+		int restantes = pendientes.get();
+		do {
+			int lote = Math.min(restantes, MAX_LOTE - ejecutadas);
+			for (int i = 0; i < lote; i++) {
+				try {
+					ordenes.poll().run();
+				} catch (RuntimeException e) {
+					Bitacora.error(Bitacora.PARTIDA, "Error al procesar una orden de la partida.", e);
+				}
+			}
+			ejecutadas += lote;
+			restantes = pendientes.addAndGet(-lote);
+		} while (restantes > 0 && ejecutadas < MAX_LOTE);
+
+		if (restantes > 0) {
+			ejecutor.execute(this);
+		}
+	}
+}
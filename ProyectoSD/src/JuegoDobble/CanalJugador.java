@@ -0,0 +1,75 @@
+package JuegoDobble;
+
+/*
+Lo que la partida (DobblePartida) y el emparejamiento (CoordinadorPartida,
+SalaEspera) necesitan de un jugador: su nombre, enviarle mensajes y
+guardar en qué sala o partida está. No sabe nada de sockets ni de colas
+de salida. En el servidor lo implementa ClienteGestorHilos, que encola
+los mensajes para su conexión; el simulador (SimuladorPartidas) usa un
+canal en memoria, de modo que una partida se puede jugar entera sin red.
+Los métodos de envío se llaman desde el buzón de la partida y no deben
+bloquear.
+*/
+public interface CanalJugador {
+
+	// Pre: El jugador ha iniciado sesión.
+	// Post: Retorna su nombre de usuario.
+	String getNombreUsuario();
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si el jugador usa el protocolo binario, de modo que la
+	// partida le envía tramas en lugar de texto.
+	boolean usaProtocoloBinario();
+
+	// Pre: 'mensaje' es un comando del protocolo de texto, sin salto de línea.
+	// Post: El mensaje queda enviado o encolado para el jugador (como trama
+	// OP_TEXTO si usa el protocolo binario).
+	void sendMessage(String mensaje);
+
+	// Pre: 'mensaje' es un mensaje ya codificado, normalmente compartido con otros
+	// destinatarios.
+	// Post: Se le envía al jugador la versión de su protocolo, sin copiarla.
+	void enviarMensaje(MensajeCodificado mensaje);
+
+	// Pre: Igual que 'enviarMensaje()'. 'mensaje' es un aviso de ronda provocado
+	// por un INTENTO que llegó en 'instanteIntento' (System.nanoTime()).
+	// Post: Se envía el aviso; quien lo implementa puede descartarlo si el jugador
+	// va retrasado y medir cuánto tarda desde el INTENTO.
+	void enviarRonda(MensajeCodificado mensaje, long instanteIntento);
+
+	// Pre: El jugador usa el protocolo binario. Los parámetros son los de
+	// ProtocoloBinario.codificarInicioPartida().
+	// Post: Se le envía una trama OP_INICIO_PARTIDA.
+	void enviarInicioPartida(MazoDobble mazo, int cartaJugador, int cartaCentral, String[] nombres, int[] puntos);
+
+	// Pre: El jugador usa el protocolo binario. Los parámetros son los de
+	// ProtocoloBinario.codificarNuevaRonda().
+	// Post: Se le envía una trama OP_NUEVA_RONDA.
+	void enviarNuevaRonda(MazoDobble mazo, int cartaJugador, int cartaCentral, int[] puntos);
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si el jugador está en una partida (o su plaza en la sala
+	// de espera se acaba de asignar a una).
+	boolean isEnPartida();
+
+	// Pre: Ninguna.
+	// Post: Se guarda si el jugador está en una partida.
+	void setEnPartida(boolean enPartida);
+
+	// Pre: Ninguna.
+	// Post: Retorna la partida del jugador o 'null' si no está en ninguna.
+	DobblePartida getPartidaActual();
+
+	// Pre: 'partida' es la partida a la que se une el jugador o 'null' si sale.
+	// Post: Se guarda la partida del jugador.
+	void setPartidaActual(DobblePartida partida);
+
+	// Pre: Ninguna.
+	// Post: Retorna la plaza del jugador en la última sala de espera en la que ha
+	// entrado o 'null' si nunca ha entrado en ninguna.
+	PlazaEspera getPlazaEspera();
+
+	// Pre: 'plaza' es la plaza que el jugador acaba de obtener en una sala.
+	// Post: Se guarda la plaza para poder abandonar la sala más tarde.
+	void setPlazaEspera(PlazaEspera plaza);
+}
@@ -0,0 +1,120 @@
+package JuegoDobble;
+
+/*
+Jugador en memoria: no envía nada, solo cuenta los mensajes y los bytes
+que le llegarían por la red con su protocolo. Lo usan el simulador (ver
+SimuladorPartidas) y el reproductor de partidas (ver ReproductorPartidas)
+para jugar con DobblePartida sin sockets.
+*/
+final class CanalMemoria implements CanalJugador {
+	private final String nombre;
+	private final boolean binario;
+	private volatile DobblePartida partida;
+	private volatile boolean enPartida;
+	private PlazaEspera plaza;
+	long mensajes;
+	long bytes;
+
+	// Pre: Ninguna.
+	// Post: Se crea el jugador 'nombre' con el protocolo binario o de texto, sin
+	// partida ni mensajes.
+	CanalMemoria(String nombre, boolean binario) {
+		this.nombre = nombre;
+		this.binario = binario;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el nombre del jugador.
+	@Override
+	public String getNombreUsuario() {
+		return nombre;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna si el jugador usa el protocolo binario.
+	@Override
+	public boolean usaProtocoloBinario() {
+		return binario;
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cuenta el mensaje y su línea de texto.
+	@Override
+	public void sendMessage(String mensaje) {
+		mensajes++;
+		bytes += mensaje.length() + 1;
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cuenta el mensaje y los bytes de su codificación en el protocolo
+	// del jugador.
+	@Override
+	public void enviarMensaje(MensajeCodificado mensaje) {
+		mensajes++;
+		bytes += binario ? mensaje.getFinTrama() : mensaje.getDatos().length - mensaje.getInicioLinea();
+	}
+
+	// Pre: Ninguna.
+	// Post: Igual que 'enviarMensaje()'.
+	@Override
+	public void enviarRonda(MensajeCodificado mensaje, long instanteIntento) {
+		enviarMensaje(mensaje);
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cuenta el mensaje (sin bytes: no se llega a codificar).
+	@Override
+	public void enviarInicioPartida(MazoDobble mazo, int cartaJugador, int cartaCentral, String[] nombres,
+			int[] puntos) {
+		mensajes++;
+	}
+
+	// Pre: Ninguna.
+	// Post: Igual que 'enviarInicioPartida()'.
+	@Override
+	public void enviarNuevaRonda(MazoDobble mazo, int cartaJugador, int cartaCentral, int[] puntos) {
+		mensajes++;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna si el jugador está en una partida.
+	@Override
+	public boolean isEnPartida() {
+		return enPartida;
+	}
+
+	// Pre: Ninguna.
+	// Post: Se marca si el jugador está en una partida.
+	@Override
+	public void setEnPartida(boolean enPartida) {
+		this.enPartida = enPartida;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la partida del jugador o 'null'.
+	@Override
+	public DobblePartida getPartidaActual() {
+		return partida;
+	}
+
+	// Pre: Ninguna.
+	// Post: Se guarda la partida del jugador.
+	@Override
+	public void setPartidaActual(DobblePartida partida) {
+		this.partida = partida;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la plaza de espera del jugador o 'null'.
+	@Override
+	public PlazaEspera getPlazaEspera() {
+		return plaza;
+	}
+
+	// Pre: Ninguna.
+	// Post: Se guarda la plaza de espera del jugador.
+	@Override
+	public void setPlazaEspera(PlazaEspera plaza) {
+		this.plaza = plaza;
+	}
+}
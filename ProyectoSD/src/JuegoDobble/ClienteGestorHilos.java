@@ -2,6 +2,15 @@ package JuegoDobble;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /*
 Es el agente esencial de la concurrencia en el servidor. 
@@ -9,24 +18,121 @@ Su objetivo es aislar la comunicación con un único cliente
 en su propio hilo de ejecución, permitiendo que el servidor
 atienda a cientos de jugadores simultáneamente sin bloquearse.
 */
-//Define la clase como un hilo de ejecución.
-//cada instancia de CienteGestorHilos se ejecutará en paralelo a las demás.
-public class ClienteGestorHilos extends Thread {
+//Define la clase como la tarea de un hilo de ejecución.
+//cada instancia de CienteGestorHilos se ejecutará en paralelo a las demás, en
+//un hilo de plataforma (modo clásico) o en un hilo virtual (modo virtual).
+public class ClienteGestorHilos implements Runnable, CanalJugador {
 	// conexión con el cliente
-	private Socket clientSocket;
+	private volatile Socket clientSocket;
+	// Longitud máxima de una línea de texto recibida del cliente.
+	private static final int MAX_LONGITUD_LINEA = 64 * 1024;
+	// Formato del comando JUGAR, para los mensajes de error.
+	private static final String USO_JUGAR = "Comando JUGAR inválido. Debe ser JUGAR|N, JUGAR|N|orden o JUGAR|N|orden|min|segundos.";
+	// Milisegundos que se guarda la sesión (y el asiento en la partida) después
+	// de perder la conexión, para que el cliente pueda volver con RESUME|token. Se
+	// configura en segundos con la propiedad del sistema dobble.sesion.gracia; 0
+	// desactiva la reanudación
+	private static final long GRACIA_SESION_MS = TimeUnit.SECONDS
+			.toMillis(Math.max(0, Long.getLong("dobble.sesion.gracia", 30)));
+	// estados de la sesión
+	// hay una conexión atendiendo al cliente
+	private static final int SESION_CONECTADA = 0;
+	// se perdió la conexión y se espera a que el cliente la reanude
+	private static final int SESION_EN_GRACIA = 1;
+	// la sesión ha terminado: se ha liberado su partida o sala
+	private static final int SESION_CERRADA = 2;
+	// clave del comando de administración METRICS|clave (propiedad del sistema
+	// dobble.admin.clave). Sin ella el comando está desactivado
+	private static final String CLAVE_ADMIN = System.getProperty("dobble.admin.clave");
+	// métricas de las sesiones y de los comandos (ver Metricas)
+	private static final LongAdder loginsAceptados = Metricas
+			.contador("dobble_logins_total{resultado=\"aceptado\"}", "Logins por resultado.");
+	private static final LongAdder loginsRechazados = Metricas
+			.contador("dobble_logins_total{resultado=\"rechazado\"}", "Logins por resultado.");
+	private static final LongAdder reanudacionesAceptadas = Metricas
+			.contador("dobble_reanudaciones_total{resultado=\"aceptada\"}", "Reanudaciones (RESUME) por resultado.");
+	private static final LongAdder reanudacionesRechazadas = Metricas
+			.contador("dobble_reanudaciones_total{resultado=\"rechazada\"}", "Reanudaciones (RESUME) por resultado.");
+	private static final LongAdder intentosSinPartida = Metricas
+			.contador("dobble_intentos_total{resultado=\"sin_partida\"}", "Intentos por resultado.");
+	// contador de cada tipo de comando (ver ComandoTexto), por su número; los que
+	// no se reconocen cuentan como "desconocido". El array se rellena al cargar la
+	// clase y después solo se lee
+	private static final LongAdder[] comandosPorTipo = new LongAdder[ComandoTexto.NOMBRES.length];
+	static {
+		for (int i = 0; i < comandosPorTipo.length; i++) {
+			comandosPorTipo[i] = Metricas.contador(
+					"dobble_comandos_total{comando=\"" + ComandoTexto.NOMBRES[i].toLowerCase() + "\"}",
+					"Comandos recibidos por tipo.");
+		}
+	}
+	// los OP_INTENTO binarios no pasan por 'manejarComando()'
+	private static final LongAdder comandosIntento = comandosPorTipo[ComandoTexto.INTENTO];
+	// respuestas fijas más frecuentes, codificadas una sola vez (ver
+	// MensajeCodificado)
+	private static final MensajeCodificado ESPERA_YA_EN_PARTIDA = MensajeCodificado
+			.deTexto("ESPERA|Ya estás en una sala de espera o partida activa.");
+	private static final MensajeCodificado ERROR_SIN_PARTIDA = MensajeCodificado
+			.deTexto("ERROR|No estás en una partida activa.");
+	private static final MensajeCodificado ERROR_SIMBOLO = MensajeCodificado.deTexto("ERROR|Símbolo no válido.");
+	private static final MensajeCodificado ERROR_COMANDO = MensajeCodificado.deTexto("ERROR|Comando desconocido.");
+	private static final MensajeCodificado ERROR_USO_JUGAR = MensajeCodificado.deTexto("ERROR|" + USO_JUGAR);
+	// latido que se envía a una conexión en silencio (ver RuedaInactividad); el
+	// cliente responde PONG
+	private static final MensajeCodificado PING = MensajeCodificado.deTexto("PING");
 	// Stream para enviar datos (mensajes) al cliente.
-	private PrintWriter out;
-	// Stream para leer datos (comandos) que vienen del cliente.
-	private BufferedReader in;
+	private OutputStream out;
+	// Stream para leer datos (comandos) que vienen del cliente. Se lee como bytes
+	// para poder pasar del protocolo de texto al binario tras el login.
+	private InputStream in;
+	// Lector de líneas del protocolo de texto sobre 'in'.
+	private LectorLineas lectorLineas;
+	// true si el cliente negoció el protocolo binario en el login (ver
+	// ProtocoloBinario). Lo consultan los hilos de las partidas al enviar.
+	private volatile boolean protocoloBinario = false;
+	// Búfer reutilizable para codificar tramas binarias
+	private final TramaBinaria tramaSalida = new TramaBinaria(128);
+	// Serializa los envíos: varios hilos (partidas, sala de espera...) pueden
+	// escribir a este cliente a la vez y comparten 'tramaSalida'.
+	private final ReentrantLock cerrojoEnvio = new ReentrantLock();
 	// Almacena el nombre que el cliente proporciona al iniciar sesión.
-	private String nombreUsuario;
+	private volatile String nombreUsuario;
+	// Token que identifica la sesión para reanudarla desde otra conexión (ver
+	// 'reanudar()'). Se asigna en el login.
+	private String tokenSesion;
+	// Estado de la sesión (SESION_CONECTADA, SESION_EN_GRACIA o SESION_CERRADA),
+	// el plazo de gracia en curso y el número de veces que se ha perdido la
+	// conexión (para ignorar un plazo que ya no es el actual). Protegidos por
+	// 'cerrojoSesion'.
+	private final ReentrantLock cerrojoSesion = new ReentrantLock();
+	private int estadoSesion = SESION_CONECTADA;
+	private ScheduledFuture<?> vencimientoGracia;
+	private long perdidasConexion = 0;
+	// true si el cliente ha pedido DESCONECTAR: su sesión se cierra sin gracia
+	private volatile boolean cierreSolicitado = false;
 	// Indicador booleano que es true si el jugador está jugando o esperando en una
 	// sala,
-	// y false si está en el menú principal.
-	private boolean enPartida = false;
+	// y false si está en el menú principal. Volátil porque lo cambia el buzón de la
+	// partida (ver BuzonPartida) y lo lee el hilo lector del cliente.
+	private volatile boolean enPartida = false;
 	// Mantiene una referencia a la instancia específica de DobblePartida
 	// en la que está jugando este cliente.
-	private DobblePartida partidaActual = null;
+	private volatile DobblePartida partidaActual = null;
+	// plaza del jugador en la última sala de espera en la que ha entrado (ver
+	// CoordinadorPartida). Permite abandonar la sala sin recorrerla
+	private volatile PlazaEspera plazaEspera = null;
+	// Conexión no bloqueante asociada cuando el servidor arranca en modo NIO. Es
+	// null en el modo clásico (un hilo por socket).
+	private volatile ConexionNIO conexionNIO;
+	// Cola acotada de mensajes pendientes de enviar al cliente. Todos los envíos
+	// pasan por ella: quien envía no espera a que se escriban en el socket.
+	private ColaSalida colaSalida;
+	// Escritor que vacía 'colaSalida' en el socket (modos clásico y virtual). Es
+	// null en el modo NIO, donde la vacía el bucle de eventos.
+	private EscritorSocket escritor;
+	// Los campos de la conexión ('clientSocket', 'in', 'lectorLineas',
+	// 'conexionNIO', 'colaSalida' y 'escritor') cambian si la sesión se reanuda
+	// desde otra conexión; se cambian con 'cerrojoEnvio' y 'cerrojoSesion'.
 
 	// Pre: 'socket' es una instancia de Socket válida y ya aceptada por el
 	// ServerSocket.
@@ -39,17 +145,37 @@ public class ClienteGestorHilos extends Thread {
 		this.clientSocket = socket;
 		try {
 			// Inicialización de los streams en el constructor
-			this.out = new PrintWriter(clientSocket.getOutputStream(), true);
-			this.in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+			this.out = new BufferedOutputStream(clientSocket.getOutputStream());
+			this.in = new BufferedInputStream(clientSocket.getInputStream());
+			this.lectorLineas = new LectorLineas(in, MAX_LONGITUD_LINEA);
+			this.colaSalida = new ColaSalida();
+			this.escritor = new EscritorSocket(colaSalida, out, clientSocket, DobbleServer.getEjecutorEscritura());
 		} catch (IOException e) {
-			System.err.println("Error al inicializar streams para el cliente: " + e.getMessage());
+			Bitacora.error(Bitacora.CONEXION, "Error al inicializar streams para el cliente: {}", e.getMessage());
 		}
 	}
 
+	// Pre: 'conexion' es una ConexionNIO recién aceptada y registrada en un bucle
+	// de eventos.
+	// Post: Se crea el gestor del cliente sin streams bloqueantes: las líneas las
+	// entrega la conexión a 'procesarLineaEntrante()' y los mensajes salientes se
+	// encolan en ella. En este modo 'run()' nunca se ejecuta.
+	public ClienteGestorHilos(ConexionNIO conexion) {
+		this.conexionNIO = conexion;
+		this.colaSalida = conexion.getColaSalida();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la cola de salida de la conexión actual del cliente.
+	ColaSalida getColaSalida() {
+		return colaSalida;
+	}
+
 	// Pre: El hilo ha completado el proceso de login, por lo que 'nombreUsuario' no
 	// es nulo.
 	// Post: Retorna la cadena de texto que contiene el nombre de usuario de este
 	// cliente.
+	@Override
 	public String getNombreUsuario() {
 		return nombreUsuario;
 	}
@@ -58,14 +184,24 @@ public class ClienteGestorHilos extends Thread {
 	// jugador (true si está en juego/sala, false si está en el menú).
 	// Post: La variable de estado 'this.enPartida' se actualiza con el valor
 	// proporcionado.
+	@Override
 	public void setEnPartida(boolean enPartida) {
 		this.enPartida = enPartida;
 	}
 
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si el jugador está en una partida (o su plaza en la sala
+	// de espera se acaba de asignar a una).
+	@Override
+	public boolean isEnPartida() {
+		return enPartida;
+	}
+
 	// Pre: 'partida' es la instancia de DobblePartida a la que el jugador se está
 	// uniendo o 'null' si está saliendo.
 	// Post: La referencia 'this.partidaActual' se establece a la instancia de la
 	// partida o a 'null'.
+	@Override
 	public void setPartidaActual(DobblePartida partida) {
 		this.partidaActual = partida;
 	}
@@ -73,180 +209,867 @@ public class ClienteGestorHilos extends Thread {
 	// Pre: Ninguna.
 	// Post: Retorna la instancia de DobblePartida a la que pertenece este jugador o
 	// 'null' si no está en ninguna partida.
+	@Override
 	public DobblePartida getPartidaActual() {
 		return partidaActual;
 	}
 
+	// Pre: Ninguna.
+	// Post: Retorna la plaza del jugador en la última sala de espera en la que ha
+	// entrado o 'null' si nunca ha entrado en ninguna.
+	@Override
+	public PlazaEspera getPlazaEspera() {
+		return plazaEspera;
+	}
+
+	// Pre: 'plaza' es la plaza que el jugador acaba de obtener en una sala.
+	// Post: Se guarda la plaza para poder abandonar la sala más tarde.
+	@Override
+	public void setPlazaEspera(PlazaEspera plaza) {
+		this.plazaEspera = plaza;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si este cliente usa el protocolo binario.
+	@Override
+	public boolean usaProtocoloBinario() {
+		return protocoloBinario;
+	}
+
 	// Pre: 'message' es una cadena de texto (comando de protocolo) a enviar al
 	// cliente.
-	// Post: Si el stream 'out' no es nulo, la cadena 'message' se envía al cliente,
-	// seguida de un salto de línea, y se vacía el búfer.
+	// Post: La cadena 'message', seguida de un salto de línea, se encola en la
+	// cola de salida del cliente y se retorna sin esperar a que se escriba. Si el
+	// cliente usa el protocolo binario, el mismo texto se encola dentro de una
+	// trama OP_TEXTO.
+	@Override
 	public void sendMessage(String message) {
-		if (out != null) {
-			out.println(message);
+		cerrojoEnvio.lock();
+		try {
+			if (protocoloBinario) {
+				ProtocoloBinario.codificarTexto(tramaSalida, message);
+				encolarSalida(copiarTramaSalida(), false);
+			} else {
+				encolarSalida(ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)), false);
+			}
+		} finally {
+			cerrojoEnvio.unlock();
+		}
+	}
+
+	// Pre: Igual que 'enviarMensaje(mensaje, ronda, instanteIntento)'.
+	// Post: Se encola el mensaje como un mensaje normal (no descartable).
+	@Override
+	public void enviarMensaje(MensajeCodificado mensaje) {
+		enviarMensaje(mensaje, false, 0);
+	}
+
+	// Pre: Igual que 'enviarMensaje(mensaje, ronda, instanteIntento)'. 'mensaje'
+	// es un aviso de ronda (RONDA/OP_RONDA) provocado por un INTENTO que llegó en
+	// 'instanteIntento' (System.nanoTime()).
+	// Post: Se encola el aviso como descartable y, cuando se escriba, se mide el
+	// tiempo desde el INTENTO (ver ColaSalida).
+	@Override
+	public void enviarRonda(MensajeCodificado mensaje, long instanteIntento) {
+		enviarMensaje(mensaje, true, instanteIntento);
+	}
+
+	// Pre: 'mensaje' es un mensaje ya codificado, normalmente compartido con otros
+	// destinatarios. Si no tiene versión de texto, el cliente usa el protocolo
+	// binario. 'ronda' indica si es un aviso de ronda, que la cola puede
+	// descartar si se llena, e 'instanteIntento' cuándo llegó el INTENTO que lo
+	// provocó (0 si no es un aviso de ronda).
+	// Post: Se encola una vista de la trama (protocolo binario) o de la línea
+	// (protocolo de texto) del mensaje, sin volver a codificarlo ni copiarlo.
+	private void enviarMensaje(MensajeCodificado mensaje, boolean ronda, long instanteIntento) {
+		int desde;
+		int hasta;
+		// el protocolo se consulta con el cerrojo: puede cambiar al reanudar la sesión
+		cerrojoEnvio.lock();
+		try {
+			if (protocoloBinario) {
+				desde = 0;
+				hasta = mensaje.getFinTrama();
+			} else if (mensaje.tieneLinea()) {
+				desde = mensaje.getInicioLinea();
+				hasta = mensaje.getDatos().length;
+			} else {
+				return;
+			}
+			encolarSalida(ByteBuffer.wrap(mensaje.getDatos(), desde, hasta - desde), ronda, instanteIntento);
+		} finally {
+			cerrojoEnvio.unlock();
+		}
+	}
+
+	// Pre: El cliente usa el protocolo binario. Los parámetros son los de
+	// ProtocoloBinario.codificarInicioPartida().
+	// Post: Se encola para el cliente una trama OP_INICIO_PARTIDA (salvo que
+	// entretanto haya reanudado la sesión con el protocolo de texto).
+	@Override
+	public void enviarInicioPartida(MazoDobble mazo, int cartaJugador, int cartaCentral, String[] nombres,
+			int[] puntos) {
+		cerrojoEnvio.lock();
+		try {
+			if (!protocoloBinario) {
+				// la sesión se acaba de reanudar en texto; recibirá el estado completo
+				return;
+			}
+			ProtocoloBinario.codificarInicioPartida(tramaSalida, mazo, cartaJugador, cartaCentral, nombres, puntos);
+			encolarSalida(copiarTramaSalida(), false);
+		} finally {
+			cerrojoEnvio.unlock();
+		}
+	}
+
+	// Pre: El cliente usa el protocolo binario. Los parámetros son los de
+	// ProtocoloBinario.codificarNuevaRonda().
+	// Post: Se encola para el cliente una trama OP_NUEVA_RONDA (salvo que
+	// entretanto haya reanudado la sesión con el protocolo de texto).
+	@Override
+	public void enviarNuevaRonda(MazoDobble mazo, int cartaJugador, int cartaCentral, int[] puntos) {
+		cerrojoEnvio.lock();
+		try {
+			if (!protocoloBinario) {
+				// la sesión se acaba de reanudar en texto; recibirá el estado completo
+				return;
+			}
+			ProtocoloBinario.codificarNuevaRonda(tramaSalida, mazo, cartaJugador, cartaCentral, puntos);
+			encolarSalida(copiarTramaSalida(), false);
+		} finally {
+			cerrojoEnvio.unlock();
+		}
+	}
+
+	// Pre: 'rankingSerializado' es una página del ranking ("nombre:victorias,...")
+	// que empieza en la posición 'desde'.
+	// Post: Se envía "RANKING|datos|total|desde", o "RANKING|NO_DATA|total" si la
+	// página está vacía, donde 'total' es el número de jugadores del ranking.
+	private void enviarRanking(String rankingSerializado, int desde) {
+		int total = DobbleServer.getRankingGlobal().getNumeroJugadores();
+		if (rankingSerializado.isEmpty()) {
+			sendMessage("RANKING|NO_DATA|" + total);
+		} else {
+			sendMessage("RANKING|" + rankingSerializado + "|" + total + "|" + desde);
+		}
+	}
+
+	// Pre: Se tiene 'cerrojoEnvio' y 'tramaSalida' contiene una trama terminada.
+	// Post: Retorna un búfer con una copia de la trama, ya que 'tramaSalida' se
+	// reutiliza en el siguiente envío.
+	private ByteBuffer copiarTramaSalida() {
+		return ByteBuffer.wrap(Arrays.copyOfRange(tramaSalida.getDatos(), tramaSalida.getInicio(),
+				tramaSalida.getFin()));
+	}
+
+	// Pre: Se tiene 'cerrojoEnvio'. 'bufer' contiene mensajes completos que nadie
+	// va a modificar.
+	// Post: El búfer se encola en la cola de salida y se programa su escritura
+	// (el EscritorSocket o el bucle de eventos NIO). Si la cola ha tenido que
+	// descartar avisos de ronda se pide a la partida una instantánea nueva para
+	// este cliente. Si la cola se ha desbordado se desconecta al cliente.
+	private void encolarSalida(ByteBuffer bufer, boolean ronda) {
+		encolarSalida(bufer, ronda, 0);
+	}
+
+	// Pre: Igual que 'encolarSalida(bufer, ronda)'. 'instanteIntento' es el de
+	// ColaSalida.encolar().
+	// Post: Igual que 'encolarSalida(bufer, ronda)'.
+	private void encolarSalida(ByteBuffer bufer, boolean ronda, long instanteIntento) {
+		int resultado = colaSalida.encolar(bufer, ronda, instanteIntento);
+		if (resultado == ColaSalida.DESBORDADA) {
+			Bitacora.aviso(Bitacora.CONEXION, "Cola de salida llena para {}. Se desconecta al cliente.", nombreUsuario);
+			desconectar();
+			return;
+		}
+		if (conexionNIO != null) {
+			conexionNIO.programarEscritura();
+		} else if (escritor != null) {
+			escritor.programar();
+		}
+		if (resultado == ColaSalida.ACEPTADO_CON_DESCARTE) {
+			DobblePartida partida = partidaActual;
+			if (partida != null) {
+				partida.procesarResync(this);
+			}
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cierra la conexión actual con el cliente (el canal NIO o el
+	// socket). La sesión se libera después, en 'ConexionNIO.cerrar()' o en el
+	// 'finally' de 'run()'.
+	private void desconectar() {
+		ConexionNIO conexion;
+		ColaSalida cola;
+		Socket socket;
+		cerrojoEnvio.lock();
+		try {
+			conexion = conexionNIO;
+			cola = colaSalida;
+			socket = clientSocket;
+		} finally {
+			cerrojoEnvio.unlock();
+		}
+		if (conexion != null) {
+			conexion.cerrar();
+			return;
+		}
+		cerrarConexion(socket, cola);
+	}
+
+	// Pre: 'socket' y 'cola' son los de una conexión del modo clásico o virtual.
+	// Post: Se descartan los mensajes pendientes y se cierra el socket, lo que
+	// despierta al hilo que lee de él; la sesión se libera en el 'finally' de
+	// 'run()'.
+	private static void cerrarConexion(Socket socket, ColaSalida cola) {
+		cola.cerrar();
+		try {
+			if (socket != null) {
+				socket.close();
+			}
+		} catch (IOException e) {
+		}
+	}
+
+	// Pre: Se ejecuta en el temporizador, cuando la conexión del cliente lleva un
+	// rato en silencio (ver RuedaInactividad).
+	// Post: Si el cliente ha iniciado sesión, se le envía un PING, al que debe
+	// responder PONG. Antes del login no se envía nada: el cliente aún no lo
+	// esperaría.
+	void enviarLatido() {
+		if (nombreUsuario != null) {
+			enviarMensaje(PING);
 		}
 	}
 
 	// Pre: Los streams 'in' y 'out' han sido inicializados en el constructor.
 	// Post: Se completa el proceso de login con verificación de unicidad (reserva
-	// permanente). El hilo entra en un bucle continuo para leer comandos del
-	// cliente. Si el cliente se desconecta o cierra la conexión, se captura la
+	// permanente) o se reanuda una sesión anterior con RESUME|token, que pasa a
+	// usar esta conexión. El hilo entra en un bucle continuo para leer comandos
+	// del cliente. Si el cliente se desconecta o cierra la conexión, se captura la
 	// IOException,
-	// y se realizan las tareas de limpieza necesarias
+	// y se realizan las tareas de limpieza necesarias. Mientras tanto se vigila
+	// la inactividad de la conexión (ver RuedaInactividad): si deja de recibir
+	// datos se le envía PING y, si tampoco responde, se cierra el socket, lo que
+	// lleva a la misma limpieza.
 	@Override
 	public void run() {
+		// la conexión de este hilo; si se reanuda otra sesión, sus campos pasan a
+		// apuntar a ella
+		Socket socket = clientSocket;
+		InputStream entrada = in;
+		LectorLineas lector = lectorLineas;
+		ColaSalida cola = colaSalida;
+		ClienteGestorHilos sesion = this;
+		RuedaInactividad.Latido latido = DobbleServer.getRuedaInactividad().registrar(this::enviarLatido,
+				() -> cerrarConexion(socket, cola));
 		try {
 			while (true) {
 				// Intenta leer el nombre de usuario del cliente
-				String nombreTentativo = in.readLine();
+				String nombreTentativo = lector.leerLinea();
 
 				if (nombreTentativo == null) {
 					// Cliente se desconectó antes de dar un nombre
 					return;
 				}
+				latido.actividad();
 
-				//Valida unicidad usando el método estático contra los nombres reservados
-				if (DobbleServer.isNombreEnUso(nombreTentativo)) {
-					// El nombre ya está en uso/reservado, notificar al cliente para que intente de nuevo
-					sendMessage("ERROR|El nombre de usuario '" + nombreTentativo
-							+ "' ya está reservado. Por favor, prueba con otro.");
-					if (DobbleServer.LOGGING_ACTIVO) {
-						System.out.println("Intento de login fallido: '" + nombreTentativo + "' ya está reservado.");
+				if (esReanudacion(nombreTentativo)) {
+					ClienteGestorHilos anterior = procesarReanudacion(nombreTentativo);
+					if (anterior != null) {
+						sesion = anterior;
+						// los PING de esta conexión van ahora a la sesión reanudada
+						latido.setPing(anterior::enviarLatido);
+						break;
 					}
-				} else {
-					// Nombre aceptado (Login OK)
-
-					//Bloqueamos el nombre para el resto de la vida del servidor.
-					DobbleServer.nombresReservados.add(nombreTentativo.toUpperCase());
-
-					this.nombreUsuario = nombreTentativo;
-					System.out.println("Usuario logueado: " + nombreUsuario);
-
-					// Añadir a la lista de clientes activos
-					DobbleServer.clientesConectados.add(this);
-
-					// Confirmar conexión al cliente
-					sendMessage("LOGIN_OK");
+				} else if (procesarLogin(nombreTentativo)) {
 					break;
 				}
 			}
-			String linea;
-			// mientras la conexión esté abierta y haya datos para leer se ejecuta todo el
-			// rato el bucle
-			while ((linea = in.readLine()) != null) {
-				System.out.println("Comando de " + nombreUsuario + ": " + linea);
-				manejarComando(linea);
-			}
+			sesion.atenderComandos(socket, entrada, lector, latido);
 		} catch (IOException e) {
 			// La excepción se lanza cuando el cliente cierra la ventana (la X) o pierde la
 			// conexión.
-			System.out.println((nombreUsuario != null ? nombreUsuario : "Cliente") + " ha perdido la conexión.");
+			Bitacora.info(Bitacora.CONEXION, "{} ha perdido la conexión.",
+					sesion.nombreUsuario != null ? sesion.nombreUsuario : "Cliente");
 		} finally {
+			latido.cancelar();
+			cola.cerrar();
 
-			// Manejo del estado de partida (si estaba jugando)
-			// enPartida y partidaActual deben ser variables de instancia.
-			if (enPartida && partidaActual != null) {
-				// Si el cliente estaba en una partida, la rendición es forzada
-				partidaActual.procesarDesconexion(this);
+			try {
+				// Cerrar el socket
+				if (socket != null) {
+					socket.close();
+				}
+			} catch (IOException e) {
+				Bitacora.aviso(Bitacora.CONEXION, "Error al cerrar el socket del cliente.", e);
+			}
+			sesion.liberarSesion(socket);
+		}
+	}
+
+	// Pre: El cliente ha iniciado o reanudado la sesión por la conexión 'socket',
+	// cuyos datos se leen de 'entrada' (con 'lector' en el protocolo de texto).
+	// 'latido' es la vigilancia de inactividad de la conexión.
+	// Post: Mientras la conexión esté abierta, haya datos para leer y siga siendo
+	// la conexión de la sesión, se leen y despachan los comandos del cliente, y
+	// cada uno cuenta como actividad. Retorna cuando el cliente cierra la
+	// conexión o cuando otra conexión reanuda la sesión. Lanza IOException si
+	// falla la lectura (también cuando se cierra el socket por inactividad).
+	private void atenderComandos(Socket socket, InputStream entrada, LectorLineas lector,
+			RuedaInactividad.Latido latido) throws IOException {
+		TramaBinaria tramaEntrada = new TramaBinaria(64);
+		// analizador de los comandos de esta conexión, que se reutiliza para todos
+		ComandoTexto comando = new ComandoTexto();
+		// mientras la conexión esté abierta y haya datos para leer se ejecuta todo el
+		// rato el bucle
+		while (clientSocket == socket) {
+			if (protocoloBinario) {
+				if (!tramaEntrada.leerDe(entrada, ProtocoloBinario.MAX_TRAMA_SERVIDOR)) {
+					break;
+				}
+				latido.actividad();
+				procesarTramaEntrante(tramaEntrada, comando);
 			} else {
-				// Si el cliente estaba en la sala de espera (pero no jugando), removerlo del
-				// Coordinador
-				DobbleServer.getCoordinadorPartida().removerJugador(this);
+				if (!lector.leerComando(comando)) {
+					break;
+				}
+				latido.actividad();
+				manejarComando(comando);
 			}
+		}
+	}
+
+	// Pre: 'linea' es una línea completa (sin el salto de línea) recibida por una
+	// conexión del modo NIO, ya analizada.
+	// Post: Si el cliente todavía no ha iniciado sesión, la línea se trata como el
+	// nombre de usuario tentativo (o como un RESUME|token, que pasa la conexión a
+	// la sesión reanudada); en caso contrario se despacha como un comando con
+	// 'manejarComando()'. Es el equivalente no bloqueante del bucle de 'run()'.
+	void procesarLineaEntrante(ComandoTexto linea) {
+		if (nombreUsuario == null) {
+			String texto = linea.getLinea();
+			if (!esReanudacion(texto)) {
+				procesarLogin(texto);
+			} else {
+				// si se reanuda, las siguientes líneas de esta conexión van a la sesión
+				// reanudada
+				procesarReanudacion(texto);
+			}
+		} else {
+			manejarComando(linea);
+		}
+	}
 
-			// Quita el hilo de la lista de hilos activos
-			DobbleServer.removerCliente(this);
+	// Pre: 'trama' contiene una trama binaria completa recibida de un cliente que
+	// usa el protocolo binario. 'comando' es el analizador de la conexión.
+	// Post: Un OP_INTENTO que trae justo el símbolo se procesa directamente con él
+	// (sin pasar por texto); un OP_TEXTO se analiza en 'comando' y se despacha
+	// con 'manejarComando()' igual que una línea. Cualquier otra trama se
+	// responde con un 'ERROR'.
+	void procesarTramaEntrante(TramaBinaria trama, ComandoTexto comando) {
+		switch (trama.getOpcode()) {
+		case ProtocoloBinario.OP_INTENTO:
+			// la trama es el opcode y el símbolo, ni más ni menos
+			if (trama.getTamano() != 2) {
+				enviarMensaje(ERROR_COMANDO);
+				break;
+			}
+			int simbolo = trama.leerByte();
+			comandosIntento.increment();
+			if (Bitacora.activo(Bitacora.COMANDO, Bitacora.INFO)) {
+				Bitacora.info(Bitacora.COMANDO, "Comando de {}: INTENTO|{}", nombreUsuario, simbolo);
+			}
+			manejarIntento(simbolo);
+			break;
+		case ProtocoloBinario.OP_TEXTO:
+			trama.leerComando(comando);
+			manejarComando(comando);
+			break;
+		default:
+			enviarMensaje(ERROR_COMANDO);
+			break;
+		}
+	}
+
+	// Pre: 'nombreTentativo' es el nombre de usuario enviado por el cliente (no
+	// nulo), opcionalmente seguido de ProtocoloBinario.SUFIJO_LOGIN.
+	// Post: Retorna 'true' si el nombre ha sido aceptado: queda reservado, se
+	// asigna a 'nombreUsuario', se abre una sesión reanudable y se envía
+	// "LOGIN_OK|token" (o "LOGIN_OK|BIN|token", tras lo cual la conexión pasa al
+	// protocolo binario). Retorna 'false' si el nombre es demasiado largo para
+	// guardarlo (ver AlmacenRanking.cabeNombre()) o ya estaba reservado, en cuyo
+	// caso se envía un mensaje 'ERROR' al cliente para que pruebe con otro.
+	private boolean procesarLogin(String nombreTentativo) {
+		boolean pideBinario = nombreTentativo.endsWith(ProtocoloBinario.SUFIJO_LOGIN);
+		if (pideBinario) {
+			nombreTentativo = nombreTentativo.substring(0,
+					nombreTentativo.length() - ProtocoloBinario.SUFIJO_LOGIN.length());
+		}
+
+		// el almacén del ranking guarda los nombres (y su versión en mayúsculas, la
+		// de los nombres reservados) con una longitud de 16 bits
+		if (!AlmacenRanking.cabeNombre(nombreTentativo) || !AlmacenRanking.cabeNombre(nombreTentativo.toUpperCase())) {
+			sendMessage("ERROR|El nombre de usuario es demasiado largo. Por favor, prueba con otro.");
+			loginsRechazados.increment();
+			return false;
+		}
+
+		//Valida unicidad usando el método estático contra los nombres reservados
+		if (DobbleServer.isNombreEnUso(nombreTentativo)) {
+			// El nombre ya está en uso/reservado, notificar al cliente para que intente de nuevo
+			sendMessage("ERROR|El nombre de usuario '" + nombreTentativo
+					+ "' ya está reservado. Por favor, prueba con otro.");
+			loginsRechazados.increment();
+			Bitacora.info(Bitacora.CONEXION, "Intento de login fallido: '{}' ya está reservado.", nombreTentativo);
+			return false;
+		}
+		// Nombre aceptado (Login OK)
+
+		//Bloqueamos el nombre para el resto de la vida del servidor.
+		DobbleServer.reservarNombre(nombreTentativo);
+
+		this.nombreUsuario = nombreTentativo;
+		this.tokenSesion = DobbleServer.registrarSesion(this);
+		loginsAceptados.increment();
+		Bitacora.info(Bitacora.CONEXION, "Usuario logueado: {}", nombreUsuario);
+
+		// Añadir a la lista de clientes activos
+		DobbleServer.clientesConectados.add(this);
+
+		// Confirmar conexión al cliente. La confirmación va siempre en texto; después
+		// se cambia de protocolo si el cliente lo pidió.
+		if (pideBinario) {
+			sendMessage(ProtocoloBinario.LOGIN_OK_BINARIO + "|" + tokenSesion);
+			protocoloBinario = true;
+		} else {
+			sendMessage("LOGIN_OK|" + tokenSesion);
+		}
+		return true;
+	}
 
+	// Pre: 'linea' es la primera línea recibida por una conexión.
+	// Post: Retorna 'true' si es un comando RESUME (reanudar una sesión).
+	private static boolean esReanudacion(String linea) {
+		return linea.startsWith("RESUME|");
+	}
+
+	// Pre: Este gestor es el de una conexión nueva que aún no ha iniciado sesión y
+	// 'linea' empieza por "RESUME|", normalmente seguido del token y
+	// opcionalmente de ProtocoloBinario.SUFIJO_LOGIN.
+	// Post: Si el token es de una sesión abierta, esa sesión pasa a usar esta
+	// conexión (ver 'reanudar()') y se retorna. Si no, se envía un 'ERROR' por
+	// esta conexión y se retorna 'null'.
+	private ClienteGestorHilos procesarReanudacion(String linea) {
+		int inicioToken = "RESUME|".length();
+		int finToken = linea.length();
+		boolean pideBinario = linea.endsWith(ProtocoloBinario.SUFIJO_LOGIN)
+				&& finToken - ProtocoloBinario.SUFIJO_LOGIN.length() >= inicioToken;
+		if (pideBinario) {
+			finToken -= ProtocoloBinario.SUFIJO_LOGIN.length();
+		}
+		// "RESUME|" y "RESUME|BIN" no traen token
+		ClienteGestorHilos sesion = finToken > inicioToken
+				? DobbleServer.buscarSesion(linea.substring(inicioToken, finToken))
+				: null;
+		if (sesion == null || sesion == this || !sesion.reanudar(this, pideBinario)) {
+			sendMessage("ERROR|La sesión no existe o ha caducado. Inicia sesión de nuevo.");
+			reanudacionesRechazadas.increment();
+			return null;
+		}
+		reanudacionesAceptadas.increment();
+		// este gestor ya no representa a ningún cliente
+		DobbleServer.clientesConectados.remove(this);
+		return sesion;
+	}
+
+	// Pre: 'nueva' es el gestor de una conexión recién abierta que ha enviado
+	// RESUME con el token de esta sesión. 'binario' indica si pide el protocolo
+	// binario. Se llama desde el hilo que lee de esa conexión.
+	// Post: Si la sesión no está cerrada, pasa a usar la conexión de 'nueva'
+	// (socket, streams, cola de salida y escritor, o ConexionNIO) y retorna
+	// 'true': se cancela el plazo de gracia, se envía "RESUME_OK|nombre|estado"
+	// (o "RESUME_OK|BIN|nombre|estado", tras lo cual la conexión pasa al
+	// protocolo binario), donde 'estado' es PARTIDA o MENU, y si el jugador está
+	// en una partida se le envía una instantánea completa. Si la sesión seguía
+	// con otra conexión abierta (el cliente no ha notado que se cortaba), esa
+	// conexión se cierra sin liberar la sesión. Retorna 'false' si la sesión ya
+	// estaba cerrada.
+	boolean reanudar(ClienteGestorHilos nueva, boolean binario) {
+		ConexionNIO conexionAnterior;
+		Socket socketAnterior;
+		ColaSalida colaAnterior;
+		boolean estabaConectada;
+		DobblePartida partida;
+		cerrojoEnvio.lock();
+		try {
+			cerrojoSesion.lock();
 			try {
-				// Cerrar el socket
-				if (clientSocket != null) {
-					clientSocket.close();
+				if (estadoSesion == SESION_CERRADA) {
+					return false;
+				}
+				estabaConectada = estadoSesion == SESION_CONECTADA;
+				if (vencimientoGracia != null) {
+					vencimientoGracia.cancel(false);
+					vencimientoGracia = null;
+				}
+				estadoSesion = SESION_CONECTADA;
+				conexionAnterior = conexionNIO;
+				socketAnterior = clientSocket;
+				colaAnterior = colaSalida;
+				clientSocket = nueva.clientSocket;
+				out = nueva.out;
+				in = nueva.in;
+				lectorLineas = nueva.lectorLineas;
+				colaSalida = nueva.colaSalida;
+				escritor = nueva.escritor;
+				conexionNIO = nueva.conexionNIO;
+				if (conexionNIO != null) {
+					conexionNIO.setCliente(this);
+				}
+			} finally {
+				cerrojoSesion.unlock();
+			}
+			// la confirmación va en texto, igual que en el login
+			partida = partidaActual;
+			String estado = enPartida ? "PARTIDA" : "MENU";
+			protocoloBinario = false;
+			sendMessage((binario ? ProtocoloBinario.RESUME_OK_BINARIO + "|" : "RESUME_OK|") + nombreUsuario + "|"
+					+ estado);
+			protocoloBinario = binario;
+		} finally {
+			cerrojoEnvio.unlock();
+		}
+		Bitacora.info(Bitacora.CONEXION, "{} ha reanudado su sesión.", nombreUsuario);
+		if (estabaConectada) {
+			// la conexión anterior ya no es la de la sesión: al cerrarse no la libera
+			if (conexionAnterior != null) {
+				conexionAnterior.cerrar();
+			} else {
+				colaAnterior.cerrar();
+				try {
+					socketAnterior.close();
+				} catch (IOException e) {
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
 			}
 		}
+		if (partida != null) {
+			partida.procesarReanudacion(this);
+		}
+		return true;
 	}
 
-	// Pre: 'comando' es una cadena de texto recibida del cliente, siguiendo el
-	// protocolo COMMAND|DATOS.
-	// Post: El comando se parsea y, basado en el valor de la acción (JUGAR,
-	// HISTORIAL, RENDIRSE, INTENTO, DESCONECTAR), se redirige la solicitud al
-	// CoordinadorPartida o a la instancia de DobblePartida actual. Si el comando es
-	// inválido o se produce un error, se envía un mensaje 'ERROR' al cliente.
-	private void manejarComando(String comando) {
-		String[] partes = comando.split("\\|");
-		String accion = partes[0];
+	// Pre: La conexión 'conexion' (el Socket o la ConexionNIO) se ha cerrado. Se
+	// llama desde el 'finally' de 'run()' o al cerrar una ConexionNIO, y puede
+	// llamarse más de una vez.
+	// Post: Si 'conexion' ya no es la conexión de la sesión (se reanudó desde
+	// otra) o la sesión no estaba conectada, no hace nada. Si la sesión es
+	// reanudable, queda en gracia durante GRACIA_SESION_MS: se retira al cliente
+	// de su sala de espera, pero conserva su asiento en la partida hasta que
+	// vuelva con RESUME o se agote el plazo. Si no, se cierra la sesión (ver
+	// 'cerrarSesion()').
+	void liberarSesion(Object conexion) {
+		boolean enGracia = false;
+		cerrojoSesion.lock();
+		try {
+			Object actual = conexionNIO != null ? conexionNIO : clientSocket;
+			if (estadoSesion != SESION_CONECTADA || conexion != actual) {
+				return;
+			}
+			if (tokenSesion != null && GRACIA_SESION_MS > 0 && !cierreSolicitado) {
+				estadoSesion = SESION_EN_GRACIA;
+				long perdida = ++perdidasConexion;
+				vencimientoGracia = DobbleServer.getTemporizador().schedule(() -> vencerGracia(perdida),
+						GRACIA_SESION_MS, TimeUnit.MILLISECONDS);
+				enGracia = true;
+			} else {
+				estadoSesion = SESION_CERRADA;
+			}
+		} finally {
+			cerrojoSesion.unlock();
+		}
+		if (!enGracia) {
+			cerrarSesion();
+			return;
+		}
+		Bitacora.info(Bitacora.CONEXION, "{} ha perdido la conexión. Su sesión se guarda {} s.", nombreUsuario,
+				TimeUnit.MILLISECONDS.toSeconds(GRACIA_SESION_MS));
+		// la sala de espera no se guarda: el asiento solo se reserva en una partida
+		if (partidaActual == null) {
+			DobbleServer.getCoordinadorPartida().removerJugador(this);
+		}
+	}
 
-		switch (accion) {
-		case "JUGAR":
-			if (!enPartida && partes.length == 2) {
-				try {
-					int maxJugadores = Integer.parseInt(partes[1]);
+	// Pre: 'perdida' es el número de la pérdida de conexión con la que empezó el
+	// plazo. Se ejecuta en el temporizador del servidor.
+	// Post: Si la sesión sigue en gracia por esa misma pérdida, se cierra (ver
+	// 'cerrarSesion()'); si se ha reanudado entretanto, no hace nada.
+	private void vencerGracia(long perdida) {
+		cerrojoSesion.lock();
+		try {
+			if (estadoSesion != SESION_EN_GRACIA || perdida != perdidasConexion) {
+				return;
+			}
+			estadoSesion = SESION_CERRADA;
+			vencimientoGracia = null;
+		} finally {
+			cerrojoSesion.unlock();
+		}
+		Bitacora.info(Bitacora.CONEXION, "La sesión de {} ha caducado.", nombreUsuario);
+		cerrarSesion();
+	}
+
+	// Pre: La sesión acaba de pasar a SESION_CERRADA (una sola vez).
+	// Post: Si el cliente estaba jugando se fuerza su desconexión de la partida; si
+	// no, se le retira de cualquier sala de espera. Finalmente se elimina su token
+	// y se quita de la lista de clientes activos del servidor.
+	private void cerrarSesion() {
+		// Manejo del estado de partida (si estaba jugando)
+		// enPartida y partidaActual deben ser variables de instancia.
+		DobblePartida partida = partidaActual;
+		if (enPartida && partida != null) {
+			// Si el cliente estaba en una partida, la rendición es forzada
+			partida.procesarDesconexion(this);
+		} else {
+			// Si el cliente estaba en la sala de espera (pero no jugando), removerlo del
+			// Coordinador
+			if (!DobbleServer.getCoordinadorPartida().removerJugador(this)) {
+				// su plaza se acaba de asignar a una partida que quizá aún no lo había
+				// registrado como jugador
+				partida = partidaActual;
+				if (partida != null) {
+					partida.procesarDesconexion(this);
+				}
+			}
+		}
+
+		if (tokenSesion != null) {
+			DobbleServer.eliminarSesion(tokenSesion);
+		}
+		// Quita el hilo de la lista de hilos activos
+		DobbleServer.removerCliente(this);
+	}
+
+	// Pre: 'comando' es una línea recibida del cliente, siguiendo el protocolo
+	// COMMAND|DATOS, ya analizada (ver ComandoTexto).
+	// Post: Según el tipo de comando (JUGAR, EMPAREJAMIENTO, HISTORIAL, RANKING,
+	// RENDIRSE, INTENTO, RESYNC, METRICS, PONG, DESCONECTAR), se redirige la solicitud
+	// al CoordinadorPartida o a la instancia de DobblePartida actual. Si el
+	// comando es inválido o se produce un error, se envía un mensaje 'ERROR' al
+	// cliente. Cada comando se cuenta en las métricas por su tipo. Los números se
+	// leen directamente de la línea y las respuestas fijas van ya codificadas,
+	// así que un INTENTO no crea Strings.
+	private void manejarComando(ComandoTexto comando) {
+		int tipo = comando.getTipo();
+		int campos = comando.getNumCampos();
+		comandosPorTipo[tipo].increment();
+		if (Bitacora.activo(Bitacora.COMANDO, Bitacora.INFO)) {
+			Bitacora.info(Bitacora.COMANDO, "Comando de {}: {}", nombreUsuario, comando.getLinea());
+		}
+
+		switch (tipo) {
+		case ComandoTexto.JUGAR:
+			if (!enPartida && campos >= 2 && campos <= 5) {
+				long maxJugadores = comando.getEntero(1);
+				// El orden del mazo es opcional (JUGAR|N|orden); sin él se juega con el
+				// mazo clásico de 57 cartas
+				long ordenMazo = campos >= 3 ? comando.getEntero(2) : MazoDobble.ORDEN_ESTANDAR;
+				// También son opcionales el tamaño mínimo que se acepta si la espera se
+				// agota y la espera máxima en segundos (JUGAR|N|orden|min|segundos); sin
+				// ellos solo se acepta una partida de N jugadores
+				long minJugadores = campos >= 4 ? comando.getEntero(3) : maxJugadores;
+				long esperaMaxima = campos == 5 ? comando.getEntero(4) : CoordinadorPartida.ESPERA_MAXIMA_DEFECTO;
+				if (maxJugadores == ComandoTexto.NO_ENTERO || ordenMazo == ComandoTexto.NO_ENTERO
+						|| minJugadores == ComandoTexto.NO_ENTERO || esperaMaxima == ComandoTexto.NO_ENTERO) {
+					enviarMensaje(ERROR_USO_JUGAR);
+				} else if (maxJugadores < 2 || maxJugadores > 8) {
 					// Se verifica que el número de jugadores esté en el rango permitido (2 a 8)
-					if (maxJugadores >= 2 && maxJugadores <= 8) {
-						// Envía el hilo a la sala de espera que hay en CoordinadorPartida
-						DobbleServer.getCoordinadorPartida().joinWaitingList(this, maxJugadores);
-					} else {
-						sendMessage("ERROR|Número de jugadores no válido (2-8).");
-					}
-				} catch (NumberFormatException e) {
-					sendMessage("ERROR|Comando JUGAR inválido. Debe ser JUGAR|N.");
+					sendMessage("ERROR|Número de jugadores no válido (2-8).");
+				} else if (!MazoDobble.esOrdenSoportado((int) ordenMazo)) {
+					sendMessage("ERROR|Orden de mazo no soportado " + Arrays.toString(MazoDobble.ORDENES_SOPORTADOS) + ".");
+				} else if (maxJugadores + 1 > MazoDobble.deOrden((int) ordenMazo).getNumeroCartas()) {
+					// cada jugador necesita una carta más la central
+					sendMessage("ERROR|El mazo de orden " + ordenMazo + " no tiene cartas para " + maxJugadores
+							+ " jugadores.");
+				} else if (minJugadores < 2 || minJugadores > maxJugadores) {
+					sendMessage("ERROR|Número mínimo de jugadores no válido (2-" + maxJugadores + ").");
+				} else if (esperaMaxima < 0) {
+					sendMessage("ERROR|Espera máxima no válida.");
+				} else {
+					// Envía el hilo a la sala de espera que hay en CoordinadorPartida
+					DobbleServer.getCoordinadorPartida().joinWaitingList(this, (int) maxJugadores, (int) ordenMazo,
+							(int) minJugadores, (int) esperaMaxima);
 				}
 			} else if (enPartida) {
-				sendMessage("ESPERA|Ya estás en una sala de espera o partida activa.");
+				enviarMensaje(ESPERA_YA_EN_PARTIDA);
 			} else {
-				sendMessage("ERROR|Comando JUGAR inválido. Debe ser JUGAR|N.");
+				enviarMensaje(ERROR_USO_JUGAR);
 			}
 			break;
-		case "HISTORIAL":
-			// llama a CoordinadorPartida para obtener el historial
-			String historial = DobbleServer.getCoordinadorPartida().getHistorial();
-			sendMessage(historial);
+		case ComandoTexto.EMPAREJAMIENTO:
+			// percentiles del tiempo que tardan los jugadores en tener partida
+			sendMessage(DobbleServer.getCoordinadorPartida().getEstadisticasEmparejamiento());
 			break;
-		case "RANKING":
-			// llama a DobbleRanking para obtener la lista serializada de victorias
-			String rankingSerializado = DobbleServer.getRankingGlobal().getRankingSerializado();
-			if (rankingSerializado.isEmpty()) {
-				sendMessage("RANKING|NO_DATA");
+		case ComandoTexto.HISTORIAL:
+			// llama a CoordinadorPartida para obtener el historial. Sin parámetros
+			// devuelve las partidas más recientes; HISTORIAL|desplazamiento|limite pide
+			// una página concreta
+			// (se lee del disco, ver 'responderFueraDelBucle()')
+			if (campos == 1) {
+				responderFueraDelBucle(() -> DobbleServer.getCoordinadorPartida().getHistorial());
+			} else if (campos == 3 && comando.getEntero(1) != ComandoTexto.NO_ENTERO
+					&& comando.getEntero(2) != ComandoTexto.NO_ENTERO) {
+				int desplazamiento = (int) comando.getEntero(1);
+				int limite = (int) comando.getEntero(2);
+				if (desplazamiento < 0 || limite < 1) {
+					sendMessage("ERROR|Página de historial no válida.");
+				} else {
+					responderFueraDelBucle(
+							() -> DobbleServer.getCoordinadorPartida().getHistorial(desplazamiento, limite));
+				}
+			} else {
+				sendMessage("ERROR|Comando HISTORIAL inválido. Debe ser HISTORIAL o HISTORIAL|desplazamiento|limite.");
+			}
+			break;
+		case ComandoTexto.RANKING:
+			// llama a DobbleRanking para obtener la lista serializada de victorias. Sin
+			// parámetros devuelve los primeros del ranking (en caché);
+			// RANKING|desplazamiento|limite pide una página concreta (hasta la posición
+			// DESPLAZAMIENTO_MAXIMO)
+			if (campos == 1) {
+				enviarRanking(DobbleServer.getRankingGlobal().getRankingSerializado(), 0);
+			} else if (campos == 3 && comando.getEntero(1) != ComandoTexto.NO_ENTERO
+					&& comando.getEntero(2) != ComandoTexto.NO_ENTERO) {
+				int desplazamiento = (int) comando.getEntero(1);
+				int limite = (int) comando.getEntero(2);
+				if (desplazamiento < 0 || limite < 1) {
+					sendMessage("ERROR|Página de ranking no válida.");
+				} else if (desplazamiento > DobbleRanking.DESPLAZAMIENTO_MAXIMO) {
+					sendMessage("ERROR|Solo se puede consultar el ranking hasta la posición "
+							+ DobbleRanking.DESPLAZAMIENTO_MAXIMO + ".");
+				} else {
+					enviarRanking(DobbleServer.getRankingGlobal().getPaginaSerializada(desplazamiento,
+							Math.min(limite, DobbleRanking.TOP_K)), desplazamiento);
+				}
 			} else {
-				sendMessage("RANKING|" + rankingSerializado);
+				sendMessage("ERROR|Comando RANKING inválido. Debe ser RANKING o RANKING|desplazamiento|limite.");
 			}
 			break;
-		case "RENDIRSE":
+		case ComandoTexto.RENDIRSE:
 			// usa DobblePartida
-			if (enPartida && partidaActual != null) {
-				partidaActual.procesarRendicion(this);
+			DobblePartida partida = partidaActual;
+			if (enPartida && partida != null) {
+				partida.procesarRendicion(this);
 			} else {
 				sendMessage("ERROR|No puedes rendirte, no estás en una partida activa.");
 				sendMessage("FIN_PARTIDA|Te hemos devuelto al menú principal.|");
 			}
 			break;
-		case "INTENTO":
+		case ComandoTexto.INTENTO:
 			// usa DobblePartida
 			if (enPartida && partidaActual != null) {
-				try {
-					int simbolo = Integer.parseInt(partes[1]);
-					partidaActual.procesarIntento(this, simbolo);
-				} catch (NumberFormatException e) {
-					sendMessage("ERROR|Símbolo no válido.");
+				long simbolo = campos >= 2 ? comando.getEntero(1) : ComandoTexto.NO_ENTERO;
+				if (simbolo != ComandoTexto.NO_ENTERO) {
+					manejarIntento((int) simbolo);
+				} else {
+					enviarMensaje(ERROR_SIMBOLO);
 				}
 			} else {
-				sendMessage("ERROR|No estás en una partida activa.");
+				intentosSinPartida.increment();
+				enviarMensaje(ERROR_SIN_PARTIDA);
 			}
 			break;
-		case "DESCONECTAR":
-			// Finaliza el bucle while y pasa al bloque finally al cerrar el socket
-			try {
-				if (clientSocket != null) {
-					clientSocket.close();
-				}
-			} catch (IOException e) {
+		case ComandoTexto.RESYNC:
+			// pide una instantánea completa de la ronda (mano, central y marcador)
+			DobblePartida partidaResync = partidaActual;
+			if (enPartida && partidaResync != null) {
+				partidaResync.procesarResync(this);
+			} else {
+				enviarMensaje(ERROR_SIN_PARTIDA);
 			}
 			break;
+		case ComandoTexto.METRICS:
+			// comando de administración: METRICS|clave
+			if (campos == 2 && esClaveAdmin(comando.getTexto(1))) {
+				responderFueraDelBucle(ClienteGestorHilos::formatearMetricas);
+			} else {
+				sendMessage("ERROR|Comando no autorizado.");
+			}
+			break;
+		case ComandoTexto.PONG:
+			// respuesta a un PING: la actividad ya se ha contado al recibirla
+			break;
+		case ComandoTexto.DESCONECTAR:
+			// el cliente se va: su sesión se cierra sin plazo de gracia
+			cierreSolicitado = true;
+			// En modo NIO se cierra el canal, que a su vez libera la sesión. En los otros
+			// modos finaliza el bucle while y pasa al bloque finally al cerrar el socket
+			desconectar();
+			break;
 		default:
-			sendMessage("ERROR|Comando desconocido.");
+			enviarMensaje(ERROR_COMANDO);
 			break;
 		}
 	}
-}
\ No newline at end of file
+
+	// Pre: 'clave' es la clave recibida en un comando de administración.
+	// Post: Retorna 'true' si hay una clave de administración configurada y
+	// 'clave' coincide con ella. La comparación tarda lo mismo sea cual sea el
+	// primer carácter distinto.
+	private static boolean esClaveAdmin(String clave) {
+		return CLAVE_ADMIN != null && !CLAVE_ADMIN.isEmpty() && MessageDigest.isEqual(
+				CLAVE_ADMIN.getBytes(StandardCharsets.UTF_8), clave.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Pre: 'consulta' calcula la respuesta a un comando y puede tardar (lee del
+	// disco o recorre todas las métricas).
+	// Post: En modo NIO la consulta se ejecuta en el ejecutor de partidas y la
+	// respuesta se envía desde allí, para no parar el bucle de eventos con el
+	// resto de sus conexiones; en modo clásico se ejecuta en el hilo del cliente.
+	// Si la consulta falla, se registra y se envía un 'ERROR'.
+	private void responderFueraDelBucle(Supplier<String> consulta) {
+		if (conexionNIO == null) {
+			sendMessage(consulta.get());
+			return;
+		}
+		DobbleServer.getEjecutorPartidas().execute(() -> {
+			try {
+				sendMessage(consulta.get());
+			} catch (RuntimeException e) {
+				Bitacora.error(Bitacora.COMANDO, "Error al atender una consulta: {}", e.toString());
+				sendMessage("ERROR|No se ha podido atender la consulta.");
+			}
+		});
+	}
+
+	// Pre: El cliente se ha identificado como administrador.
+	// Post: Retorna todas las métricas (ver Metricas.exportar()) en un único
+	// mensaje: "METRICS|n" seguido de n líneas en el formato de texto de
+	// Prometheus.
+	private static String formatearMetricas() {
+		String metricas = Metricas.exportar();
+		int lineas = 0;
+		for (int i = 0; i < metricas.length(); i++) {
+			if (metricas.charAt(i) == '\n') {
+				lineas++;
+			}
+		}
+		// 'exportar()' termina en salto de línea y 'sendMessage()' ya añade uno
+		return "METRICS|" + lineas + "\n" + metricas.substring(0, Math.max(0, metricas.length() - 1));
+	}
+
+	// Pre: 'simbolo' es el símbolo pulsado por el cliente (comando INTENTO en texto
+	// o trama OP_INTENTO).
+	// Post: Si el jugador está en una partida, el intento se pasa a
+	// 'DobblePartida.procesarIntento()'; si no, se le envía un 'ERROR'.
+	private void manejarIntento(int simbolo) {
+		DobblePartida partida = partidaActual;
+		if (enPartida && partida != null) {
+			partida.procesarIntento(this, simbolo);
+		} else {
+			intentosSinPartida.increment();
+			enviarMensaje(ERROR_SIN_PARTIDA);
+		}
+	}
+}
@@ -1,43 +1,140 @@
 package JuegoDobble;
 
 import java.io.*;
+import java.util.Arrays;
 
 //Hilo dedicado a escuchar permanentemente mensajes del servidor al cliente
 public class ClienteHiloEscucha implements Runnable {
 
+	// máximo de símbolos por carta y de jugadores por partida que se esperan en las
+	// tramas binarias
+	private static final int MAX_SIMBOLOS = 255;
+	private static final int MAX_ASIENTOS = 255;
+
 	// instancia del cliente para pillar sus métodos, como procesarRespuesta
 	private DobbleClient gui;
 	// para recibir datos del server
-	private BufferedReader in;
+	private InputStream in;
+	// para leer las líneas del protocolo de texto
+	private LectorLineas lectorLineas;
+
+	// búferes reutilizables para decodificar las tramas binarias
+	private final TramaBinaria trama = new TramaBinaria(256);
+	private final int[] cartaJugador = new int[MAX_SIMBOLOS];
+	private final int[] cartaCentral = new int[MAX_SIMBOLOS];
+	private final int[] puntos = new int[MAX_ASIENTOS];
+	// nombres por asiento de la partida actual, recibidos en OP_INICIO_PARTIDA
+	private String[] nombresAsiento = new String[0];
 
 	// Pre: 'gui' es una instancia válida de DobbleClient y 'in' es un
-	// BufferedReader inicializado, vinculado al InputStream del Socket con el
-	// servidor.
+	// InputStream con búfer, vinculado al Socket con el servidor.
 	// Post: Se inicializan las variables de instancia 'this.gui' y 'this.in',
 	// preparando el hilo para comenzar a escuchar.
-	public ClienteHiloEscucha(DobbleClient gui, BufferedReader in) {
+	public ClienteHiloEscucha(DobbleClient gui, InputStream in) {
 		this.gui = gui;
 		this.in = in;
+		this.lectorLineas = new LectorLineas(in, ProtocoloBinario.MAX_TRAMA_CLIENTE);
 	}
 
 	// Pre: El hilo ha sido iniciado por 'new Thread(this).start()'. El
-	// BufferedReader 'in' está abierto y conectado al servidor.
-	// Post: El hilo se bloquea en 'in.readLine()' esperando indefinidamente
-	// respuestas del servidor. Cada respuesta recibida se pasa a
-	// 'gui.procesarRespuesta()' para su manejo en el hilo de la GUI (EDT). El bucle
-	// finaliza si el servidor cierra la conexión, lanzando una IOException.
+	// InputStream 'in' está abierto y conectado al servidor.
+	// Post: El hilo se bloquea leyendo líneas del servidor. Cada respuesta
+	// recibida se pasa a 'gui.procesarRespuesta()' para su manejo en el hilo de
+	// la GUI (EDT). Si el servidor confirma el protocolo binario
+	// ("LOGIN_OK|BIN|token" o "RESUME_OK|BIN|..."), a partir de ese momento se
+	// leen tramas con 'procesarTrama()'. El bucle finaliza si el servidor cierra
+	// la conexión, lanzando una IOException; entonces se avisa a la GUI para que
+	// intente reanudar la sesión.
 	@Override
 	public void run() {
 		try {
 			String response;
-			while ((response = in.readLine()) != null) {
+			while ((response = lectorLineas.leerLinea()) != null) {
+				if (response.startsWith(ProtocoloBinario.LOGIN_OK_BINARIO + "|")
+						|| response.startsWith(ProtocoloBinario.RESUME_OK_BINARIO + "|")) {
+					gui.activarProtocoloBinario();
+					gui.procesarRespuesta(response);
+					break;
+				}
 				// Pasa la respuesta al método de la gui/cliente para su procesamiento
 				gui.procesarRespuesta(response);
 			}
+			while (trama.leerDe(in, ProtocoloBinario.MAX_TRAMA_CLIENTE)) {
+				procesarTrama();
+			}
 		} catch (IOException e) {
 			// error de lectura (por ejemplo: servidor cerrado o desconexión forzada)
 			System.out.println("Conexión con el servidor perdida.");
 		}
+		gui.conexionPerdida();
+	}
+
+	// Pre: 'trama' contiene una trama binaria completa recibida del servidor.
+	// Post: La trama se decodifica en los búferes reutilizables y se pasa a la GUI:
+	// las de texto a 'procesarRespuesta()' y las de juego a 'procesarRonda()' o
+	// 'procesarAvanceRonda()' (con copias de los datos, ya que la GUI los usa más
+	// tarde en el EDT). El marcador por asientos se mantiene aquí y cada OP_RONDA
+	// solo cambia el asiento que ha puntuado.
+	private void procesarTrama() {
+		switch (trama.getOpcode()) {
+		case ProtocoloBinario.OP_TEXTO:
+			gui.procesarRespuesta(trama.leerTextoFinal());
+			break;
+		case ProtocoloBinario.OP_INICIO_PARTIDA: {
+			int nJugador = trama.leerCarta(cartaJugador);
+			int nCentral = trama.leerCarta(cartaCentral);
+			int asientos = trama.leerByte();
+			nombresAsiento = new String[asientos];
+			for (int i = 0; i < asientos; i++) {
+				nombresAsiento[i] = trama.leerTextoCorto();
+				puntos[i] = trama.leerVarint();
+			}
+			gui.procesarRonda(true, Arrays.copyOf(cartaJugador, nJugador), Arrays.copyOf(cartaCentral, nCentral),
+					nombresAsiento, Arrays.copyOf(puntos, asientos));
+			break;
+		}
+		case ProtocoloBinario.OP_NUEVA_RONDA: {
+			int nJugador = trama.leerCarta(cartaJugador);
+			int nCentral = trama.leerCarta(cartaCentral);
+			int asientos = leerPuntos();
+			gui.procesarRonda(false, Arrays.copyOf(cartaJugador, nJugador), Arrays.copyOf(cartaCentral, nCentral),
+					nombresAsiento, Arrays.copyOf(puntos, asientos));
+			break;
+		}
+		case ProtocoloBinario.OP_RONDA: {
+			int asiento = trama.leerByte();
+			int puntosAsiento = trama.leerVarint();
+			int nCentral = trama.leerCarta(cartaCentral);
+			// solo el jugador que ha puntuado recibe su nueva mano
+			int[] mano = null;
+			if (trama.quedanDatos()) {
+				mano = Arrays.copyOf(cartaJugador, trama.leerCarta(cartaJugador));
+			}
+			if (asiento >= nombresAsiento.length) {
+				// no se conoce la partida: se pide una instantánea completa
+				gui.enviarComando("RESYNC");
+				break;
+			}
+			puntos[asiento] = puntosAsiento;
+			gui.procesarAvanceRonda(nombresAsiento[asiento], Arrays.copyOf(cartaCentral, nCentral), mano,
+					nombresAsiento, Arrays.copyOf(puntos, nombresAsiento.length));
+			break;
+		}
+		default:
+			System.out.println("Trama desconocida del servidor: " + trama.getOpcode());
+			break;
+		}
+	}
+
+	// Pre: El siguiente campo de 'trama' es el marcador por asientos.
+	// Post: Las puntuaciones se copian a 'puntos' y se retorna el número de
+	// asientos.
+	private int leerPuntos() {
+		int asientos = trama.leerByte();
+		for (int i = 0; i < asientos; i++) {
+			puntos[i] = trama.leerVarint();
+		}
+		return asientos;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,248 @@
+package JuegoDobble;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Cola acotada de mensajes pendientes de enviar a un cliente. Quien envía
+(la partida, la sala de espera, el propio hilo lector) solo encola y
+sigue; los bytes los escribe después otro hilo (EscritorSocket en los
+modos clásico y virtual, o el bucle de eventos en el modo NIO), que
+vacía varios mensajes seguidos con una sola escritura.
+Si un cliente lento deja que la cola se llene se aplica la política de
+desbordamiento configurada:
+- "descartar" (por defecto): se tiran los avisos de ronda (RONDA) que
+  siguen en cola, ya que una instantánea posterior los sustituye, y se
+  pide una resincronización. Si aun así no hay hueco, se desconecta.
+- "desconectar": se desconecta al cliente directamente.
+La capacidad y la política se configuran con las propiedades del sistema
+dobble.salida.capacidad y dobble.salida.politica.
+*/
+public class ColaSalida {
+
+	public static final String POLITICA_DESCARTAR = "descartar";
+	public static final String POLITICA_DESCONECTAR = "desconectar";
+
+	// mensajes que caben en la cola de cada cliente
+	public static final int CAPACIDAD = Math.max(1, Integer.getInteger("dobble.salida.capacidad", 256));
+	// política cuando la cola se llena
+	public static final String POLITICA = System.getProperty("dobble.salida.politica", POLITICA_DESCARTAR)
+			.toLowerCase();
+
+	// resultados de 'encolar()'
+	public static final int ACEPTADO = 0;
+	// aceptado, pero se han descartado avisos de ronda: el cliente necesita una
+	// instantánea nueva
+	public static final int ACEPTADO_CON_DESCARTE = 1;
+	// no hay hueco: hay que desconectar al cliente
+	public static final int DESBORDADA = 2;
+
+	// métricas globales de todas las colas
+	// suma de las profundidades actuales de todas las colas
+	private static final AtomicLong profundidadTotal = new AtomicLong();
+	// profundidad más alta que ha alcanzado alguna cola
+	private static final AtomicInteger profundidadMaxima = new AtomicInteger();
+	private static final LongAdder mensajesEncolados = new LongAdder();
+	// escrituras hechas por los escritores; encolados / escrituras indica cuántos
+	// mensajes se agrupan en cada una
+	private static final LongAdder escrituras = new LongAdder();
+	private static final LongAdder mensajesDescartados = new LongAdder();
+	private static final LongAdder desconexionesPorDesbordamiento = new LongAdder();
+	// tiempo desde que llega un INTENTO correcto hasta que el aviso de ronda que
+	// provoca queda escrito en el socket de cada destinatario, en microsegundos
+	private static final Histograma tiempoIntentoRonda = Metricas.histograma("dobble_intento_ronda_us",
+			"Tiempo desde un INTENTO correcto hasta escribir el aviso de ronda, en microsegundos.");
+
+	// mensaje pendiente: los bytes, si es un aviso de ronda (descartable) y, en
+	// los avisos de ronda, cuándo llegó el INTENTO que lo provocó (System.nanoTime)
+	private static final class Pendiente {
+		final ByteBuffer bufer;
+		final boolean ronda;
+		final long instanteIntento;
+
+		Pendiente(ByteBuffer bufer, boolean ronda, long instanteIntento) {
+			this.bufer = bufer;
+			this.ronda = ronda;
+			this.instanteIntento = instanteIntento;
+		}
+	}
+
+	private final Queue<Pendiente> cola = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger profundidad = new AtomicInteger();
+	private volatile boolean cerrada = false;
+	// instante del INTENTO más antiguo de los avisos de ronda sacados desde la
+	// última escritura completa (0 si no hay ninguno). Solo lo usa el consumidor
+	private long intentoPendiente = 0;
+
+	// Pre: 'bufer' contiene uno o varios mensajes completos y nadie lo va a
+	// modificar. 'ronda' indica si es un aviso de ronda que se puede descartar.
+	// Los productores no llaman a la vez (lo garantiza el cerrojo de envío de
+	// ClienteGestorHilos); el consumidor puede estar vaciando a la vez.
+	// Post: Si hay hueco el mensaje se encola y retorna ACEPTADO. Si la cola está
+	// llena se aplica la política: retorna ACEPTADO_CON_DESCARTE si se ha hecho
+	// hueco tirando avisos de ronda (o se ha tirado el propio aviso) y DESBORDADA
+	// si hay que desconectar al cliente. Si la cola está cerrada el mensaje se
+	// ignora y retorna ACEPTADO.
+	public int encolar(ByteBuffer bufer, boolean ronda) {
+		return encolar(bufer, ronda, 0);
+	}
+
+	// Pre: Igual que 'encolar(bufer, ronda)'. 'instanteIntento' es el
+	// System.nanoTime() de llegada del INTENTO que ha provocado este aviso de
+	// ronda, o 0 si no es un aviso de ronda.
+	// Post: Igual que 'encolar(bufer, ronda)'. Cuando el aviso se escriba se
+	// registra el tiempo transcurrido desde el INTENTO (ver
+	// 'registrarEscritura()').
+	public int encolar(ByteBuffer bufer, boolean ronda, long instanteIntento) {
+		if (cerrada) {
+			return ACEPTADO;
+		}
+		int resultado = ACEPTADO;
+		if (profundidad.get() >= CAPACIDAD) {
+			if (!POLITICA_DESCARTAR.equals(POLITICA)) {
+				desconexionesPorDesbordamiento.increment();
+				return DESBORDADA;
+			}
+			int descartados = descartarRondas();
+			if (ronda && profundidad.get() >= CAPACIDAD) {
+				// el propio aviso también queda anticuado con la resincronización
+				mensajesDescartados.increment();
+				return ACEPTADO_CON_DESCARTE;
+			}
+			if (profundidad.get() >= CAPACIDAD) {
+				desconexionesPorDesbordamiento.increment();
+				return DESBORDADA;
+			}
+			if (descartados > 0) {
+				resultado = ACEPTADO_CON_DESCARTE;
+			}
+		}
+		cola.add(new Pendiente(bufer, ronda, instanteIntento));
+		int actual = profundidad.incrementAndGet();
+		profundidadTotal.incrementAndGet();
+		mensajesEncolados.increment();
+		profundidadMaxima.accumulateAndGet(actual, Math::max);
+		if (cerrada) {
+			// se ha cerrado mientras se encolaba: que no quede nada pendiente
+			descartarPendientes();
+		}
+		return resultado;
+	}
+
+	// Pre: Solo la llama el consumidor de la cola.
+	// Post: Retorna el siguiente mensaje pendiente o 'null' si no hay ninguno.
+	public ByteBuffer sacar() {
+		Pendiente p = cola.poll();
+		if (p == null) {
+			return null;
+		}
+		profundidad.decrementAndGet();
+		profundidadTotal.decrementAndGet();
+		if (p.instanteIntento != 0 && (intentoPendiente == 0 || p.instanteIntento - intentoPendiente < 0)) {
+			intentoPendiente = p.instanteIntento;
+		}
+		return p.bufer;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si no queda ningún mensaje pendiente.
+	public boolean estaVacia() {
+		return cola.isEmpty();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el número de mensajes pendientes.
+	public int getProfundidad() {
+		return profundidad.get();
+	}
+
+	// Pre: El consumidor acaba de escribir un lote de mensajes. 'completa' indica
+	// si ha escrito todo lo que había sacado de la cola.
+	// Post: Se cuenta la escritura en las métricas. Si es completa y entre lo
+	// escrito había avisos de ronda, se registra el tiempo desde el INTENTO más
+	// antiguo que los provocó.
+	public void registrarEscritura(boolean completa) {
+		escrituras.increment();
+		if (completa && intentoPendiente != 0) {
+			tiempoIntentoRonda.registrar(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intentoPendiente));
+			intentoPendiente = 0;
+		}
+	}
+
+	// Pre: La conexión del cliente se ha cerrado. Puede llamarse desde cualquier
+	// hilo, aunque el consumidor siga vaciando la cola.
+	// Post: Se descartan los mensajes pendientes y se ignoran los siguientes.
+	public void cerrar() {
+		cerrada = true;
+		descartarPendientes();
+	}
+
+	// Pre: Ninguna. Puede llamarse desde cualquier hilo.
+	// Post: Se quitan de la cola todos los mensajes pendientes y se descuentan de
+	// las profundidades. A diferencia de 'sacar()', no toca el estado del
+	// consumidor, así que no compite con él aunque esté escribiendo.
+	private void descartarPendientes() {
+		while (cola.poll() != null) {
+			profundidad.decrementAndGet();
+			profundidadTotal.decrementAndGet();
+		}
+	}
+
+	// Pre: Se llama desde 'encolar()' con la cola llena.
+	// Post: Se quitan de la cola todos los avisos de ronda pendientes y se
+	// retorna cuántos se han quitado (los que el consumidor ya ha sacado no
+	// cuentan).
+	private int descartarRondas() {
+		int descartados = 0;
+		for (Pendiente p : cola) {
+			if (p.ronda && cola.remove(p)) {
+				profundidad.decrementAndGet();
+				profundidadTotal.decrementAndGet();
+				descartados++;
+			}
+		}
+		mensajesDescartados.add(descartados);
+		return descartados;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la suma de las profundidades actuales de todas las colas.
+	public static long getProfundidadTotal() {
+		return profundidadTotal.get();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la mayor profundidad que ha tenido alguna cola.
+	public static int getProfundidadMaxima() {
+		return profundidadMaxima.get();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos mensajes se han encolado en total.
+	public static long getMensajesEncolados() {
+		return mensajesEncolados.sum();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántas escrituras (lotes de mensajes) se han hecho en total.
+	public static long getEscrituras() {
+		return escrituras.sum();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos avisos de ronda se han descartado por desbordamiento.
+	public static long getMensajesDescartados() {
+		return mensajesDescartados.sum();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos clientes se han desconectado por desbordamiento.
+	public static long getDesconexionesPorDesbordamiento() {
+		return desconexionesPorDesbordamiento.sum();
+	}
+}
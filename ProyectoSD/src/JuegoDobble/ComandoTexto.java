@@ -0,0 +1,190 @@
+package JuegoDobble;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+Analizador de los comandos del protocolo de texto (COMANDO|campo|...),
+directamente sobre los bytes recibidos. Cada conexión tiene el suyo y lo
+reutiliza para todas sus líneas: reconocer el comando por su prefijo,
+separar los campos y leer los números no crea ningún objeto (a diferencia
+de String.split y Integer.parseInt sobre subcadenas). Solo se crean
+Strings cuando un comando poco frecuente los necesita ('getTexto()',
+'getLinea()').
+Los campos se separan igual que con split("\\|"): los campos vacíos del
+final no cuentan, de modo que "JUGAR|4|" tiene dos campos.
+*/
+public final class ComandoTexto {
+
+	// tipos de comando
+	public static final int DESCONOCIDO = 0;
+	public static final int JUGAR = 1;
+	public static final int EMPAREJAMIENTO = 2;
+	public static final int HISTORIAL = 3;
+	public static final int RANKING = 4;
+	public static final int RENDIRSE = 5;
+	public static final int INTENTO = 6;
+	public static final int RESYNC = 7;
+	public static final int DESCONECTAR = 8;
+	public static final int METRICS = 9;
+	public static final int PONG = 10;
+	// nombre de cada tipo de comando, por su número
+	public static final String[] NOMBRES = { "desconocido", "JUGAR", "EMPAREJAMIENTO", "HISTORIAL", "RANKING",
+			"RENDIRSE", "INTENTO", "RESYNC", "DESCONECTAR", "METRICS", "PONG" };
+	// valor de 'getEntero()' cuando el campo no es un número entero de 32 bits
+	public static final long NO_ENTERO = Long.MIN_VALUE;
+
+	// campos cuya posición se guarda; ningún comando usa más
+	private static final int MAX_CAMPOS = 8;
+	private static final byte[][] NOMBRES_BYTES = new byte[NOMBRES.length][];
+	static {
+		for (int i = 1; i < NOMBRES.length; i++) {
+			NOMBRES_BYTES[i] = NOMBRES[i].getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private byte[] linea;
+	private int inicio;
+	private int fin;
+	private int tipo;
+	private int numCampos;
+	// posición de cada campo en 'linea': de 'inicioCampo[i]' a 'finCampo[i]'
+	private final int[] inicioCampo = new int[MAX_CAMPOS];
+	private final int[] finCampo = new int[MAX_CAMPOS];
+
+	// Pre: 'linea[desde, desde + longitud)' es una línea recibida, sin el salto
+	// de línea. El array no se modifica mientras se usa el análisis.
+	// Post: Se separan los campos de la línea y se reconoce el comando del primer
+	// campo. Retorna su tipo (DESCONOCIDO si no es ninguno).
+	public int analizar(byte[] linea, int desde, int longitud) {
+		this.linea = linea;
+		this.inicio = desde;
+		this.fin = desde + longitud;
+		int campo = 0;
+		int ultimoNoVacio = 0;
+		int inicioActual = desde;
+		for (int i = desde; i <= fin; i++) {
+			if (i == fin || linea[i] == '|') {
+				if (campo < MAX_CAMPOS) {
+					inicioCampo[campo] = inicioActual;
+					finCampo[campo] = i;
+				}
+				if (i > inicioActual) {
+					ultimoNoVacio = campo;
+				}
+				campo++;
+				inicioActual = i + 1;
+			}
+		}
+		numCampos = ultimoNoVacio + 1;
+		tipo = reconocer(linea, inicioCampo[0], finCampo[0]);
+		return tipo;
+	}
+
+	// Pre: Se ha analizado una línea.
+	// Post: Retorna el tipo del comando.
+	public int getTipo() {
+		return tipo;
+	}
+
+	// Pre: Se ha analizado una línea.
+	// Post: Retorna el número de campos, contando el del comando.
+	public int getNumCampos() {
+		return numCampos;
+	}
+
+	// Pre: 0 <= 'campo' < getNumCampos().
+	// Post: Retorna el valor del campo si es un entero de 32 bits en decimal (con
+	// signo opcional, como Integer.parseInt) o NO_ENTERO si no lo es.
+	public long getEntero(int campo) {
+		if (campo >= MAX_CAMPOS) {
+			return NO_ENTERO;
+		}
+		int i = inicioCampo[campo];
+		int hasta = finCampo[campo];
+		if (i == hasta) {
+			return NO_ENTERO;
+		}
+		boolean negativo = linea[i] == '-';
+		if (negativo || linea[i] == '+') {
+			if (++i == hasta) {
+				return NO_ENTERO;
+			}
+		}
+		long valor = 0;
+		for (; i < hasta; i++) {
+			int digito = linea[i] - '0';
+			if (digito < 0 || digito > 9) {
+				return NO_ENTERO;
+			}
+			valor = valor * 10 + digito;
+			if (valor > (long) Integer.MAX_VALUE + 1) {
+				return NO_ENTERO;
+			}
+		}
+		if (negativo) {
+			return -valor;
+		}
+		return valor > Integer.MAX_VALUE ? NO_ENTERO : valor;
+	}
+
+	// Pre: 0 <= 'campo' < getNumCampos().
+	// Post: Retorna el texto del campo (crea un String).
+	public String getTexto(int campo) {
+		if (campo >= MAX_CAMPOS) {
+			return "";
+		}
+		return new String(linea, inicioCampo[campo], finCampo[campo] - inicioCampo[campo], StandardCharsets.UTF_8);
+	}
+
+	// Pre: Se ha analizado una línea.
+	// Post: Retorna la línea completa (crea un String), para el login y la
+	// bitácora.
+	public String getLinea() {
+		return new String(linea, inicio, fin - inicio, StandardCharsets.UTF_8);
+	}
+
+	// Pre: 'linea[desde, hasta)' es el primer campo de una línea.
+	// Post: Retorna el tipo de comando que nombra. Se decide por el primer byte y
+	// solo se compara con los comandos que empiezan por él.
+	private static int reconocer(byte[] linea, int desde, int hasta) {
+		if (desde == hasta) {
+			return DESCONOCIDO;
+		}
+		switch (linea[desde]) {
+		case 'I':
+			return es(INTENTO, linea, desde, hasta);
+		case 'J':
+			return es(JUGAR, linea, desde, hasta);
+		case 'R':
+			int tipo = es(RESYNC, linea, desde, hasta);
+			if (tipo == DESCONOCIDO) {
+				tipo = es(RENDIRSE, linea, desde, hasta);
+			}
+			if (tipo == DESCONOCIDO) {
+				tipo = es(RANKING, linea, desde, hasta);
+			}
+			return tipo;
+		case 'E':
+			return es(EMPAREJAMIENTO, linea, desde, hasta);
+		case 'H':
+			return es(HISTORIAL, linea, desde, hasta);
+		case 'D':
+			return es(DESCONECTAR, linea, desde, hasta);
+		case 'M':
+			return es(METRICS, linea, desde, hasta);
+		case 'P':
+			return es(PONG, linea, desde, hasta);
+		default:
+			return DESCONOCIDO;
+		}
+	}
+
+	// Pre: 'tipo' es un tipo de comando distinto de DESCONOCIDO.
+	// Post: Retorna 'tipo' si 'linea[desde, hasta)' es exactamente su nombre y
+	// DESCONOCIDO si no.
+	private static int es(int tipo, byte[] linea, int desde, int hasta) {
+		byte[] nombre = NOMBRES_BYTES[tipo];
+		return Arrays.equals(linea, desde, hasta, nombre, 0, nombre.length) ? tipo : DESCONOCIDO;
+	}
+}
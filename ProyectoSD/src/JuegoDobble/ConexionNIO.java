@@ -0,0 +1,302 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Estado de una conexión de cliente en el modo NIO del servidor.
+Guarda los búferes de lectura y escritura del socket no bloqueante,
+separa las líneas del protocolo según van llegando y se las pasa
+al ClienteGestorHilos asociado. Solo el hilo de su BucleEventosNIO
+lee y escribe en el canal; el resto de hilos únicamente encolan mensajes
+en su ColaSalida.
+*/
+public class ConexionNIO {
+
+	// tamaño del búfer de lectura del socket
+	private static final int TAMANO_BUFER_LECTURA = 4096;
+	// longitud máxima de una línea del protocolo; si se supera se cierra la
+	// conexión para que un cliente no pueda agotar la memoria
+	private static final int MAX_LONGITUD_LINEA = 64 * 1024;
+
+	private final SocketChannel canal;
+	private final BucleEventosNIO bucle;
+	private SelectionKey clave;
+	// gestor con el estado de sesión (login, partida...) de este cliente. Cambia
+	// si la conexión reanuda una sesión anterior (ver 'setCliente()')
+	private volatile ClienteGestorHilos cliente;
+
+	// búfer donde el canal deposita los bytes leídos
+	private final ByteBuffer buferLectura = ByteBuffer.allocate(TAMANO_BUFER_LECTURA);
+	// acumula los bytes de la línea que se está recibiendo hasta encontrar '\n',
+	// o los de la trama en curso si el cliente usa el protocolo binario
+	private byte[] lineaParcial = new byte[256];
+	private int longitudLinea = 0;
+	// estado de la cabecera (varint de longitud) de la trama binaria en curso.
+	// 'tamanoTrama' vale -1 mientras no se ha terminado de leer la cabecera
+	private int tamanoTrama = -1;
+	private int cabeceraParcial = 0;
+	private int desplazamientoCabecera = 0;
+	// trama donde se carga cada trama binaria completa para entregarla al cliente
+	private final TramaBinaria tramaEntrada = new TramaBinaria(64);
+	// analizador de los comandos de texto de la conexión (ver ComandoTexto)
+	private final ComandoTexto comando = new ComandoTexto();
+
+	// mensajes que se agrupan como mucho en una misma escritura del canal
+	private static final int MAX_LOTE_ESCRITURA = 64;
+	// mensajes pendientes de escribir (acotada, ver ColaSalida)
+	private final ColaSalida colaSalida = new ColaSalida();
+	// mensajes sacados de la cola que el socket todavía no ha aceptado enteros.
+	// Solo lo usa el hilo del bucle
+	private final ByteBuffer[] lote = new ByteBuffer[MAX_LOTE_ESCRITURA];
+	private int enLote = 0;
+	// evita despertar al selector varias veces para la misma escritura
+	private final AtomicBoolean escrituraProgramada = new AtomicBoolean(false);
+	private final AtomicBoolean cerrada = new AtomicBoolean(false);
+	// vigilancia de inactividad de la conexión (ver RuedaInactividad)
+	private final RuedaInactividad.Latido latido;
+
+	// Pre: 'canal' es un SocketChannel aceptado y 'bucle' es el bucle de eventos
+	// que lo va a atender.
+	// Post: Se crea la conexión junto con su ClienteGestorHilos y empieza a
+	// vigilarse su inactividad: los PING van al cliente que la use en cada
+	// momento y, si deja de responder, se cierra. El canal todavía no está
+	// registrado en ningún selector (ver 'registrar()').
+	public ConexionNIO(SocketChannel canal, BucleEventosNIO bucle) {
+		this.canal = canal;
+		this.bucle = bucle;
+		this.cliente = new ClienteGestorHilos(this);
+		this.latido = DobbleServer.getRuedaInactividad().registrar(() -> cliente.enviarLatido(), this::cerrar);
+	}
+
+	// Pre: Se llama desde el hilo del bucle de eventos. 'clave' es la SelectionKey
+	// obtenida al registrar el canal.
+	// Post: La conexión queda asociada a su clave y el cliente se añade a la lista
+	// de clientes conectados del servidor.
+	void registrar(SelectionKey clave) {
+		this.clave = clave;
+		DobbleServer.clientesConectados.add(cliente);
+	}
+
+	// Pre: Se llama desde el hilo del bucle de eventos cuando el canal está listo
+	// para lectura.
+	// Post: Se leen todos los bytes disponibles y cada línea completa se entrega a
+	// 'cliente.procesarLineaEntrante()' (o cada trama completa a
+	// 'cliente.procesarTramaEntrante()' si usa el protocolo binario, que puede
+	// activarse a mitad del búfer tras el login). Si el cliente cerró la conexión
+	// o hubo un error de E/S, la conexión se cierra y se libera la sesión.
+	// Recibir datos cuenta como actividad de la conexión (ver RuedaInactividad).
+	void alLeer() {
+		try {
+			int leidos;
+			while ((leidos = canal.read(buferLectura)) > 0) {
+				latido.actividad();
+				buferLectura.flip();
+				while (buferLectura.hasRemaining()) {
+					if (cliente.usaProtocoloBinario()) {
+						if (!consumirBinario()) {
+							cerrar();
+							return;
+						}
+						continue;
+					}
+					byte b = buferLectura.get();
+					if (b == '\n') {
+						entregarLinea();
+					} else if (!acumular(b)) {
+						cerrar();
+						return;
+					}
+				}
+				buferLectura.clear();
+			}
+			if (leidos < 0) {
+				Bitacora.info(Bitacora.CONEXION, "{} ha perdido la conexión.",
+						cliente.getNombreUsuario() != null ? cliente.getNombreUsuario() : "Cliente");
+				cerrar();
+			}
+		} catch (IOException e) {
+			Bitacora.info(Bitacora.CONEXION, "{} ha perdido la conexión.",
+					cliente.getNombreUsuario() != null ? cliente.getNombreUsuario() : "Cliente");
+			cerrar();
+		}
+	}
+
+	// Pre: 'b' es un byte de la línea en curso (distinto de '\n').
+	// Post: El byte se añade a 'lineaParcial', ampliándola si hace falta. Retorna
+	// 'false' si la línea supera MAX_LONGITUD_LINEA.
+	private boolean acumular(byte b) {
+		if (longitudLinea == lineaParcial.length) {
+			if (lineaParcial.length >= MAX_LONGITUD_LINEA) {
+				return false;
+			}
+			lineaParcial = Arrays.copyOf(lineaParcial, Math.min(lineaParcial.length * 2, MAX_LONGITUD_LINEA));
+		}
+		lineaParcial[longitudLinea++] = b;
+		return true;
+	}
+
+	// Pre: 'buferLectura' tiene bytes pendientes y el cliente usa el protocolo
+	// binario.
+	// Post: Se consumen bytes de la cabecera o de los datos de la trama en curso.
+	// Cuando la trama está completa se entrega al cliente. Retorna 'false' si la
+	// cabecera no es válida o la trama supera el tamaño máximo.
+	private boolean consumirBinario() {
+		if (tamanoTrama < 0) {
+			int b = buferLectura.get() & 0xFF;
+			cabeceraParcial |= (b & 0x7F) << desplazamientoCabecera;
+			if ((b & 0x80) != 0) {
+				desplazamientoCabecera += 7;
+				return desplazamientoCabecera <= 28;
+			}
+			if (cabeceraParcial < 1 || cabeceraParcial > ProtocoloBinario.MAX_TRAMA_SERVIDOR) {
+				return false;
+			}
+			tamanoTrama = cabeceraParcial;
+			cabeceraParcial = 0;
+			desplazamientoCabecera = 0;
+			longitudLinea = 0;
+			if (lineaParcial.length < tamanoTrama) {
+				lineaParcial = new byte[tamanoTrama];
+			}
+			return true;
+		}
+		int n = Math.min(buferLectura.remaining(), tamanoTrama - longitudLinea);
+		buferLectura.get(lineaParcial, longitudLinea, n);
+		longitudLinea += n;
+		if (longitudLinea == tamanoTrama) {
+			tramaEntrada.cargar(lineaParcial, 0, tamanoTrama);
+			tamanoTrama = -1;
+			longitudLinea = 0;
+			cliente.procesarTramaEntrante(tramaEntrada, comando);
+		}
+		return true;
+	}
+
+	// Pre: 'lineaParcial' contiene una línea completa de 'longitudLinea' bytes.
+	// Post: La línea (sin un '\r' final si lo hay) se analiza en 'comando'
+	// directamente sobre 'lineaParcial', sin decodificarla, y se entrega al
+	// cliente. El acumulador queda vacío para la siguiente; como la línea se
+	// procesa antes de seguir leyendo, el búfer no cambia mientras se usa.
+	private void entregarLinea() {
+		int longitud = longitudLinea;
+		if (longitud > 0 && lineaParcial[longitud - 1] == '\r') {
+			longitud--;
+		}
+		comando.analizar(lineaParcial, 0, longitud);
+		longitudLinea = 0;
+		cliente.procesarLineaEntrante(comando);
+	}
+
+	// Pre: Se llama desde el hilo del bucle de eventos, mientras se procesa un
+	// RESUME recibido por esta conexión. 'cliente' es la sesión reanudada.
+	// Post: Las siguientes líneas y tramas de la conexión se entregan a
+	// 'cliente', y al cerrarse la conexión se libera su sesión. Si la conexión ya
+	// se había cerrado, se libera ahora.
+	void setCliente(ClienteGestorHilos cliente) {
+		this.cliente = cliente;
+		if (cerrada.get()) {
+			cliente.liberarSesion(this);
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la cola de salida de la conexión, donde ClienteGestorHilos
+	// encola los mensajes.
+	public ColaSalida getColaSalida() {
+		return colaSalida;
+	}
+
+	// Pre: Se acaba de encolar algo en la cola de salida. Puede llamarse desde
+	// cualquier hilo.
+	// Post: Se pide al bucle de eventos que escriba lo pendiente. Si la conexión
+	// ya está cerrada no hace nada.
+	public void programarEscritura() {
+		if (cerrada.get()) {
+			return;
+		}
+		if (bucle.esHiloDelBucle()) {
+			habilitarEscritura();
+		} else if (escrituraProgramada.compareAndSet(false, true)) {
+			bucle.ejecutar(this::habilitarEscritura);
+		}
+	}
+
+	// Pre: Se llama desde el hilo del bucle de eventos.
+	// Post: Se intenta escribir directamente lo pendiente; si el socket no admite
+	// más datos se activa el interés OP_WRITE para terminar en 'alEscribir()'.
+	private void habilitarEscritura() {
+		escrituraProgramada.set(false);
+		if (clave == null || !clave.isValid()) {
+			return;
+		}
+		alEscribir();
+	}
+
+	// Pre: Se llama desde el hilo del bucle de eventos cuando el canal admite
+	// escritura o hay mensajes nuevos en la cola.
+	// Post: Se sacan de la cola hasta MAX_LOTE_ESCRITURA mensajes y se escriben
+	// con una sola escritura agrupada (gathering write), tantas veces como admita
+	// el socket. Lo que no cabe se guarda en 'lote' para la siguiente vez y se
+	// mantiene el interés OP_WRITE; si no queda nada, se retira.
+	void alEscribir() {
+		try {
+			while (true) {
+				ByteBuffer bufer;
+				while (enLote < lote.length && (bufer = colaSalida.sacar()) != null) {
+					lote[enLote++] = bufer;
+				}
+				if (enLote == 0) {
+					clave.interestOps(clave.interestOps() & ~SelectionKey.OP_WRITE);
+					return;
+				}
+				canal.write(lote, 0, enLote);
+				int escritos = 0;
+				while (escritos < enLote && !lote[escritos].hasRemaining()) {
+					escritos++;
+				}
+				colaSalida.registrarEscritura(escritos == enLote);
+				if (escritos < enLote) {
+					// el búfer del socket está lleno: se guarda lo que falta al principio del
+					// lote y se reintenta cuando vuelva a haber hueco
+					System.arraycopy(lote, escritos, lote, 0, enLote - escritos);
+					Arrays.fill(lote, enLote - escritos, enLote, null);
+					enLote -= escritos;
+					clave.interestOps(clave.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+				Arrays.fill(lote, 0, enLote, null);
+				enLote = 0;
+			}
+		} catch (IOException | CancelledKeyException e) {
+			cerrar();
+		}
+	}
+
+	// Pre: Ninguna. Puede llamarse más de una vez y desde cualquier hilo.
+	// Post: La primera llamada deja de vigilar la inactividad de la conexión,
+	// cierra el canal, cancela su clave, descarta los mensajes pendientes y libera
+	// la sesión del cliente (partida, sala de espera y lista de clientes
+	// conectados). Las siguientes llamadas no hacen nada.
+	public void cerrar() {
+		if (!cerrada.compareAndSet(false, true)) {
+			return;
+		}
+		latido.cancelar();
+		try {
+			if (clave != null) {
+				clave.cancel();
+			}
+			canal.close();
+		} catch (IOException e) {
+			Bitacora.aviso(Bitacora.CONEXION, "Error al cerrar la conexión del cliente.", e);
+		}
+		colaSalida.cerrar();
+		cliente.liberarSesion(this);
+	}
+}
@@ -1,121 +1,477 @@
 package JuegoDobble;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
 Coordina la concurrencia y decide cuándo se
 cumplen las condiciones para iniciar una partida.
+No depende del servidor: recibe el temporizador, el ejecutor de las
+partidas, el ranking, el historial y el diario en el constructor
+(DobbleServer le pasa los reales; un benchmark puede pasarle unos en
+memoria).
 */
-public class CoordinadorPartida {
-
-	// almacena la cola de espera para la partida. Integer es el número deseado de
-	// jugadores y
-	// List es la lista de hilos de jugadores esperando a unirse a este tipo de
-	// partida.
-	private Map<Integer, List<ClienteGestorHilos>> salasDeEspera = new HashMap<>();
-	// Lista de todas las instancias de DobblePartida (partidas en juego)
-	private List<DobblePartida> partidasActivas = new ArrayList<>();
-	// almacena los resúmenes de las partidas terminadas. Se usa synchronized en sus
-	// métodos de acceso
-	// para que varios hilos no intenten leer y escribir al mismo tiempo.
-	private List<String> historialPartidas = new ArrayList<>();
+public class CoordinadorPartida implements DestinoPartidas {
 
-	// Pre: Ninguna.
-	// Post: La estructura 'salasDeEspera' se inicializa, creando una lista de
-	// espera vacía (LinkedList) para cada tamaño de partida posible (2 a 8
-	// jugadores).
-	public CoordinadorPartida() {
+	// espera máxima por defecto, en segundos, antes de aceptar una partida más
+	// pequeña (propiedad del sistema dobble.emparejamiento.espera)
+	public static final int ESPERA_MAXIMA_DEFECTO = Integer.getInteger("dobble.emparejamiento.espera", 20);
+	// cada cuánto se repite la pasada de fusión de salas mientras quede algún
+	// jugador cuya espera ya se agotó y que sigue sin partida
+	private static final long REINTENTO_FUSION_MS = 1000;
+	// "ESPERA|Esperando a n jugadores más." para cada n posible (1 a 7),
+	// codificado una sola vez (ver MensajeCodificado)
+	private static final MensajeCodificado[] ESPERA_FALTAN = new MensajeCodificado[8];
+	static {
+		for (int i = 1; i < ESPERA_FALTAN.length; i++) {
+			ESPERA_FALTAN[i] = MensajeCodificado.deTexto("ESPERA|Esperando a " + i + " jugadores más.");
+		}
+	}
+
+	// salas de espera sin cerrojos (ver SalaEspera). Integer es la clave de la
+	// sala (orden del mazo y número deseado de jugadores, ver claveSala()). El
+	// mapa se rellena en el constructor y después solo se lee.
+	private final Map<Integer, SalaEspera> salasDeEspera = new HashMap<>();
+	// tiempo desde que un jugador entra en una de estas salas hasta que tiene
+	// partida, en milisegundos
+	private final Histograma tiempoEmparejamiento = new Histograma();
+	// partidas no terminadas, por identificador. Cada partida se da de baja al
+	// terminar (ver 'desregistrarPartida()')
+	private final Map<Long, DobblePartida> partidasActivas = new ConcurrentHashMap<>();
+	// siguiente identificador de partida
+	private final AtomicLong siguienteIdPartida = new AtomicLong(1);
+	// páginas del historial: tamaño por defecto (HISTORIAL sin parámetros) y
+	// máximo
+	public static final int PAGINA_HISTORIAL_DEFECTO = 20;
+	public static final int PAGINA_HISTORIAL_MAXIMA = 100;
+	// temporizador en el que vencen las esperas máximas de las salas
+	private final ScheduledExecutorService temporizador;
+	// ejecutor en el que se vacían los buzones de las partidas
+	private final Executor ejecutorPartidas;
+	// donde registran las partidas sus ganadores
+	private final DestinoRanking ranking;
+	// historial de las partidas terminadas (ver HistorialPartidas)
+	private final HistorialPartidas historial;
+	// diario con los eventos de las partidas terminadas, para reproducirlas (ver
+	// DiarioEventos y ReproductorPartidas)
+	private final DiarioEventos diario;
+	// plazas cuya espera máxima se agotó sin partida, por orden de mazo (ver
+	// 'pasadaFusion()'). El mapa se rellena en el constructor; las listas solo
+	// las usa el temporizador
+	private final Map<Integer, List<PlazaEspera>> vencidas = new HashMap<>();
+	// 'true' si hay una pasada de fusión programada (solo lo usa el temporizador)
+	private boolean pasadaProgramada;
+
+	// Pre: 'temporizador' ejecuta las tareas de una en una (como el temporizador
+	// compartido del servidor). 'ejecutorPartidas' es donde se juegan las
+	// partidas, 'ranking' donde registran sus ganadores, y 'historial' y 'diario'
+	// donde se guardan sus resúmenes y sus eventos al terminar.
+	// Post: La estructura 'salasDeEspera' se inicializa, creando una sala de
+	// espera vacía para cada orden de mazo soportado y cada tamaño de partida
+	// posible (2 a 8 jugadores), y 'vencidas' con una lista vacía por orden.
+	public CoordinadorPartida(ScheduledExecutorService temporizador, Executor ejecutorPartidas,
+			DestinoRanking ranking, HistorialPartidas historial, DiarioEventos diario) {
+		this.temporizador = temporizador;
+		this.ejecutorPartidas = ejecutorPartidas;
+		this.ranking = ranking;
+		this.historial = historial;
+		this.diario = diario;
+		for (int orden : MazoDobble.ORDENES_SOPORTADOS) {
+			vencidas.put(orden, new ArrayList<>());
+			for (int i = 2; i <= 8; i++) {
+				salasDeEspera.put(claveSala(orden, i), new SalaEspera(this, orden, i));
+			}
+		}
+	}
+
+	// Pre: 'orden' es un orden de mazo soportado y 'maxJugadores' está entre 2 y 8.
+	// Post: Retorna la clave de la sala de espera de ese tipo de partida.
+	private static int claveSala(int orden, int maxJugadores) {
+		return orden * 16 + maxJugadores;
+	}
+
+	// Pre: Las mismas que joinWaitingList(jugador, maxJugadores, ordenMazo).
+	// Post: El jugador entra en la sala de partidas con el mazo clásico (orden 7).
+	public void joinWaitingList(CanalJugador jugador, int maxJugadores) {
+		joinWaitingList(jugador, maxJugadores, MazoDobble.ORDEN_ESTANDAR);
+	}
+
+	// Pre: Las mismas que joinWaitingList(jugador, maxJugadores, ordenMazo,
+	// minJugadores, esperaMaxima).
+	// Post: El jugador solo acepta partidas de exactamente 'maxJugadores'.
+	public void joinWaitingList(CanalJugador jugador, int maxJugadores, int ordenMazo) {
+		joinWaitingList(jugador, maxJugadores, ordenMazo, maxJugadores, ESPERA_MAXIMA_DEFECTO);
+	}
+
+	// Pre: 'jugador' es un jugador válido que no está actualmente en una
+	// partida; 'maxJugadores' está entre 2 y 8 y 'ordenMazo' es un orden soportado
+	// con cartas suficientes; 2 <= 'minJugadores' <= 'maxJugadores' y
+	// 'esperaMaxima' >= 0 (esta validación se hace en ClienteGestorHilos).
+	// Post: Si el jugador ya espera en esa sala, o su plaza se acaba de asignar
+	// a una partida, no se hace nada. Si esperaba en otra sala, la abandona. El
+	// jugador entra en la sala de 'ordenMazo' y 'maxJugadores' y guarda su plaza.
+	// Si con él la sala alcanza el límite, se reclaman atómicamente los jugadores
+	// de una partida y se llama a 'iniciarNuevaPartida()'; si no, se le envía un
+	// mensaje de espera. Si el jugador acepta partidas más pequeñas
+	// ('minJugadores' < 'maxJugadores'), al cabo de 'esperaMaxima' segundos el
+	// temporizador intenta formar una partida con él y con los jugadores de las
+	// salas vecinas, y lo sigue intentando cada REINTENTO_FUSION_MS mientras no
+	// la tenga (ver 'vencerEspera()').
+	public void joinWaitingList(CanalJugador jugador, int maxJugadores, int ordenMazo, int minJugadores,
+			int esperaMaxima) {
+		SalaEspera sala = salasDeEspera.get(claveSala(ordenMazo, maxJugadores));
+
+		// si se pulsa el botón 'jugar' varias veces, no es agregado a la misma lista de
+		// espera varias veces
+		PlazaEspera anterior = jugador.getPlazaEspera();
+		if (anterior != null) {
+			if (anterior.estaEsperando() && anterior.getSala() == sala) {
+				return;
+			}
+			// si su plaza se acaba de asignar a una partida, el jugador ya no puede
+			// volver a una sala (aunque la partida aún no lo haya registrado)
+			if (!anterior.cancelar() && anterior.estaEnPartida() && jugador.isEnPartida()) {
+				return;
+			}
+		}
+
+		PlazaEspera plaza = sala.entrar(jugador, minJugadores);
+		jugador.setPlazaEspera(plaza);
+		Bitacora.info(Bitacora.EMPAREJAMIENTO, "{} se unió a sala de {} (mazo de orden {}). Total: {}",
+				jugador.getNombreUsuario(), maxJugadores, ordenMazo, sala.getEsperando());
+
+		// no hace falta un cerrojo para que el sistema no inicie dos partidas
+		// incompletas si dos jugadores se unen al mismo tiempo: 'reclamar()' solo
+		// entrega plazas que nadie más ha reclamado
+		List<CanalJugador> jugadoresPartida = sala.reclamar();
+		if (jugadoresPartida != null) {
+			iniciarNuevaPartida(jugadoresPartida, MazoDobble.deOrden(ordenMazo));
+		} else if (plaza.estaEsperando()) {
+			// si la sala no está llena, le dice al jugador cuántas personas quedan.
+			int faltan = Math.max(1, Math.min(ESPERA_FALTAN.length - 1, maxJugadores - sala.getEsperando()));
+			jugador.enviarMensaje(ESPERA_FALTAN[faltan]);
+			if (minJugadores < maxJugadores) {
+				programarVencimiento(plaza, TimeUnit.SECONDS.toMillis(esperaMaxima));
+			}
+		}
+	}
+
+	// Pre: 'plaza' es la plaza de un jugador que acepta partidas más pequeñas.
+	// Post: Se programa en el temporizador 'vencerEspera(plaza)' dentro de
+	// 'retardoMs' milisegundos.
+	private void programarVencimiento(PlazaEspera plaza, long retardoMs) {
+		temporizador.schedule(() -> {
+			try {
+				vencerEspera(plaza);
+			} catch (RuntimeException e) {
+				Bitacora.error(Bitacora.EMPAREJAMIENTO, "Error al vencer la espera de {}.",
+						plaza.getJugador().getNombreUsuario(), e);
+			}
+		}, retardoMs, TimeUnit.MILLISECONDS);
+	}
+
+	// Pre: Se ejecuta en el temporizador (nunca dos a la vez). Se ha agotado la
+	// espera máxima del jugador de 'plaza'.
+	// Post: Si el jugador ya tiene partida o abandonó la sala no se hace nada. Si
+	// no, la plaza se apunta en 'vencidas' y, si no había ninguna pasada de
+	// fusión programada, se programa una enseguida (ver 'pasadaFusion()').
+	private void vencerEspera(PlazaEspera plaza) {
+		if (!plaza.estaEsperando()) {
+			return;
+		}
+		vencidas.get(plaza.getSala().getOrdenMazo()).add(plaza);
+		if (!pasadaProgramada) {
+			pasadaProgramada = true;
+			programarPasada(0);
+		}
+	}
+
+	// Pre: Se ejecuta en el temporizador y 'pasadaProgramada' es 'true'.
+	// Post: Se programa 'pasadaFusion()' dentro de 'retardoMs' milisegundos.
+	private void programarPasada(long retardoMs) {
+		temporizador.schedule(this::pasadaFusion, retardoMs, TimeUnit.MILLISECONDS);
+	}
+
+	// Pre: Se ejecuta en el temporizador.
+	// Post: Para cada orden de mazo con plazas vencidas que siguen esperando se
+	// hace una sola fusión de sus salas (ver 'fusionarSalas()'). Las plazas que
+	// ya no esperan se olvidan; si queda alguna, se programa la siguiente pasada
+	// dentro de REINTENTO_FUSION_MS.
+	private void pasadaFusion() {
+		boolean quedan = false;
+		for (Map.Entry<Integer, List<PlazaEspera>> entrada : vencidas.entrySet()) {
+			List<PlazaEspera> pendientes = entrada.getValue();
+			pendientes.removeIf(plaza -> !plaza.estaEsperando());
+			if (pendientes.isEmpty()) {
+				continue;
+			}
+			try {
+				fusionarSalas(entrada.getKey(), pendientes);
+			} catch (RuntimeException e) {
+				Bitacora.error(Bitacora.EMPAREJAMIENTO, "Error al fusionar las salas del mazo de orden {}.",
+						entrada.getKey(), e);
+			}
+			pendientes.removeIf(plaza -> !plaza.estaEsperando());
+			quedan |= !pendientes.isEmpty();
+		}
+		pasadaProgramada = quedan;
+		if (quedan) {
+			programarPasada(REINTENTO_FUSION_MS);
+		}
+	}
+
+	// Pre: Se ejecuta en el temporizador. 'pendientes' son las plazas vencidas
+	// de las salas del mazo de orden 'ordenMazo'.
+	// Post: Se reúnen una sola vez los jugadores que esperan en esas salas,
+	// ordenados por llegada. Después, para cada plaza vencida, de la que más
+	// lleva esperando a la que menos, y para cada tamaño T, de mayor a menor,
+	// entre los que acepta, se cuentan los jugadores aún sin partida que también
+	// aceptan T (su mínimo <= T <= su sala). Con el mayor T que tenga jugadores
+	// suficientes se toman la plaza y los T-1 que más llevan esperando y se
+	// inicia la partida. Si los jugadores cambian mientras tanto, la pasada
+	// termina y las plazas sin partida siguen esperando.
+	private void fusionarSalas(int ordenMazo, List<PlazaEspera> pendientes) {
+		List<PlazaEspera> candidatas = new ArrayList<>();
 		for (int i = 2; i <= 8; i++) {
-			salasDeEspera.put(i, new LinkedList<>());
-		}
-	}
-
-	// Pre: 'jugador' es un ClienteGestorHilos válido que no está actualmente en una
-	// partida o sala de espera; 'maxJugadores' está entre 2 y 8 (esta validación se
-	// hace en ClienteGestorHilos).
-	// Post: Se sincroniza el acceso a la sala. Si la sala correspondiente a
-	// 'maxJugadores' se llena (alcanza o excede el límite), la lista de jugadores
-	// se vacía y se llama a 'iniciarNuevaPartida()'. Si la sala no se llena, el
-	// jugador se añade a la cola y se le envía un mensaje de espera.
-	public void joinWaitingList(ClienteGestorHilos jugador, int maxJugadores) {
-		// lista de jugadores(hilos)en un principio vacía, que corresponde al número de
-		// jugadores deseado para jugar ese tipo de partida
-		List<ClienteGestorHilos> sala = salasDeEspera.get(maxJugadores);
-
-		// para que el sistema no pueda iniciar dos partidas incompletas si dos
-		// jugadores se unen al mismo tiempo
-		synchronized (sala) {
-			// si se pulsa el botón 'jugar' varias veces, no es añadido a la misma lista de
-			// espera varias veces
-			if (!sala.contains(jugador)) {
-				sala.add(jugador);
-				System.out.println(
-						jugador.getNombreUsuario() + " se unió a sala de " + maxJugadores + ". Total: " + sala.size());
-				// si el número de jugadores alcanza o excede el límite
-				if (sala.size() >= maxJugadores) {
-					// Crea una copia de la lista
-					List<ClienteGestorHilos> jugadoresPartida = new ArrayList<>(sala);
-					// Vacía la sala de espera
-					sala.clear();
-					iniciarNuevaPartida(jugadoresPartida);
-				} else {
-					// si la sala no está llena, le dice al jugador cuántas personas quedan.
-					jugador.sendMessage("ESPERA|Esperando a " + (maxJugadores - sala.size()) + " jugadores más.");
+			salasDeEspera.get(claveSala(ordenMazo, i)).recogerEsperando(candidatas);
+		}
+		// los que más llevan esperando tienen prioridad
+		Comparator<PlazaEspera> porLlegada = Comparator.comparingLong(PlazaEspera::getInstanteEntrada);
+		candidatas.sort(porLlegada);
+		pendientes.sort(porLlegada);
+
+		// candidatas que aceptan cada tamaño y cuántas de ellas siguen libres en esta
+		// pasada; 'primera[t]' es la primera de 'porTamano[t]' que puede seguir libre
+		List<List<PlazaEspera>> porTamano = new ArrayList<>(9);
+		int[] disponibles = new int[9];
+		int[] primera = new int[9];
+		for (int t = 0; t <= 8; t++) {
+			porTamano.add(new ArrayList<>());
+		}
+		for (PlazaEspera candidata : candidatas) {
+			for (int t = candidata.getMinJugadores(); t <= candidata.getSala().getMaxJugadores(); t++) {
+				porTamano.get(t).add(candidata);
+				disponibles[t]++;
+			}
+		}
+		Set<PlazaEspera> libres = new HashSet<>(candidatas);
+
+		for (PlazaEspera plaza : pendientes) {
+			if (!libres.contains(plaza)) {
+				continue;
+			}
+			for (int tamano = plaza.getSala().getMaxJugadores(); tamano >= plaza.getMinJugadores(); tamano--) {
+				// 'plaza' también es una de las disponibles de 'tamano'
+				if (disponibles[tamano] < tamano) {
+					continue;
 				}
+				List<PlazaEspera> lista = porTamano.get(tamano);
+				while (!libres.contains(lista.get(primera[tamano]))) {
+					primera[tamano]++;
+				}
+				List<PlazaEspera> elegidas = new ArrayList<>(tamano - 1);
+				for (int i = primera[tamano]; i < lista.size() && elegidas.size() < tamano - 1; i++) {
+					PlazaEspera candidata = lista.get(i);
+					if (candidata != plaza && libres.contains(candidata)) {
+						elegidas.add(candidata);
+					}
+				}
+				List<CanalJugador> jugadores = tomarPlazas(plaza, elegidas, tamano);
+				if (jugadores == null) {
+					return;
+				}
+				elegidas.add(plaza);
+				for (PlazaEspera tomada : elegidas) {
+					libres.remove(tomada);
+					for (int t = tomada.getMinJugadores(); t <= tomada.getSala().getMaxJugadores(); t++) {
+						disponibles[t]--;
+					}
+				}
+				Bitacora.info(Bitacora.EMPAREJAMIENTO,
+						"Espera agotada para {}: se fusionan salas en una partida de {} jugadores.",
+						plaza.getJugador().getNombreUsuario(), tamano);
+				iniciarNuevaPartida(jugadores, MazoDobble.deOrden(ordenMazo));
+				break;
 			}
 		}
 	}
 
-	// Pre: 'jugador' es una instancia válida de ClienteGestorHilos.
-	// Post: Se recorren todas las salas de espera. Si el 'jugador' se encuentra en
-	// alguna de ellas, es removido de la lista de espera.
-	public void removerJugador(ClienteGestorHilos jugador) {
-		// Quitarlo de cualquier sala de espera si está allí
-		for (List<ClienteGestorHilos> sala : salasDeEspera.values()) {
-			synchronized (sala) {
-				sala.remove(jugador);
+	// Pre: 'plaza' sigue esperando y 'elegidas' son otras plazas que aceptan una
+	// partida de 'tamano' jugadores, por orden de preferencia.
+	// Post: Se toman 'plaza' y las primeras 'tamano' - 1 plazas de 'elegidas' que
+	// sigan esperando, se marcan sus jugadores como en partida, se confirman y se
+	// retornan los jugadores. Si no se consiguen todas, las tomadas vuelven a sus
+	// salas y retorna 'null'.
+	private List<CanalJugador> tomarPlazas(PlazaEspera plaza, List<PlazaEspera> elegidas, int tamano) {
+		List<PlazaEspera> tomadas = new ArrayList<>(tamano);
+		if (plaza.getSala().tomar(plaza)) {
+			tomadas.add(plaza);
+			for (int i = 0; i < elegidas.size() && tomadas.size() < tamano; i++) {
+				PlazaEspera elegida = elegidas.get(i);
+				if (elegida.getSala().tomar(elegida)) {
+					tomadas.add(elegida);
+				}
 			}
 		}
+		if (tomadas.size() < tamano) {
+			for (PlazaEspera tomada : tomadas) {
+				tomada.getSala().devolver(tomada);
+			}
+			return null;
+		}
+		List<CanalJugador> jugadores = new ArrayList<>(tamano);
+		for (PlazaEspera tomada : tomadas) {
+			// igual que en SalaEspera.reclamar(): primero se marca al jugador
+			tomada.getJugador().setEnPartida(true);
+			tomada.confirmar();
+			jugadores.add(tomada.getJugador());
+		}
+		return jugadores;
+	}
+
+	// Pre: 'nanos' es el tiempo que ha esperado hasta tener partida un jugador de
+	// una de las salas de este coordinador.
+	// Post: Se registra en el histograma de tiempos de emparejamiento.
+	void registrarTiempoEmparejamiento(long nanos) {
+		tiempoEmparejamiento.registrar(TimeUnit.NANOSECONDS.toMillis(nanos));
 	}
 
-	// Pre: 'jugadores' es una lista de ClienteGestorHilos cuyo tamaño es igual o
+	// Pre: Ninguna.
+	// Post: Retorna el histograma de tiempos de emparejamiento, en milisegundos.
+	public Histograma getTiempoEmparejamiento() {
+		return tiempoEmparejamiento;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el comando "EMPAREJAMIENTO|jugadores|p50|p90|p99|max" con el
+	// número de jugadores emparejados y los percentiles del tiempo hasta tener
+	// partida, en milisegundos.
+	public String getEstadisticasEmparejamiento() {
+		Histograma h = tiempoEmparejamiento;
+		return "EMPAREJAMIENTO|" + h.getTotal() + "|" + h.getPercentil(50) + "|" + h.getPercentil(90) + "|"
+				+ h.getPercentil(99) + "|" + h.getMaximo();
+	}
+
+	// Pre: 'jugador' es un jugador válido.
+	// Post: Si el 'jugador' espera en alguna sala, abandona su plaza en tiempo
+	// constante y retorna 'true'. Si no esperaba (o su plaza ya se ha asignado a
+	// una partida) retorna 'false'.
+	public boolean removerJugador(CanalJugador jugador) {
+		PlazaEspera plaza = jugador.getPlazaEspera();
+		return plaza != null && plaza.cancelar();
+	}
+
+	// Pre: 'jugadores' es una lista de jugadores cuyo tamaño es igual o
 	// mayor al número de jugadores requerido para la partida.
-	// Post: Se crea una nueva instancia de 'DobblePartida' con la lista de
-	// 'jugadores'. Esta nueva instancia se añade a la lista global
-	// 'partidasActivas'.
-	private void iniciarNuevaPartida(List<ClienteGestorHilos> jugadores) {
-		System.out.println("Iniciando nueva partida con " + jugadores.size() + " jugadores.");
+	// 'mazo' es el mazo precalculado con el que se jugará.
+	// Post: Se crea una nueva instancia de 'DobblePartida' con un identificador
+	// nuevo, la lista de 'jugadores', el 'mazo' y una semilla de barajado al azar
+	// (que queda en el diario de eventos), que se juega en el ejecutor de
+	// partidas, registra sus ganadores en el ranking y avisa a este coordinador
+	// al terminar. Esta nueva instancia se añade a
+	// 'partidasActivas' y después se inicia.
+	private void iniciarNuevaPartida(List<CanalJugador> jugadores, MazoDobble mazo) {
 		// crea la partida
-		DobblePartida nuevaPartida = new DobblePartida(jugadores);
+		DobblePartida nuevaPartida = new DobblePartida(siguienteIdPartida.getAndIncrement(), jugadores, mazo,
+				ThreadLocalRandom.current().nextLong(), ejecutorPartidas, ranking, this);
+
+		// Se registra antes de iniciarla: si termina enseguida (por ejemplo, todos
+		// se desconectan) su baja siempre llega después del alta
+		partidasActivas.put(nuevaPartida.getId(), nuevaPartida);
+		Bitacora.info(Bitacora.PARTIDA, "Iniciando partida {} con {} jugadores y mazo de orden {}. Partidas activas: {}",
+				nuevaPartida.getId(), jugadores.size(), mazo.getOrden(), partidasActivas.size());
+		nuevaPartida.iniciar();
+	}
+
+	// Pre: 'partida' acaba de terminar (está en ESTADO_TERMINADA).
+	// Post: La partida se quita de 'partidasActivas', así que deja de estar
+	// referenciada por el coordinador.
+	@Override
+	public void desregistrarPartida(DobblePartida partida) {
+		if (partidasActivas.remove(partida.getId(), partida)) {
+			Bitacora.info(Bitacora.PARTIDA, "Partida {} dada de baja. Partidas activas: {}", partida.getId(),
+					partidasActivas.size());
+		}
+	}
+
+	// Pre: Ninguna. Se llama una vez al arrancar el servidor.
+	// Post: Se registra en Metricas un indicador por sala de espera con los
+	// jugadores que esperan en ella, etiquetado con el orden del mazo y el
+	// número de jugadores de la partida, y el histograma de tiempos de
+	// emparejamiento.
+	public void registrarMetricas() {
+		Metricas.registrarHistograma("dobble_emparejamiento_espera_ms",
+				"Tiempo desde que un jugador entra en una sala hasta que tiene partida, en milisegundos.",
+				tiempoEmparejamiento);
+		for (SalaEspera sala : salasDeEspera.values()) {
+			Metricas.registrarIndicador(
+					"dobble_sala_espera_jugadores{orden=\"" + sala.getOrdenMazo() + "\",jugadores=\""
+							+ sala.getMaxJugadores() + "\"}",
+					"Jugadores esperando en cada sala (orden del mazo y jugadores por partida).", sala::getEsperando);
+		}
+	}
 
-		// Añade la partida activa a la lista global.
-		partidasActivas.add(nuevaPartida);
+	// Pre: Ninguna.
+	// Post: Retorna el número de partidas activas (no terminadas) en este momento.
+	public int getPartidasActivasCount() {
+		return partidasActivas.size();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la partida activa con identificador 'id' o 'null' si no existe
+	// o ya ha terminado.
+	public DobblePartida getPartidaActiva(long id) {
+		return partidasActivas.get(id);
 	}
 
 	// Pre: 'resumenPartida' es una cadena de texto formateada que contiene todos
 	// los detalles del resultado de una partida recién terminada.
-	// Post: Se añade 'resumenPartida' al final de la lista 'historialPartidas'. La
-	// operación se realiza bajo un bloque sincronizado para garantizar la seguridad
-	// en un entorno concurrente.
+	// Post: Se añade 'resumenPartida' al final del historial (ver
+	// HistorialPartidas, que lo hace bajo su propio cerrojo).
+	@Override
 	public void registrarResultado(String resumenPartida) {
 		// si dos partidas terminan simultaneamente, el resumen de ambas se guarda bien
-		synchronized (historialPartidas) {
-			historialPartidas.add(resumenPartida);
-		}
+		historial.registrar(resumenPartida);
+	}
+
+	// Pre: 'datos[0, longitud)' es el registro de eventos de una partida recién
+	// terminada.
+	// Post: Se añade como un bloque al final del diario de eventos (ver
+	// DiarioEventos, que lo hace bajo su propio cerrojo).
+	@Override
+	public void registrarEventos(byte[] datos, int longitud) {
+		diario.registrar(datos, longitud);
 	}
 
 	// Pre: Ninguna.
-	// Post: Si 'historialPartidas' está vacío, retorna el comando
-	// "HISTORIAL|NO_DATA". Si hay datos, retorna el comando "HISTORIAL|" seguido de
-	// una cadena que une todos los resúmenes de partida ('resumenPartida')
-	// separados por el delimitador '###'.
+	// Post: Igual que 'getHistorial(0, PAGINA_HISTORIAL_DEFECTO)': las partidas
+	// más recientes.
 	public String getHistorial() {
-		if (historialPartidas.isEmpty()) {
-			return "HISTORIAL|NO_DATA";
+		return getHistorial(0, PAGINA_HISTORIAL_DEFECTO);
+	}
+
+	// Pre: 'desplazamiento' >= 0 y 'limite' > 0.
+	// Post: Si la página está vacía, retorna el comando "HISTORIAL|NO_DATA|total".
+	// Si hay datos, retorna "HISTORIAL|" seguido de los resúmenes de la página
+	// ('resumenPartida', el más antiguo primero) separados por el delimitador
+	// '###', del total de partidas y del número de la primera partida de la
+	// página: "HISTORIAL|datos|total|desde". La página son las 'limite' partidas
+	// (como mucho PAGINA_HISTORIAL_MAXIMA) que quedan al saltarse las
+	// 'desplazamiento' más recientes.
+	public String getHistorial(int desplazamiento, int limite) {
+		HistorialPartidas.Pagina pagina = historial.getPagina(desplazamiento,
+				Math.min(limite, PAGINA_HISTORIAL_MAXIMA));
+		if (pagina.getResumenes().isEmpty()) {
+			return "HISTORIAL|NO_DATA|" + pagina.getTotal();
 		}
-		// Unimos todos los resúmenes en una sola cadena, separados por un delimitador
-		// ('###')
-		String datos = String.join("###", historialPartidas);
-		return "HISTORIAL|" + datos;
+		// Unimos los resúmenes de la página en una sola cadena, separados por un
+		// delimitador ('###')
+		String datos = String.join("###", pagina.getResumenes());
+		return "HISTORIAL|" + datos + "|" + pagina.getTotal() + "|" + pagina.getDesde();
 	}
 }
@@ -0,0 +1,26 @@
+package JuegoDobble;
+
+/*
+Adonde avisa una partida al terminar: el resumen para el historial, sus
+eventos para el diario y su baja. En el servidor es el coordinador
+(CoordinadorPartida), que guarda el resumen y los eventos en disco y deja
+de referenciar la partida; el simulador pasa uno en memoria.
+*/
+public interface DestinoPartidas {
+
+	// Pre: 'resumenPartida' es el resumen de una partida recién terminada. Puede
+	// llamarse desde cualquier hilo.
+	// Post: El resumen queda registrado en el historial.
+	void registrarResultado(String resumenPartida);
+
+	// Pre: 'datos[0, longitud)' es el registro de eventos (ver EventosPartida) de
+	// una partida recién terminada. Se llama desde el buzón de la partida y el
+	// array no se vuelve a modificar.
+	// Post: Los eventos quedan guardados (o descartados) para poder reproducir la
+	// partida.
+	void registrarEventos(byte[] datos, int longitud);
+
+	// Pre: 'partida' acaba de terminar (está en ESTADO_TERMINADA).
+	// Post: La partida deja de contarse como activa.
+	void desregistrarPartida(DobblePartida partida);
+}
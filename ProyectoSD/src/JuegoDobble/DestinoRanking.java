@@ -0,0 +1,13 @@
+package JuegoDobble;
+
+/*
+Adonde envía una partida sus ganadores. En el servidor es el ranking
+global (DobbleRanking); el simulador pasa uno que solo cuenta.
+*/
+public interface DestinoRanking {
+
+	// Pre: 'nombreGanador' es el nombre de un jugador que acaba de ganar una
+	// partida. Puede llamarse desde cualquier hilo.
+	// Post: Se cuenta la victoria.
+	void registrarGanador(String nombreGanador);
+}
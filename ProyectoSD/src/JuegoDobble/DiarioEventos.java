@@ -0,0 +1,176 @@
+package JuegoDobble;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/*
+Diario de eventos de las partidas terminadas, en disco. Cada partida se
+guarda al terminar como un bloque (ver EventosPartida) al final del
+fichero, con el formato [longitud int][crc32 int][bloque]; el fichero
+solo crece por el final. Con él se pueden reproducir las partidas (ver
+ReproductorPartidas).
+Al arrancar se recorre el fichero; si el último bloque quedó a medias o
+con el CRC erróneo (el servidor se paró mientras se escribía) se trunca.
+Si no se puede abrir el fichero los eventos se descartan.
+*/
+public class DiarioEventos {
+
+	// tamaño máximo de un bloque (una partida de orden 13 con 8 jugadores ocupa
+	// unos pocos KB)
+	private static final int MAX_BYTES_BLOQUE = 16 * 1024 * 1024;
+	private static final int TAMANO_CABECERA = 8;
+
+	private final ReentrantLock cerrojo = new ReentrantLock();
+	// fichero del diario, o 'null' si no se pudo abrir
+	private final FileChannel fichero;
+	private final CRC32 crc = new CRC32();
+	// siguiente posición libre del fichero
+	private long fin = 0;
+
+	// Pre: 'ruta' es la ruta del fichero del diario o 'null' para no guardar
+	// nada.
+	// Post: Se abre (o crea) el fichero y se busca su final válido. Si el fichero
+	// no se puede abrir se avisa y los eventos se descartan.
+	public DiarioEventos(Path ruta) {
+		FileChannel canal = null;
+		if (ruta != null) {
+			try {
+				File directorio = ruta.toAbsolutePath().getParent().toFile();
+				directorio.mkdirs();
+				canal = FileChannel.open(ruta, StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				fin = recorrer(canal, null);
+				if (fin < canal.size()) {
+					Bitacora.aviso(Bitacora.PERSISTENCIA, "Diario de eventos incompleto: se descartan {} bytes.",
+							canal.size() - fin);
+					canal.truncate(fin);
+				}
+			} catch (IOException e) {
+				Bitacora.aviso(Bitacora.PERSISTENCIA, "No se puede usar el diario de eventos {}: {}", ruta,
+						e.getMessage());
+				if (canal != null) {
+					try {
+						canal.close();
+					} catch (IOException ignorada) {
+					}
+				}
+				canal = null;
+			}
+		}
+		this.fichero = canal;
+	}
+
+	// Pre: 'datos[0, longitud)' es el bloque de una partida recién terminada.
+	// Puede llamarse desde cualquier hilo.
+	// Post: El bloque se añade al final del fichero bajo el cerrojo del diario.
+	// Si falla la escritura se avisa y se deshace lo escrito a medias. Un bloque
+	// de más de MAX_BYTES_BLOQUE se descarta con un aviso.
+	public void registrar(byte[] datos, int longitud) {
+		if (fichero == null) {
+			return;
+		}
+		if (longitud > MAX_BYTES_BLOQUE) {
+			Bitacora.aviso(Bitacora.PERSISTENCIA, "Bloque de eventos de {} bytes descartado (máximo {}).", longitud,
+					MAX_BYTES_BLOQUE);
+			return;
+		}
+		cerrojo.lock();
+		try {
+			crc.reset();
+			crc.update(datos, 0, longitud);
+			ByteBuffer registro = ByteBuffer.allocate(TAMANO_CABECERA + longitud);
+			registro.putInt(longitud).putInt((int) crc.getValue()).put(datos, 0, longitud).flip();
+			long posicion = fin;
+			try {
+				while (registro.hasRemaining()) {
+					fin += fichero.write(registro, fin);
+				}
+			} catch (IOException e) {
+				Bitacora.error(Bitacora.PERSISTENCIA, "Error al escribir el diario de eventos: {}", e.getMessage());
+				fin = posicion;
+				try {
+					fichero.truncate(fin);
+				} catch (IOException ignorada) {
+				}
+			}
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cierra el fichero, si lo hay.
+	public void cerrar() {
+		cerrojo.lock();
+		try {
+			if (fichero != null) {
+				fichero.close();
+			}
+		} catch (IOException e) {
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	// Pre: 'ruta' es un diario de eventos.
+	// Post: Se pasa a 'accion' cada bloque válido del diario, en orden, como un
+	// array propio. Los bytes finales que no forman un bloque completo se
+	// ignoran.
+	public static void leer(Path ruta, Consumer<byte[]> accion) throws IOException {
+		try (FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ)) {
+			recorrer(canal, accion);
+		}
+	}
+
+	// Pre: 'canal' está abierto para lectura.
+	// Post: Se recorren los bloques desde el principio, pasando cada uno a
+	// 'accion' si no es 'null', hasta el final del fichero o el primer bloque
+	// incompleto o con el CRC erróneo. Retorna la posición donde termina el
+	// último bloque válido.
+	private static long recorrer(FileChannel canal, Consumer<byte[]> accion) throws IOException {
+		long tamano = canal.size();
+		long posicion = 0;
+		ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+		CRC32 comprobacion = new CRC32();
+		while (posicion + TAMANO_CABECERA <= tamano) {
+			cabecera.clear();
+			leerCompleto(canal, cabecera, posicion);
+			int longitud = cabecera.getInt(0);
+			if (longitud <= 0 || longitud > MAX_BYTES_BLOQUE || posicion + TAMANO_CABECERA + longitud > tamano) {
+				break;
+			}
+			ByteBuffer bloque = ByteBuffer.allocate(longitud);
+			leerCompleto(canal, bloque, posicion + TAMANO_CABECERA);
+			comprobacion.reset();
+			comprobacion.update(bloque.array(), 0, longitud);
+			if ((int) comprobacion.getValue() != cabecera.getInt(4)) {
+				break;
+			}
+			if (accion != null) {
+				accion.accept(bloque.array());
+			}
+			posicion += TAMANO_CABECERA + longitud;
+		}
+		return posicion;
+	}
+
+	// Pre: 'destino' tiene espacio libre.
+	// Post: Se llena 'destino' con los bytes de 'canal' a partir de 'posicion'.
+	// Lanza IOException si el fichero se acaba antes.
+	private static void leerCompleto(FileChannel canal, ByteBuffer destino, long posicion) throws IOException {
+		while (destino.hasRemaining()) {
+			int leidos = canal.read(destino, posicion);
+			if (leidos < 0) {
+				throw new IOException("Fin de fichero inesperado en la posición " + posicion);
+			}
+			posicion += leidos;
+		}
+	}
+}
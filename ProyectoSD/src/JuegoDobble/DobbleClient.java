@@ -4,6 +4,10 @@ import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /*
 Es el cliente, ejecuta la interfaz gráfica,
@@ -29,16 +33,38 @@ public class DobbleClient extends JFrame {
 
 	// el socket, para enviar y recibir
 	private Socket socket;
-	private PrintWriter out;
-	private BufferedReader in;
+	private volatile OutputStream out;
+	private InputStream in;
+	// token de la sesión recibido en LOGIN_OK, para reanudarla con RESUME|token si
+	// se corta la conexión
+	private volatile String tokenSesion;
+	// si se pidió el protocolo binario en el login (se vuelve a pedir al reanudar)
+	private volatile boolean pideBinario = false;
+	// true mientras se espera la respuesta a un RESUME
+	private volatile boolean reanudando = false;
+	// intentos de reconexión (uno por segundo) antes de dar la sesión por perdida
+	private static final int INTENTOS_RECONEXION = 10;
+	// true cuando el servidor ha aceptado el protocolo binario (LOGIN_OK|BIN)
+	private volatile boolean protocoloBinario = false;
+	// búfer reutilizable para codificar las tramas binarias que se envían
+	private final TramaBinaria tramaSalida = new TramaBinaria(64);
 
 	// contenedor principal mainPanel
 	private JPanel mainPanel;
 	private JTextField txtUsuario;
 	private JTextArea logArea;
+	// para pedir el protocolo binario compacto en el login
+	private JCheckBox chkProtocoloBinario;
+
+	// marcador de la partida en curso con el protocolo de texto (nombre ->
+	// puntos). Se rellena con las instantáneas (INICIO_PARTIDA, NUEVA_RONDA) y
+	// cada RONDA solo cambia al jugador que ha puntuado. Solo se usa en el EDT
+	private final Map<String, Integer> marcador = new LinkedHashMap<>();
 
 	// para elegir numero de jugadores por partida
 	private JComboBox<Integer> numJugadoresSelector;
+	// para elegir el orden del mazo (símbolos por carta = orden + 1)
+	private JComboBox<Integer> ordenMazoSelector;
 
 	// Estados de la interfaz para saber qué pantalla mostrar
 	private static final String VISTA_LOGIN = "Login";
@@ -106,6 +132,8 @@ public class DobbleClient extends JFrame {
 		panel.add(txtUsuario);
 		JButton btnConectar = new JButton("Conectar");
 		panel.add(btnConectar);
+		chkProtocoloBinario = new JCheckBox("Protocolo binario");
+		panel.add(chkProtocoloBinario);
 
 		// Acción para solicitar conectarse al logearse
 		btnConectar.addActionListener(e -> intentarConexion());
@@ -115,7 +143,7 @@ public class DobbleClient extends JFrame {
 
 	// Pre: Ninguna.
 	// Post: Retorna un JPanel que contiene el selector del número de jugadores, el
-	// botón "Unirse a Partida" (envía JUGAR|N), "Ver Historial" (envía HISTORIAL) y
+	// del orden del mazo, el botón "Unirse a Partida" (envía JUGAR|N|orden), "Ver Historial" (envía HISTORIAL) y
 	// "Desconectar" (envía DESCONECTAR y sale del sistema), todos con sus Listeners
 	// asociados.
 	private JPanel crearVistaMenu() {
@@ -133,6 +161,13 @@ public class DobbleClient extends JFrame {
 		numJugadoresSelector.setSelectedIndex(0);
 		panelJugar.add(numJugadoresSelector);
 
+		// Selector del orden del mazo (el 7 es el mazo clásico de 57 cartas)
+		panelJugar.add(new JLabel("Orden del mazo:"));
+		Integer[] ordenesOpciones = { 2, 3, 5, 7, 11, 13 };
+		ordenMazoSelector = new JComboBox<>(ordenesOpciones);
+		ordenMazoSelector.setSelectedItem(7);
+		panelJugar.add(ordenMazoSelector);
+
 		JButton btnJugar = new JButton("Unirse a Partida");
 		panelJugar.add(btnJugar);
 
@@ -150,10 +185,11 @@ public class DobbleClient extends JFrame {
 		// Fila 4: Botón Desconectar
 		panel.add(btnDesconectar);
 
-		// Acción para solicitar jugar (usa el selector)
+		// Acción para solicitar jugar (usa los selectores)
 		btnJugar.addActionListener(e -> {
 			int numJugadores = (Integer) numJugadoresSelector.getSelectedItem();
-			enviarComando("JUGAR|" + numJugadores);
+			int ordenMazo = (Integer) ordenMazoSelector.getSelectedItem();
+			enviarComando("JUGAR|" + numJugadores + "|" + ordenMazo);
 		});
 
 		btnDesconectar.addActionListener(e -> {
@@ -268,31 +304,42 @@ public class DobbleClient extends JFrame {
 	// Pre: 'panel' es un contenedor de carta (panelCartaCentral o
 	// panelCartaJugador) y 'simbolosStr' es una cadena de símbolos separados por
 	// comas.
+	// Post: Se dibuja la carta con 'dibujarCarta(JPanel, int[])'. Los símbolos
+	// que no son números se ignoran.
+	private void dibujarCarta(JPanel panel, String simbolosStr) {
+		// Convierte la cadena "1,2,3" en un array de Strings
+		String[] partes = simbolosStr.split(",");
+		int[] simbolos = new int[partes.length];
+		int n = 0;
+		for (String simbolo : partes) {
+			if (simbolo.isEmpty())
+				continue;
+			try {
+				simbolos[n++] = Integer.parseInt(simbolo.trim());
+			} catch (NumberFormatException e) {
+				n--;
+			}
+		}
+		dibujarCarta(panel, Arrays.copyOf(simbolos, n));
+	}
+
+	// Pre: 'panel' es un contenedor de carta (panelCartaCentral o
+	// panelCartaJugador) y 'simbolos' son los símbolos de la carta.
 	// Post: Se eliminan todos los componentes del 'panel', y se añaden nuevos
 	// JButtons, uno por cada símbolo. Cada botón está configurado para enviar el
-	// comando "INTENTO|Simbolo" al servidor al ser pulsado. El panel se repinta.
-	private void dibujarCarta(JPanel panel, String simbolosStr) {
+	// intento de ese símbolo al servidor al ser pulsado. El panel se repinta.
+	private void dibujarCarta(JPanel panel, int[] simbolos) {
 		// limpia el panel antes de añadir nuevos botones
 		panel.removeAll();
 
-		// Convierte la cadena "1,2,3" en un array de Strings
-		String[] simbolos = simbolosStr.split(",");
-
 		// Crea un botón por cada símbolo
-		for (String simbolo : simbolos) {
-			if (simbolo.isEmpty())
-				continue;
-
-			JButton btnSimbolo = new JButton(simbolo);
+		for (int simbolo : simbolos) {
+			JButton btnSimbolo = new JButton(String.valueOf(simbolo));
 			// Tamaño para los botones
 			btnSimbolo.setPreferredSize(new Dimension(80, 80));
 
 			// acción de enviar el INTENTO al servidor
-			btnSimbolo.addActionListener(e -> {
-				// El comando va a ser INTENTO|SIMBOLO (ej: INTENTO|2)
-				enviarComando("INTENTO|" + simbolo);
-				// se envía el intento al servidor
-			});
+			btnSimbolo.addActionListener(e -> enviarIntento(simbolo));
 
 			panel.add(btnSimbolo);
 		}
@@ -304,20 +351,49 @@ public class DobbleClient extends JFrame {
 
 	// Pre: 'puntuacionesStr' es una cadena de texto en formato serializado
 	// "nombre1:puntos1,nombre2:puntos2,...".
-	// Post: El área de texto 'txtPuntuaciones' es actualizada con una
-	// representación legible y formateada de las puntuaciones de los jugadores.
+	// Post: El 'marcador' se sustituye por las puntuaciones recibidas y el área
+	// de texto 'txtPuntuaciones' es actualizada con una representación legible y
+	// formateada de las puntuaciones de los jugadores.
 	private void actualizarPuntuaciones(String puntuacionesStr) {
 		// puntuacionesStr "juanlu:1,juan:0"
-		StringBuilder sb = new StringBuilder();
-		sb.append("--------------------\n");
+		marcador.clear();
 
 		// Divide por coma y luego por dos puntos
 		for (String par : puntuacionesStr.split(",")) {
 			String[] datos = par.split(":");
 			if (datos.length == 2) {
-				sb.append(String.format("%-10s: %s\n", datos[0], datos[1]));
+				try {
+					marcador.put(datos[0], Integer.parseInt(datos[1]));
+				} catch (NumberFormatException e) {
+					// se ignora el par mal formado
+				}
 			}
 		}
+		mostrarMarcador();
+	}
+
+	// Pre: 'marcador' contiene las puntuaciones de la partida en curso.
+	// Post: El área de texto 'txtPuntuaciones' muestra el 'marcador'.
+	private void mostrarMarcador() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("--------------------\n");
+		for (Map.Entry<String, Integer> par : marcador.entrySet()) {
+			sb.append(String.format("%-10s: %s\n", par.getKey(), par.getValue()));
+		}
+		sb.append("--------------------\n");
+
+		txtPuntuaciones.setText(sb.toString());
+	}
+
+	// Pre: 'nombres' y 'puntos' tienen una posición por asiento de la partida.
+	// Post: Igual que 'actualizarPuntuaciones(String)', pero a partir del marcador
+	// por asientos del protocolo binario.
+	private void actualizarPuntuaciones(String[] nombres, int[] puntos) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("--------------------\n");
+		for (int i = 0; i < nombres.length && i < puntos.length; i++) {
+			sb.append(String.format("%-10s: %s\n", nombres[i], puntos[i]));
+		}
 		sb.append("--------------------\n");
 
 		txtPuntuaciones.setText(sb.toString());
@@ -340,11 +416,14 @@ public class DobbleClient extends JFrame {
 
 		try {
 			socket = new Socket(SERVER_IP, PUERTO);
-			out = new PrintWriter(socket.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			out = new BufferedOutputStream(socket.getOutputStream());
+			in = new BufferedInputStream(socket.getInputStream());
 
-			// envía el nombre de usuario al servidor
-			out.println(usuario);
+			// envía el nombre de usuario al servidor (con el sufijo que pide el protocolo
+			// binario si está marcado)
+			pideBinario = chkProtocoloBinario.isSelected();
+			String login = pideBinario ? usuario + ProtocoloBinario.SUFIJO_LOGIN : usuario;
+			escribirLinea(login);
 
 			// inicia el hilo de escucha para recibir respuestas del servidor
 			// se hace en el hilo secundario al crear ClienteHiloEscucha, para que no se
@@ -357,14 +436,141 @@ public class DobbleClient extends JFrame {
 		}
 	}
 
+	// Pre: Se llama desde ClienteHiloEscucha cuando se cierra la conexión con el
+	// servidor.
+	// Post: Si hay una sesión iniciada, se intenta reanudarla en un hilo aparte:
+	// hasta INTENTOS_RECONEXION veces, una por segundo, se abre una conexión nueva
+	// y se envía "RESUME|token" (con el sufijo binario si se usaba), que el
+	// servidor responde con RESUME_OK y el estado de la partida. Si no hay sesión
+	// o no se consigue reconectar, se avisa en el log.
+	public void conexionPerdida() {
+		String token = tokenSesion;
+		if (token == null) {
+			SwingUtilities.invokeLater(() -> logArea.append("[CONEXIÓN] Conexión con el servidor perdida.\n"));
+			return;
+		}
+		Thread reconexion = new Thread(() -> {
+			for (int intento = 1; intento <= INTENTOS_RECONEXION; intento++) {
+				try {
+					Thread.sleep(1000);
+					Socket nuevo = new Socket(SERVER_IP, PUERTO);
+					socket = nuevo;
+					in = new BufferedInputStream(nuevo.getInputStream());
+					// la petición y su respuesta van en texto, igual que el login
+					protocoloBinario = false;
+					reanudando = true;
+					out = new BufferedOutputStream(nuevo.getOutputStream());
+					escribirLinea("RESUME|" + token + (pideBinario ? ProtocoloBinario.SUFIJO_LOGIN : ""));
+					new Thread(new ClienteHiloEscucha(this, in)).start();
+					return;
+				} catch (IOException e) {
+					int n = intento;
+					SwingUtilities.invokeLater(
+							() -> logArea.append("[CONEXIÓN] Reintentando conexión (" + n + ")...\n"));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			SwingUtilities.invokeLater(() -> logArea.append("[CONEXIÓN] No se pudo recuperar la conexión.\n"));
+		}, "dobble-reconexion");
+		reconexion.setDaemon(true);
+		reconexion.start();
+	}
+
 	// Pre: 'comando' es una cadena de texto que sigue el protocolo del servidor
 	// (ej: JUGAR|3, INTENTO|15).
 	// Post: Si el stream 'out' está inicializado (hay conexión), el 'comando' se
-	// envía al servidor para su procesamiento.
+	// envía al servidor para su procesamiento (como línea de texto o dentro de una
+	// trama OP_TEXTO si se usa el protocolo binario).
 	public void enviarComando(String comando) {
-		if (out != null) {
-			out.println(comando);
+		if (out == null) {
+			return;
 		}
+		try {
+			if (protocoloBinario) {
+				ProtocoloBinario.codificarTexto(tramaSalida, comando);
+				escribirTramaSalida();
+			} else {
+				escribirLinea(comando);
+			}
+		} catch (IOException e) {
+			logArea.append("ERROR: No se pudo enviar el comando al servidor.\n");
+		}
+	}
+
+	// Pre: 'simbolo' es el símbolo pulsado en una carta.
+	// Post: Se envía el intento al servidor: "INTENTO|simbolo" en texto o una trama
+	// OP_INTENTO en binario.
+	private void enviarIntento(int simbolo) {
+		if (!protocoloBinario) {
+			// El comando va a ser INTENTO|SIMBOLO (ej: INTENTO|2)
+			enviarComando("INTENTO|" + simbolo);
+			return;
+		}
+		try {
+			ProtocoloBinario.codificarIntento(tramaSalida, simbolo);
+			escribirTramaSalida();
+		} catch (IOException e) {
+			logArea.append("ERROR: No se pudo enviar el intento al servidor.\n");
+		}
+	}
+
+	// Pre: 'linea' es una línea del protocolo de texto y 'out' está inicializado.
+	// Post: La línea se envía en UTF-8 seguida de un salto de línea.
+	private void escribirLinea(String linea) throws IOException {
+		out.write(linea.getBytes(StandardCharsets.UTF_8));
+		out.write('\n');
+		out.flush();
+	}
+
+	// Pre: 'tramaSalida' contiene una trama terminada y 'out' está inicializado.
+	// Post: La trama se envía al servidor.
+	private void escribirTramaSalida() throws IOException {
+		int inicio = tramaSalida.getInicio();
+		out.write(tramaSalida.getDatos(), inicio, tramaSalida.getFin() - inicio);
+		out.flush();
+	}
+
+	// Pre: Se llama desde ClienteHiloEscucha al recibir "LOGIN_OK|BIN|token" o
+	// "RESUME_OK|BIN|...".
+	// Post: A partir de ahora los comandos se envían como tramas binarias.
+	public void activarProtocoloBinario() {
+		protocoloBinario = true;
+	}
+
+	// Pre: Se llama desde ClienteHiloEscucha con una trama OP_INICIO_PARTIDA u
+	// OP_NUEVA_RONDA ya decodificada. Los arrays son copias propias.
+	// Post: En el EDT se muestran las cartas y el marcador, igual que con
+	// "INICIO_PARTIDA|..." / "NUEVA_RONDA|..." en el protocolo de texto.
+	public void procesarRonda(boolean inicio, int[] cartaJugador, int[] cartaCentral, String[] nombres,
+			int[] puntos) {
+		SwingUtilities.invokeLater(() -> {
+			logArea.append("[JUEGO] Nueva Ronda Iniciada!\n");
+			if (inicio) {
+				cardLayout.show(mainPanel, VISTA_JUEGO);
+			}
+			dibujarCarta(panelCartaJugador, cartaJugador);
+			dibujarCarta(panelCartaCentral, cartaCentral);
+			actualizarPuntuaciones(nombres, puntos);
+		});
+	}
+
+	// Pre: Se llama desde ClienteHiloEscucha con una trama OP_RONDA ya
+	// decodificada. 'cartaJugador' es la nueva mano o 'null' si no ha cambiado.
+	// Los arrays son copias propias.
+	// Post: En el EDT se anuncia el ganador de la ronda, se dibuja la nueva carta
+	// central (y la mano, si ha cambiado) y se actualiza el marcador, igual que
+	// con "RONDA|..." en el protocolo de texto.
+	public void procesarAvanceRonda(String ganador, int[] cartaCentral, int[] cartaJugador, String[] nombres,
+			int[] puntos) {
+		SwingUtilities.invokeLater(() -> {
+			logArea.append(">>>>> ¡" + ganador.toUpperCase() + " GANA LA RONDA! <<<<<\n");
+			dibujarCarta(panelCartaCentral, cartaCentral);
+			if (cartaJugador != null) {
+				dibujarCarta(panelCartaJugador, cartaJugador);
+			}
+			actualizarPuntuaciones(nombres, puntos);
+		});
 	}
 
 	// Pre: 'respuesta' es una cadena de texto recibida del servidor, siguiendo el
@@ -380,10 +586,29 @@ public class DobbleClient extends JFrame {
 
 			switch (accion) {
 			case "LOGIN_OK":
+				// LOGIN_OK|token o LOGIN_OK|BIN|token
+				if (partes.length >= 2) {
+					tokenSesion = partes[partes.length - 1];
+				}
 				cardLayout.show(mainPanel, VISTA_MENU);
 				setTitle("Dobble Online - " + txtUsuario.getText());
 				break;
+			case "RESUME_OK":
+				// RESUME_OK|nombre|estado o RESUME_OK|BIN|nombre|estado. Si está en una
+				// partida, a continuación llega su estado completo (INICIO_PARTIDA)
+				reanudando = false;
+				logArea.append("[CONEXIÓN] Sesión reanudada.\n");
+				cardLayout.show(mainPanel, partes[partes.length - 1].equals("PARTIDA") ? VISTA_JUEGO : VISTA_MENU);
+				break;
 			case "ERROR":
+				if (reanudando) {
+					// la sesión ha caducado: hay que volver a iniciar sesión
+					reanudando = false;
+					tokenSesion = null;
+					logArea.append("[CONEXIÓN] " + partes[1] + "\n");
+					cardLayout.show(mainPanel, VISTA_LOGIN);
+					break;
+				}
 				// muestra el mensaje de error y espera a que el usuario introduzca uno nuevo
 				JOptionPane.showMessageDialog(DobbleClient.this, partes[1], "Error de Login",
 						JOptionPane.ERROR_MESSAGE);
@@ -419,10 +644,30 @@ public class DobbleClient extends JFrame {
 				actualizarPuntuaciones(puntuacionesStr);
 
 				break;
-			case "PUNTO":
-				// PUNTO|ganador|puntuacion_ganador|puntuaciones_totales
+			case "RONDA":
+				// RONDA|ganador|puntuacion_ganador|carta_central[|carta_jugador]
+				// (la carta del jugador solo llega si ha cambiado, es decir, si ha ganado él)
+				if (partes.length < 4) {
+					logArea.append("ERROR: Datos de ronda incompletos.\n");
+					return;
+				}
+				if (!marcador.containsKey(partes[1])) {
+					// no se conoce la partida: se pide una instantánea completa
+					enviarComando("RESYNC");
+					return;
+				}
 				logArea.append(">>>>> ¡" + partes[1].toUpperCase() + " GANA LA RONDA! <<<<<\n");
-				actualizarPuntuaciones(partes[3]);
+				dibujarCarta(panelCartaCentral, partes[3]);
+				if (partes.length >= 5) {
+					dibujarCarta(panelCartaJugador, partes[4]);
+				}
+				try {
+					marcador.put(partes[1], Integer.parseInt(partes[2]));
+				} catch (NumberFormatException e) {
+					enviarComando("RESYNC");
+					return;
+				}
+				mostrarMarcador();
 				break;
 			case "ERROR_JUEGO":
 				logArea.append("[ERROR JUEGO] " + partes[1] + "\n");
@@ -469,10 +714,17 @@ public class DobbleClient extends JFrame {
 				} else {
 					// Separamos cada resumen de partida ('###')
 					String[] partidas = datosHistorial.split("###");
+					// el servidor envía una página de las partidas más recientes, con el
+					// total y el número de la primera: "HISTORIAL|datos|total|desde"
+					int primera = partes.length >= 4 ? Integer.parseInt(partes[3]) : 0;
 
 					StringBuilder sb = new StringBuilder();
+					if (partes.length >= 4) {
+						sb.append("Partidas ").append(primera + 1).append(" a ").append(primera + partidas.length)
+								.append(" de ").append(partes[2]).append("\n\n");
+					}
 					for (int i = 0; i < partidas.length; i++) {
-						sb.append("--- PARTIDA ").append(i + 1).append(" ---\n");
+						sb.append("--- PARTIDA ").append(primera + i + 1).append(" ---\n");
 
 						String resumenCompleto = partidas[i].trim();
 
@@ -498,6 +750,9 @@ public class DobbleClient extends JFrame {
 				} else {
 					// El formato es "nombre1:victorias1,nombre2:victorias2,..."
 					String[] rankingJugadores = datosRanking.split(",");
+					// el servidor envía una página del ranking con el total de jugadores y la
+					// posición de la primera: "RANKING|datos|total|desde"
+					int primeraPosicion = partes.length >= 4 ? Integer.parseInt(partes[3]) : 0;
 					StringBuilder sb = new StringBuilder();
 
 					sb.append("---------------------------------\n");
@@ -509,13 +764,21 @@ public class DobbleClient extends JFrame {
 						if (datos.length == 2) {
 							String nombre = datos[0];
 							String victorias = datos[1];
-							sb.append(String.format("%-4d %-20s %s\n", (i + 1), nombre, victorias));
+							sb.append(String.format("%-4d %-20s %s\n", (primeraPosicion + i + 1), nombre, victorias));
 						}
 					}
 					sb.append("---------------------------------\n");
+					if (partes.length >= 4) {
+						sb.append("Jugadores en el ranking: ").append(partes[2]).append("\n");
+					}
 					txtRanking.setText(sb.toString());
 				}
 				break;
+			case "PING":
+				// latido del servidor, que cierra las conexiones que no responden. Se
+				// contesta desde el EDT, como el resto de comandos
+				enviarComando("PONG");
+				break;
 			default:
 				logArea.append("[SERVIDOR] Respuesta: " + respuesta + "\n");
 				break;
@@ -1,8 +1,8 @@
 package JuegoDobble;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /* Contiene las reglas del Dobble
    - Genera el mazo de cartas
@@ -12,135 +12,118 @@ import java.util.List;
 
 public class DobbleLogic {
 
+	// valor de carta que indica que no hay carta (mazo agotado). Las cartas
+	// reales son índices del mazo, de 0 en adelante
+	public static final int SIN_CARTA = -1;
+
 	/*
-	 * mazo/baraja completa, lista de listas. Lista externa de 57 cartas y cada
-	 * lista interna tiene 8 números de esa carta.
+	 * mazo/baraja completa, compartida por todas las partidas que usan el mismo
+	 * orden. Tabla inmutable generada una sola vez por JVM (57 cartas de 8
+	 * números con el orden 7 clásico).
 	 */
-	private List<List<Integer>> mazo;
-	// constante fija para la baraja
-	private static final int ORDEN = 7;
-	// constante fija para el tamaño de cada lista interna (números).
-	private static final int SIMBOLOS_POR_CARTA = ORDEN + 1;
-	// número total de cartas = tamaño del mazo y rango de números.
-	// 57 cartas y 57 números (del 1 al 57)
-	private static final int NUMERO_TOTAL_SIMBOLOS = ORDEN * ORDEN + ORDEN + 1;
-
-	// Pre: Ninguna. Las constantes ORDEN, SIMBOLOS_POR_CARTA y
-	// NUMERO_TOTAL_SIMBOLOS son correctas (7, 8 y 57, respectivamente).
-	// Post: La estructura 'this.mazo' es inicializada con 57 cartas válidas,
-	// generadas según el Plano Proyectivo. La lista 'mazo' es barajeada
-	// aleatoriamente.
+	private final MazoDobble mazo;
+	// permutación de índices de carta de esta partida. Las posiciones
+	// [0, siguienteCarta) son las cartas ya repartidas; el resto se baraja poco a
+	// poco, al repartir (Fisher-Yates perezoso)
+	private final int[] orden;
+	// posición en 'orden' de la siguiente carta a repartir
+	private int siguienteCarta = 0;
+	// semilla del barajado y estado actual del generador (SplitMix64). El
+	// generador es propio y no el de la JDK para que una semilla dé el mismo
+	// reparto en cualquier versión de Java, ya que las partidas se reproducen a
+	// partir de ella (ver ReproductorPartidas)
+	private final long semilla;
+	private long estadoAleatorio;
+
+	// Pre: Ninguna.
+	// Post: Igual que DobbleLogic(MazoDobble.ESTANDAR, semilla) con una semilla al
+	// azar (se puede consultar con 'getSemilla()').
 	public DobbleLogic() {
-		// genera el mazo
-		this.mazo = generarMazoDobble();
-		// barajea el mazo de forma aleatoria después de crearlo.
-		Collections.shuffle(this.mazo);
-
-		System.out.println(
-				"Mazo Dobble generado. Cartas: " + this.mazo.size() + ", Símbolos por carta: " + SIMBOLOS_POR_CARTA);
+		this(MazoDobble.ESTANDAR, ThreadLocalRandom.current().nextLong());
 	}
 
-	// Pre: Las constantes ORDEN (7) y NUMERO_TOTAL_SIMBOLOS (57) son válidas.
-	// Post: Retorna una lista de List<Integer> ('mazoGenerado') que contiene un
-	// total de 57 cartas (49 + 7 + 1). Se garantiza que cada carta contiene 8
-	// símbolos y que cada par de cartas tiene exactamente un símbolo en común.
-	public List<List<Integer>> generarMazoDobble() {
-		// Genera el mazo Dobble basado en el Plano Proyectivo de Orden 7.
-		// crea la lista con tamaño 57, para las 57 cartas
-		List<List<Integer>> mazoGenerado = new ArrayList<>(NUMERO_TOTAL_SIMBOLOS);
-		// El método divide las 57 cartas en tres grupos principales (49 líneas finitas,
-		// 7 líneas verticales y 1 línea especial)
-
-		// 1. Grupo
-		// cartas de pendientes finitas (49 cartas)
-		// estas 49 cartas representan las líneas de la forma y=m*x+k (mod 7)
-		for (int m = 0; m < ORDEN; m++) {// m va de [0,...,6], m la pendiente
-			// Luego simboloPendiente va a tener valores del [50..56]
-			int simboloPendiente = NUMERO_TOTAL_SIMBOLOS - ORDEN + m;
-
-			for (int k = 0; k < ORDEN; k++) { // k va de [0..6], k el desplazamiento
-				// crea la lista de tamaño 8, de los 8 números distintos que tendrá cada carta
-				List<Integer> carta = new ArrayList<>(SIMBOLOS_POR_CARTA);
-				carta.add(simboloPendiente); // el símbolo representa la pendiente m
-				// va a ver 7 primeras cartas con el símbolo 50 en común, las 7 siguientes con
-				// el 51
-				// y así hasta la carta 43 a la 49 que tendrán en común el 56
-				for (int x = 0; x < ORDEN; x++) { // x va de [0..6]
-					int y = (m * x + k) % ORDEN; // saco coordenada y
-					// Fórmula para mapear las coordenadas(x,y)a un símbolo (del 1 al 49)
-					int simbolo = y * ORDEN + x + 1;
-					carta.add(simbolo);
-				}
-
-				mazoGenerado.add(carta); // Añade 49 cartas (7 pendientes(m) * 7 desplazamientos(k))
-			}
+	// Pre: 'mazo' es un mazo del registro de MazoDobble.
+	// Post: La partida usa ese mazo precalculado (generado según el Plano
+	// Proyectivo) y una permutación propia de sus índices, que se baraja con
+	// 'semilla': la misma semilla reparte siempre las cartas en el mismo orden. El
+	// barajado se hace carta a carta en 'repartirCarta()', por lo que crear la
+	// lógica de una partida no genera ni baraja cartas.
+	public DobbleLogic(MazoDobble mazo, long semilla) {
+		this.mazo = mazo;
+		this.semilla = semilla;
+		this.estadoAleatorio = semilla;
+		this.orden = new int[mazo.getNumeroCartas()];
+		for (int i = 0; i < orden.length; i++) {
+			orden[i] = i;
 		}
+	}
 
-		// 2. Grupo
-		// cartas de pendientes infinitas (7 cartas)
-		// estas 7 cartas representan las líneas verticales de la forma x=k
-		for (int k = 0; k < ORDEN; k++) { // k va de [0..6], k = la posición vertical de la línea
+	// Pre: Ninguna.
+	// Post: Retorna el mazo que usa esta partida.
+	public MazoDobble getMazo() {
+		return mazo;
+	}
 
-			List<Integer> carta = new ArrayList<>(SIMBOLOS_POR_CARTA);
-			carta.add(NUMERO_TOTAL_SIMBOLOS); // Símbolo 57 (Infinito)
+	// Pre: Ninguna.
+	// Post: Retorna la semilla con la que se baraja el mazo.
+	public long getSemilla() {
+		return semilla;
+	}
 
-			for (int y = 0; y < ORDEN; y++) { // y va de [0..6], y = coordenada
-				// x es constante (línea vertical)
-				int x = k;
-				int simbolo = y * ORDEN + x + 1; // Símbolos 1..49
-				carta.add(simbolo);
+	// Pre: Ninguna.
+	// Post: Retorna una lista nueva de List<Integer> ('mazoGenerado') con todas
+	// las cartas del mazo (57 = 49 + 7 + 1 con el orden 7), copiadas del mazo
+	// precalculado y en el orden del Plano Proyectivo. Se garantiza que cada par
+	// de cartas tiene exactamente un símbolo en común.
+	public List<List<Integer>> generarMazoDobble() {
+		List<List<Integer>> mazoGenerado = new ArrayList<>(mazo.getNumeroCartas());
+		for (int c = 0; c < mazo.getNumeroCartas(); c++) {
+			List<Integer> carta = new ArrayList<>(mazo.getSimbolosPorCarta());
+			for (int s = 0; s < mazo.getSimbolosPorCarta(); s++) {
+				carta.add(mazo.getSimbolo(c, s));
 			}
-
-			mazoGenerado.add(carta); // Añade 7 cartas, todas comparten el símbolo 57
-										// (el 57 es el punto en el infinito de las líneas verticales)
-		}
-
-		// 3. Grupo
-		// carta final faltante (1 carta)
-		// Esta única carta recoge los 7 símbolos de pendiente (50 a 56) y el Símbolo
-		// Infinito (57).
-		// Esta es la carta que garantiza la coincidencia con las 7 cartas de pendiente
-		// infinita.
-		List<Integer> cartaFinal = new ArrayList<>(SIMBOLOS_POR_CARTA);
-		cartaFinal.add(NUMERO_TOTAL_SIMBOLOS); // Símbolo 57 (Infinito)
-
-		// Símbolos 50 a 56
-		for (int m = 0; m < ORDEN; m++) {
-			int simboloPendiente = NUMERO_TOTAL_SIMBOLOS - ORDEN + m;
-			cartaFinal.add(simboloPendiente);
+			mazoGenerado.add(carta);
 		}
-		mazoGenerado.add(cartaFinal); // Añade 1 carta
-
-		// en total (49 + 7 + 1 = 57)
-
 		return mazoGenerado;
 	}
 
-	// Pre: La lista 'mazo' está inicializada y contiene las cartas restantes.
-	// Post: Si 'mazo' no está vacío, la primera carta es eliminada del mazo y
-	// retornada. Si el mazo está vacío, retorna 'null'.
-	public List<Integer> repartirCarta() {
-		if (!mazo.isEmpty()) {
-			return mazo.remove(0);
+	// Pre: La permutación 'orden' está inicializada.
+	// Post: Si quedan cartas, se elige al azar (según la semilla) una de las no
+	// repartidas (paso de Fisher-Yates), se marca como repartida y se retorna su
+	// índice en el mazo. Si el mazo está agotado, retorna SIN_CARTA.
+	public int repartirCarta() {
+		if (siguienteCarta >= orden.length) {
+			return SIN_CARTA;
 		}
-		return null;
+		int elegida = siguienteCarta + aleatorio(orden.length - siguienteCarta);
+		int carta = orden[elegida];
+		orden[elegida] = orden[siguienteCarta];
+		orden[siguienteCarta] = carta;
+		siguienteCarta++;
+		return carta;
+	}
+
+	// Pre: 0 < 'limite' <= 2^31 - 1.
+	// Post: Avanza el generador SplitMix64 y retorna un entero en [0, limite)
+	// (multiplicando los 32 bits altos por el límite, sin divisiones).
+	private int aleatorio(int limite) {
+		long z = (estadoAleatorio += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z ^= z >>> 31;
+		return (int) (((z >>> 32) * limite) >>> 32);
 	}
 
 	// Pre: 'simbolo' es el ID numérico del símbolo intentado. 'cartaJugador' y
-	// 'cartaCentral' son List<Integer> representando los símbolos de las cartas
-	// actuales.
-	// Post: Retorna 'true' si el 'simbolo' está presente tanto en 'cartaJugador'
-	// como en 'cartaCentral' (coincidencia válida). Retorna 'false' en cualquier
-	// otro caso (no hay coincidencia o alguna carta es nula).
-	public boolean esCoincidenciaValida(int simbolo, List<Integer> cartaJugador, List<Integer> cartaCentral) {
-		if (cartaJugador == null || cartaCentral == null) {
+	// 'cartaCentral' son los índices de las cartas actuales (distintas).
+	// Post: Retorna 'true' si el 'simbolo' es el que comparten 'cartaJugador' y
+	// 'cartaCentral' (coincidencia válida): una sola consulta a la tabla de
+	// símbolos comunes del mazo. Retorna 'false' en cualquier otro caso (no hay
+	// coincidencia o falta alguna carta).
+	public boolean esCoincidenciaValida(int simbolo, int cartaJugador, int cartaCentral) {
+		if (cartaJugador == SIN_CARTA || cartaCentral == SIN_CARTA) {
 			return false;
 		}
-
-		// El símbolo debe existir en la carta del jugador y en la carta central
-		boolean enJugador = cartaJugador.contains(simbolo);
-		boolean enCentral = cartaCentral.contains(simbolo);
-
-		return enJugador && enCentral;
+		return mazo.getSimboloComun(cartaJugador, cartaCentral) == simbolo;
 	}
-}
\ No newline at end of file
+}
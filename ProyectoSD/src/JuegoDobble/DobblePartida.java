@@ -3,20 +3,65 @@ package JuegoDobble;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
 /*
 Representa una partida activa de Dobble. 
 Gestiona el estado del juego, las cartas y las puntuaciones.
+Todo cambio de estado pasa por el buzón de la partida (ver BuzonPartida):
+los hilos de los jugadores solo depositan órdenes y estas se ejecutan de
+una en una, por lo que el estado no necesita cerrojos ni colecciones
+concurrentes.
 */
 public class DobblePartida {
 
-	// Lista de jugadores (hilos) en esta partida
-	private List<ClienteGestorHilos> jugadores;
+	// estados de la partida
+	// creada y registrada en el coordinador, aún sin repartir las cartas
+	public static final int ESTADO_ESPERANDO = 0;
+	// cartas repartidas, se está jugando
+	public static final int ESTADO_EN_CURSO = 1;
+	// terminada y dada de baja en el coordinador; ignora cualquier orden nueva
+	public static final int ESTADO_TERMINADA = 2;
+
+	// resultado de los intentos de todas las partidas (ver Metricas)
+	private static final LongAdder intentosAcertados = Metricas
+			.contador("dobble_intentos_total{resultado=\"acierto\"}", "Intentos por resultado.");
+	private static final LongAdder intentosFallados = Metricas
+			.contador("dobble_intentos_total{resultado=\"fallo\"}", "Intentos por resultado.");
+	// llegan cuando la partida ya ha terminado
+	private static final LongAdder intentosTardios = Metricas
+			.contador("dobble_intentos_total{resultado=\"tarde\"}", "Intentos por resultado.");
+	// respuestas fijas a los intentos y resincronizaciones rechazados, codificadas
+	// una sola vez (ver MensajeCodificado)
+	private static final MensajeCodificado ERROR_NO_COINCIDE = MensajeCodificado
+			.deTexto("ERROR_JUEGO|Ese símbolo no es la coincidencia. ¡Inténtalo de nuevo!");
+	private static final MensajeCodificado ERROR_TERMINADA = MensajeCodificado
+			.deTexto("ERROR_JUEGO|La partida ha terminado. Esperando a ser redirigido.");
+	private static final MensajeCodificado ERROR_SIN_RONDA = MensajeCodificado
+			.deTexto("ERROR_JUEGO|No hay ninguna ronda en curso que sincronizar.");
+	private static final MensajeCodificado ERROR_SIN_PARTIDA = MensajeCodificado
+			.deTexto("ERROR|No estás en una partida activa.");
+
+	// identificador de la partida, único en el servidor (ver CoordinadorPartida)
+	private final long id;
+	// semilla del barajado: con ella y los eventos se puede reproducir la partida
+	private final long semilla;
+	// intentos y abandonos de la partida, para el diario de eventos (solo se usa
+	// desde el buzón)
+	private final EventosPartida eventos;
+	// estado actual. Solo lo cambia el buzón; es volatile para poder consultarlo
+	// desde otros hilos
+	private volatile int estado = ESTADO_ESPERANDO;
+
+	// Lista de jugadores en esta partida (en el servidor, sus hilos)
+	private List<? extends CanalJugador> jugadores;
+	// adonde van las victorias y, al terminar, el resumen y la baja de la partida
+	private final DestinoRanking ranking;
+	private final DestinoPartidas destino;
 
 	// Almacena las puntuaciones de cada jugador: Nombre con su puntuación
 	private Map<String, Integer> puntuaciones;
@@ -24,12 +69,13 @@ public class DobblePartida {
 	// Instancia de la lógica para repartir cartas y validar coincidencias
 	private DobbleLogic logica;
 
-	// La carta que está en el centro de la mesa
-	private List<Integer> cartaCentral;
+	// La carta que está en el centro de la mesa, como índice en el mazo (ver
+	// DobbleLogic). Vale DobbleLogic.SIN_CARTA cuando el mazo se ha agotado
+	private int cartaCentral = DobbleLogic.SIN_CARTA;
 
-	// Almacena la carta que cada jugador tiene en su mano en la ronda actual
-	// Esta carta, está mapeada por el nombre de usuario
-	private Map<String, List<Integer>> cartasJugadores;
+	// Almacena la carta (índice en el mazo) que cada jugador tiene en su mano en
+	// la ronda actual, indexada por asiento (posición en 'jugadores')
+	private int[] cartasJugadores;
 
 	// Rastrea si un jugador sigue activo o ha abandonado
 	private Map<String, Boolean> jugadoresActivos;
@@ -37,118 +83,266 @@ public class DobblePartida {
 	// primero)
 	private List<String> perdedoresPartida;
 
-	// Pre: 'jugadores' es una lista de ClienteGestorHilos con N >= 2 jugadores
-	// listos para empezar a jugar.
+	// buzón por el que pasan todas las órdenes que modifican la partida
+	private final BuzonPartida buzon;
+	// búfer donde se codifican los mensajes de la partida antes de copiarlos a un
+	// MensajeCodificado. Solo se usa desde el buzón
+	private final TramaBinaria tramaDifusion = new TramaBinaria(256);
+
+	// Nombres y puntuaciones por asiento (posición en 'jugadores'). Es la forma en
+	// que el protocolo binario envía el marcador, sin repetir los nombres en cada
+	// ronda.
+	private String[] nombresAsiento;
+	private int[] puntosAsiento;
+
+	// Pre: 'id' es un identificador libre en 'destino'. 'jugadores' es una lista
+	// con N >= 2 jugadores listos para empezar a jugar. 'mazo' es el mazo del
+	// registro de MazoDobble con el que se juega (con al menos N+1 cartas) y
+	// 'semilla' la de su barajado. 'ejecutor' es donde se vacía el buzón de la
+	// partida, 'ranking' recibe los ganadores y 'destino' el resumen, los eventos
+	// y la baja de la partida al terminar (en el servidor, el ejecutor de
+	// partidas, el ranking global y el coordinador).
 	// Post: Se inicializan las estructuras de datos (puntuaciones,
-	// jugadoresActivos, perdedoresPartida) y la instancia de DobbleLogic. El estado
-	// 'enPartida' de cada hilo en 'jugadores' se establece a 'true' y su
-	// 'partidaActual' se vincula a esta instancia. Finalmente, se llama a
-	// 'inicializarJuego()' para repartir las cartas iniciales.
-	public DobblePartida(List<ClienteGestorHilos> jugadores) {
+	// jugadoresActivos, perdedoresPartida), la instancia de DobbleLogic barajada
+	// con 'semilla', el registro de eventos y el buzón. La partida queda en
+	// ESTADO_ESPERANDO hasta que se llame a 'iniciar()'.
+	public DobblePartida(long id, List<? extends CanalJugador> jugadores, MazoDobble mazo, long semilla,
+			Executor ejecutor, DestinoRanking ranking, DestinoPartidas destino) {
 		// inicializa variables
+		this.id = id;
+		this.semilla = semilla;
+		this.eventos = new EventosPartida(id, semilla, mazo.getOrden(), jugadores.size());
 		this.jugadores = jugadores;
+		this.ranking = ranking;
+		this.destino = destino;
 		this.puntuaciones = new HashMap<>();
-		this.logica = new DobbleLogic();
-		this.cartasJugadores = new HashMap<>();
-		this.jugadoresActivos = new ConcurrentHashMap<>();
-		this.perdedoresPartida = Collections.synchronizedList(new LinkedList<>());
+		this.logica = new DobbleLogic(mazo, semilla);
+		this.cartasJugadores = new int[jugadores.size()];
+		this.jugadoresActivos = new HashMap<>();
+		this.perdedoresPartida = new ArrayList<>();
+		this.buzon = new BuzonPartida(ejecutor);
+		this.nombresAsiento = new String[jugadores.size()];
+		this.puntosAsiento = new int[jugadores.size()];
+		for (int i = 0; i < jugadores.size(); i++) {
+			nombresAsiento[i] = jugadores.get(i).getNombreUsuario();
+		}
+
+		// Por cada jugador (hilo del jugador) inicializa su puntuación
+		for (CanalJugador jugador : jugadores) {
+			puntuaciones.put(jugador.getNombreUsuario(), 0);
+			jugadoresActivos.put(jugador.getNombreUsuario(), true);
+		}
+	}
+
+	// Pre: La partida está registrada en el coordinador y no se ha iniciado.
+	// Post: Se deposita 'inicializarJuego()' como primera orden del buzón, para
+	// repartir las cartas iniciales antes que cualquier intento. Finalmente, el
+	// estado 'enPartida' de cada hilo en 'jugadores' se establece a 'true' y su
+	// 'partidaActual' se vincula a esta instancia.
+	public void iniciar() {
+		// el reparto inicial es la primera orden: un intento que llegue justo después
+		// de vincular a los jugadores siempre se ejecuta detrás
+		buzon.enviar(this::inicializarJuego);
 
-		// Por cada jugador (hilo del jugador) inicializa su puntuación y
 		// marca que no está en la sala de espera, para que el hilo lo sepa
 		// Le pasa al hilo la partida que se juega con this.
-		for (ClienteGestorHilos jugador : jugadores) {
-			puntuaciones.put(jugador.getNombreUsuario(), 0);
+		for (CanalJugador jugador : jugadores) {
 			jugador.setEnPartida(true);
 			jugador.setPartidaActual(this);
-			jugadoresActivos.put(jugador.getNombreUsuario(), true);
 		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el identificador de la partida.
+	public long getId() {
+		return id;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la semilla con la que se baraja el mazo de la partida.
+	public long getSemilla() {
+		return semilla;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el estado de la partida (ESTADO_ESPERANDO, ESTADO_EN_CURSO o
+	// ESTADO_TERMINADA).
+	public int getEstado() {
+		return estado;
+	}
+
+	// Pre: Se llama desde el buzón o cuando ningún otro hilo usa la partida (el
+	// simulador la juega entera en un solo hilo).
+	// Post: Retorna el mazo con el que se juega.
+	MazoDobble getMazo() {
+		return logica.getMazo();
+	}
+
+	// Pre: Igual que 'getMazo()'.
+	// Post: Retorna la carta central (índice en el mazo) o DobbleLogic.SIN_CARTA si
+	// el mazo se ha agotado.
+	int getCartaCentral() {
+		return cartaCentral;
+	}
 
-		inicializarJuego();
+	// Pre: Igual que 'getMazo()'. 0 <= 'asiento' < número de jugadores.
+	// Post: Retorna la carta (índice en el mazo) del jugador de ese asiento.
+	int getCartaJugador(int asiento) {
+		return cartasJugadores[asiento];
 	}
 
-	// Pre: Se llama al inicio de la partida. El mazo de 'logica' debe contener
-	// suficientes cartas (N+1, donde N es el número de jugadores).
+	// Pre: Igual que 'getCartaJugador()'.
+	// Post: Retorna los puntos del jugador de ese asiento.
+	int getPuntos(int asiento) {
+		return puntosAsiento[asiento];
+	}
+
+	// Pre: Se ejecuta en el buzón, al inicio de la partida. El mazo de 'logica'
+	// debe contener suficientes cartas (N+1, donde N es el número de jugadores).
 	// Post: Se extrae una carta para la 'cartaCentral' y una carta para cada
 	// jugador, almacenándolas en 'cartasJugadores'. Se envía el comando
 	// "INICIO_PARTIDA|..." a cada cliente con sus respectivas cartas y
-	// puntuaciones. Si no hay suficientes cartas, se notifica un error y la partida
-	// se cancela.
+	// puntuaciones y la partida pasa a ESTADO_EN_CURSO. Si no hay suficientes
+	// cartas, se notifica un error y la partida se cancela (se finaliza).
 	private void inicializarJuego() {
-		// 1. Asigna la carta central como una lista de números y la quita del mazo con
-		// el método repartirCarta()
-		List<Integer> cartaCentralRepartida = logica.repartirCarta();
+		// 1. Asigna la carta central (su índice en el mazo) y la quita del mazo
+		// con el método repartirCarta()
+		int cartaCentralRepartida = logica.repartirCarta();
 
 		// por si el mazo está vacío, lo gestiona
-		if (cartaCentralRepartida == null) {
+		if (cartaCentralRepartida == DobbleLogic.SIN_CARTA) {
 			notificarATodos("ERROR|Fallo al iniciar partida: Mazo vacío (Necesita al menos 3 cartas).");
+			finalizar();
 			return;
 		}
 
 		// asigna la carta central a la variable que le corresponde de la clase
-		// serializa la carta central, para tenerla también como una String,
-		// en esa Cadena, van a ir los números de la lista separados por comas:
-		// tipo esto "1,45,22,33,43,21,5,9"
 		this.cartaCentral = cartaCentralRepartida;
-		String cartaCentralSerializada = serializarCarta(cartaCentral);
+		// el marcador inicial es el mismo para todos: se serializa una sola vez
+		String puntuacionesIniciales = null;
 
 		// 2. Asigna/reparte una carta a cada jugador
-		for (ClienteGestorHilos jugador : jugadores) {
-			List<Integer> cartaJugadorRepartida = logica.repartirCarta();
+		for (int asiento = 0; asiento < jugadores.size(); asiento++) {
+			CanalJugador jugador = jugadores.get(asiento);
+			int cartaJugadorRepartida = logica.repartirCarta();
 
 			// si hay suficientes cartas entra en el if
-			if (cartaJugadorRepartida != null) {
+			if (cartaJugadorRepartida != DobbleLogic.SIN_CARTA) {
 				// asigna la carta al jugador, en este caso a la variable de la clase que ele
 				// corresponde
 				puntuaciones.put(jugador.getNombreUsuario(), 0);
 				jugador.setEnPartida(true);
 				jugador.setPartidaActual(this);
-				cartasJugadores.put(jugador.getNombreUsuario(), cartaJugadorRepartida);
+				cartasJugadores[asiento] = cartaJugadorRepartida;
+
+				// los clientes con protocolo binario reciben cartas y marcador por asiento
+				if (jugador.usaProtocoloBinario()) {
+					jugador.enviarInicioPartida(logica.getMazo(), cartaJugadorRepartida, cartaCentral,
+							nombresAsiento, puntosAsiento);
+					continue;
+				}
 
-				// serializa la carta del jugador, poniendola como uuna String
-				String cartaJugadorSerializada = serializarCarta(cartaJugadorRepartida);
 				// avisa al jugador (hilo) que inicia la partida
-				// y le envía la carta del jugador y la central serializada y
+				// y le envía la carta del jugador y la central serializadas y
 				// la puntuación también serializada, en modo de String con el
 				// 'nombre1:puntuaciónX,nombre2:puntuaciónY'
-				String mensajeInicio = "INICIO_PARTIDA|" + cartaJugadorSerializada + "|" + cartaCentralSerializada + "|"
-						+ serializarPuntuaciones();
-				jugador.sendMessage(mensajeInicio);
+				if (puntuacionesIniciales == null) {
+					puntuacionesIniciales = serializarPuntuaciones();
+				}
+				jugador.enviarMensaje(
+						codificarInstantanea("INICIO_PARTIDA", cartaJugadorRepartida, puntuacionesIniciales));
 
 			} else {// si no hay suficientes cartas, lo gestiona. Le notifica al propio jugador y
 					// luego a todos (este último mensaje también al propio jugador)
 				jugador.sendMessage("ERROR|No hay suficientes cartas. Partida cancelada.");
 				notificarATodos("ERROR|Partida cancelada: Mazo insuficiente.");
+				finalizar();
 				return;
 			}
 		}
+		estado = ESTADO_EN_CURSO;
+	}
+
+	// Pre: Se ejecuta en el buzón. La partida acaba de terminar por cualquier
+	// causa y ya se ha avisado a los jugadores.
+	// Post: La partida pasa a ESTADO_TERMINADA, se desvincula de los jugadores
+	// que aún la tenían como partida actual, sus eventos (con las puntuaciones
+	// finales) se pasan a 'destino' para el diario y se da de baja, de modo que
+	// nada retiene ya su mazo, sus marcadores ni sus jugadores.
+	private void finalizar() {
+		estado = ESTADO_TERMINADA;
+		eventos.fin(puntosAsiento);
+		destino.registrarEventos(eventos.getDatos(), eventos.getLongitud());
+		for (CanalJugador jugador : jugadores) {
+			if (jugador.getPartidaActual() == this) {
+				jugador.setEnPartida(false);
+				jugador.setPartidaActual(null);
+			}
+		}
+		destino.desregistrarPartida(this);
 	}
 
 	// Pre: 'mensaje' es una cadena de texto (comando de protocolo) a enviar.
-	// Post: El 'mensaje' se envía a todos los hilos de la lista 'jugadores' cuya
-	// referencia 'partidaActual' sea esta instancia ('this'), asegurando que los
-	// clientes que ya se rindieron no reciban mensajes.
+	// Post: El 'mensaje' se codifica una sola vez y el mismo búfer se envía a
+	// todos los hilos de la lista 'jugadores' cuya referencia 'partidaActual' sea
+	// esta instancia ('this'), asegurando que los clientes que ya se rindieron no
+	// reciban mensajes.
 	private void notificarATodos(String mensaje) {
+		MensajeCodificado codificado = null;
 		// Usamos la lista de jugadores de la partida (this.jugadores)
-		for (ClienteGestorHilos jugador : jugadores) {
+		for (CanalJugador jugador : jugadores) {
 			// Solo notifica si el hilo todavía tiene asignada esta partida.
 			// Un jugador que se rinde/desconecta ya tiene su partidaActual = null.
 			if (jugador.getPartidaActual() == this) {
-				jugador.sendMessage(mensaje);
+				if (codificado == null) {
+					codificado = MensajeCodificado.deTexto(tramaDifusion, mensaje);
+				}
+				jugador.enviarMensaje(codificado);
 			}
 		}
 	}
 
-	// Pre: 'carta' es una lista de enteros que representan los símbolos de una
-	// carta o 'null'.
-	// Post: Retorna una cadena de texto con los símbolos de la lista unidos por
-	// comas. Retorna una cadena vacía si la lista es nula o vacía.
-	private String serializarCarta(List<Integer> carta) {
-		// Convierte List<Integer> a String ("1,2,3,4,5,6,7,8")
-		if (carta == null) {
-			// En caso de mazo vacío o error
-			return "";
+	// Pre: 'accion' es "INICIO_PARTIDA" o "NUEVA_RONDA", 'mano' es la carta del
+	// destinatario y 'puntuaciones' el marcador serializado.
+	// Post: Retorna el mensaje de texto "accion|mano|central|puntuaciones"
+	// codificado. Las cartas se copian de su codificación precalculada en el mazo,
+	// sin volver a convertir los símbolos a texto.
+	private MensajeCodificado codificarInstantanea(String accion, int mano, String puntuaciones) {
+		MazoDobble mazo = logica.getMazo();
+		tramaDifusion.iniciar(ProtocoloBinario.OP_TEXTO);
+		tramaDifusion.escribirTextoFinal(accion);
+		tramaDifusion.escribirByte('|');
+		tramaDifusion.escribirCartaTexto(mazo, mano);
+		tramaDifusion.escribirByte('|');
+		tramaDifusion.escribirCartaTexto(mazo, cartaCentral);
+		tramaDifusion.escribirByte('|');
+		tramaDifusion.escribirTextoFinal(puntuaciones);
+		tramaDifusion.terminar();
+		return MensajeCodificado.deTramaTexto(tramaDifusion);
+	}
+
+	// Pre: Los parámetros son los de 'notificarRonda()'. 'mano' es la nueva mano
+	// del destinatario o DobbleLogic.SIN_CARTA si no ha cambiado. 'binario' indica
+	// el protocolo del destinatario.
+	// Post: Retorna el aviso de avance de ronda codificado: una trama OP_RONDA o
+	// el mensaje de texto "RONDA|nombre|puntos|central[|mano]", con las cartas
+	// copiadas de su codificación precalculada en el mazo.
+	private MensajeCodificado codificarRonda(boolean binario, int asiento, String nombre, int nuevaPuntuacion,
+			int mano) {
+		MazoDobble mazo = logica.getMazo();
+		if (binario) {
+			ProtocoloBinario.codificarRonda(tramaDifusion, mazo, asiento, nuevaPuntuacion, cartaCentral, mano);
+			return MensajeCodificado.deTrama(tramaDifusion);
+		}
+		tramaDifusion.iniciar(ProtocoloBinario.OP_TEXTO);
+		tramaDifusion.escribirTextoFinal("RONDA|" + nombre + "|" + nuevaPuntuacion + "|");
+		tramaDifusion.escribirCartaTexto(mazo, cartaCentral);
+		if (mano != DobbleLogic.SIN_CARTA) {
+			tramaDifusion.escribirByte('|');
+			tramaDifusion.escribirCartaTexto(mazo, mano);
 		}
-		return carta.stream().map(Object::toString).collect(Collectors.joining(","));
+		tramaDifusion.terminar();
+		return MensajeCodificado.deTramaTexto(tramaDifusion);
 	}
 
 	// Pre: La estructura 'puntuaciones' está inicializada y contiene las
@@ -156,6 +350,13 @@ public class DobblePartida {
 	// Post: Retorna una cadena de texto que representa el estado completo de
 	// 'puntuaciones' en formato serializado "nombre1:puntos1,nombre2:puntos2,...".
 	private String serializarPuntuaciones() {
+		return serializarPuntuaciones(puntuaciones);
+	}
+
+	// Pre: 'puntuaciones' contiene el nombre y los puntos de cada jugador.
+	// Post: Retorna el marcador con el formato "nombre1:puntos1,nombre2:puntos2,...".
+	// Es estático para poder medirlo aparte (ver los benchmarks).
+	static String serializarPuntuaciones(Map<String, Integer> puntuaciones) {
 		// serializa las puntuaciones 'nombre1:puntuaciónX,nombre2:puntuaciónY'
 		return puntuaciones.entrySet().stream().map(e -> e.getKey() + ":" + e.getValue())
 				.collect(Collectors.joining(","));
@@ -163,29 +364,95 @@ public class DobblePartida {
 
 	// Pre: 'perdedor' es el hilo del cliente que ha cerrado la conexión (llamado
 	// desde el bloque finally de ClienteGestorHilos).
+	// Post: Se deposita en el buzón la orden de procesar la desconexión (ver
+	// 'aplicarDesconexion()') y se retorna sin esperar a que se ejecute.
+	public void procesarDesconexion(CanalJugador perdedor) {
+		buzon.enviar(() -> aplicarDesconexion(perdedor));
+	}
+
+	// Pre: 'perdedor' es el hilo del cliente que ha enviado el comando "RENDIRSE".
+	// Post: Se deposita en el buzón la orden de procesar la rendición (ver
+	// 'aplicarRendicion()') y se retorna sin esperar a que se ejecute.
+	public void procesarRendicion(CanalJugador perdedor) {
+		buzon.enviar(() -> aplicarRendicion(perdedor));
+	}
+
+	// Pre: 'jugador' es un hilo de cliente de esta partida y 'simbolo' el símbolo
+	// pulsado.
+	// Post: Se deposita en el buzón la orden de validar el intento (ver
+	// 'aplicarIntento()') y se retorna sin esperar a que se ejecute. Dos aciertos
+	// casi simultáneos se resuelven en orden de llegada: el segundo ya se valida
+	// contra la nueva carta central.
+	public void procesarIntento(CanalJugador jugador, int simbolo) {
+		long recibido = System.nanoTime();
+		buzon.enviar(() -> aplicarIntento(jugador, simbolo, recibido));
+	}
+
+	// Pre: 'jugador' es un hilo de cliente de esta partida que ha enviado el
+	// comando "RESYNC".
+	// Post: Se deposita en el buzón la orden de enviarle una instantánea completa
+	// de la ronda (ver 'aplicarResync()').
+	public void procesarResync(CanalJugador jugador) {
+		buzon.enviar(() -> aplicarResync(jugador));
+	}
+
+	// Pre: 'jugador' es un hilo de cliente de esta partida que acaba de reanudar
+	// su sesión desde una conexión nueva (RESUME).
+	// Post: Se deposita en el buzón la orden de enviarle el estado completo de la
+	// partida (ver 'aplicarReanudacion()').
+	public void procesarReanudacion(CanalJugador jugador) {
+		buzon.enviar(() -> aplicarReanudacion(jugador));
+	}
+
+	// Pre: Se ejecuta en el buzón. 'jugador' acaba de reanudar su sesión, así que
+	// puede no haber recibido el inicio de la partida ni los últimos avisos.
+	// Post: Si sigue en la partida y hay carta central, se le envía el estado
+	// completo en el formato de inicio de partida: su mano, la carta central y el
+	// marcador con los nombres ("INICIO_PARTIDA|..." en texto o una trama
+	// OP_INICIO_PARTIDA en binario), que le basta a un cliente recién conectado
+	// para seguir jugando. Si no, se le envía un 'ERROR_JUEGO'.
+	private void aplicarReanudacion(CanalJugador jugador) {
+		int asiento = jugadores.indexOf(jugador);
+		if (asiento < 0 || estado != ESTADO_EN_CURSO || jugador.getPartidaActual() != this
+				|| cartaCentral == DobbleLogic.SIN_CARTA) {
+			jugador.enviarMensaje(ERROR_SIN_RONDA);
+			return;
+		}
+		if (jugador.usaProtocoloBinario()) {
+			jugador.enviarInicioPartida(logica.getMazo(), cartasJugadores[asiento], cartaCentral, nombresAsiento,
+					puntosAsiento);
+			return;
+		}
+		jugador.enviarMensaje(
+				codificarInstantanea("INICIO_PARTIDA", cartasJugadores[asiento], serializarPuntuaciones()));
+	}
+
+	// Pre: Se ejecuta en el buzón. 'perdedor' es el hilo del cliente que ha
+	// cerrado la conexión.
 	// Post: El jugador es marcado como inactivo en 'jugadoresActivos'. El evento y
 	// el jugador son añadidos a 'perdedoresPartida'. Se notifica a todos los
 	// jugadores activos restantes mediante "EVENTO_ABANDONO|DESCONEXION". El estado
 	// del hilo 'perdedor' es limpiado (enPartida=false, partidaActual=null).
 	// Finalmente, se verifica si la partida debe terminar llamando a
 	// 'verificarFinDePartidaPorAbandono()'.
-	public void procesarDesconexion(ClienteGestorHilos perdedor) {
+	private void aplicarDesconexion(CanalJugador perdedor) {
 		String nombrePerdedor = perdedor.getNombreUsuario();
 
-		// comprueba si ya estaba marcado como inactivo
-		if (!jugadoresActivos.getOrDefault(nombrePerdedor, false)) {
+		// comprueba si ya estaba marcado como inactivo o la partida ya ha terminado
+		if (estado == ESTADO_TERMINADA || !jugadoresActivos.getOrDefault(nombrePerdedor, false)) {
 			return;
 		}
 
 		// marcar como inactivo
 		jugadoresActivos.put(nombrePerdedor, false);
+		eventos.abandono(jugadores.indexOf(perdedor), false);
 
 		// registrar en la lista de perdedores
 		perdedoresPartida.add(nombrePerdedor + " (Desconexión)");
 
 		// Notificación general a todos los que quedan
 		notificarATodos("EVENTO_ABANDONO|DESCONEXION|" + nombrePerdedor);
-		System.out.println(nombrePerdedor + " se ha desconectado.");
+		Bitacora.info(Bitacora.PARTIDA, "Partida {}: {} se ha desconectado.", id, nombrePerdedor);
 
 		// limpieza del hilo perdedor (ya que el hilo ya está en 'finally' de
 		// ClienteGestorHilos)
@@ -196,29 +463,31 @@ public class DobblePartida {
 		verificarFinDePartidaPorAbandono("Abandono (Desconexión)");
 	}
 
-	// Pre: 'perdedor' es el hilo del cliente que ha enviado el comando "RENDIRSE".
+	// Pre: Se ejecuta en el buzón. 'perdedor' es el hilo del cliente que ha
+	// enviado el comando "RENDIRSE".
 	// Post: El jugador es marcado como inactivo en 'jugadoresActivos'. El evento y
 	// el jugador son añadidos a 'perdedoresPartida'. Se notifica a todos los
 	// jugadores activos restantes mediante "EVENTO_ABANDONO|RENDICION". El cliente
 	// 'perdedor' recibe un mensaje de fin de partida y su estado de hilo es
 	// limpiado. Finalmente, se verifica si la partida debe terminar llamando a
 	// 'verificarFinDePartidaPorAbandono()'.
-	public void procesarRendicion(ClienteGestorHilos perdedor) {
+	private void aplicarRendicion(CanalJugador perdedor) {
 		String nombrePerdedor = perdedor.getNombreUsuario();
 
 		// marcar como inactivo si no lo está
-		if (!jugadoresActivos.getOrDefault(nombrePerdedor, false)) {
+		if (estado == ESTADO_TERMINADA || !jugadoresActivos.getOrDefault(nombrePerdedor, false)) {
 			perdedor.sendMessage("ERROR|Ya has abandonado la partida.");
 			return;
 		}
 		jugadoresActivos.put(nombrePerdedor, false);
+		eventos.abandono(jugadores.indexOf(perdedor), true);
 
 		// Registrar en la lista de perdedores
 		perdedoresPartida.add(nombrePerdedor + " (Rendición)");
 
 		// notificación general a todos los que quedan
 		notificarATodos("EVENTO_ABANDONO|RENDICION|" + nombrePerdedor);
-		System.out.println(nombrePerdedor + " se ha rendido.");
+		Bitacora.info(Bitacora.PARTIDA, "Partida {}: {} se ha rendido.", id, nombrePerdedor);
 
 		// notificación y limpieza del hilo perdedor
 		perdedor.sendMessage("FIN_PARTIDA|Te has rendido. Volviendo al menú principal.|" + serializarPuntuaciones());
@@ -240,7 +509,7 @@ public class DobblePartida {
 
 		if (activos <= 1) {
 			// Encontrar al único ganador (si lo hay)
-			ClienteGestorHilos ganador = jugadores.stream()
+			CanalJugador ganador = jugadores.stream()
 					.filter(hilo -> jugadoresActivos.getOrDefault(hilo.getNombreUsuario(), false)).findFirst()
 					.orElse(null);
 
@@ -257,98 +526,145 @@ public class DobblePartida {
 	// Pre: Se llama cuando el contador de jugadores activos llega a cero (todos
 	// abandonaron).
 	// Post: Se genera un resumen de la partida sin ganador y se registra en el
-	// historial del coordinador. Se limpian los estados de los hilos remanentes.
+	// historial de 'destino' y se finaliza la partida.
 	private void terminarPartidaSinGanador(String causa) {
 		String participantes = obtenerListaParticipantes();
 		String resumen = String.format("PARTICIPANTES: %s @ RESULTADO: %s @ FIN: %s", participantes,
-				serializarPuntuaciones(), causa);
+				serializarPuntuaciones(), causa) + datosReproduccion();
 
-		DobbleServer.getCoordinadorPartida().registrarResultado(resumen);
+		destino.registrarResultado(resumen);
 
 		// Limpieza de todos los hilos (aunque ya se hizo al abandonar/desconectar)
-		for (ClienteGestorHilos jugador : jugadores) {
-			if (jugador.getPartidaActual() == this) {
-				jugador.setEnPartida(false);
-				jugador.setPartidaActual(null);
-				// Solo notificar a los que no han sido notificados (ya se hizo en
-				// procesarRendicion)
-			}
-		}
-		System.out.println("Partida finalizada. Causa: " + causa);
+		finalizar();
+		Bitacora.info(Bitacora.PARTIDA, "Partida {} finalizada. Causa: {}", id, causa);
 	}
 
-	// Pre: 'jugador' es un hilo de cliente activo en esta partida, y 'simbolo' es
-	// el entero que representa la carta pulsada. 'cartaCentral' no debe ser nulo.
+	// Pre: Se ejecuta en el buzón. 'jugador' es un hilo de cliente activo en esta
+	// partida, y 'simbolo' es el entero que representa la carta pulsada.
+	// 'recibido' es el System.nanoTime() en que llegó el intento.
 	// Post: Se valida la coincidencia. Si es correcta: la puntuación del jugador se
-	// incrementa, se notifica el punto a todos, se actualizan las cartas (la
-	// central pasa al jugador, se reparte una nueva central) y, si el mazo se
-	// agota, se llama a 'terminarPartida()', si no, se llama a
-	// 'iniciarNuevaRonda()'. Si es incorrecta, se envía un mensaje de error al
-	// jugador.
-	public void procesarIntento(ClienteGestorHilos jugador, int simbolo) {
+	// incrementa, se actualizan las cartas (la central pasa al jugador, se reparte
+	// una nueva central) y, si el mazo se agota, se llama a 'terminarPartida()';
+	// si no, se avisa del avance de ronda con 'notificarRonda()'. Si es
+	// incorrecta, se envía un mensaje de error al jugador. En los dos casos el
+	// intento se apunta en 'eventos'. Si el jugador ya no está en la partida (el
+	// intento estaba en el buzón cuando abandonó o se desconectó), se le envía un
+	// 'ERROR_SIN_PARTIDA' y la partida no cambia.
+	private void aplicarIntento(CanalJugador jugador, int simbolo, long recibido) {
 
 		// Si la partida ha terminado, se ignora el intento
-		if (cartaCentral == null) {
-			jugador.sendMessage("ERROR_JUEGO|La partida ha terminado. Esperando a ser redirigido.");
+		if (estado != ESTADO_EN_CURSO || cartaCentral == DobbleLogic.SIN_CARTA) {
+			intentosTardios.increment();
+			jugador.enviarMensaje(ERROR_TERMINADA);
 			return;
 		}
 
-		// se coge el nombre del jugador y a través del nombre se coge la carta del
-		// jugador
+		// se coge el nombre y el asiento del jugador y a través del asiento se coge la
+		// carta del jugador
 		String nombre = jugador.getNombreUsuario();
-		List<Integer> cartaJugador = cartasJugadores.get(nombre);
+		int asiento = jugadores.indexOf(jugador);
+		if (asiento < 0 || !jugadoresActivos.getOrDefault(nombre, false) || jugador.getPartidaActual() != this) {
+			jugador.enviarMensaje(ERROR_SIN_PARTIDA);
+			return;
+		}
+		int cartaJugador = cartasJugadores[asiento];
 
 		// 1. Verificar la coincidencia, si es correcto, entra al if
-		if (logica.esCoincidenciaValida(simbolo, cartaJugador, cartaCentral)) {
+		boolean acierto = logica.esCoincidenciaValida(simbolo, cartaJugador, cartaCentral);
+		eventos.intento(asiento, simbolo, acierto, recibido);
+		if (acierto) {
+			intentosAcertados.increment();
 
 			// 2. Suma un punto y lo actualiza
 			int nuevaPuntuacion = puntuaciones.get(nombre) + 1;
 			puntuaciones.put(nombre, nuevaPuntuacion);
+			puntosAsiento[asiento] = nuevaPuntuacion;
 
-			// 3. Notificar a todos los jugadores
-			notificarATodos("PUNTO|" + nombre + "|" + nuevaPuntuacion + "|" + serializarPuntuaciones());
-
-			// 4. se reparte nueva carta, la central pasa al jugador y una nueva en la
+			// 3. se reparte nueva carta, la central pasa al jugador y una nueva en la
 			// central
-			cartasJugadores.put(nombre, cartaCentral);
+			cartasJugadores[asiento] = cartaCentral;
 			cartaCentral = logica.repartirCarta();
 
-			if (cartaCentral == null) {
+			// 4. Notificar a todos los jugadores (el fin de partida ya incluye el
+			// marcador completo)
+			if (cartaCentral == DobbleLogic.SIN_CARTA) {
 				terminarPartida(); // Llama a terminar si ya no hay cartas
 			} else {
-				iniciarNuevaRonda();
+				notificarRonda(asiento, nombre, nuevaPuntuacion, recibido);
 			}
 		} else {// Coincidencia incorrecta, le avisa al jugador
-			jugador.sendMessage("ERROR_JUEGO|El símbolo " + simbolo + " no es la coincidencia. ¡Inténtalo de nuevo!");
+			intentosFallados.increment();
+			jugador.enviarMensaje(ERROR_NO_COINCIDE);
 		}
 	}
 
-	// Pre: Se ha completado el procesamiento de un punto y se ha extraído la nueva
-	// 'cartaCentral' (que no es nula).
-	// Post: El comando "NUEVA_RONDA|..." se envía a todos los jugadores,
-	// conteniendo su nueva carta de mano, la nueva carta central y las puntuaciones
-	// actualizadas, iniciando la siguiente ronda.
-	private void iniciarNuevaRonda() {
-		// serializa la carta central a String
-		String cartaCentralSerializada = serializarCarta(cartaCentral);
-
-		// avisa a todos los jugadores sobre la nueva carta central y sus cartas
-		for (ClienteGestorHilos jugador : jugadores) {
-			String nombre = jugador.getNombreUsuario();
-			String cartaJugadorSerializada = serializarCarta(cartasJugadores.get(nombre));
+	// Pre: El jugador del asiento 'asiento' ('nombre') acaba de sumar un punto y
+	// tiene ya 'nuevaPuntuacion'; su mano es la antigua carta central y ya se ha
+	// repartido la nueva 'cartaCentral' (que no es DobbleLogic.SIN_CARTA).
+	// Post: Se envía a cada jugador que sigue en la partida un único aviso de
+	// avance de ronda con el cambio respecto a la ronda anterior: quién ha
+	// puntuado, su nueva puntuación y la nueva carta central. Solo el que ha
+	// puntuado recibe además su nueva mano, ya que es la única que cambia. En
+	// texto es "RONDA|nombre|puntos|central[|mano]" y en binario una trama
+	// OP_RONDA. El aviso común se codifica una sola vez por protocolo y todos los
+	// destinatarios comparten el mismo búfer. Los avisos se marcan como
+	// descartables: si la cola de salida de un jugador se llena, se tiran y el
+	// jugador recibe una instantánea completa (ver ColaSalida). 'recibido' es
+	// cuándo llegó el intento que ha cerrado la ronda, para medir cuánto tarda el
+	// aviso en escribirse.
+	private void notificarRonda(int asiento, String nombre, int nuevaPuntuacion, long recibido) {
+		MensajeCodificado rondaTexto = null;
+		MensajeCodificado rondaBinaria = null;
+		for (int i = 0; i < jugadores.size(); i++) {
+			CanalJugador destinatario = jugadores.get(i);
+			if (destinatario.getPartidaActual() != this) {
+				continue;
+			}
+			boolean binario = destinatario.usaProtocoloBinario();
+			if (i == asiento) {
+				// el que ha puntuado es el único que recibe su nueva mano
+				destinatario.enviarRonda(
+						codificarRonda(binario, asiento, nombre, nuevaPuntuacion, cartasJugadores[asiento]), recibido);
+			} else if (binario) {
+				if (rondaBinaria == null) {
+					rondaBinaria = codificarRonda(true, asiento, nombre, nuevaPuntuacion, DobbleLogic.SIN_CARTA);
+				}
+				destinatario.enviarRonda(rondaBinaria, recibido);
+			} else {
+				if (rondaTexto == null) {
+					rondaTexto = codificarRonda(false, asiento, nombre, nuevaPuntuacion, DobbleLogic.SIN_CARTA);
+				}
+				destinatario.enviarRonda(rondaTexto, recibido);
+			}
+		}
+	}
 
-			String mensajeRonda = "NUEVA_RONDA|" + cartaJugadorSerializada + "|" + cartaCentralSerializada + "|"
-					+ serializarPuntuaciones();
-			jugador.sendMessage(mensajeRonda);
+	// Pre: Se ejecuta en el buzón. 'jugador' es un hilo de cliente de esta partida
+	// que ha pedido resincronizarse (comando "RESYNC").
+	// Post: Si el jugador sigue en la partida y hay carta central, se le envía una
+	// instantánea completa de su estado: su mano, la carta central y el marcador
+	// entero ("NUEVA_RONDA|..." en texto o una trama OP_NUEVA_RONDA en binario).
+	// Si no, se le envía un 'ERROR_JUEGO'.
+	private void aplicarResync(CanalJugador jugador) {
+		int asiento = jugadores.indexOf(jugador);
+		if (asiento < 0 || estado != ESTADO_EN_CURSO || jugador.getPartidaActual() != this
+				|| cartaCentral == DobbleLogic.SIN_CARTA) {
+			jugador.enviarMensaje(ERROR_SIN_RONDA);
+			return;
 		}
+		if (jugador.usaProtocoloBinario()) {
+			jugador.enviarNuevaRonda(logica.getMazo(), cartasJugadores[asiento], cartaCentral, puntosAsiento);
+			return;
+		}
+		jugador.enviarMensaje(codificarInstantanea("NUEVA_RONDA", cartasJugadores[asiento], serializarPuntuaciones()));
 	}
 
-	// Pre: Se llama cuando 'logica.repartirCarta()' retorna nulo (el mazo se ha
-	// agotado).
+	// Pre: Se llama cuando 'logica.repartirCarta()' retorna SIN_CARTA (el mazo se
+	// ha agotado).
 	// Post: Se determina el ganador (o empate) entre los jugadores activos. Se
 	// genera el resumen final con el ranking por puntos seguido del orden inverso
-	// de abandono, y se registra en 'CoordinadorPartida'. Se notifica el fin a
-	// todos los clientes activos y se limpian sus estados.
+	// de abandono, y se registra en 'destino'. Se notifica el fin a
+	// todos los clientes activos y se finaliza la partida.
 	private void terminarPartida() {
 		String ganador = obtenerGanador();
 		String puntuacionesFinales = serializarPuntuaciones();
@@ -360,11 +676,11 @@ public class DobblePartida {
 			// Si hay empate, registramos la victoria a todos los empatados.
 			String[] empatados = ganador.substring(14).split(", ");
 			for (String nombre : empatados) {
-				DobbleServer.getRankingGlobal().registrarGanador(nombre);
+				ranking.registrarGanador(nombre);
 			}
 		} else if (!ganador.equals("Nadie")) {
 			// Si es un ganador único, se registra la victoria en el ranking.
-			DobbleServer.getRankingGlobal().registrarGanador(ganador);
+			ranking.registrarGanador(ganador);
 		}
 
 		// crear el ranking de los jugadores que terminaron jugando (activos)
@@ -392,27 +708,30 @@ public class DobblePartida {
 		// generar el resumen del historial
 		String resumen = String.format(
 				"PARTICIPANTES: %s @ GANADOR: %s @ RESULTADO: %s @ FIN: Mazo Agotado @ ORDEN_FINAL: %s", participantes,
-				ganador, puntuacionesFinales, String.join(" -> ", ordenFinal));
+				ganador, puntuacionesFinales, String.join(" -> ", ordenFinal)) + datosReproduccion();
 
-		DobbleServer.getCoordinadorPartida().registrarResultado(resumen);
+		destino.registrarResultado(resumen);
 
 		notificarATodos("FIN_PARTIDA|Partida finalizada. Ganador: " + ganador + ".|" + puntuacionesFinales);
 
-		for (ClienteGestorHilos jugador : jugadores) {
-			if (jugador.getPartidaActual() == this) {
-				jugador.setEnPartida(false);
-				jugador.setPartidaActual(null);
-			}
-		}
+		finalizar();
+
+		Bitacora.info(Bitacora.PARTIDA, "Partida {} finalizada. Ganador: {}", id, ganador);
+	}
 
-		System.out.println("Partida finalizada. Ganador: " + ganador);
+	// Pre: Ninguna.
+	// Post: Retorna el final del resumen del historial con lo necesario para
+	// reproducir la partida: " @ PARTIDA: id @ SEMILLA: semilla" (los eventos
+	// están en el diario de eventos con ese identificador).
+	private String datosReproduccion() {
+		return " @ PARTIDA: " + id + " @ SEMILLA: " + semilla;
 	}
 
 	// Pre: La lista 'jugadores' está inicializada.
 	// Post: Retorna una cadena de texto que contiene los nombres de todos los
 	// jugadores que participaron en la partida, separados por coma y espacio.
 	private String obtenerListaParticipantes() {
-		return this.jugadores.stream().map(ClienteGestorHilos::getNombreUsuario).collect(Collectors.joining(", "));
+		return this.jugadores.stream().map(CanalJugador::getNombreUsuario).collect(Collectors.joining(", "));
 	}
 
 	// Pre: Se llama al final de la partida por mazo agotado. 'puntuaciones' está
@@ -449,14 +768,14 @@ public class DobblePartida {
 	// jugador activo ('ganador').
 	// Post: Se genera el resumen final con el 'ganador' seguido del orden inverso
 	// de abandono, y se registra en el historial. El 'ganador' recibe el mensaje de
-	// "FIN_PARTIDA|Ganaste por abandono" y su estado es limpiado.
-	private void terminarPartidaPorGanadorUnico(ClienteGestorHilos ganador, String causa) {
+	// "FIN_PARTIDA|Ganaste por abandono" y se finaliza la partida.
+	private void terminarPartidaPorGanadorUnico(CanalJugador ganador, String causa) {
 		String nombreGanador = ganador.getNombreUsuario();
 		String puntuacionesFinales = serializarPuntuaciones();
 		String participantes = obtenerListaParticipantes();
 
 		// registra la victoria en el ranking global.
-		DobbleServer.getRankingGlobal().registrarGanador(nombreGanador);
+		ranking.registrarGanador(nombreGanador);
 
 		// crear la lista final del orden (ranking)
 		List<String> ordenFinal = new ArrayList<>();
@@ -476,17 +795,17 @@ public class DobblePartida {
 
 		// generar el resumen del historial
 		String resumen = String.format("PARTICIPANTES: %s @ RESULTADO: %s @ FIN: %s @ ORDEN_FINAL: %s", participantes,
-				puntuacionesFinales, causa, String.join(" -> ", ordenFinal));
+				puntuacionesFinales, causa, String.join(" -> ", ordenFinal)) + datosReproduccion();
 
-		DobbleServer.getCoordinadorPartida().registrarResultado(resumen);
+		destino.registrarResultado(resumen);
 
 		String mensaje = String.format("¡Eres el único jugador restante! Has ganado por %s.", causa.toLowerCase());
 
 		ganador.sendMessage("FIN_PARTIDA|" + mensaje + "|" + puntuacionesFinales);
 
-		ganador.setEnPartida(false);
-		ganador.setPartidaActual(null);
+		finalizar();
 
-		System.out.printf("Partida finalizada por %s. Ganador: %s.%n", causa.toLowerCase(), nombreGanador);
+		Bitacora.info(Bitacora.PARTIDA, "Partida {} finalizada por {}. Ganador: {}.", id, causa.toLowerCase(),
+				nombreGanador);
 	}
 }
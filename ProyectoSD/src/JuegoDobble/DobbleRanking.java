@@ -1,43 +1,344 @@
 package JuegoDobble;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
 
 /*
 Gestor del ranking global de jugadores, almacenando el número de partidas ganadas.
-Utiliza un mapa sincronizado para garantizar la seguridad en entorno concurrente.
+Utiliza un ConcurrentHashMap para garantizar la seguridad en entorno concurrente
+sin bloqueos de monitor (que anclarían los hilos virtuales).
+Además del contador de cada jugador mantiene un índice ordenado por
+victorias (una lista de saltos concurrente) que se actualiza en cada
+victoria, así que consultar el ranking nunca ordena a todos los
+jugadores. El TOP_K ya serializado se guarda en caché y solo se vuelve a
+construir cuando el ranking ha cambiado.
 */
-public class DobbleRanking {
+public class DobbleRanking implements DestinoRanking {
 
-	// Almacena las partidas ganadas por cada jugador: Nombre -> Partidas Ganadas
-	private final Map<String, Integer> ranking = Collections.synchronizedMap(new LinkedHashMap<>());
+	// jugadores del ranking que se guardan serializados en la caché
+	public static final int TOP_K = 100;
+	// desplazamiento máximo de una página: las páginas fuera del TOP_K recorren
+	// el índice desde el principio, así que su coste crece con el desplazamiento
+	public static final int DESPLAZAMIENTO_MAXIMO = 10_000;
+
+	// entrada del índice ordenado: más victorias primero y, a igualdad, por
+	// nombre. Es también su propia entrada del mapa del índice (clave ella misma,
+	// valor TRUE), para construirlo sin crear otro objeto por jugador
+	private static final class Entrada implements Map.Entry<Entrada, Boolean> {
+		final String nombre;
+		final long victorias;
+
+		Entrada(String nombre, long victorias) {
+			this.nombre = nombre;
+			this.victorias = victorias;
+		}
+
+		@Override
+		public Entrada getKey() {
+			return this;
+		}
+
+		@Override
+		public Boolean getValue() {
+			return Boolean.TRUE;
+		}
+
+		@Override
+		public Boolean setValue(Boolean valor) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static final Comparator<Entrada> ORDEN = (a, b) -> {
+		int c = Long.compare(b.victorias, a.victorias);
+		return c != 0 ? c : a.nombre.compareTo(b.nombre);
+	};
+
+	// instantánea del TOP_K: versión del ranking con la que se construyó, las
+	// entradas y su serialización
+	private static final class Instantanea {
+		final long version;
+		final List<Entrada> entradas;
+		final String serializado;
+
+		Instantanea(long version, List<Entrada> entradas, String serializado) {
+			this.version = version;
+			this.entradas = entradas;
+			this.serializado = serializado;
+		}
+	}
+
+	/*
+	Las entradas ya ordenadas de una instantánea, vistas como un SortedMap
+	para el constructor de ConcurrentSkipListMap, que así construye el índice
+	en tiempo lineal. Solo ofrece lo que ese constructor usa: el comparador y
+	el recorrido en orden.
+	*/
+	private static final class EntradasOrdenadas extends AbstractMap<Entrada, Boolean>
+			implements SortedMap<Entrada, Boolean> {
+		private final Entrada[] entradas;
+		private final int n;
+
+		EntradasOrdenadas(Entrada[] entradas, int n) {
+			this.entradas = entradas;
+			this.n = n;
+		}
+
+		@Override
+		public Comparator<? super Entrada> comparator() {
+			return ORDEN;
+		}
+
+		@Override
+		public Set<Map.Entry<Entrada, Boolean>> entrySet() {
+			return new AbstractSet<Map.Entry<Entrada, Boolean>>() {
+				@Override
+				public int size() {
+					return n;
+				}
+
+				@Override
+				public Iterator<Map.Entry<Entrada, Boolean>> iterator() {
+					return new Iterator<Map.Entry<Entrada, Boolean>>() {
+						private int i = 0;
+
+						@Override
+						public boolean hasNext() {
+							return i < n;
+						}
+
+						@Override
+						public Map.Entry<Entrada, Boolean> next() {
+							if (i >= n) {
+								throw new NoSuchElementException();
+							}
+							return entradas[i++];
+						}
+					};
+				}
+			};
+		}
+
+		@Override
+		public SortedMap<Entrada, Boolean> subMap(Entrada desde, Entrada hasta) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SortedMap<Entrada, Boolean> headMap(Entrada hasta) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public SortedMap<Entrada, Boolean> tailMap(Entrada desde) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Entrada firstKey() {
+			if (n == 0) {
+				throw new NoSuchElementException();
+			}
+			return entradas[0];
+		}
+
+		@Override
+		public Entrada lastKey() {
+			if (n == 0) {
+				throw new NoSuchElementException();
+			}
+			return entradas[n - 1];
+		}
+	}
+
+	// Almacena las partidas ganadas por cada jugador: Nombre -> Partidas Ganadas.
+	// Solo se sustituye al cargar una instantánea (ver 'cargarOrdenado()')
+	private volatile Map<String, Long> ranking = new ConcurrentHashMap<>();
+	// las mismas entradas ordenadas por victorias (solo importan las claves). Es
+	// un mapa y no un ConcurrentSkipListSet porque solo el mapa se puede
+	// construir de una vez, en tiempo lineal, a partir de entradas ya ordenadas
+	private volatile ConcurrentNavigableMap<Entrada, Boolean> indice = new ConcurrentSkipListMap<>(ORDEN);
+	// aumenta con cada cambio del ranking; invalida la instantánea en caché
+	private final AtomicLong version = new AtomicLong();
+	private volatile Instantanea cache = new Instantanea(0, new ArrayList<>(), "");
+	// almacén duradero al que se envía cada cambio, o 'null' si el ranking solo
+	// está en memoria
+	private volatile AlmacenRanking almacen;
+
+	// Pre: 'almacen' es el almacén del que se ha restaurado este ranking, o 'null'.
+	// Post: A partir de ahora cada victoria se guarda también en 'almacen'.
+	public void setAlmacen(AlmacenRanking almacen) {
+		this.almacen = almacen;
+	}
 
 	// Pre: 'nombreGanador' es una cadena de texto válida.
 	// Post: La puntuación del jugador es incrementada en 1. Si no existía, se añade
-	// con 1 punto.
+	// con 1 punto. Su entrada del índice se mueve a la nueva posición.
+	@Override
 	public void registrarGanador(String nombreGanador) {
-		synchronized (ranking) {
-			// Usa getOrDefault para obtener el valor actual (o 0 si es nuevo) y luego suma
-			// 1.
-			int victoriasActuales = ranking.getOrDefault(nombreGanador, 0);
-			ranking.put(nombreGanador, victoriasActuales + 1);
+		// compute hace la lectura, la suma y el cambio en el índice de forma atómica
+		// para ese jugador, sin bloquear a los demás: si no existe pone 1 y si existe
+		// suma 1.
+		ranking.compute(nombreGanador, (nombre, victorias) -> {
+			long nuevas = victorias == null ? 1 : victorias + 1;
+			moverEnIndice(nombre, victorias, nuevas);
+			// dentro de compute, para que el almacén reciba los cambios de cada jugador
+			// en el mismo orden en que se hacen
+			AlmacenRanking a = almacen;
+			if (a != null) {
+				a.registrarVictorias(nombre, nuevas);
+			}
+			return nuevas;
+		});
+		version.incrementAndGet();
+	}
+
+	// Pre: 'nombre' es una cadena de texto válida y 'victorias' >= 0.
+	// Post: El jugador pasa a tener exactamente 'victorias' partidas ganadas (se
+	// usa para restaurar el ranking guardado). Con 0 se quita del ranking.
+	public void establecerVictorias(String nombre, long victorias) {
+		ranking.compute(nombre, (n, anteriores) -> {
+			moverEnIndice(n, anteriores, victorias);
+			return victorias > 0 ? victorias : null;
+		});
+		version.incrementAndGet();
+	}
+
+	// Pre: El ranking está vacío y nadie más lo usa todavía. 'nombres' y
+	// 'victorias' tienen la misma longitud y están en el orden del ranking (más
+	// victorias primero y, a igualdad, por nombre).
+	// Post: Se carga el ranking de una vez (se usa al restaurar una instantánea):
+	// el mapa se crea ya con la capacidad necesaria y el índice se construye de
+	// una pasada a partir de las entradas ordenadas, sin buscar la posición de
+	// cada una. Si un nombre se repite (la instantánea se escribe mientras el
+	// ranking cambia), cuenta su primera aparición, la de más victorias.
+	public void cargarOrdenado(String[] nombres, long[] victorias) {
+		Map<String, Long> cargado = new ConcurrentHashMap<>(Math.max(16, nombres.length * 4 / 3 + 1));
+		Entrada[] entradas = new Entrada[nombres.length];
+		int n = 0;
+		for (int i = 0; i < nombres.length; i++) {
+			if (victorias[i] > 0 && cargado.putIfAbsent(nombres[i], victorias[i]) == null) {
+				entradas[n++] = new Entrada(nombres[i], victorias[i]);
+			}
+		}
+		ranking = cargado;
+		indice = new ConcurrentSkipListMap<>(new EntradasOrdenadas(entradas, n));
+		version.incrementAndGet();
+	}
+
+	// Pre: 'nombre' es una cadena de texto válida.
+	// Post: Retorna las partidas ganadas por 'nombre' (0 si no tiene ninguna).
+	public long getVictorias(String nombre) {
+		return ranking.getOrDefault(nombre, 0L);
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el número de jugadores con alguna victoria.
+	public int getNumeroJugadores() {
+		return ranking.size();
+	}
+
+	// Pre: Ninguna. Puede llamarse mientras el ranking cambia.
+	// Post: Se llama a 'accion' con el nombre y las victorias de cada jugador, de
+	// más a menos victorias. Se recorre el índice, que se actualiza antes de
+	// avisar al almacén, así que incluye todos los cambios ya enviados a él.
+	public void recorrerEnOrden(ObjLongConsumer<String> accion) {
+		for (Entrada e : indice.keySet()) {
+			accion.accept(e.nombre, e.victorias);
 		}
 	}
 
 	// Pre: Ninguna.
-	// Post: Retorna una cadena de texto que representa el ranking completo de
-	// partidas ganadas, ordenado de forma descendente por victorias.
+	// Post: Retorna una cadena de texto que representa los TOP_K primeros del
+	// ranking de partidas ganadas, ordenado de forma descendente por victorias.
 	// Formato: "nombre1:victorias1,nombre2:victorias2,..."
 	public String getRankingSerializado() {
-		// Crea un stream de las entradas del ranking
-		return ranking.entrySet().stream()
-				// Ordena por el valor (victorias) de forma descendente
-				.sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-				// Mapea a la cadena "nombre:victorias"
-				.map(e -> e.getKey() + ":" + e.getValue())
-				// Une todas las cadenas con comas
-				.collect(Collectors.joining(","));
-	}
-}
\ No newline at end of file
+		return getInstantanea().serializado;
+	}
+
+	// Pre: 0 <= 'desplazamiento' <= DESPLAZAMIENTO_MAXIMO y 'limite' > 0.
+	// Post: Retorna la página del ranking que empieza en la posición
+	// 'desplazamiento' (0 es el primero) con como mucho 'limite' jugadores, con
+	// el formato de 'getRankingSerializado()'. Si la página cae dentro del TOP_K
+	// sale de la caché; si no, se recorre el índice solo hasta el final de la
+	// página.
+	public String getPaginaSerializada(int desplazamiento, int limite) {
+		long fin = (long) desplazamiento + limite;
+		List<Entrada> pagina = new ArrayList<>(Math.min(limite, TOP_K));
+		Instantanea instantanea = getInstantanea();
+		if (fin <= TOP_K || instantanea.entradas.size() < TOP_K) {
+			List<Entrada> top = instantanea.entradas;
+			for (int i = desplazamiento; i < top.size() && i < fin; i++) {
+				pagina.add(top.get(i));
+			}
+		} else {
+			Iterator<Entrada> it = indice.keySet().iterator();
+			for (int i = 0; i < fin && it.hasNext(); i++) {
+				Entrada e = it.next();
+				if (i >= desplazamiento) {
+					pagina.add(e);
+				}
+			}
+		}
+		return serializar(pagina);
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la instantánea del TOP_K. Si el ranking ha cambiado desde la
+	// última, se construye otra recorriendo solo los TOP_K primeros del índice.
+	private Instantanea getInstantanea() {
+		Instantanea actual = cache;
+		long versionActual = version.get();
+		if (actual.version == versionActual) {
+			return actual;
+		}
+		List<Entrada> top = new ArrayList<>(TOP_K);
+		Iterator<Entrada> it = indice.keySet().iterator();
+		while (top.size() < TOP_K && it.hasNext()) {
+			top.add(it.next());
+		}
+		// se guarda con la versión leída antes de recorrer el índice: si ha cambiado
+		// mientras tanto, la siguiente consulta la vuelve a construir
+		Instantanea nueva = new Instantanea(versionActual, top, serializar(top));
+		cache = nueva;
+		return nueva;
+	}
+
+	// Pre: Se llama dentro de 'compute' para la clave 'nombre'. 'anteriores' son
+	// sus victorias actuales (o 'null') y 'nuevas' las que va a tener.
+	// Post: La entrada del jugador en el índice pasa de 'anteriores' a 'nuevas'.
+	private void moverEnIndice(String nombre, Long anteriores, long nuevas) {
+		if (anteriores != null) {
+			indice.remove(new Entrada(nombre, anteriores));
+		}
+		if (nuevas > 0) {
+			indice.put(new Entrada(nombre, nuevas), Boolean.TRUE);
+		}
+	}
+
+	// Pre: 'entradas' está ordenada.
+	// Post: Retorna las entradas con el formato "nombre1:victorias1,...".
+	private static String serializar(List<Entrada> entradas) {
+		StringBuilder sb = new StringBuilder();
+		for (Entrada e : entradas) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append(e.nombre).append(':').append(e.victorias);
+		}
+		return sb.toString();
+	}
+}
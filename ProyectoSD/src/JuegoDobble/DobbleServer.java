@@ -2,58 +2,289 @@ package JuegoDobble;
 
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
 
 //servidor que crea y gestiona los hilos para comunicarse con el cliente (ClienteGestorHilos)
 public class DobbleServer {
 
 	private static final int PUERTO = 12345;
+	// modos de ejecución que se pueden elegir con el primer argumento de main
+	private static final String MODO_CLASICO = "clasico";
+	private static final String MODO_NIO = "nio";
+	private static final String MODO_VIRTUAL = "virtual";
 	// lista maestra de todos los clientes activos. el set asegura que no haya
 	// duplicados y
-	// Collections.synchronizedSet(...) asegura añadir o eliminar elementos aunque
-	// lo hagan muchos hilos a la vez
-	public static Set<ClienteGestorHilos> clientesConectados = Collections.synchronizedSet(new HashSet<>());
-	// instancia de CoordinadorPartida para poder jugar varias partidas a la vez
-	private static CoordinadorPartida coordinadorPartida = new CoordinadorPartida();
+	// ConcurrentHashMap.newKeySet() asegura añadir o eliminar elementos aunque
+	// lo hagan muchos hilos a la vez, sin un monitor global
+	public static Set<ClienteGestorHilos> clientesConectados = ConcurrentHashMap.newKeySet();
+	// temporizador compartido por todo el servidor: un solo hilo dispara todos los
+	// plazos (por ejemplo, la espera máxima en las salas) en lugar de un hilo por
+	// jugador
+	private static final ScheduledExecutorService temporizador = Executors.newSingleThreadScheduledExecutor(tarea -> {
+		Thread hilo = new Thread(tarea, "dobble-temporizador");
+		hilo.setDaemon(true);
+		return hilo;
+	});
+	// vigilancia de la inactividad de todas las conexiones, que avanza en el
+	// temporizador (ver RuedaInactividad)
+	private static final RuedaInactividad ruedaInactividad = new RuedaInactividad();
+	// ejecutor compartido en el que se vacían los buzones de todas las partidas
+	// (hilos virtuales si la JVM los ofrece)
+	private static final ExecutorService ejecutorPartidas = HilosVirtuales.crearEjecutorPorTarea("dobble-partida");
+	// ejecutor compartido de los escritores que vacían las colas de salida de los
+	// clientes en los modos clásico y virtual (ver EscritorSocket)
+	private static final ExecutorService ejecutorEscritura = HilosVirtuales.crearEjecutorPorTarea("dobble-escritor");
 	// instancia de DobbleRanking para el historial de victorias
 	private static DobbleRanking rankingGlobal = new DobbleRanking();
+	// instancia de CoordinadorPartida para poder jugar varias partidas a la vez.
+	// Hasta que 'main()' abre el historial y el diario de eventos en disco (ver
+	// 'abrirCoordinador()') solo los guarda en memoria, así que cargar esta clase
+	// sin arrancar el servidor (por ejemplo, en los benchmarks) no crea ficheros
+	private static CoordinadorPartida coordinadorPartida = crearCoordinador(null, null);
 	// Conjunto para reservar nombres de forma permanente.
-	public static final Set<String> nombresReservados = Collections.synchronizedSet(new HashSet<>());
-	public static final boolean LOGGING_ACTIVO = true;
+	public static final Set<String> nombresReservados = ConcurrentHashMap.newKeySet();
+	// sesiones abiertas por su token (ver ClienteGestorHilos.reanudar()): Token ->
+	// Cliente. Un cliente que pierde la conexión vuelve a su sesión con
+	// RESUME|token mientras dura el plazo de gracia
+	private static final Map<String, ClienteGestorHilos> sesiones = new ConcurrentHashMap<>();
+	private static final SecureRandom generadorTokens = new SecureRandom();
+	// almacén en disco del ranking y de los nombres reservados (ver
+	// AlmacenRanking), o 'null' si no se pudo abrir. El directorio se elige con la
+	// propiedad del sistema dobble.ranking.dir
+	private static AlmacenRanking almacenRanking;
+	// conexiones aceptadas desde que arrancó el servidor (ver Metricas)
+	private static final LongAdder conexionesAceptadas = Metricas.contador("dobble_conexiones_aceptadas_total",
+			"Conexiones aceptadas.");
 
 	// Pre: Ninguna. El sistema operativo debe permitir la apertura del puerto
-	// definido (PUERTO = 12345).
-	// Post: El servidor se inicia y comienza a escuchar indefinidamente en el
-	// puerto especificado. Por cada conexión de cliente entrante, se crea, se añade
+	// definido (PUERTO = 12345). 'args' puede indicar el modo de ejecución:
+	// "clasico" (por defecto), "virtual" o "nio [numBucles]".
+	// Post: El servidor se inicia en el modo elegido y comienza a escuchar
+	// indefinidamente en el puerto especificado.
+	public static void main(String[] args) {
+		Bitacora.info(Bitacora.SERVIDOR, "Servidor Dobble iniciando...");
+		// se generan y verifican todos los mazos antes de aceptar clientes, así
+		// ninguna partida paga el coste de generar su mazo
+		MazoDobble.precargarYVerificar();
+		abrirAlmacenRanking();
+		abrirCoordinador();
+		registrarMetricas();
+		Metricas.iniciarServidorHttp();
+		ruedaInactividad.iniciar(temporizador);
+		String modo = args.length > 0 ? args[0].toLowerCase() : MODO_CLASICO;
+
+		switch (modo) {
+		case MODO_NIO:
+			int numBucles = Runtime.getRuntime().availableProcessors();
+			if (args.length > 1) {
+				try {
+					numBucles = Math.max(1, Integer.parseInt(args[1]));
+				} catch (NumberFormatException e) {
+					Bitacora.aviso(Bitacora.SERVIDOR, "Número de bucles no válido, se usan {}.", numBucles);
+				}
+			}
+			iniciarModoNIO(numBucles);
+			break;
+		case MODO_VIRTUAL:
+			iniciarModoVirtual();
+			break;
+		case MODO_CLASICO:
+			iniciarModoClasico();
+			break;
+		default:
+			Bitacora.error(Bitacora.SERVIDOR, "Modo desconocido '{}'. Modos disponibles: {}.", modo,
+					MODO_CLASICO + ", " + MODO_VIRTUAL + ", " + MODO_NIO + " [numBucles]");
+			break;
+		}
+	}
+
+	// Pre: Ninguna. Se llama antes de aceptar clientes.
+	// Post: Se restauran el ranking y los nombres reservados guardados en disco y
+	// los cambios siguientes se guardan en el almacén. Al parar la JVM se vacía el
+	// almacén en disco. Si el almacén no se puede abrir se avisa y el servidor
+	// sigue sin persistencia.
+	private static void abrirAlmacenRanking() {
+		try {
+			almacenRanking = new AlmacenRanking(Paths.get(System.getProperty("dobble.ranking.dir", "datos")),
+					rankingGlobal, nombresReservados);
+		} catch (IOException e) {
+			Bitacora.aviso(Bitacora.PERSISTENCIA,
+					"No se puede usar el ranking en disco: {}. El ranking se guarda solo en memoria.", e.getMessage());
+			return;
+		}
+		rankingGlobal.setAlmacen(almacenRanking);
+		Runtime.getRuntime().addShutdownHook(new Thread(almacenRanking::cerrar, "dobble-wal-cierre"));
+	}
+
+	// Pre: Ninguna. Se llama antes de aceptar clientes.
+	// Post: El coordinador pasa a guardar el historial y el diario de eventos en
+	// disco, en los ficheros de las propiedades del sistema
+	// dobble.historial.fichero y dobble.eventos.fichero.
+	private static void abrirCoordinador() {
+		coordinadorPartida = crearCoordinador(
+				Paths.get(System.getProperty("dobble.historial.fichero", "datos/historial.seg")),
+				Paths.get(System.getProperty("dobble.eventos.fichero", "datos/eventos.bin")));
+	}
+
+	// Pre: 'historial' y 'eventos' son las rutas del historial y del diario de
+	// eventos, o 'null' para guardarlos solo en memoria.
+	// Post: Retorna un coordinador con el temporizador, el ejecutor de partidas y
+	// el ranking global del servidor.
+	private static CoordinadorPartida crearCoordinador(Path historial, Path eventos) {
+		return new CoordinadorPartida(temporizador, ejecutorPartidas, rankingGlobal, new HistorialPartidas(historial),
+				new DiarioEventos(eventos));
+	}
+
+	// Pre: Ninguna. Se llama una vez al arrancar.
+	// Post: Se registran en Metricas los valores que ya cuentan otras clases:
+	// clientes y sesiones, partidas activas y salas de espera, tiempo de
+	// emparejamiento, colas de salida, almacén del ranking y bitácora.
+	private static void registrarMetricas() {
+		Metricas.registrarIndicador("dobble_clientes_conectados", "Clientes conectados.", clientesConectados::size);
+		Metricas.registrarIndicador("dobble_sesiones", "Sesiones abiertas (conectadas o en plazo de gracia).",
+				sesiones::size);
+		Metricas.registrarIndicador("dobble_partidas_activas", "Partidas no terminadas.",
+				coordinadorPartida::getPartidasActivasCount);
+		coordinadorPartida.registrarMetricas();
+		Metricas.registrarIndicador("dobble_salida_pendientes", "Mensajes pendientes en todas las colas de salida.",
+				ColaSalida::getProfundidadTotal);
+		Metricas.registrarIndicador("dobble_salida_pendientes_max", "Mayor profundidad alcanzada por una cola de salida.",
+				ColaSalida::getProfundidadMaxima);
+		Metricas.registrarContador("dobble_salida_encolados_total", "Mensajes encolados para enviar.",
+				ColaSalida::getMensajesEncolados);
+		Metricas.registrarContador("dobble_salida_escrituras_total", "Escrituras en los sockets.",
+				ColaSalida::getEscrituras);
+		Metricas.registrarContador("dobble_salida_descartados_total", "Avisos de ronda descartados por colas llenas.",
+				ColaSalida::getMensajesDescartados);
+		Metricas.registrarContador("dobble_salida_desconexiones_total",
+				"Clientes desconectados por desbordar su cola de salida.", ColaSalida::getDesconexionesPorDesbordamiento);
+		Metricas.registrarIndicador("dobble_ranking_jugadores", "Jugadores con alguna victoria.",
+				rankingGlobal::getNumeroJugadores);
+		Metricas.registrarContador("dobble_ranking_wal_registros_total", "Registros escritos en el WAL del ranking.",
+				AlmacenRanking::getRegistrosEscritos);
+		Metricas.registrarContador("dobble_ranking_wal_lotes_total", "Lotes (escrituras con fsync) del WAL del ranking.",
+				AlmacenRanking::getLotesEscritos);
+		Metricas.registrarContador("dobble_ranking_compactaciones_total", "Compactaciones del WAL del ranking.",
+				AlmacenRanking::getCompactaciones);
+		Metricas.registrarContador("dobble_bitacora_escritos_total", "Mensajes escritos por la bitácora.",
+				Bitacora::getEscritos);
+		Metricas.registrarContador("dobble_bitacora_descartados_total",
+				"Mensajes de la bitácora descartados por tenerla llena.", Bitacora::getDescartados);
+	}
+
+	// Pre: Ninguna.
+	// Post: Modo clásico. Por cada conexión de cliente entrante, se crea, se añade
 	// a 'clientesConectados' y se arranca un nuevo hilo (ClienteGestorHilos) para
 	// gestionarla. El bucle de aceptación solo finaliza si ocurre una IOException
 	// grave.
-	public static void main(String[] args) {
-		System.out.println("Servidor Dobble iniciando...");
+	private static void iniciarModoClasico() {
+		try (ServerSocket serverSocket = new ServerSocket(PUERTO)) {
+			Bitacora.info(Bitacora.SERVIDOR, "Servidor escuchando en el puerto {}", PUERTO);
+			while (true) {
+				Socket clientSocket = serverSocket.accept();
+				conexionesAceptadas.increment();
+				Bitacora.info(Bitacora.CONEXION, "Cliente conectado desde: {}", clientSocket.getInetAddress());
+
+				ClienteGestorHilos hilo = new ClienteGestorHilos(clientSocket);
+				clientesConectados.add(hilo);
+				new Thread(hilo).start();
+			}
+		} catch (IOException e) {
+			Bitacora.error(Bitacora.SERVIDOR, "Error en el servidor principal: {}", e.getMessage());
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Modo virtual. Igual que el modo clásico (lectura bloqueante en
+	// ClienteGestorHilos.run()), pero cada cliente se ejecuta en un hilo virtual
+	// de un ejecutor "un hilo por tarea" en lugar de en un hilo de plataforma. Si
+	// la JVM no soporta hilos virtuales (anterior a Java 21) se avisa y se usa un
+	// pool de hilos de plataforma.
+	private static void iniciarModoVirtual() {
+		if (!HilosVirtuales.disponibles()) {
+			Bitacora.aviso(Bitacora.SERVIDOR, "Esta JVM no soporta hilos virtuales, se usarán hilos de plataforma.");
+		}
+		ExecutorService ejecutor = HilosVirtuales.crearEjecutorPorTarea("dobble-cliente");
 		try (ServerSocket serverSocket = new ServerSocket(PUERTO)) {
-			System.out.println("Servidor escuchando en el puerto " + PUERTO);
+			Bitacora.info(Bitacora.SERVIDOR, "Servidor (hilos virtuales) escuchando en el puerto {}", PUERTO);
 			while (true) {
 				Socket clientSocket = serverSocket.accept();
-				System.out.println("Cliente conectado desde: " + clientSocket.getInetAddress());
+				conexionesAceptadas.increment();
+				Bitacora.info(Bitacora.CONEXION, "Cliente conectado desde: {}", clientSocket.getInetAddress());
 
 				ClienteGestorHilos hilo = new ClienteGestorHilos(clientSocket);
 				clientesConectados.add(hilo);
-				hilo.start();
+				ejecutor.execute(hilo);
 			}
 		} catch (IOException e) {
-			System.out.println("Error en el servidor principal: " + e.getMessage());
+			Bitacora.error(Bitacora.SERVIDOR, "Error en el servidor principal: {}", e.getMessage());
+		} finally {
+			ejecutor.shutdown();
+		}
+	}
+
+	// Pre: 'numBucles' >= 1.
+	// Post: Modo NIO. Se arrancan 'numBucles' hilos con un BucleEventosNIO cada
+	// uno y el hilo principal se queda aceptando conexiones, que se reparten entre
+	// los bucles por turnos (round-robin). Cada bucle atiende con sockets no
+	// bloqueantes a todos sus clientes, así que el número de hilos no crece con el
+	// número de conexiones. Los bucles cuyo selector ha fallado salen del reparto;
+	// si no queda ninguno, el servidor deja de aceptar conexiones.
+	private static void iniciarModoNIO(int numBucles) {
+		try (ServerSocketChannel servidor = ServerSocketChannel.open()) {
+			servidor.bind(new InetSocketAddress(PUERTO));
+
+			BucleEventosNIO[] bucles = new BucleEventosNIO[numBucles];
+			for (int i = 0; i < numBucles; i++) {
+				bucles[i] = new BucleEventosNIO();
+				Thread hiloBucle = new Thread(bucles[i], "dobble-nio-" + i);
+				hiloBucle.start();
+			}
+			Bitacora.info(Bitacora.SERVIDOR, "Servidor NIO escuchando en el puerto {} con {} bucles de eventos", PUERTO,
+					numBucles);
+
+			int siguiente = 0;
+			while (true) {
+				SocketChannel canal = servidor.accept();
+				conexionesAceptadas.increment();
+				Bitacora.info(Bitacora.CONEXION, "Cliente conectado desde: {}", canal.socket().getInetAddress());
+				int saltados = 0;
+				while (!bucles[siguiente].isActivo() && saltados < numBucles) {
+					siguiente = (siguiente + 1) % numBucles;
+					saltados++;
+				}
+				if (!bucles[siguiente].isActivo()) {
+					Bitacora.error(Bitacora.SERVIDOR, "Ninguno de los {} bucles de eventos sigue activo. Se detiene el servidor.",
+							numBucles);
+					canal.close();
+					return;
+				}
+				bucles[siguiente].registrar(canal);
+				siguiente = (siguiente + 1) % numBucles;
+			}
+		} catch (IOException e) {
+			Bitacora.error(Bitacora.SERVIDOR, "Error en el servidor principal: {}", e.getMessage());
 		}
 	}
 
 	// Pre: 'cliente' es una instancia válida de ClienteGestorHilos que previamente
 	// estuvo en 'clientesConectados'.
 	// Post: La instancia 'cliente' es eliminada del conjunto 'clientesConectados'.
-	// Además, se llama a 'coordinadorPartida.removerJugador(cliente)' para asegurar
-	// que el cliente sea eliminado de cualquier sala de espera.
+	// El cliente ya ha abandonado su sala de espera o su partida antes (ver
+	// 'ClienteGestorHilos.liberarSesion()').
 	public static void removerCliente(ClienteGestorHilos cliente) {
 		clientesConectados.remove(cliente);
-		coordinadorPartida.removerJugador(cliente);
-		System.out.println("Cliente desconectado. Conexiones activas: " + clientesConectados.size());
+		Bitacora.info(Bitacora.CONEXION, "Cliente desconectado. Conexiones activas: {}", clientesConectados.size());
 	}
 
 	// Pre: Ninguna.
@@ -70,12 +301,72 @@ public class DobbleServer {
 		return coordinadorPartida;
 	}
 
+	// Pre: Ninguna.
+	// Post: Retorna el ejecutor compartido donde se ejecutan las órdenes de las
+	// partidas (ver BuzonPartida).
+	public static ExecutorService getEjecutorPartidas() {
+		return ejecutorPartidas;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el temporizador compartido del servidor. Sus tareas deben ser
+	// cortas y no bloquear, ya que todas se ejecutan en el mismo hilo.
+	public static ScheduledExecutorService getTemporizador() {
+		return temporizador;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la rueda que vigila la inactividad de las conexiones.
+	public static RuedaInactividad getRuedaInactividad() {
+		return ruedaInactividad;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el ejecutor compartido de los escritores de socket.
+	public static ExecutorService getEjecutorEscritura() {
+		return ejecutorEscritura;
+	}
+
 	// Pre: Ninguna.
 	// Post: Retorna la única instancia estática y global de DobbleRanking.
 	public static DobbleRanking getRankingGlobal() {
 		return rankingGlobal;
 	}
 
+	// Pre: 'nombre' es un nombre de usuario válido que no está en uso.
+	// Post: El nombre queda reservado para siempre: se añade a
+	// 'nombresReservados' y, si hay almacén, se guarda en disco.
+	public static void reservarNombre(String nombre) {
+		String reservado = nombre.toUpperCase();
+		if (nombresReservados.add(reservado) && almacenRanking != null) {
+			almacenRanking.registrarNombre(reservado);
+		}
+	}
+
+	// Pre: 'cliente' acaba de iniciar sesión.
+	// Post: Se genera un token aleatorio (128 bits en Base64 para URL, sin '|') y
+	// se asocia a 'cliente'. Retorna el token.
+	public static String registrarSesion(ClienteGestorHilos cliente) {
+		byte[] bytes = new byte[16];
+		generadorTokens.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		sesiones.put(token, cliente);
+		return token;
+	}
+
+	// Pre: 'token' es el token enviado por un cliente.
+	// Post: Retorna el cliente de la sesión abierta con ese token o 'null' si no
+	// hay ninguna.
+	public static ClienteGestorHilos buscarSesion(String token) {
+		return sesiones.get(token);
+	}
+
+	// Pre: La sesión de 'token' se ha cerrado.
+	// Post: El token deja de ser válido.
+	public static void eliminarSesion(String token) {
+		sesiones.remove(token);
+	}
+
 	// Pre: 'nombre' es la cadena de texto a verificar.
 	// Post: Retorna 'true' si el nombre está en 'nombresReservados', 'false' en
 	// caso contrario.
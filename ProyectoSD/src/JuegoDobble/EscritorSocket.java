@@ -0,0 +1,71 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Escritor de la cola de salida de un cliente en los modos clásico y
+virtual. Cuando hay mensajes en la ColaSalida se programa en un ejecutor
+compartido, escribe todo lo pendiente en el stream con búfer y hace un
+único flush. Así un cliente lento solo bloquea su propio escritor y no al
+hilo que le envía (la partida o el lector de otro jugador).
+*/
+public class EscritorSocket implements Runnable {
+
+	private final ColaSalida cola;
+	private final OutputStream out;
+	private final Socket socket;
+	private final Executor ejecutor;
+	// 'true' mientras hay un vaciado programado o en marcha
+	private final AtomicBoolean programado = new AtomicBoolean(false);
+
+	// Pre: 'out' es el stream con búfer de 'socket' y 'ejecutor' el ejecutor
+	// compartido de los escritores.
+	// Post: Se crea el escritor de 'cola', todavía sin nada programado.
+	public EscritorSocket(ColaSalida cola, OutputStream out, Socket socket, Executor ejecutor) {
+		this.cola = cola;
+		this.out = out;
+		this.socket = socket;
+		this.ejecutor = ejecutor;
+	}
+
+	// Pre: Se acaba de encolar algo en la cola. Puede llamarse desde cualquier
+	// hilo.
+	// Post: Si no había un vaciado programado se programa uno; si lo había, ese
+	// vaciado escribirá también lo nuevo.
+	public void programar() {
+		if (programado.compareAndSet(false, true)) {
+			ejecutor.execute(this);
+		}
+	}
+
+	// Pre: Se ejecuta en el ejecutor, nunca dos a la vez para el mismo cliente.
+	// Post: Se escriben todos los mensajes pendientes seguidos y se hace un solo
+	// flush. Si durante la escritura llegan más se repite. Si la escritura falla
+	// se cierra el socket; el hilo lector del cliente detecta el cierre y libera
+	// la sesión.
+	@Override
+	public void run() {
+		try {
+			do {
+				ByteBuffer bufer;
+				while ((bufer = cola.sacar()) != null) {
+					out.write(bufer.array(), bufer.arrayOffset() + bufer.position(), bufer.remaining());
+				}
+				out.flush();
+				cola.registrarEscritura(true);
+				programado.set(false);
+			} while (!cola.estaVacia() && programado.compareAndSet(false, true));
+		} catch (IOException e) {
+			cola.cerrar();
+			try {
+				socket.close();
+			} catch (IOException ignorada) {
+			}
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package JuegoDobble;
+
+import java.util.Arrays;
+
+/*
+Registro binario compacto de lo que pasa en una partida, para poder
+reproducirla (ver ReproductorPartidas). Lo rellena la partida desde su
+buzón y, al terminar, se guarda entero como un bloque del diario de
+eventos (ver DiarioEventos).
+Formato del bloque:
+- cabecera: versión (u8), identificador de la partida (varint), semilla
+  del barajado (8 bytes), orden del mazo (u8), número de jugadores (u8) e
+  instante de inicio en milisegundos desde 1970 (varint).
+- un evento por cada intento (acertado o no), rendición y desconexión:
+  un byte con el tipo en los 3 bits bajos y el asiento en los altos, el
+  tiempo desde el evento anterior en microsegundos (varint, medido con
+  System.nanoTime(), así que nunca decrece) y, en los intentos, el
+  símbolo (varint).
+- un evento FIN con las puntuaciones finales por asiento (varint cada
+  una).
+Un intento ocupa unos 3 bytes. Como se registran también los intentos
+fallidos, un cliente que envíe símbolos sin parar haría crecer el
+registro mientras dure la partida: al llegar a MAX_BYTES se deja de
+registrar, se añade un evento TRUNCADO (sin datos) y solo se escribe ya
+el FIN. El reproductor informa de esas partidas en vez de verificarlas.
+*/
+public class EventosPartida {
+
+	public static final int VERSION = 1;
+
+	// tipos de evento
+	public static final int FALLO = 0;
+	public static final int ACIERTO = 1;
+	public static final int RENDICION = 2;
+	public static final int DESCONEXION = 3;
+	public static final int TRUNCADO = 6;
+	public static final int FIN = 7;
+
+	// tamaño a partir del cual se deja de registrar (una partida normal de orden
+	// 13 con 8 jugadores ocupa unos pocos KB)
+	public static final int MAX_BYTES = 256 * 1024;
+
+	private static final int BITS_TIPO = 3;
+	private static final int MASCARA_TIPO = (1 << BITS_TIPO) - 1;
+
+	private final long idPartida;
+	private byte[] datos;
+	private int longitud;
+	// 'true' desde que se alcanzó MAX_BYTES: solo queda escribir el FIN
+	private boolean truncado;
+	// System.nanoTime() del último evento (o del inicio)
+	private long instanteAnterior;
+
+	// Pre: Los parámetros son los de la partida que se registra.
+	// Post: Se crea el registro con la cabecera ya escrita.
+	public EventosPartida(long idPartida, long semilla, int orden, int jugadores) {
+		this.idPartida = idPartida;
+		this.datos = new byte[64];
+		this.instanteAnterior = System.nanoTime();
+		escribirByte(VERSION);
+		escribirVarlong(idPartida);
+		for (int i = 56; i >= 0; i -= 8) {
+			escribirByte((int) (semilla >>> i));
+		}
+		escribirByte(orden);
+		escribirByte(jugadores);
+		escribirVarlong(System.currentTimeMillis());
+	}
+
+	// Pre: Se llama desde el buzón de la partida. 'instante' es el
+	// System.nanoTime() en que llegó el intento.
+	// Post: Se añade el intento del jugador de 'asiento' con 'simbolo' (si el
+	// registro no está truncado, ver 'hayHueco()').
+	public void intento(int asiento, int simbolo, boolean acierto, long instante) {
+		if (!hayHueco(instante)) {
+			return;
+		}
+		evento(acierto ? ACIERTO : FALLO, asiento, instante);
+		// sin signo: un cliente puede enviar un símbolo negativo
+		escribirVarlong(simbolo & 0xFFFFFFFFL);
+	}
+
+	// Pre: Se llama desde el buzón de la partida.
+	// Post: Se añade el abandono (rendición o desconexión) del jugador de
+	// 'asiento' (si el registro no está truncado, ver 'hayHueco()').
+	public void abandono(int asiento, boolean rendicion) {
+		long instante = System.nanoTime();
+		if (hayHueco(instante)) {
+			evento(rendicion ? RENDICION : DESCONEXION, asiento, instante);
+		}
+	}
+
+	// Pre: Se llama una sola vez, al terminar la partida.
+	// Post: Se añade el evento FIN con las puntuaciones por asiento.
+	public void fin(int[] puntosAsiento) {
+		evento(FIN, 0, System.nanoTime());
+		for (int puntos : puntosAsiento) {
+			escribirVarlong(puntos);
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el búfer del registro; los bytes válidos son los
+	// 'getLongitud()' primeros.
+	public byte[] getDatos() {
+		return datos;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos bytes ocupa el registro.
+	public int getLongitud() {
+		return longitud;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si se ha dejado de registrar por alcanzar MAX_BYTES.
+	public boolean isTruncado() {
+		return truncado;
+	}
+
+	// Pre: Se va a añadir un evento en 'instante'.
+	// Post: Retorna 'true' si aún cabe. La primera vez que el registro alcanza
+	// MAX_BYTES se añade el evento TRUNCADO, se avisa y retorna 'false', igual
+	// que en todas las llamadas siguientes.
+	private boolean hayHueco(long instante) {
+		if (truncado) {
+			return false;
+		}
+		if (longitud < MAX_BYTES) {
+			return true;
+		}
+		truncado = true;
+		evento(TRUNCADO, 0, instante);
+		Bitacora.aviso(Bitacora.PARTIDA, "Los eventos de la partida {} superan {} bytes: se dejan de registrar.",
+				idPartida, MAX_BYTES);
+		return false;
+	}
+
+	// Pre: 0 <= 'tipo' <= MASCARA_TIPO y 'asiento' < 32.
+	// Post: Se escribe el byte de tipo y asiento y el tiempo desde el evento
+	// anterior. Un 'instante' anterior al del último evento (un intento que llegó
+	// antes pero se encoló después) cuenta como 0.
+	private void evento(int tipo, int asiento, long instante) {
+		escribirByte(tipo | asiento << BITS_TIPO);
+		long delta = Math.max(0, instante - instanteAnterior);
+		instanteAnterior = Math.max(instante, instanteAnterior);
+		escribirVarlong(delta / 1000);
+	}
+
+	// Pre: Ninguna.
+	// Post: Se añade el byte bajo de 'valor', ampliando el búfer si hace falta.
+	private void escribirByte(int valor) {
+		if (longitud == datos.length) {
+			datos = Arrays.copyOf(datos, datos.length * 2);
+		}
+		datos[longitud++] = (byte) valor;
+	}
+
+	// Pre: 'valor' >= 0.
+	// Post: Se escribe 'valor' en 7 bits por byte, con el bit alto a 1 en todos
+	// los bytes menos el último.
+	private void escribirVarlong(long valor) {
+		while ((valor & ~0x7FL) != 0) {
+			escribirByte((int) ((valor & 0x7F) | 0x80));
+			valor >>>= 7;
+		}
+		escribirByte((int) valor);
+	}
+
+	/*
+	Lectura de un bloque: primero la cabecera, que queda en los campos, y
+	después un evento por cada llamada a 'siguiente()'.
+	*/
+	public static final class Lector {
+		private final byte[] datos;
+		private final int fin;
+		private int posicion;
+
+		private final long idPartida;
+		private final long semilla;
+		private final int orden;
+		private final int jugadores;
+		private final long inicio;
+
+		// datos del último evento leído
+		private int tipo;
+		private int asiento;
+		private long microsDesdeAnterior;
+		private int simbolo;
+		private final int[] puntos;
+
+		// Pre: 'datos[desde, desde + longitud)' es un bloque completo.
+		// Post: Se lee la cabecera. Lanza IllegalArgumentException si la versión no
+		// es VERSION.
+		public Lector(byte[] datos, int desde, int longitud) {
+			this.datos = datos;
+			this.posicion = desde;
+			this.fin = desde + longitud;
+			int version = leerByte();
+			if (version != VERSION) {
+				throw new IllegalArgumentException("Versión de eventos desconocida: " + version);
+			}
+			idPartida = leerVarlong();
+			long s = 0;
+			for (int i = 0; i < 8; i++) {
+				s = s << 8 | leerByte();
+			}
+			semilla = s;
+			orden = leerByte();
+			jugadores = leerByte();
+			inicio = leerVarlong();
+			puntos = new int[jugadores];
+		}
+
+		// Pre: Ninguna.
+		// Post: Si quedan eventos, se lee el siguiente y retorna 'true'; si no,
+		// retorna 'false'. Lanza IllegalArgumentException si el bloque está
+		// cortado.
+		public boolean siguiente() {
+			if (posicion >= fin) {
+				return false;
+			}
+			int cabecera = leerByte();
+			tipo = cabecera & MASCARA_TIPO;
+			asiento = cabecera >>> BITS_TIPO;
+			microsDesdeAnterior = leerVarlong();
+			if (tipo == ACIERTO || tipo == FALLO) {
+				simbolo = (int) leerVarlong();
+			} else if (tipo == FIN) {
+				for (int i = 0; i < jugadores; i++) {
+					puntos[i] = (int) leerVarlong();
+				}
+			}
+			return true;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna el identificador de la partida.
+		public long getIdPartida() {
+			return idPartida;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna la semilla con la que se barajó el mazo.
+		public long getSemilla() {
+			return semilla;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna el orden del mazo.
+		public int getOrden() {
+			return orden;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna el número de jugadores (asientos) de la partida.
+		public int getJugadores() {
+			return jugadores;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna el inicio de la partida en milisegundos desde 1970.
+		public long getInicio() {
+			return inicio;
+		}
+
+		// Pre: Se ha leído un evento con 'siguiente()'.
+		// Post: Retorna su tipo (FALLO, ACIERTO, RENDICION, DESCONEXION, TRUNCADO o
+		// FIN).
+		public int getTipo() {
+			return tipo;
+		}
+
+		// Pre: Igual que 'getTipo()'.
+		// Post: Retorna el asiento del jugador del evento (0 en TRUNCADO y FIN).
+		public int getAsiento() {
+			return asiento;
+		}
+
+		// Pre: Igual que 'getTipo()'.
+		// Post: Retorna los microsegundos desde el evento anterior.
+		public long getMicrosDesdeAnterior() {
+			return microsDesdeAnterior;
+		}
+
+		// Pre: El último evento es un intento.
+		// Post: Retorna el símbolo pulsado.
+		public int getSimbolo() {
+			return simbolo;
+		}
+
+		// Pre: El último evento es FIN.
+		// Post: Retorna las puntuaciones finales por asiento (el array es del
+		// lector y se reutiliza).
+		public int[] getPuntos() {
+			return puntos;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna el siguiente byte del bloque, sin signo.
+		private int leerByte() {
+			if (posicion >= fin) {
+				throw new IllegalArgumentException("Bloque de eventos cortado.");
+			}
+			return datos[posicion++] & 0xFF;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna el siguiente varint del bloque.
+		private long leerVarlong() {
+			long valor = 0;
+			int desplazamiento = 0;
+			int b;
+			do {
+				b = leerByte();
+				valor |= (long) (b & 0x7F) << desplazamiento;
+				desplazamiento += 7;
+			} while ((b & 0x80) != 0 && desplazamiento < 64);
+			return valor;
+		}
+	}
+}
@@ -0,0 +1,434 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+Generador de carga sin interfaz: lanza muchos jugadores automáticos
+(BotCarga) contra un servidor ya arrancado y mide cómo responde. Cada
+bot abre su propia conexión, inicia sesión y juega partidas completas
+con el protocolo de texto, así que el servidor no distingue un bot de
+un cliente real.
+Al terminar muestra el ritmo de conexiones, las partidas por segundo y
+los percentiles de la latencia entre un INTENTO acertado y el mensaje
+RONDA que lo confirma, y deja el resumen en un fichero JSON para
+compararlo con el de otra ejecución.
+Se configura con propiedades del sistema:
+- dobble.carga.host / dobble.carga.puerto: servidor (127.0.0.1:12345).
+- dobble.carga.bots: número de bots (100).
+- dobble.carga.jugadores / dobble.carga.orden: JUGAR que envía cada bot
+  (2 jugadores, orden por defecto del servidor).
+- dobble.carga.partidas: partidas que juega cada bot antes de irse (1).
+- dobble.carga.ritmo: conexiones nuevas por segundo (0 = todas a la vez).
+- dobble.carga.perfiles: reparto de perfiles de juego, por ejemplo
+  "rapido:3,normal:7". Un perfil es uno de PERFILES o "min-max@error"
+  (tiempo de reacción en ms y probabilidad de fallar a propósito).
+- dobble.carga.rendicion: probabilidad de que un bot se rinda en una
+  partida (0).
+- dobble.carga.duracion: segundos tras los que se cortan los bots que
+  sigan jugando (300).
+- dobble.carga.semilla: semilla de las decisiones de los bots.
+- dobble.carga.prefijo: prefijo de los nombres de los bots. Por defecto
+  cambia en cada ejecución porque el servidor no deja reutilizar nombres.
+- dobble.carga.salida: fichero JSON del resumen (carga.json).
+- dobble.carga.base: resumen JSON de otra ejecución con el que comparar.
+*/
+public class GeneradorCarga {
+
+	// perfiles de juego predefinidos: tiempo de reacción (ms) y tasa de error
+	private static final Map<String, Perfil> PERFILES = new LinkedHashMap<>();
+	static {
+		PERFILES.put("instantaneo", new Perfil("instantaneo", 0, 0, 0.0));
+		PERFILES.put("rapido", new Perfil("rapido", 150, 400, 0.02));
+		PERFILES.put("normal", new Perfil("normal", 400, 1200, 0.08));
+		PERFILES.put("lento", new Perfil("lento", 1000, 3000, 0.15));
+	}
+	// la rendición, si toca, se hace en una de las primeras rondas de la partida
+	private static final int RONDAS_MAX_RENDICION = 5;
+	// errores de bots que se muestran como ejemplo en el informe
+	private static final int MAX_EJEMPLOS_ERROR = 5;
+
+	// perfil de juego de un bot
+	static final class Perfil {
+		final String nombre;
+		final int reaccionMin;
+		final int reaccionMax;
+		final double tasaError;
+
+		Perfil(String nombre, int reaccionMin, int reaccionMax, double tasaError) {
+			this.nombre = nombre;
+			this.reaccionMin = reaccionMin;
+			this.reaccionMax = reaccionMax;
+			this.tasaError = tasaError;
+		}
+
+		// Pre: 'aleatorio' es el generador del bot.
+		// Post: Retorna un tiempo de reacción en ms, uniforme entre el mínimo y el
+		// máximo del perfil.
+		int reaccion(Random aleatorio) {
+			return reaccionMin + aleatorio.nextInt(reaccionMax - reaccionMin + 1);
+		}
+	}
+
+	private final String host = System.getProperty("dobble.carga.host", "127.0.0.1");
+	private final int puerto = Integer.getInteger("dobble.carga.puerto", 12345);
+	private final int numBots = Integer.getInteger("dobble.carga.bots", 100);
+	private final int jugadores = Integer.getInteger("dobble.carga.jugadores", 2);
+	private final int orden = Integer.getInteger("dobble.carga.orden", 0);
+	private final int partidasPorBot = Integer.getInteger("dobble.carga.partidas", 1);
+	private final int ritmo = Integer.getInteger("dobble.carga.ritmo", 0);
+	private final String textoPerfiles = System.getProperty("dobble.carga.perfiles", "normal");
+	private final double probRendicion = Double.parseDouble(System.getProperty("dobble.carga.rendicion", "0"));
+	private final int duracionMaxima = Integer.getInteger("dobble.carga.duracion", 300);
+	private final long semilla = Long.getLong("dobble.carga.semilla", System.nanoTime());
+	private final String prefijo = System.getProperty("dobble.carga.prefijo",
+			"bot" + Long.toString(System.currentTimeMillis() % 100000000L, 36) + "_");
+	private final String comandoJugar = "JUGAR|" + jugadores + (orden > 0 ? "|" + orden : "");
+
+	// resultados, actualizados por los hilos de los bots
+	private final LongAdder conexiones = new LongAdder();
+	private final LongAdder conexionesFallidas = new LongAdder();
+	private final LongAdder botsTerminados = new LongAdder();
+	private final LongAdder partidasIniciadas = new LongAdder();
+	private final LongAdder partidasTerminadas = new LongAdder();
+	private final LongAdder intentos = new LongAdder();
+	private final LongAdder aciertos = new LongAdder();
+	private final LongAdder fallos = new LongAdder();
+	private final LongAdder tardios = new LongAdder();
+	private final LongAdder rendiciones = new LongAdder();
+	private final LongAdder errores = new LongAdder();
+	private final ConcurrentLinkedQueue<String> ejemplosError = new ConcurrentLinkedQueue<>();
+	private final AtomicReference<String> ultimoErrorConexion = new AtomicReference<>();
+	// microsegundos desde conectar hasta LOGIN_OK
+	private final Histograma latenciaLogin = new Histograma();
+	// microsegundos desde un INTENTO acertado hasta su RONDA
+	private final Histograma latenciaIntento = new Histograma();
+	private final AtomicLong instanteUltimaConexion = new AtomicLong();
+	private long instanteInicio;
+
+	// Pre: Hay un servidor escuchando en dobble.carga.host:dobble.carga.puerto.
+	// Post: Se ejecuta la carga configurada, se muestra el informe y se guarda el
+	// resumen JSON.
+	public static void main(String[] args) throws Exception {
+		new GeneradorCarga().ejecutar();
+	}
+
+	// Pre: Ninguna.
+	// Post: Se lanzan todos los bots al ritmo configurado y se espera a que
+	// terminen o a que se agote la duración máxima, tras la que se cortan los que
+	// queden. Después se muestra el informe, se escribe el resumen en
+	// dobble.carga.salida y, si hay un resumen base, se compara con él.
+	private void ejecutar() throws IOException, InterruptedException {
+		List<Perfil> reparto = leerPerfiles(textoPerfiles);
+		System.out.println("Lanzando " + numBots + " bots contra " + host + ":" + puerto + " (" + comandoJugar
+				+ ", perfiles " + textoPerfiles + ", semilla " + semilla + ")");
+
+		List<BotCarga> bots = new ArrayList<>(numBots);
+		CountDownLatch pendientes = new CountDownLatch(numBots);
+		ExecutorService ejecutor = HilosVirtuales.crearEjecutorPorTarea("dobble-bot");
+		instanteInicio = System.nanoTime();
+		for (int i = 0; i < numBots; i++) {
+			if (ritmo > 0) {
+				// el bot i sale en el instante i / ritmo
+				long espera = instanteInicio + i * 1_000_000_000L / ritmo - System.nanoTime();
+				if (espera > 0) {
+					LockSupport.parkNanos(espera);
+				}
+			}
+			BotCarga bot = new BotCarga(this, prefijo + i, reparto.get(i % reparto.size()), semilla + i);
+			bots.add(bot);
+			ejecutor.execute(() -> {
+				try {
+					bot.run();
+				} finally {
+					pendientes.countDown();
+				}
+			});
+		}
+
+		boolean completo = pendientes.await(duracionMaxima, TimeUnit.SECONDS);
+		long duracion = System.nanoTime() - instanteInicio;
+		if (!completo) {
+			System.out.println("Duración máxima agotada: se cortan " + pendientes.getCount() + " bots.");
+			for (BotCarga bot : bots) {
+				bot.cerrar();
+			}
+		}
+		ejecutor.shutdownNow();
+
+		Map<String, Object> resumen = crearResumen(duracion, !completo);
+		mostrarInforme(resumen);
+		Path salida = Paths.get(System.getProperty("dobble.carga.salida", "carga.json"));
+		Files.write(salida, aJson(resumen).getBytes(StandardCharsets.UTF_8));
+		System.out.println("Resumen guardado en " + salida.toAbsolutePath());
+
+		String base = System.getProperty("dobble.carga.base");
+		if (base != null) {
+			compararConBase(resumen, Paths.get(base));
+		}
+	}
+
+	// Pre: 'texto' es una lista "perfil:peso,perfil:peso..." (el peso es opcional
+	// y vale 1). Cada perfil es un nombre de PERFILES o "min-max@error".
+	// Post: Retorna una lista en la que cada perfil aparece tantas veces como su
+	// peso; el bot i usa el perfil i % tamaño. Si el texto no es válido se lanza
+	// IllegalArgumentException.
+	private static List<Perfil> leerPerfiles(String texto) {
+		List<Perfil> reparto = new ArrayList<>();
+		for (String entrada : texto.split(",")) {
+			String[] partes = entrada.trim().split(":");
+			int peso = partes.length > 1 ? Integer.parseInt(partes[1].trim()) : 1;
+			Perfil perfil = PERFILES.get(partes[0].trim().toLowerCase());
+			if (perfil == null) {
+				perfil = leerPerfilPropio(partes[0].trim());
+			}
+			for (int i = 0; i < peso; i++) {
+				reparto.add(perfil);
+			}
+		}
+		if (reparto.isEmpty()) {
+			throw new IllegalArgumentException("No hay ningún perfil en '" + texto + "'.");
+		}
+		return reparto;
+	}
+
+	// Pre: 'texto' tiene la forma "min-max@error" (por ejemplo "100-300@0.05").
+	// Post: Retorna el perfil que describe o lanza IllegalArgumentException.
+	private static Perfil leerPerfilPropio(String texto) {
+		Matcher m = Pattern.compile("(\\d+)-(\\d+)@([0-9.]+)").matcher(texto);
+		if (!m.matches()) {
+			throw new IllegalArgumentException("Perfil desconocido '" + texto + "'. Usa uno de " + PERFILES.keySet()
+					+ " o min-max@error.");
+		}
+		int min = Integer.parseInt(m.group(1));
+		int max = Integer.parseInt(m.group(2));
+		double error = Double.parseDouble(m.group(3));
+		if (max < min || error < 0 || error > 1) {
+			throw new IllegalArgumentException("Perfil no válido '" + texto + "'.");
+		}
+		return new Perfil(texto, min, max, error);
+	}
+
+	// Pre: 'duracion' son los nanosegundos que ha durado la carga.
+	// Post: Retorna el resumen de la ejecución como pares nombre -> valor, en el
+	// orden en el que se muestran y se guardan.
+	private Map<String, Object> crearResumen(long duracion, boolean cortada) {
+		double segundos = duracion / 1e9;
+		double segundosConexion = Math.max(instanteUltimaConexion.get() - instanteInicio, 1) / 1e9;
+		Map<String, Object> r = new LinkedHashMap<>();
+		r.put("bots", numBots);
+		r.put("jugadores", jugadores);
+		r.put("orden", orden);
+		r.put("partidas_por_bot", partidasPorBot);
+		r.put("perfiles", textoPerfiles);
+		r.put("rendicion", probRendicion);
+		r.put("semilla", semilla);
+		r.put("cortada", cortada);
+		r.put("duracion_s", redondear(segundos));
+		r.put("conexiones", conexiones.sum());
+		r.put("conexiones_fallidas", conexionesFallidas.sum());
+		r.put("conexiones_por_s", redondear(conexiones.sum() / segundosConexion));
+		r.put("login_p50_us", latenciaLogin.getPercentil(50));
+		r.put("login_p99_us", latenciaLogin.getPercentil(99));
+		r.put("partidas_iniciadas", partidasIniciadas.sum() / Math.max(jugadores, 1));
+		r.put("partidas_terminadas", partidasTerminadas.sum());
+		r.put("partidas_por_s", redondear(partidasTerminadas.sum() / segundos));
+		r.put("bots_terminados", botsTerminados.sum());
+		r.put("intentos", intentos.sum());
+		r.put("aciertos", aciertos.sum());
+		r.put("fallos", fallos.sum());
+		r.put("tardios", tardios.sum());
+		r.put("rendiciones", rendiciones.sum());
+		r.put("errores", errores.sum());
+		r.put("latencia_muestras", latenciaIntento.getTotal());
+		r.put("latencia_media_us", latenciaIntento.getMedia());
+		r.put("latencia_p50_us", latenciaIntento.getPercentil(50));
+		r.put("latencia_p99_us", latenciaIntento.getPercentil(99));
+		r.put("latencia_p999_us", latenciaIntento.getPercentil(99.9));
+		r.put("latencia_max_us", latenciaIntento.getMaximo());
+		return r;
+	}
+
+	// Pre: 'r' es el resumen de 'crearResumen()'.
+	// Post: Se muestra por consola un informe legible de la ejecución.
+	private void mostrarInforme(Map<String, Object> r) {
+		System.out.println("--- Resultado de la carga ---");
+		System.out.println("Duración: " + r.get("duracion_s") + " s" + (Boolean.TRUE.equals(r.get("cortada"))
+				? " (cortada)" : ""));
+		System.out.println("Conexiones: " + r.get("conexiones") + " correctas, " + r.get("conexiones_fallidas")
+				+ " fallidas, " + r.get("conexiones_por_s") + "/s (login p50 " + r.get("login_p50_us") + " us, p99 "
+				+ r.get("login_p99_us") + " us)");
+		System.out.println("Partidas: " + r.get("partidas_terminadas") + " terminadas de " + r.get(
+				"partidas_iniciadas") + " iniciadas, " + r.get("partidas_por_s") + "/s; " + r.get("bots_terminados")
+				+ " bots completaron sus partidas");
+		System.out.println("Intentos: " + r.get("intentos") + " (" + r.get("aciertos") + " aciertos, " + r.get(
+				"fallos") + " fallos, " + r.get("tardios") + " tardíos), " + r.get("rendiciones") + " rendiciones");
+		System.out.println("Latencia INTENTO -> RONDA (us): p50 " + r.get("latencia_p50_us") + ", p99 " + r.get(
+				"latencia_p99_us") + ", p999 " + r.get("latencia_p999_us") + ", máx " + r.get("latencia_max_us")
+				+ " (" + r.get("latencia_muestras") + " muestras)");
+		System.out.println("Errores: " + r.get("errores"));
+		for (String ejemplo : ejemplosError) {
+			System.out.println("  " + ejemplo);
+		}
+		String errorConexion = ultimoErrorConexion.get();
+		if (errorConexion != null) {
+			System.out.println("Último error de conexión: " + errorConexion);
+		}
+	}
+
+	// Pre: Los valores de 'r' son números, booleanos o textos sin comillas.
+	// Post: Retorna 'r' como un objeto JSON de un solo nivel.
+	private static String aJson(Map<String, Object> r) {
+		StringBuilder sb = new StringBuilder("{\n");
+		int i = 0;
+		for (Map.Entry<String, Object> e : r.entrySet()) {
+			Object valor = e.getValue();
+			sb.append("  \"").append(e.getKey()).append("\": ");
+			sb.append(valor instanceof String ? "\"" + valor + "\"" : valor);
+			sb.append(++i < r.size() ? ",\n" : "\n");
+		}
+		return sb.append("}\n").toString();
+	}
+
+	// Pre: 'fichero' es un resumen JSON escrito por otra ejecución.
+	// Post: Se muestra, para cada valor numérico de la ejecución que también está
+	// en la base, el valor base, el actual y la variación en porcentaje.
+	private static void compararConBase(Map<String, Object> r, Path fichero) throws IOException {
+		String texto = new String(Files.readAllBytes(fichero), StandardCharsets.UTF_8);
+		Map<String, Double> base = new HashMap<>();
+		Matcher m = Pattern.compile("\"(\\w+)\"\\s*:\\s*(-?[0-9.]+(?:[eE][-+]?\\d+)?)").matcher(texto);
+		while (m.find()) {
+			base.put(m.group(1), Double.parseDouble(m.group(2)));
+		}
+		System.out.println("--- Comparación con " + fichero + " ---");
+		for (Map.Entry<String, Object> e : r.entrySet()) {
+			Double anterior = base.get(e.getKey());
+			if (anterior == null || !(e.getValue() instanceof Number) || e.getKey().equals("semilla")) {
+				continue;
+			}
+			double actual = ((Number) e.getValue()).doubleValue();
+			String variacion = anterior == 0 ? "-"
+					: String.format(Locale.ROOT, "%+.1f %%", (actual - anterior) * 100 / anterior);
+			System.out.println(String.format(Locale.ROOT, "%-22s %14s %14s %10s", e.getKey(), formatear(anterior),
+					formatear(actual), variacion));
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'valor' sin decimales si es entero.
+	private static String formatear(double valor) {
+		return valor == Math.rint(valor) ? Long.toString((long) valor) : Double.toString(valor);
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'valor' redondeado a dos decimales.
+	private static double redondear(double valor) {
+		return Math.round(valor * 100) / 100.0;
+	}
+
+	// --- Configuración que leen los bots ---
+
+	String getHost() {
+		return host;
+	}
+
+	int getPuerto() {
+		return puerto;
+	}
+
+	int getPartidasPorBot() {
+		return partidasPorBot;
+	}
+
+	String getComandoJugar() {
+		return comandoJugar;
+	}
+
+	// Pre: 'aleatorio' es el generador del bot que empieza una partida.
+	// Post: Retorna la ronda en la que el bot se rendirá, o -1 si jugará la
+	// partida entera.
+	int decidirRendicion(Random aleatorio) {
+		return aleatorio.nextDouble() < probRendicion ? aleatorio.nextInt(RONDAS_MAX_RENDICION) : -1;
+	}
+
+	// --- Resultados que cuentan los bots (desde sus hilos) ---
+
+	// Pre: 'nanos' es lo que ha tardado el bot en conectar e iniciar sesión.
+	// Post: Se cuenta la conexión y su latencia.
+	void registrarConexion(long nanos) {
+		conexiones.increment();
+		latenciaLogin.registrar(nanos / 1000);
+		instanteUltimaConexion.accumulateAndGet(System.nanoTime(), Math::max);
+	}
+
+	// Pre: 'motivo' describe el fallo.
+	// Post: Se cuenta la conexión fallida y se guarda el motivo.
+	void registrarConexionFallida(String bot, String motivo) {
+		conexionesFallidas.increment();
+		ultimoErrorConexion.set(bot + ": " + motivo);
+	}
+
+	void registrarInicioPartida() {
+		partidasIniciadas.increment();
+	}
+
+	void registrarFinPartida() {
+		partidasTerminadas.increment();
+	}
+
+	void registrarBotTerminado() {
+		botsTerminados.increment();
+	}
+
+	void registrarIntento() {
+		intentos.increment();
+	}
+
+	// Pre: 'nanos' es el tiempo entre el INTENTO acertado y su RONDA.
+	// Post: Se cuenta el acierto y su latencia.
+	void registrarAcierto(long nanos) {
+		aciertos.increment();
+		latenciaIntento.registrar(nanos / 1000);
+	}
+
+	// Pre: El servidor ha respondido ERROR_JUEGO a un INTENTO. 'erroneo' indica si
+	// el bot falló a propósito.
+	// Post: Se cuenta como fallo o, si el símbolo era el bueno, como intento
+	// tardío (otro jugador acertó antes).
+	void registrarRechazo(boolean erroneo) {
+		(erroneo ? fallos : tardios).increment();
+	}
+
+	void registrarRendicion() {
+		rendiciones.increment();
+	}
+
+	// Pre: 'motivo' describe por qué ha terminado mal el bot 'bot'.
+	// Post: Se cuenta el error y se guarda como ejemplo si es de los primeros.
+	void registrarError(String bot, String motivo) {
+		errores.increment();
+		if (errores.sum() <= MAX_EJEMPLOS_ERROR) {
+			ejemplosError.add(bot + ": " + motivo);
+		}
+	}
+}
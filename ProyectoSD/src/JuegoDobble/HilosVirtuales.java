@@ -0,0 +1,54 @@
+package JuegoDobble;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Acceso a los hilos virtuales de Java 21 sin dejar de compilar con Java 17
+(la versión del proyecto). Si la JVM en la que se ejecuta el servidor los
+soporta se usan; si no, se recurre a un pool de hilos de plataforma.
+*/
+public final class HilosVirtuales {
+
+	private HilosVirtuales() {
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si la JVM actual ofrece
+	// Executors.newVirtualThreadPerTaskExecutor() (Java 21 o superior).
+	public static boolean disponibles() {
+		return buscarFactoriaVirtual() != null;
+	}
+
+	// Pre: 'prefijo' es el nombre base para los hilos de plataforma de reserva.
+	// Post: Retorna un ExecutorService que ejecuta cada tarea en un hilo virtual
+	// nuevo. Si la JVM no soporta hilos virtuales, retorna un pool de hilos de
+	// plataforma que crece bajo demanda, con hilos nombrados 'prefijo-N'.
+	public static ExecutorService crearEjecutorPorTarea(String prefijo) {
+		Method factoria = buscarFactoriaVirtual();
+		if (factoria != null) {
+			try {
+				return (ExecutorService) factoria.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				Bitacora.aviso(Bitacora.SERVIDOR, "No se pudo crear el ejecutor de hilos virtuales: {}", e.getMessage());
+			}
+		}
+		AtomicInteger contador = new AtomicInteger();
+		ThreadFactory fabrica = tarea -> new Thread(tarea, prefijo + "-" + contador.incrementAndGet());
+		return Executors.newCachedThreadPool(fabrica);
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el método Executors.newVirtualThreadPerTaskExecutor o 'null'
+	// si no existe en esta JVM.
+	private static Method buscarFactoriaVirtual() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package JuegoDobble;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Histograma concurrente de valores no negativos (por ejemplo tiempos en
+microsegundos) con cubos log-lineales, al estilo de HdrHistogram: cada
+potencia de dos se divide en SUBCUBOS cubos iguales, así que el error
+relativo de un percentil es como mucho 1/SUBCUBOS. Registrar un valor es
+un incremento atómico sin cerrojos y sin reservar memoria.
+*/
+public class Histograma {
+
+	// bits de subdivisión de cada potencia de dos (16 subcubos, error <= 6,25 %)
+	private static final int BITS_SUBCUBO = 4;
+	private static final int SUBCUBOS = 1 << BITS_SUBCUBO;
+	// los valores menores que SUBCUBOS tienen un cubo propio cada uno
+	private static final int NUM_CUBOS = (64 - BITS_SUBCUBO + 1) * SUBCUBOS;
+
+	private final AtomicLongArray cubos = new AtomicLongArray(NUM_CUBOS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder suma = new LongAdder();
+
+	// Pre: 'valor' >= 0. Puede llamarse desde cualquier hilo.
+	// Post: Se cuenta 'valor' en su cubo.
+	public void registrar(long valor) {
+		if (valor < 0) {
+			valor = 0;
+		}
+		cubos.incrementAndGet(indice(valor));
+		total.increment();
+		suma.add(valor);
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos valores se han registrado.
+	public long getTotal() {
+		return total.sum();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la suma de los valores registrados.
+	public long getSuma() {
+		return suma.sum();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la media de los valores registrados, o 0 si no hay ninguno.
+	public long getMedia() {
+		long n = total.sum();
+		return n == 0 ? 0 : suma.sum() / n;
+	}
+
+	// Pre: 0 < 'percentil' <= 100.
+	// Post: Retorna el límite superior del cubo que contiene el percentil pedido
+	// (una cota del valor con el error relativo del histograma), o 0 si no hay
+	// valores.
+	public long getPercentil(double percentil) {
+		long n = 0;
+		long[] copia = new long[NUM_CUBOS];
+		for (int i = 0; i < NUM_CUBOS; i++) {
+			copia[i] = cubos.get(i);
+			n += copia[i];
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long objetivo = Math.max(1, (long) Math.ceil(n * percentil / 100.0));
+		long acumulado = 0;
+		for (int i = 0; i < NUM_CUBOS; i++) {
+			acumulado += copia[i];
+			if (acumulado >= objetivo) {
+				return limiteSuperior(i);
+			}
+		}
+		return limiteSuperior(NUM_CUBOS - 1);
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el mayor valor registrado (cota superior de su cubo), o 0 si no
+	// hay valores.
+	public long getMaximo() {
+		for (int i = NUM_CUBOS - 1; i >= 0; i--) {
+			if (cubos.get(i) > 0) {
+				return limiteSuperior(i);
+			}
+		}
+		return 0;
+	}
+
+	// Pre: 'valor' >= 0.
+	// Post: Retorna el cubo de 'valor': los menores que SUBCUBOS van a su propio
+	// cubo; el resto, al subcubo de su potencia de dos según los BITS_SUBCUBO bits
+	// que siguen al más alto.
+	private static int indice(long valor) {
+		if (valor < SUBCUBOS) {
+			return (int) valor;
+		}
+		int exponente = 63 - Long.numberOfLeadingZeros(valor) - BITS_SUBCUBO;
+		int sub = (int) (valor >>> exponente) - SUBCUBOS;
+		return (exponente + 1) * SUBCUBOS + sub;
+	}
+
+	// Pre: 0 <= 'indice' < NUM_CUBOS.
+	// Post: Retorna el mayor valor que cae en el cubo 'indice'.
+	private static long limiteSuperior(int indice) {
+		if (indice < SUBCUBOS) {
+			return indice;
+		}
+		int exponente = indice / SUBCUBOS - 1;
+		long sub = indice % SUBCUBOS + SUBCUBOS;
+		long inicio = sub << exponente;
+		long limite = inicio + (1L << exponente) - 1;
+		return limite < 0 ? Long.MAX_VALUE : limite;
+	}
+}
@@ -0,0 +1,307 @@
+package JuegoDobble;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Historial de partidas terminadas guardado en disco. Los resúmenes se
+añaden al final de un fichero de segmento (solo se escribe al final,
+nunca se reescribe) con el formato [longitud int][resumen UTF-8]. En
+memoria se guarda un índice con la posición de cada resumen en el
+fichero y un anillo con los resúmenes más recientes, que son los que se
+piden casi siempre. Leer una página cuesta lo que ocupa la página: las
+entradas del anillo se copian y el resto se leen del fichero en la
+posición que indica el índice, sin recorrer el historial.
+Al arrancar se recorre el fichero una vez para reconstruir el índice; si
+el último resumen quedó a medias (el servidor se paró mientras se
+escribía) se descarta.
+Si no se puede abrir el fichero el historial funciona solo en memoria y
+conserva únicamente el anillo.
+*/
+public class HistorialPartidas {
+
+	// resúmenes recientes que se guardan en memoria
+	public static final int CAPACIDAD_MEMORIA = Math.max(1, Integer.getInteger("dobble.historial.memoria", 128));
+	// posición en el índice de un resumen que no se pudo escribir en disco
+	private static final long SIN_POSICION = -1;
+	// texto que se devuelve en lugar de un resumen que no está en disco
+	private static final String NO_DISPONIBLE = "RESULTADO: no disponible";
+	// tamaño máximo de un resumen guardado (los más largos se recortan)
+	private static final int MAX_BYTES_RESUMEN = 64 * 1024;
+
+	private final ReentrantLock cerrojo = new ReentrantLock();
+	// fichero de segmento, o 'null' si el historial solo está en memoria
+	private final FileChannel segmento;
+	// posición en el segmento de cada resumen, por número de partida (el primero
+	// es el 0). Solo se usa si hay segmento
+	private long[] indice = new long[1024];
+	// número de resúmenes registrados
+	private int total = 0;
+	// siguiente posición libre del segmento
+	private long finSegmento = 0;
+	// anillo con los últimos CAPACIDAD_MEMORIA resúmenes: el de la partida 'n'
+	// está en anillo[n % CAPACIDAD_MEMORIA]
+	private final String[] anillo = new String[CAPACIDAD_MEMORIA];
+
+	// Pre: 'fichero' es la ruta del fichero de segmento o 'null' para un
+	// historial solo en memoria.
+	// Post: Se abre (o crea) el fichero y se reconstruye el índice a partir de su
+	// contenido. Si el fichero no se puede abrir se avisa y el historial queda
+	// solo en memoria.
+	public HistorialPartidas(Path fichero) {
+		FileChannel canal = null;
+		if (fichero != null) {
+			try {
+				File directorio = fichero.toAbsolutePath().getParent().toFile();
+				directorio.mkdirs();
+				canal = FileChannel.open(fichero, StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE);
+				cargar(canal);
+			} catch (IOException e) {
+				Bitacora.aviso(Bitacora.PERSISTENCIA,
+						"No se puede usar el historial en disco {}: {}. Se guarda solo en memoria.", fichero,
+						e.getMessage());
+				cerrarSilenciosamente(canal);
+				canal = null;
+				total = 0;
+				finSegmento = 0;
+			}
+		}
+		this.segmento = canal;
+	}
+
+	// Pre: 'resumen' es el resumen de una partida recién terminada. Puede
+	// llamarse desde cualquier hilo.
+	// Post: El resumen se añade al final del segmento, al índice y al anillo, todo
+	// bajo el cerrojo del historial. Si falla la escritura en disco se avisa y el
+	// resumen queda solo en el anillo.
+	public void registrar(String resumen) {
+		byte[] bytes = resumen.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_BYTES_RESUMEN) {
+			bytes = Arrays.copyOf(bytes, MAX_BYTES_RESUMEN);
+			resumen = new String(bytes, StandardCharsets.UTF_8);
+		}
+		cerrojo.lock();
+		try {
+			long posicion = finSegmento;
+			if (segmento != null) {
+				ByteBuffer registro = ByteBuffer.allocate(4 + bytes.length);
+				registro.putInt(bytes.length).put(bytes).flip();
+				try {
+					while (registro.hasRemaining()) {
+						finSegmento += segmento.write(registro, finSegmento);
+					}
+				} catch (IOException e) {
+					Bitacora.error(Bitacora.PERSISTENCIA, "Error al escribir el historial en disco: {}", e.getMessage());
+					// se deshace la escritura a medias para no desalinear los registros
+					finSegmento = posicion;
+					posicion = SIN_POSICION;
+					try {
+						segmento.truncate(finSegmento);
+					} catch (IOException ignorada) {
+					}
+				}
+			}
+			if (total == indice.length) {
+				indice = Arrays.copyOf(indice, indice.length * 2);
+			}
+			indice[total] = posicion;
+			anillo[total % CAPACIDAD_MEMORIA] = resumen;
+			total++;
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el número de partidas registradas.
+	public int getTotal() {
+		cerrojo.lock();
+		try {
+			return total;
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	// Pre: 'desplazamiento' >= 0 es cuántas partidas, empezando por la más
+	// reciente, se saltan; 'limite' > 0 es el tamaño de la página.
+	// Post: Retorna la página pedida en orden cronológico (la más antigua
+	// primero): las partidas desde la número total-desplazamiento-limite hasta la
+	// total-desplazamiento-1 que existan. Las que siguen en el anillo se copian
+	// bajo el cerrojo; las demás se leen después del fichero sin bloquear a
+	// quien registra partidas. Retorna una lista vacía si la página está fuera
+	// del historial.
+	public Pagina getPagina(int desplazamiento, int limite) {
+		List<String> resumenes = new ArrayList<>();
+		int desde;
+		int hasta;
+		int totalActual;
+		long[] posiciones;
+		cerrojo.lock();
+		try {
+			totalActual = total;
+			hasta = Math.max(0, totalActual - desplazamiento);
+			desde = (int) Math.max(0, (long) hasta - limite);
+			// las partidas más antiguas que la primera del anillo hay que leerlas del
+			// fichero
+			int primeraEnMemoria = Math.max(0, totalActual - CAPACIDAD_MEMORIA);
+			int finFichero = Math.min(hasta, primeraEnMemoria);
+			if (desde < finFichero && segmento != null) {
+				posiciones = Arrays.copyOfRange(indice, desde, finFichero);
+			} else {
+				posiciones = new long[0];
+			}
+			for (int i = Math.max(desde, primeraEnMemoria); i < hasta; i++) {
+				resumenes.add(anillo[i % CAPACIDAD_MEMORIA]);
+			}
+		} finally {
+			cerrojo.unlock();
+		}
+		if (posiciones.length > 0) {
+			// lectura posicional: no mueve la posición del canal, así que puede hacerse
+			// a la vez que se escribe al final
+			List<String> antiguos = new ArrayList<>(posiciones.length);
+			try {
+				for (long posicion : posiciones) {
+					antiguos.add(leerResumen(segmento, posicion));
+				}
+				resumenes.addAll(0, antiguos);
+			} catch (IOException e) {
+				Bitacora.error(Bitacora.PERSISTENCIA, "Error al leer el historial en disco: {}", e.getMessage());
+				desde += posiciones.length;
+			}
+		} else if (segmento == null) {
+			// sin fichero solo se conservan las partidas del anillo
+			desde = Math.max(desde, Math.min(hasta, totalActual - CAPACIDAD_MEMORIA));
+		}
+		return new Pagina(totalActual, desde, resumenes);
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cierra el fichero de segmento, si lo hay.
+	public void cerrar() {
+		cerrojo.lock();
+		try {
+			cerrarSilenciosamente(segmento);
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	// Pre: 'canal' es el segmento recién abierto.
+	// Post: Se recorre el segmento registro a registro para rellenar el índice y
+	// el anillo. Si el último registro está incompleto se trunca el fichero en el
+	// último registro completo.
+	private void cargar(FileChannel canal) throws IOException {
+		long tamano = canal.size();
+		long posicion = 0;
+		ByteBuffer cabecera = ByteBuffer.allocate(4);
+		while (posicion + 4 <= tamano) {
+			cabecera.clear();
+			leerCompleto(canal, cabecera, posicion);
+			int longitud = cabecera.getInt(0);
+			if (longitud < 0 || longitud > MAX_BYTES_RESUMEN || posicion + 4 + longitud > tamano) {
+				break;
+			}
+			if (total == indice.length) {
+				indice = Arrays.copyOf(indice, indice.length * 2);
+			}
+			indice[total] = posicion;
+			total++;
+			posicion += 4 + longitud;
+		}
+		if (posicion < tamano) {
+			Bitacora.aviso(Bitacora.PERSISTENCIA, "Historial en disco incompleto: se descartan {} bytes.",
+					tamano - posicion);
+			canal.truncate(posicion);
+		}
+		finSegmento = posicion;
+		// el anillo empieza con las partidas más recientes del fichero
+		for (int i = Math.max(0, total - CAPACIDAD_MEMORIA); i < total; i++) {
+			anillo[i % CAPACIDAD_MEMORIA] = leerResumen(canal, indice[i]);
+		}
+	}
+
+	// Pre: 'posicion' es el inicio de un registro completo de 'canal' o
+	// SIN_POSICION.
+	// Post: Retorna el resumen guardado en ese registro (o NO_DISPONIBLE).
+	private static String leerResumen(FileChannel canal, long posicion) throws IOException {
+		if (posicion == SIN_POSICION) {
+			return NO_DISPONIBLE;
+		}
+		ByteBuffer cabecera = ByteBuffer.allocate(4);
+		leerCompleto(canal, cabecera, posicion);
+		ByteBuffer datos = ByteBuffer.allocate(cabecera.getInt(0));
+		leerCompleto(canal, datos, posicion + 4);
+		return new String(datos.array(), StandardCharsets.UTF_8);
+	}
+
+	// Pre: 'destino' tiene espacio libre.
+	// Post: Se llena 'destino' con los bytes de 'canal' a partir de 'posicion'.
+	// Lanza IOException si el fichero se acaba antes.
+	private static void leerCompleto(FileChannel canal, ByteBuffer destino, long posicion) throws IOException {
+		while (destino.hasRemaining()) {
+			int leidos = canal.read(destino, posicion);
+			if (leidos < 0) {
+				throw new IOException("Fin de fichero inesperado en la posición " + posicion);
+			}
+			posicion += leidos;
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Se cierra 'canal' si no es 'null', ignorando los errores.
+	private static void cerrarSilenciosamente(FileChannel canal) {
+		if (canal == null) {
+			return;
+		}
+		try {
+			canal.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/*
+	Página del historial: las partidas de la número 'desde' en adelante, en
+	orden cronológico, y el total de partidas en el momento de la consulta.
+	*/
+	public static final class Pagina {
+		private final int total;
+		private final int desde;
+		private final List<String> resumenes;
+
+		Pagina(int total, int desde, List<String> resumenes) {
+			this.total = total;
+			this.desde = desde;
+			this.resumenes = resumenes;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna el total de partidas del historial.
+		public int getTotal() {
+			return total;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna el número (desde 0) de la primera partida de la página.
+		public int getDesde() {
+			return desde;
+		}
+
+		// Pre: Ninguna.
+		// Post: Retorna los resúmenes de la página, el más antiguo primero.
+		public List<String> getResumenes() {
+			return resumenes;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+Lee líneas de texto UTF-8 directamente de un InputStream, sin el búfer
+propio de un BufferedReader. Así, cuando una conexión cambia al protocolo
+binario tras el login, no quedan bytes de tramas atrapados en un lector de
+texto y se puede seguir leyendo del mismo flujo.
+*/
+public class LectorLineas {
+
+	private final InputStream in;
+	private final int maximo;
+	private byte[] linea = new byte[256];
+
+	// Pre: 'in' es un flujo con búfer propio (p. ej. BufferedInputStream), ya que
+	// se lee byte a byte. 'maximo' es la longitud máxima de línea aceptada.
+	// Post: Se crea el lector.
+	public LectorLineas(InputStream in, int maximo) {
+		this.in = in;
+		this.maximo = maximo;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la siguiente línea sin el salto de línea (ni un '\r' final), o
+	// 'null' si el flujo terminó. Lanza IOException si la línea supera el máximo.
+	public String leerLinea() throws IOException {
+		int longitud = leerBytes();
+		if (longitud < 0) {
+			return null;
+		}
+		return new String(linea, 0, longitud, StandardCharsets.UTF_8);
+	}
+
+	// Pre: Ninguna.
+	// Post: Lee la siguiente línea igual que 'leerLinea()', pero sin crear un
+	// String: se analiza en 'comando' sobre el búfer del lector, que es válido
+	// hasta la siguiente lectura. Retorna 'false' si el flujo terminó.
+	public boolean leerComando(ComandoTexto comando) throws IOException {
+		int longitud = leerBytes();
+		if (longitud < 0) {
+			return false;
+		}
+		comando.analizar(linea, 0, longitud);
+		return true;
+	}
+
+	// Pre: Ninguna.
+	// Post: La siguiente línea (sin el salto de línea ni un '\r' final) queda al
+	// principio de 'linea' y se retorna su longitud, o -1 si el flujo terminó.
+	// Lanza IOException si la línea supera el máximo.
+	private int leerBytes() throws IOException {
+		int longitud = 0;
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (longitud == 0) {
+					return -1;
+				}
+				break;
+			}
+			if (longitud == linea.length) {
+				if (linea.length >= maximo) {
+					throw new IOException("Línea demasiado larga");
+				}
+				linea = Arrays.copyOf(linea, Math.min(linea.length * 2, maximo));
+			}
+			linea[longitud++] = (byte) b;
+		}
+		if (longitud > 0 && linea[longitud - 1] == '\r') {
+			longitud--;
+		}
+		return longitud;
+	}
+}
@@ -0,0 +1,262 @@
+package JuegoDobble;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+Mazo Dobble precalculado e inmutable de un orden primo dado. Cada orden se
+genera una sola vez por JVM (ver deOrden()) a partir del Plano Proyectivo
+y se comparte entre todas las partidas: cada partida solo guarda una
+permutación de índices de carta (ver DobbleLogic), así que empezar una
+partida no genera cartas nuevas, sea cual sea el tamaño del mazo.
+Las cartas se identifican por su índice en el mazo. Para validar un
+intento basta con consultar la tabla precalculada de símbolos comunes.
+*/
+public final class MazoDobble {
+
+	// órdenes admitidos. Con orden 13 hay 183 símbolos, el máximo que cabe en un
+	// byte sin signo del protocolo binario (el siguiente primo, 17, tendría 307)
+	public static final int[] ORDENES_SOPORTADOS = { 2, 3, 5, 7, 11, 13 };
+	// orden del mazo clásico: 57 cartas de 8 símbolos (del 1 al 57)
+	public static final int ORDEN_ESTANDAR = 7;
+
+	// registro de mazos ya generados, por orden
+	private static final Map<Integer, MazoDobble> REGISTRO = new ConcurrentHashMap<>();
+
+	// mazo clásico, el que se usa si la partida no pide otro
+	public static final MazoDobble ESTANDAR = deOrden(ORDEN_ESTANDAR);
+
+	private final int orden;
+	// símbolos por carta = orden + 1
+	private final int simbolosPorCarta;
+	// número total de cartas = número total de símbolos = orden^2 + orden + 1
+	private final int numeroCartas;
+	// tabla plana de símbolos: la carta i ocupa las posiciones
+	// [i * simbolosPorCarta, (i + 1) * simbolosPorCarta)
+	private final int[] simbolos;
+	// longs que ocupa la máscara de bits de una carta (bit s = símbolo s)
+	private final int palabrasPorCarta;
+	// máscaras de todas las cartas seguidas: la carta i ocupa las posiciones
+	// [i * palabrasPorCarta, (i + 1) * palabrasPorCarta)
+	private final long[] mascaras;
+	// símbolo común de cada par de cartas: simboloComun[a * numeroCartas + b]
+	// (byte sin signo, los símbolos llegan hasta 183)
+	private final byte[] simboloComun;
+	// codificación ya hecha de cada carta, tal como viaja por la red: en el
+	// protocolo binario ([n][símbolo]...) y en el de texto ("1,2,3" en UTF-8)
+	private final byte[][] cartasBinario;
+	private final byte[][] cartasTexto;
+
+	// Pre: 'orden' es un número primo de ORDENES_SOPORTADOS.
+	// Post: Se genera la tabla de símbolos de las orden^2 + orden + 1 cartas, la
+	// máscara de bits de cada una y la tabla de símbolos comunes entre pares.
+	private MazoDobble(int orden) {
+		this.orden = orden;
+		this.simbolosPorCarta = orden + 1;
+		this.numeroCartas = orden * orden + orden + 1;
+		this.simbolos = generarTabla();
+
+		this.palabrasPorCarta = numeroCartas / 64 + 1;
+		this.mascaras = new long[numeroCartas * palabrasPorCarta];
+		for (int c = 0; c < numeroCartas; c++) {
+			for (int s = 0; s < simbolosPorCarta; s++) {
+				int simbolo = simbolos[c * simbolosPorCarta + s];
+				mascaras[c * palabrasPorCarta + (simbolo >>> 6)] |= 1L << simbolo;
+			}
+		}
+		this.simboloComun = new byte[numeroCartas * numeroCartas];
+		for (int a = 0; a < numeroCartas; a++) {
+			for (int b = 0; b < numeroCartas; b++) {
+				simboloComun[a * numeroCartas + b] = (byte) calcularSimboloComun(a, b);
+			}
+		}
+		this.cartasBinario = new byte[numeroCartas][];
+		this.cartasTexto = new byte[numeroCartas][];
+		for (int c = 0; c < numeroCartas; c++) {
+			byte[] binario = new byte[simbolosPorCarta + 1];
+			binario[0] = (byte) simbolosPorCarta;
+			StringBuilder texto = new StringBuilder(simbolosPorCarta * 4);
+			for (int s = 0; s < simbolosPorCarta; s++) {
+				binario[s + 1] = (byte) getSimbolo(c, s);
+				if (s > 0) {
+					texto.append(',');
+				}
+				texto.append(getSimbolo(c, s));
+			}
+			cartasBinario[c] = binario;
+			cartasTexto[c] = texto.toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		Bitacora.info(Bitacora.SERVIDOR, "Mazo Dobble de orden {} generado. Cartas: {}, Símbolos por carta: {}", orden,
+				numeroCartas, simbolosPorCarta);
+	}
+
+	// Pre: 'orden' es uno de ORDENES_SOPORTADOS.
+	// Post: Retorna el mazo de ese orden, generándolo la primera vez que se pide.
+	// Lanza IllegalArgumentException si el orden no está soportado.
+	public static MazoDobble deOrden(int orden) {
+		if (!esOrdenSoportado(orden)) {
+			throw new IllegalArgumentException("Orden de mazo no soportado: " + orden);
+		}
+		return REGISTRO.computeIfAbsent(orden, MazoDobble::new);
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si 'orden' está en ORDENES_SOPORTADOS.
+	public static boolean esOrdenSoportado(int orden) {
+		for (int o : ORDENES_SOPORTADOS) {
+			if (o == orden) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Pre: Ninguna. Se llama una vez al arrancar el servidor.
+	// Post: Se generan todos los mazos soportados y se comprueba en paralelo
+	// (fork/join) que en cada uno todo par de cartas comparte exactamente un
+	// símbolo. Lanza IllegalStateException si algún mazo no lo cumple.
+	public static void precargarYVerificar() {
+		for (int orden : ORDENES_SOPORTADOS) {
+			MazoDobble mazo = deOrden(orden);
+			int paresErroneos = ForkJoinPool.commonPool().invoke(new VerificadorMazo(mazo, 0, mazo.numeroCartas));
+			if (paresErroneos != 0) {
+				throw new IllegalStateException(
+						"El mazo de orden " + orden + " tiene " + paresErroneos + " pares de cartas no válidos");
+			}
+		}
+		Bitacora.info(Bitacora.SERVIDOR, "Mazos verificados: {}", ORDENES_SOPORTADOS.length);
+	}
+
+	// Pre: 'orden', 'simbolosPorCarta' y 'numeroCartas' están inicializados.
+	// Post: Retorna la tabla plana con las 'numeroCartas' cartas del Plano
+	// Proyectivo de orden 'orden'. Cada carta contiene 'simbolosPorCarta' símbolos
+	// y cada par de cartas tiene exactamente un símbolo en común.
+	private int[] generarTabla() {
+		int[] tabla = new int[numeroCartas * simbolosPorCarta];
+		int pos = 0;
+		// El método divide las cartas en tres grupos principales (orden^2 líneas
+		// finitas, orden líneas verticales y 1 línea especial)
+
+		// 1. Grupo
+		// cartas de pendientes finitas (49 cartas con orden 7)
+		// estas cartas representan las líneas de la forma y=m*x+k (mod orden)
+		for (int m = 0; m < orden; m++) { // m la pendiente
+			// símbolo que representa la pendiente m (del 50 al 56 con orden 7)
+			int simboloPendiente = numeroCartas - orden + m;
+
+			for (int k = 0; k < orden; k++) { // k el desplazamiento
+				tabla[pos++] = simboloPendiente;
+				for (int x = 0; x < orden; x++) {
+					int y = (m * x + k) % orden; // saco coordenada y
+					// Fórmula para mapear las coordenadas(x,y)a un símbolo (del 1 al 49)
+					tabla[pos++] = y * orden + x + 1;
+				}
+			}
+		}
+
+		// 2. Grupo
+		// cartas de pendientes infinitas (7 cartas con orden 7)
+		// estas cartas representan las líneas verticales de la forma x=k
+		for (int k = 0; k < orden; k++) {
+			tabla[pos++] = numeroCartas; // Símbolo Infinito (57 con orden 7)
+			for (int y = 0; y < orden; y++) {
+				// x es constante (línea vertical)
+				tabla[pos++] = y * orden + k + 1;
+			}
+		}
+
+		// 3. Grupo
+		// carta final faltante (1 carta)
+		// recoge los símbolos de pendiente y el Símbolo Infinito. Es la carta que
+		// garantiza la coincidencia con las cartas de pendiente infinita.
+		tabla[pos++] = numeroCartas;
+		for (int m = 0; m < orden; m++) {
+			tabla[pos++] = numeroCartas - orden + m;
+		}
+
+		return tabla;
+	}
+
+	// Pre: 0 <= 'cartaA', 'cartaB' < numeroCartas y las máscaras están generadas.
+	// Post: Retorna el menor símbolo común de las dos cartas (0 si no comparten
+	// ninguno, lo que no debería ocurrir).
+	private int calcularSimboloComun(int cartaA, int cartaB) {
+		for (int w = 0; w < palabrasPorCarta; w++) {
+			long comunes = mascaras[cartaA * palabrasPorCarta + w] & mascaras[cartaB * palabrasPorCarta + w];
+			if (comunes != 0) {
+				return w * 64 + Long.numberOfTrailingZeros(comunes);
+			}
+		}
+		return 0;
+	}
+
+	// Pre: 0 <= 'cartaA', 'cartaB' < numeroCartas.
+	// Post: Retorna cuántos símbolos tienen en común las dos cartas.
+	int contarSimbolosComunes(int cartaA, int cartaB) {
+		int total = 0;
+		for (int w = 0; w < palabrasPorCarta; w++) {
+			total += Long.bitCount(mascaras[cartaA * palabrasPorCarta + w] & mascaras[cartaB * palabrasPorCarta + w]);
+		}
+		return total;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el orden (primo) del mazo.
+	public int getOrden() {
+		return orden;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el número de cartas del mazo (igual al número de símbolos).
+	public int getNumeroCartas() {
+		return numeroCartas;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el número de símbolos de cada carta.
+	public int getSimbolosPorCarta() {
+		return simbolosPorCarta;
+	}
+
+	// Pre: 0 <= 'carta' < getNumeroCartas() y 0 <= 'posicion' <
+	// getSimbolosPorCarta().
+	// Post: Retorna el símbolo que ocupa 'posicion' en la carta 'carta'.
+	public int getSimbolo(int carta, int posicion) {
+		return simbolos[carta * simbolosPorCarta + posicion];
+	}
+
+	// Pre: 0 <= 'carta' < getNumeroCartas().
+	// Post: Retorna 'true' si la carta tiene el símbolo 'simbolo' (consulta de un
+	// bit de su máscara).
+	public boolean contiene(int carta, int simbolo) {
+		if (simbolo < 1 || simbolo > numeroCartas) {
+			return false;
+		}
+		return (mascaras[carta * palabrasPorCarta + (simbolo >>> 6)] & (1L << simbolo)) != 0;
+	}
+
+	// Pre: 0 <= 'cartaA', 'cartaB' < getNumeroCartas() y son cartas distintas.
+	// Post: Retorna el único símbolo que comparten las dos cartas (consulta de la
+	// tabla precalculada).
+	public int getSimboloComun(int cartaA, int cartaB) {
+		return simboloComun[cartaA * numeroCartas + cartaB] & 0xFF;
+	}
+
+	// Pre: 0 <= 'carta' < getNumeroCartas().
+	// Post: Retorna la carta codificada para el protocolo binario: el número de
+	// símbolos (u8) seguido de un byte por símbolo. El array es compartido y no se
+	// debe modificar.
+	public byte[] getCartaBinaria(int carta) {
+		return cartasBinario[carta];
+	}
+
+	// Pre: 0 <= 'carta' < getNumeroCartas().
+	// Post: Retorna los símbolos de la carta unidos por comas ("1,2,3"), en
+	// UTF-8. El array es compartido y no se debe modificar.
+	public byte[] getCartaTexto(int carta) {
+		return cartasTexto[carta];
+	}
+}
@@ -0,0 +1,91 @@
+package JuegoDobble;
+
+import java.util.Arrays;
+
+/*
+Mensaje del servidor ya codificado en bytes, listo para escribirse tal cual
+en varios clientes. Las difusiones de la partida se codifican una sola vez
+y todos los destinatarios comparten el mismo búfer, que nadie modifica
+después de crearlo (ver ClienteGestorHilos.enviarMensaje()).
+Un mensaje de texto guarda en un único array la trama OP_TEXTO (para los
+clientes con protocolo binario) seguida de un salto de línea, de modo que
+la línea del protocolo de texto es el final de ese mismo array:
+[cabecera][OP_TEXTO][texto UTF-8]['\n'].
+*/
+public final class MensajeCodificado {
+
+	private final byte[] datos;
+	// fin de la trama binaria: la trama ocupa datos[0 .. finTrama)
+	private final int finTrama;
+	// inicio de la línea de texto, que llega hasta el final de 'datos'. Vale -1 si
+	// el mensaje solo existe en binario
+	private final int inicioLinea;
+
+	private MensajeCodificado(byte[] datos, int finTrama, int inicioLinea) {
+		this.datos = datos;
+		this.finTrama = finTrama;
+		this.inicioLinea = inicioLinea;
+	}
+
+	// Pre: 'trama' es un búfer de escritura y 'texto' una línea del protocolo de
+	// texto.
+	// Post: Retorna el mensaje codificado para ambos protocolos. 'trama' se puede
+	// reutilizar después.
+	public static MensajeCodificado deTexto(TramaBinaria trama, String texto) {
+		ProtocoloBinario.codificarTexto(trama, texto);
+		return deTramaTexto(trama);
+	}
+
+	// Pre: 'texto' es una línea del protocolo de texto.
+	// Post: Retorna el mensaje codificado para ambos protocolos con una trama
+	// propia. Sirve para las respuestas fijas, que se codifican una sola vez y se
+	// envían sin volver a crear bytes.
+	public static MensajeCodificado deTexto(String texto) {
+		return deTexto(new TramaBinaria(64), texto);
+	}
+
+	// Pre: 'trama' contiene una trama OP_TEXTO terminada.
+	// Post: Retorna el mensaje codificado para ambos protocolos: se copia la trama
+	// y se añade el salto de línea al final. 'trama' se puede reutilizar después.
+	public static MensajeCodificado deTramaTexto(TramaBinaria trama) {
+		int inicio = trama.getInicio();
+		int tamano = trama.getFin() - inicio;
+		byte[] datos = Arrays.copyOfRange(trama.getDatos(), inicio, trama.getFin() + 1);
+		datos[tamano] = '\n';
+		return new MensajeCodificado(datos, tamano, trama.getInicioCarga() - inicio);
+	}
+
+	// Pre: 'trama' contiene una trama terminada de un mensaje sin equivalente en el
+	// protocolo de texto (su versión de texto se envía aparte).
+	// Post: Retorna una copia de la trama. 'trama' se puede reutilizar después.
+	public static MensajeCodificado deTrama(TramaBinaria trama) {
+		byte[] datos = Arrays.copyOfRange(trama.getDatos(), trama.getInicio(), trama.getFin());
+		return new MensajeCodificado(datos, datos.length, -1);
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si el mensaje tiene versión para el protocolo de texto.
+	public boolean tieneLinea() {
+		return inicioLinea >= 0;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el búfer compartido. No se debe modificar.
+	public byte[] getDatos() {
+		return datos;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la posición siguiente al último byte de la trama binaria (que
+	// empieza en 0).
+	public int getFinTrama() {
+		return finTrama;
+	}
+
+	// Pre: tieneLinea().
+	// Post: Retorna la posición del primer byte de la línea de texto, que termina
+	// con el salto de línea al final del búfer.
+	public int getInicioLinea() {
+		return inicioLinea;
+	}
+}
@@ -0,0 +1,186 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.sun.net.httpserver.HttpServer;
+
+/*
+Registro de métricas del servidor. Hay tres tipos:
+- contadores: solo crecen (conexiones aceptadas, comandos...).
+- indicadores: valores actuales (partidas activas, profundidad de las
+  colas...).
+- histogramas: distribuciones de tiempos (ver Histograma).
+Registrar una métrica se hace una vez (al arrancar o al cargar la clase
+que la usa); quien la actualiza guarda el LongAdder o el Histograma que
+le devuelve el registro, así que sumar o registrar un valor no pasa por
+el registro ni reserva memoria. Los valores que ya se contaban en otras
+clases (ColaSalida, AlmacenRanking...) se registran con una función que
+los lee al consultarlos.
+Las métricas se leen con el comando de administración METRICS y con una
+página de texto plano en http://127.0.0.1:<puerto>/metrics (formato de
+texto de Prometheus). El puerto se elige con la propiedad del sistema
+dobble.metricas.puerto (por defecto 12346; 0 o negativo la desactiva).
+Cada nombre puede llevar etiquetas, por ejemplo
+dobble_comandos_total{comando="jugar"}.
+*/
+public final class Metricas {
+
+	public static final int PUERTO_DEFECTO = 12346;
+	// percentiles que se publican de cada histograma
+	private static final double[] CUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private static final String TIPO_CONTADOR = "counter";
+	private static final String TIPO_INDICADOR = "gauge";
+	private static final String TIPO_HISTOGRAMA = "summary";
+
+	// métricas con el mismo nombre y distintas etiquetas
+	private static final class Familia {
+		final String tipo;
+		final String ayuda;
+		// etiquetas ("" si no tiene) -> LongSupplier o Histograma
+		final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+		Familia(String tipo, String ayuda) {
+			this.tipo = tipo;
+			this.ayuda = ayuda;
+		}
+	}
+
+	// familias por nombre, ordenadas para que la salida sea estable
+	private static final Map<String, Familia> familias = new ConcurrentSkipListMap<>();
+
+	private Metricas() {
+	}
+
+	// Pre: 'nombre' es un nombre de métrica válido, con etiquetas opcionales
+	// ("nombre{etiqueta=\"valor\"}"), y 'ayuda' lo describe.
+	// Post: Se registra un contador nuevo con ese nombre (sustituye al que hubiera)
+	// y se retorna para que quien cuenta lo incremente directamente.
+	public static LongAdder contador(String nombre, String ayuda) {
+		LongAdder contador = new LongAdder();
+		registrar(nombre, TIPO_CONTADOR, ayuda, (LongSupplier) contador::sum);
+		return contador;
+	}
+
+	// Pre: Igual que 'contador()'. 'valor' es seguro de llamar desde cualquier
+	// hilo y no decrece.
+	// Post: Se registra un contador cuyo valor se lee de 'valor' al consultarlo.
+	public static void registrarContador(String nombre, String ayuda, LongSupplier valor) {
+		registrar(nombre, TIPO_CONTADOR, ayuda, valor);
+	}
+
+	// Pre: Igual que 'contador()'. 'valor' es seguro de llamar desde cualquier
+	// hilo.
+	// Post: Se registra un indicador cuyo valor se lee de 'valor' al consultarlo.
+	public static void registrarIndicador(String nombre, String ayuda, LongSupplier valor) {
+		registrar(nombre, TIPO_INDICADOR, ayuda, valor);
+	}
+
+	// Pre: Igual que 'contador()'.
+	// Post: Se registra un histograma nuevo con ese nombre y se retorna.
+	public static Histograma histograma(String nombre, String ayuda) {
+		Histograma histograma = new Histograma();
+		registrarHistograma(nombre, ayuda, histograma);
+		return histograma;
+	}
+
+	// Pre: Igual que 'contador()'.
+	// Post: Se registra 'histograma' (que ya existe) con ese nombre.
+	public static void registrarHistograma(String nombre, String ayuda, Histograma histograma) {
+		registrar(nombre, TIPO_HISTOGRAMA, ayuda, histograma);
+	}
+
+	// Pre: 'fuente' es un LongSupplier o un Histograma.
+	// Post: La serie del nombre completo queda asociada a 'fuente' dentro de su
+	// familia, que se crea con 'tipo' y 'ayuda' si no existía.
+	private static void registrar(String nombre, String tipo, String ayuda, Object fuente) {
+		int llave = nombre.indexOf('{');
+		String base = llave < 0 ? nombre : nombre.substring(0, llave);
+		String etiquetas = llave < 0 ? "" : nombre.substring(llave);
+		familias.computeIfAbsent(base, b -> new Familia(tipo, ayuda)).series.put(etiquetas, fuente);
+	}
+
+	// Pre: Ninguna. Puede llamarse desde cualquier hilo.
+	// Post: Retorna todas las métricas en el formato de texto de Prometheus: por
+	// cada familia las líneas "# HELP" y "# TYPE" y una línea "nombre valor" por
+	// serie. De cada histograma se publican los percentiles de CUANTILES, la
+	// suma, el número de valores y el máximo.
+	public static String exportar() {
+		StringBuilder sb = new StringBuilder(4096);
+		for (Map.Entry<String, Familia> e : familias.entrySet()) {
+			String base = e.getKey();
+			Familia familia = e.getValue();
+			sb.append("# HELP ").append(base).append(' ').append(familia.ayuda).append('\n');
+			sb.append("# TYPE ").append(base).append(' ').append(familia.tipo).append('\n');
+			for (Map.Entry<String, Object> serie : familia.series.entrySet()) {
+				String etiquetas = serie.getKey();
+				if (serie.getValue() instanceof Histograma) {
+					Histograma h = (Histograma) serie.getValue();
+					for (double cuantil : CUANTILES) {
+						sb.append(base).append(conEtiqueta(etiquetas, "quantile=\"" + cuantil + "\"")).append(' ')
+								.append(h.getPercentil(cuantil * 100)).append('\n');
+					}
+					sb.append(base).append("_sum").append(etiquetas).append(' ').append(h.getSuma()).append('\n');
+					sb.append(base).append("_count").append(etiquetas).append(' ').append(h.getTotal()).append('\n');
+					sb.append(base).append("_max").append(etiquetas).append(' ').append(h.getMaximo()).append('\n');
+				} else {
+					sb.append(base).append(etiquetas).append(' ')
+							.append(((LongSupplier) serie.getValue()).getAsLong()).append('\n');
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	// Pre: 'etiquetas' es "" o "{...}" y 'extra' una etiqueta "clave=\"valor\"".
+	// Post: Retorna las etiquetas con 'extra' añadida al final.
+	private static String conEtiqueta(String etiquetas, String extra) {
+		if (etiquetas.isEmpty()) {
+			return "{" + extra + "}";
+		}
+		return etiquetas.substring(0, etiquetas.length() - 1) + "," + extra + "}";
+	}
+
+	// Pre: Ninguna. Se llama una vez al arrancar el servidor.
+	// Post: Si dobble.metricas.puerto es positivo se sirve 'exportar()' en
+	// http://127.0.0.1:<puerto>/metrics desde un hilo propio. Solo escucha en la
+	// interfaz local: desde fuera de la máquina no se puede consultar. Si el
+	// puerto no se puede abrir se avisa y el servidor sigue sin la página.
+	public static void iniciarServidorHttp() {
+		int puerto = Integer.getInteger("dobble.metricas.puerto", PUERTO_DEFECTO);
+		if (puerto <= 0) {
+			return;
+		}
+		try {
+			HttpServer servidor = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), puerto),
+					0);
+			servidor.createContext("/metrics", intercambio -> {
+				byte[] cuerpo = exportar().getBytes(StandardCharsets.UTF_8);
+				intercambio.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				intercambio.sendResponseHeaders(200, cuerpo.length);
+				try (OutputStream out = intercambio.getResponseBody()) {
+					out.write(cuerpo);
+				}
+			});
+			servidor.setExecutor(Executors.newSingleThreadExecutor(tarea -> {
+				Thread hilo = new Thread(tarea, "dobble-metricas");
+				hilo.setDaemon(true);
+				return hilo;
+			}));
+			servidor.start();
+			Bitacora.info(Bitacora.SERVIDOR, "Métricas en http://127.0.0.1:{}/metrics", puerto);
+		} catch (IOException e) {
+			Bitacora.aviso(Bitacora.SERVIDOR, "No se puede abrir el puerto de métricas {}: {}", puerto,
+					e.getMessage());
+		}
+	}
+}
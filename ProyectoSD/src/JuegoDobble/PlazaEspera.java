@@ -0,0 +1,136 @@
+package JuegoDobble;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Plaza de un jugador en una sala de espera. Es el "resguardo" que recibe
+el jugador al entrar en la sala: con él puede abandonarla en tiempo
+constante, sin recorrer la cola. El estado de la plaza se cambia con
+operaciones atómicas, de modo que una plaza solo puede acabar en una
+partida o cancelada, nunca en las dos.
+*/
+public class PlazaEspera {
+
+	// estados de la plaza
+	// en la cola de la sala, esperando a que se complete una partida
+	static final int ESPERANDO = 0;
+	// apartada por un hilo que está formando una partida; pasa enseguida a
+	// EN_PARTIDA o vuelve a ESPERANDO
+	static final int RESERVADA = 1;
+	// el jugador forma parte de una partida
+	static final int EN_PARTIDA = 2;
+	// el jugador abandonó la sala antes de empezar la partida
+	static final int CANCELADA = 3;
+
+	private final CanalJugador jugador;
+	private final SalaEspera sala;
+	// tamaño mínimo de partida que el jugador acepta si se agota su espera
+	private final int minJugadores;
+	// instante de entrada en la sala (System.nanoTime())
+	private final long instanteEntrada = System.nanoTime();
+	private final AtomicInteger estado = new AtomicInteger(ESPERANDO);
+
+	// Pre: 'jugador' acaba de entrar en 'sala'. 2 <= 'minJugadores' <= tamaño de
+	// las partidas de 'sala'.
+	// Post: Se crea la plaza en estado ESPERANDO.
+	PlazaEspera(CanalJugador jugador, SalaEspera sala, int minJugadores) {
+		this.jugador = jugador;
+		this.sala = sala;
+		this.minJugadores = minJugadores;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el jugador de la plaza.
+	public CanalJugador getJugador() {
+		return jugador;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna la sala de espera de la plaza.
+	public SalaEspera getSala() {
+		return sala;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el tamaño mínimo de partida que acepta el jugador.
+	public int getMinJugadores() {
+		return minJugadores;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si el jugador acepta una partida de 'tamano'
+	// jugadores: entre su mínimo y el tamaño de su sala.
+	public boolean aceptaTamano(int tamano) {
+		return tamano >= minJugadores && tamano <= sala.getMaxJugadores();
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el instante (System.nanoTime()) en que el jugador entró en la
+	// sala.
+	public long getInstanteEntrada() {
+		return instanteEntrada;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si el jugador sigue esperando en la sala (la plaza no
+	// se ha asignado a una partida ni se ha cancelado).
+	public boolean estaEsperando() {
+		int e = estado.get();
+		return e == ESPERANDO || e == RESERVADA;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si la plaza se ha asignado a una partida.
+	public boolean estaEnPartida() {
+		return estado.get() == EN_PARTIDA;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si la plaza se ha cancelado.
+	boolean estaCancelada() {
+		return estado.get() == CANCELADA;
+	}
+
+	// Pre: Ninguna. Puede llamarse desde cualquier hilo.
+	// Post: Si la plaza estaba esperando, se cancela, se descuenta de la sala y
+	// retorna 'true'. Si ya estaba asignada a una partida o cancelada, no cambia
+	// nada y retorna 'false'. Si en ese momento un hilo la tiene reservada, se
+	// espera (sin bloquear) a que decida.
+	public boolean cancelar() {
+		while (true) {
+			int e = estado.get();
+			if (e == ESPERANDO) {
+				if (estado.compareAndSet(ESPERANDO, CANCELADA)) {
+					sala.plazaCancelada();
+					return true;
+				}
+			} else if (e == RESERVADA) {
+				// la reserva dura unas pocas instrucciones (ver SalaEspera.reclamar())
+				Thread.onSpinWait();
+			} else {
+				return false;
+			}
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Si estaba esperando pasa a RESERVADA y retorna 'true'; si no (se
+	// canceló o la tiene otro hilo), retorna 'false'.
+	boolean reservar() {
+		return estado.compareAndSet(ESPERANDO, RESERVADA);
+	}
+
+	// Pre: La plaza está RESERVADA por el hilo que llama.
+	// Post: La plaza queda asignada a la partida que se está formando y el tiempo
+	// que el jugador ha esperado se registra en el coordinador de su sala.
+	void confirmar() {
+		estado.set(EN_PARTIDA);
+		sala.getCoordinador().registrarTiempoEmparejamiento(System.nanoTime() - instanteEntrada);
+	}
+
+	// Pre: La plaza está RESERVADA por el hilo que llama.
+	// Post: La plaza vuelve a estar esperando.
+	void liberar() {
+		estado.set(ESPERANDO);
+	}
+}
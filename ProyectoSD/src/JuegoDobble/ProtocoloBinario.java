@@ -0,0 +1,120 @@
+package JuegoDobble;
+
+/*
+Protocolo binario compacto, alternativo al protocolo de texto "COMANDO|DATOS".
+Se negocia en el login: si el cliente envía "nombre|BIN" y el nombre es
+aceptado, el servidor responde "LOGIN_OK|BIN|token" (todavía en texto) y a
+partir de ahí ambos extremos intercambian tramas binarias (ver TramaBinaria).
+Al reanudar una sesión se negocia igual: "RESUME|token|BIN" y
+"RESUME_OK|BIN|nombre|estado".
+
+Los mensajes del juego (inicio de partida, instantánea de ronda, avance de
+ronda e intento) tienen su propio opcode: los símbolos viajan como un byte y las
+puntuaciones como varints, en el orden de asientos de la partida. El resto
+de mensajes viaja dentro de una trama OP_TEXTO con el mismo texto que en el
+protocolo de texto.
+*/
+public final class ProtocoloBinario {
+
+	// sufijo que añade el cliente a su nombre para pedir el protocolo binario
+	public static final String SUFIJO_LOGIN = "|BIN";
+	// respuesta de login que confirma el cambio a binario
+	public static final String LOGIN_OK_BINARIO = "LOGIN_OK|BIN";
+	// respuesta a RESUME|token|BIN que confirma el cambio a binario
+	public static final String RESUME_OK_BINARIO = "RESUME_OK|BIN";
+
+	// OP_TEXTO: [texto UTF-8 hasta el final de la trama]. En ambos sentidos.
+	public static final int OP_TEXTO = 0;
+	// OP_INICIO_PARTIDA: [carta jugador][carta central][n] n x ([nombre][puntos])
+	public static final int OP_INICIO_PARTIDA = 1;
+	// OP_NUEVA_RONDA: [carta jugador][carta central][n] n x [puntos]. Instantánea
+	// completa, solo se envía cuando el cliente pide resincronizarse (RESYNC)
+	public static final int OP_NUEVA_RONDA = 2;
+	// OP_RONDA: [asiento][puntos del asiento][carta central] y, solo para el
+	// jugador que ha puntuado, [carta jugador]. Avance de ronda: lo único que
+	// cambia tras un acierto
+	public static final int OP_RONDA = 3;
+	// OP_INTENTO (cliente -> servidor): [símbolo]
+	public static final int OP_INTENTO = 4;
+
+	// tamaño máximo de trama que acepta el servidor (los clientes solo envían
+	// comandos cortos)
+	public static final int MAX_TRAMA_SERVIDOR = 64 * 1024;
+	// tamaño máximo de trama que acepta el cliente (el historial puede ser largo)
+	public static final int MAX_TRAMA_CLIENTE = 16 * 1024 * 1024;
+
+	private ProtocoloBinario() {
+	}
+
+	// Pre: 'trama' es un búfer de escritura y 'mensaje' una línea del protocolo de
+	// texto.
+	// Post: 'trama' contiene una trama OP_TEXTO terminada con 'mensaje'.
+	public static void codificarTexto(TramaBinaria trama, String mensaje) {
+		trama.iniciar(OP_TEXTO);
+		trama.escribirTextoFinal(mensaje);
+		trama.terminar();
+	}
+
+	// Pre: 'cartaJugador' y 'cartaCentral' son cartas de 'mazo'; 'nombres' y
+	// 'puntos' tienen una posición por asiento de la partida.
+	// Post: 'trama' contiene una trama OP_INICIO_PARTIDA terminada.
+	public static void codificarInicioPartida(TramaBinaria trama, MazoDobble mazo, int cartaJugador,
+			int cartaCentral, String[] nombres, int[] puntos) {
+		trama.iniciar(OP_INICIO_PARTIDA);
+		trama.escribirCarta(mazo, cartaJugador);
+		trama.escribirCarta(mazo, cartaCentral);
+		trama.escribirByte(nombres.length);
+		for (int i = 0; i < nombres.length; i++) {
+			trama.escribirTextoCorto(nombres[i]);
+			trama.escribirVarint(puntos[i]);
+		}
+		trama.terminar();
+	}
+
+	// Pre: 'cartaJugador' y 'cartaCentral' son cartas de 'mazo'; 'puntos' tiene una
+	// posición por asiento de la partida.
+	// Post: 'trama' contiene una trama OP_NUEVA_RONDA terminada.
+	public static void codificarNuevaRonda(TramaBinaria trama, MazoDobble mazo, int cartaJugador,
+			int cartaCentral, int[] puntos) {
+		trama.iniciar(OP_NUEVA_RONDA);
+		trama.escribirCarta(mazo, cartaJugador);
+		trama.escribirCarta(mazo, cartaCentral);
+		escribirPuntos(trama, puntos);
+		trama.terminar();
+	}
+
+	// Pre: 'asiento' es el asiento del jugador que ha puntuado y 'puntos' su nueva
+	// puntuación. 'cartaCentral' es una carta de 'mazo' y 'cartaJugador' la nueva
+	// mano del destinatario o DobbleLogic.SIN_CARTA si no ha cambiado.
+	// Post: 'trama' contiene una trama OP_RONDA terminada. La mano solo se
+	// escribe si ha cambiado.
+	public static void codificarRonda(TramaBinaria trama, MazoDobble mazo, int asiento, int puntos,
+			int cartaCentral, int cartaJugador) {
+		trama.iniciar(OP_RONDA);
+		trama.escribirByte(asiento);
+		trama.escribirVarint(puntos);
+		trama.escribirCarta(mazo, cartaCentral);
+		if (cartaJugador != DobbleLogic.SIN_CARTA) {
+			trama.escribirCarta(mazo, cartaJugador);
+		}
+		trama.terminar();
+	}
+
+	// Pre: 'simbolo' está entre 1 y 255 (el mazo más grande, de orden 13, llega a
+	// 183).
+	// Post: 'trama' contiene una trama OP_INTENTO terminada.
+	public static void codificarIntento(TramaBinaria trama, int simbolo) {
+		trama.iniciar(OP_INTENTO);
+		trama.escribirByte(simbolo);
+		trama.terminar();
+	}
+
+	// Pre: 'puntos' tiene una posición por asiento.
+	// Post: Se escribe el número de asientos seguido de un varint por asiento.
+	private static void escribirPuntos(TramaBinaria trama, int[] puntos) {
+		trama.escribirByte(puntos.length);
+		for (int p : puntos) {
+			trama.escribirVarint(p);
+		}
+	}
+}
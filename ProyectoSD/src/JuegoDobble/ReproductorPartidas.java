@@ -0,0 +1,198 @@
+package JuegoDobble;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Reproductor de partidas: lee el diario de eventos del servidor (ver
+DiarioEventos) y vuelve a jugar cada partida con el mismo DobblePartida,
+en memoria (como SimuladorPartidas). Como el barajado depende solo de la
+semilla guardada, aplicar los mismos intentos, rendiciones y
+desconexiones en el mismo orden debe dar exactamente la misma partida:
+cada intento tiene que acertar o fallar igual que en el servidor y las
+puntuaciones finales tienen que coincidir con las del evento FIN. Si no,
+la partida se marca como divergente, con su identificador y semilla.
+Las partidas cuyo registro se truncó (ver EventosPartida.MAX_BYTES) no se
+pueden verificar: se muestran y se cuentan aparte.
+Sirve para depurar una partida concreta y para medir el motor con una
+carga real en vez de sintética.
+Uso: ReproductorPartidas [fichero] [idPartida]
+- fichero: el diario (datos/eventos.bin).
+- idPartida: reproduce solo esa partida.
+Se configura con la propiedad del sistema dobble.reproduccion.repeticiones:
+cuántas veces se reproduce el diario entero (1), para medir.
+*/
+public class ReproductorPartidas {
+
+	private static final int REPETICIONES = Integer.getInteger("dobble.reproduccion.repeticiones", 1);
+
+	// destino de las partidas reproducidas: no guarda nada
+	private static final class DestinoVacio implements DestinoPartidas {
+		@Override
+		public void registrarResultado(String resumenPartida) {
+		}
+
+		@Override
+		public void registrarEventos(byte[] datos, int longitud) {
+		}
+
+		@Override
+		public void desregistrarPartida(DobblePartida partida) {
+		}
+	}
+
+	private final DestinoPartidas destino = new DestinoVacio();
+	private final DestinoRanking ranking = nombre -> {
+	};
+	private long eventos;
+	// 'true' si la última partida reproducida tenía el registro truncado
+	private boolean truncada;
+
+	// Pre: Ninguna.
+	// Post: Se reproducen las partidas del diario (o solo la pedida) y se muestra
+	// cuántas coinciden con lo registrado y a qué ritmo se reproducen.
+	public static void main(String[] args) throws IOException {
+		// igual que en el simulador: el motor avisa de cada partida que empieza
+		if (System.getProperty("dobble.log.nivel") == null) {
+			System.setProperty("dobble.log.nivel", "aviso");
+		}
+		Path ruta = Paths.get(args.length > 0 ? args[0] : "datos/eventos.bin");
+		long filtro = args.length > 1 ? Long.parseLong(args[1]) : -1;
+
+		List<byte[]> bloques = new ArrayList<>();
+		DiarioEventos.leer(ruta, bloque -> {
+			if (filtro < 0 || idPartida(bloque) == filtro) {
+				bloques.add(bloque);
+			}
+		});
+		if (bloques.isEmpty()) {
+			System.out.println("No hay partidas que reproducir en " + ruta + ".");
+			return;
+		}
+		new ReproductorPartidas().ejecutar(bloques);
+	}
+
+	// Pre: 'bloque' es un bloque del diario.
+	// Post: Retorna el identificador de su partida o -1 si la cabecera no se
+	// puede leer.
+	private static long idPartida(byte[] bloque) {
+		try {
+			return new EventosPartida.Lector(bloque, 0, bloque.length).getIdPartida();
+		} catch (IllegalArgumentException e) {
+			return -1;
+		}
+	}
+
+	// Pre: 'bloques' son bloques de eventos leídos del diario.
+	// Post: Se reproducen REPETICIONES veces; en la primera se muestra cada
+	// partida divergente o truncada. Al final se muestra el resumen.
+	private void ejecutar(List<byte[]> bloques) {
+		long verificadas = 0;
+		long divergentes = 0;
+		long truncadas = 0;
+		long inicio = System.nanoTime();
+		for (int i = 0; i < REPETICIONES; i++) {
+			for (byte[] bloque : bloques) {
+				String divergencia;
+				truncada = false;
+				try {
+					divergencia = reproducir(new EventosPartida.Lector(bloque, 0, bloque.length));
+				} catch (IllegalArgumentException e) {
+					divergencia = "Bloque de eventos no válido: " + e.getMessage();
+				}
+				if (divergencia == null) {
+					verificadas++;
+				} else {
+					if (truncada) {
+						truncadas++;
+					} else {
+						divergentes++;
+					}
+					if (i == 0) {
+						System.out.println(divergencia);
+					}
+				}
+			}
+		}
+		double segundos = (System.nanoTime() - inicio) / 1e9;
+		System.out.println("--- Resultado de la reproducción ---");
+		System.out.println("Partidas en el diario: " + bloques.size() + ", repeticiones: " + REPETICIONES);
+		System.out.println(
+				"Verificadas: " + verificadas + ", divergentes: " + divergentes + ", truncadas: " + truncadas);
+		System.out.println(String.format("Eventos: %d (%.0f/s, %.3f s)", eventos, eventos / segundos, segundos));
+	}
+
+	// Pre: 'lector' está al principio de un bloque.
+	// Post: Se juega la partida del bloque con su semilla, aplicando sus eventos
+	// en orden. Retorna 'null' si todo coincide con lo registrado o la
+	// descripción de la primera diferencia. Si el registro está truncado, se
+	// marca 'truncada' y se retorna su descripción.
+	private String reproducir(EventosPartida.Lector lector) {
+		String partidaLeida = "Partida " + lector.getIdPartida() + " (semilla " + lector.getSemilla() + ", orden "
+				+ lector.getOrden() + ", " + lector.getJugadores() + " jugadores): ";
+		if (!MazoDobble.esOrdenSoportado(lector.getOrden())) {
+			return partidaLeida + "orden de mazo no soportado.";
+		}
+		int numJugadores = lector.getJugadores();
+		CanalMemoria[] canales = new CanalMemoria[numJugadores];
+		List<CanalMemoria> jugadores = new ArrayList<>(numJugadores);
+		for (int i = 0; i < numJugadores; i++) {
+			canales[i] = new CanalMemoria("jugador" + i, false);
+			jugadores.add(canales[i]);
+		}
+		DobblePartida partida = new DobblePartida(lector.getIdPartida(), jugadores,
+				MazoDobble.deOrden(lector.getOrden()), lector.getSemilla(), Runnable::run, ranking, destino);
+		partida.iniciar();
+
+		int numEvento = 0;
+		while (lector.siguiente()) {
+			numEvento++;
+			eventos++;
+			int tipo = lector.getTipo();
+			int asiento = lector.getAsiento();
+			if (tipo != EventosPartida.FIN && asiento >= numJugadores) {
+				return partidaLeida + "evento " + numEvento + " con asiento " + asiento + " no válido.";
+			}
+			switch (tipo) {
+			case EventosPartida.ACIERTO:
+			case EventosPartida.FALLO:
+				int antes = partida.getPuntos(asiento);
+				partida.procesarIntento(canales[asiento], lector.getSimbolo());
+				boolean acierto = partida.getPuntos(asiento) != antes;
+				if (acierto != (tipo == EventosPartida.ACIERTO)) {
+					return partidaLeida + "el intento " + numEvento + " (asiento " + asiento + ", símbolo "
+							+ lector.getSimbolo() + ") " + (acierto ? "acierta" : "falla") + " al reproducirlo.";
+				}
+				break;
+			case EventosPartida.RENDICION:
+				partida.procesarRendicion(canales[asiento]);
+				break;
+			case EventosPartida.DESCONEXION:
+				partida.procesarDesconexion(canales[asiento]);
+				break;
+			case EventosPartida.TRUNCADO:
+				truncada = true;
+				return partidaLeida + "el registro se truncó tras " + (numEvento - 1)
+						+ " eventos, no se puede verificar.";
+			case EventosPartida.FIN:
+				if (partida.getEstado() != DobblePartida.ESTADO_TERMINADA) {
+					return partidaLeida + "la partida no termina al reproducirla.";
+				}
+				int[] puntos = lector.getPuntos();
+				for (int i = 0; i < numJugadores; i++) {
+					if (partida.getPuntos(i) != puntos[i]) {
+						return partidaLeida + "el asiento " + i + " termina con " + partida.getPuntos(i)
+								+ " puntos en vez de " + puntos[i] + ".";
+					}
+				}
+				return null;
+			default:
+				return partidaLeida + "evento " + numEvento + " de tipo desconocido " + tipo + ".";
+			}
+		}
+		return partidaLeida + "el bloque no tiene evento FIN.";
+	}
+}
@@ -0,0 +1,219 @@
+package JuegoDobble;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Detecta las conexiones que han dejado de responder (un portátil cerrado,
+un NAT que ha olvidado la conexión...) sin un hilo ni un plazo por
+conexión: una rueda de temporización compartida que avanza una casilla
+por tick en el temporizador del servidor.
+Cada conexión registra un Latido y lo marca cada vez que recibe datos,
+lo que solo es una escritura volatile del tick actual: no se reprograma
+nada. Cada latido está en la casilla del tick en que toca revisarlo y,
+cuando la rueda llega a ella:
+- si la conexión lleva LIMITE_MS sin recibir nada, se cierra. La sesión
+  sigue entonces el camino de cualquier conexión perdida (plazo de
+  gracia, procesarDesconexion y removerCliente, ver ClienteGestorHilos).
+- si lleva INTERVALO_PING_MS sin recibir nada, se le envía un PING, que
+  el cliente responde con PONG (cualquier otro comando también cuenta).
+- si no, se vuelve a colocar en la casilla de su siguiente revisión.
+Se configura con propiedades del sistema, en segundos:
+- dobble.latido.intervalo: silencio tras el que se envía PING (5).
+- dobble.latido.limite: silencio tras el que se cierra la conexión (15);
+  0 desactiva la vigilancia.
+*/
+public class RuedaInactividad {
+
+	public static final long INTERVALO_PING_MS = TimeUnit.SECONDS
+			.toMillis(Math.max(1, Long.getLong("dobble.latido.intervalo", 5)));
+	public static final long LIMITE_MS = TimeUnit.SECONDS
+			.toMillis(Math.max(0, Long.getLong("dobble.latido.limite", 15)));
+	// duración de un tick de la rueda: la precisión con la que se cumplen los
+	// plazos
+	private static final long TICK_MS = 500;
+
+	// métricas de la vigilancia (ver Metricas)
+	private static final LongAdder latidosEnviados = Metricas.contador("dobble_latidos_enviados_total",
+			"PING enviados a conexiones en silencio.");
+	private static final LongAdder conexionesInactivas = Metricas.contador("dobble_conexiones_inactivas_total",
+			"Conexiones cerradas por no recibir nada durante el límite de inactividad.");
+
+	/*
+	Vigilancia de una conexión. La conexión llama a 'actividad()' al recibir
+	datos y a 'cancelar()' al cerrarse; el resto solo lo usa la rueda.
+	*/
+	public static final class Latido {
+		private final RuedaInactividad rueda;
+		private final Runnable cierre;
+		private volatile Runnable ping;
+		// tick en que se recibieron datos por última vez
+		private volatile long ultimaActividad;
+		private volatile boolean cancelado;
+		// tick en que se envió el último PING, o -1 si no se ha enviado desde la
+		// última actividad (solo lo usa el hilo de la rueda)
+		private long tickPing = -1;
+
+		// Pre: Ninguna.
+		// Post: Se crea el latido con la actividad en el tick actual.
+		private Latido(RuedaInactividad rueda, Runnable ping, Runnable cierre) {
+			this.rueda = rueda;
+			this.ping = ping;
+			this.cierre = cierre;
+			this.ultimaActividad = rueda.tickActual;
+		}
+
+		// Pre: Ninguna. Puede llamarse desde cualquier hilo.
+		// Post: La conexión cuenta como activa en el tick actual.
+		public void actividad() {
+			long tick = rueda.tickActual;
+			if (ultimaActividad != tick) {
+				ultimaActividad = tick;
+			}
+		}
+
+		// Pre: 'ping' envía un PING a quien usa ahora la conexión.
+		// Post: Los siguientes PING se envían con 'ping' (por ejemplo, cuando la
+		// conexión pasa a otra sesión al reanudarla).
+		public void setPing(Runnable ping) {
+			this.ping = ping;
+		}
+
+		// Pre: Ninguna.
+		// Post: La conexión deja de vigilarse; la rueda la descarta la próxima vez
+		// que la revise.
+		public void cancelar() {
+			cancelado = true;
+		}
+	}
+
+	private final long ticksPing;
+	private final long ticksLimite;
+	// casillas de la rueda; solo las usa el hilo de la rueda
+	private final List<List<Latido>> casillas;
+	private final int mascara;
+	// latidos registrados desde el último tick, pendientes de colocar en su
+	// casilla
+	private final ConcurrentLinkedQueue<Latido> nuevos = new ConcurrentLinkedQueue<>();
+	// lista vacía que se intercambia con la casilla que se revisa, para no crear
+	// listas en cada tick
+	private List<Latido> repuesto = new ArrayList<>();
+	// tick actual; solo lo avanza el hilo de la rueda
+	private volatile long tickActual = 0;
+
+	// Pre: Ninguna.
+	// Post: Se crea la rueda con tantas casillas como ticks tiene el límite de
+	// inactividad (redondeado a una potencia de dos), de modo que cualquier
+	// revisión cae dentro de una sola vuelta.
+	public RuedaInactividad() {
+		this.ticksPing = Math.max(1, INTERVALO_PING_MS / TICK_MS);
+		this.ticksLimite = Math.max(ticksPing + 1, LIMITE_MS / TICK_MS);
+		int numCasillas = Integer.highestOneBit((int) Math.min(ticksLimite + 1, 1 << 20) * 2 - 1);
+		this.casillas = new ArrayList<>(numCasillas);
+		for (int i = 0; i < numCasillas; i++) {
+			casillas.add(new ArrayList<>());
+		}
+		this.mascara = numCasillas - 1;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna 'true' si la vigilancia está activada (dobble.latido.limite
+	// mayor que 0).
+	public static boolean estaActiva() {
+		return LIMITE_MS > 0;
+	}
+
+	// Pre: Se llama una vez, al arrancar el servidor.
+	// Post: Si la vigilancia está activada, la rueda avanza un tick cada TICK_MS en
+	// 'temporizador'.
+	public void iniciar(ScheduledExecutorService temporizador) {
+		if (estaActiva()) {
+			temporizador.scheduleAtFixedRate(this::avanzar, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Pre: 'ping' envía un PING por la conexión (y no hace nada si aún no hay
+	// sesión) y 'cierre' la cierra. Ambos se ejecutan en el temporizador, así que
+	// deben ser cortos. Puede llamarse desde cualquier hilo.
+	// Post: Retorna el latido con el que se vigila la conexión.
+	public Latido registrar(Runnable ping, Runnable cierre) {
+		Latido latido = new Latido(this, ping, cierre);
+		if (estaActiva()) {
+			nuevos.add(latido);
+		}
+		return latido;
+	}
+
+	// Pre: Se ejecuta en el temporizador, cada TICK_MS.
+	// Post: Se avanza un tick, se colocan los latidos nuevos y se revisan los de la
+	// casilla del tick (ver 'revisar()').
+	private void avanzar() {
+		long tick = tickActual + 1;
+		tickActual = tick;
+		Latido nuevo;
+		while ((nuevo = nuevos.poll()) != null) {
+			colocar(nuevo, nuevo.ultimaActividad + ticksPing);
+		}
+		int indice = (int) (tick & mascara);
+		List<Latido> pendientes = casillas.get(indice);
+		if (pendientes.isEmpty()) {
+			return;
+		}
+		// la casilla se vacía antes de revisarla: 'revisar()' puede volver a colocar
+		// un latido en ella
+		casillas.set(indice, repuesto);
+		for (Latido latido : pendientes) {
+			try {
+				revisar(latido, tick);
+			} catch (RuntimeException e) {
+				// un fallo en una conexión no puede parar la rueda
+				Bitacora.aviso(Bitacora.CONEXION, "Error al vigilar una conexión: {}", e.toString());
+			}
+		}
+		pendientes.clear();
+		repuesto = pendientes;
+	}
+
+	// Pre: 'latido' estaba en la casilla de 'tick'.
+	// Post: Si se ha cancelado, se descarta. Si la conexión lleva el límite sin
+	// actividad, se cierra; si lleva el intervalo de PING y no se le ha enviado
+	// desde entonces, se le envía. Si sigue vigilándose, se coloca en la casilla
+	// de su siguiente revisión.
+	private void revisar(Latido latido, long tick) {
+		if (latido.cancelado) {
+			return;
+		}
+		long ultima = latido.ultimaActividad;
+		if (latido.tickPing >= 0 && ultima >= latido.tickPing) {
+			// ha respondido desde el último PING
+			latido.tickPing = -1;
+		}
+		long silencio = tick - ultima;
+		if (silencio >= ticksLimite) {
+			conexionesInactivas.increment();
+			Bitacora.info(Bitacora.CONEXION, "Conexión sin actividad durante {} s: se cierra.",
+					silencio * TICK_MS / 1000);
+			latido.cancelado = true;
+			latido.cierre.run();
+			return;
+		}
+		if (silencio >= ticksPing && latido.tickPing < 0) {
+			latido.tickPing = tick;
+			latidosEnviados.increment();
+			latido.ping.run();
+		}
+		colocar(latido, latido.tickPing < 0 ? ultima + ticksPing : ultima + ticksLimite);
+	}
+
+	// Pre: Se ejecuta en el hilo de la rueda.
+	// Post: 'latido' queda en la casilla de 'tickRevision', o en la del siguiente
+	// tick si ese ya ha pasado.
+	private void colocar(Latido latido, long tickRevision) {
+		long tick = Math.max(tickRevision, tickActual + 1);
+		casillas.get((int) (tick & mascara)).add(latido);
+	}
+}
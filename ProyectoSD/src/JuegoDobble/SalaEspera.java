@@ -0,0 +1,174 @@
+package JuegoDobble;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Sala de espera sin cerrojos de un tipo de partida (orden del mazo y
+número de jugadores). Los jugadores entran al final de una cola
+concurrente y reciben una PlazaEspera. Un contador atómico lleva las
+plazas que siguen esperando: para formar una partida, un hilo reclama de
+golpe 'maxJugadores' unidades del contador con una sola operación CAS y
+después saca de la cola esas plazas. Cancelar una plaza solo cambia su
+estado y descuenta el contador; las plazas canceladas se quitan de la
+cola cuando se sacan o, si se acumulan muchas, con un barrido.
+Ningún hilo espera nunca a otro con un cerrojo, así que muchos JUGAR a la
+vez no forman colas de hilos bloqueados.
+*/
+public class SalaEspera {
+
+	// plazas canceladas que se toleran en la cola antes de barrerla
+	private static final int MIN_CANCELADAS_BARRIDO = 64;
+
+	// coordinador dueño de la sala, donde se registra lo que esperan sus plazas
+	private final CoordinadorPartida coordinador;
+	private final int ordenMazo;
+	private final int maxJugadores;
+	// plazas en orden de llegada. Puede contener plazas canceladas
+	private final Deque<PlazaEspera> cola = new ConcurrentLinkedDeque<>();
+	// plazas que siguen esperando y que nadie ha reclamado todavía
+	private final AtomicInteger disponibles = new AtomicInteger();
+	// plazas canceladas desde el último barrido de la cola
+	private final AtomicInteger canceladas = new AtomicInteger();
+
+	// Pre: 'coordinador' es el que crea la sala. 'ordenMazo' es un orden soportado
+	// y 'maxJugadores' está entre 2 y 8.
+	// Post: Se crea la sala vacía.
+	public SalaEspera(CoordinadorPartida coordinador, int ordenMazo, int maxJugadores) {
+		this.coordinador = coordinador;
+		this.ordenMazo = ordenMazo;
+		this.maxJugadores = maxJugadores;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el coordinador dueño de la sala.
+	public CoordinadorPartida getCoordinador() {
+		return coordinador;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el orden del mazo de las partidas de esta sala.
+	public int getOrdenMazo() {
+		return ordenMazo;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el número de jugadores de las partidas de esta sala.
+	public int getMaxJugadores() {
+		return maxJugadores;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna cuántos jugadores esperan en la sala (aproximado si hay
+	// operaciones en curso).
+	public int getEsperando() {
+		return Math.max(0, disponibles.get());
+	}
+
+	// Pre: 'jugador' no espera ya en esta sala y 2 <= 'minJugadores' <=
+	// 'maxJugadores'. Puede llamarse desde cualquier hilo.
+	// Post: El jugador se añade al final de la cola y se retorna su plaza.
+	public PlazaEspera entrar(CanalJugador jugador, int minJugadores) {
+		PlazaEspera plaza = new PlazaEspera(jugador, this, minJugadores);
+		cola.offerLast(plaza);
+		disponibles.incrementAndGet();
+		return plaza;
+	}
+
+	// Pre: Ninguna. Puede llamarse desde cualquier hilo.
+	// Post: Si hay al menos 'maxJugadores' esperando, se reclaman atómicamente
+	// los primeros 'maxJugadores', se marcan como en partida, sus plazas pasan a
+	// EN_PARTIDA y se retornan los jugadores en orden de llegada. Si no hay
+	// suficientes retorna 'null'. Dos hilos nunca reclaman la misma plaza.
+	public List<CanalJugador> reclamar() {
+		while (true) {
+			int actuales = disponibles.get();
+			if (actuales < maxJugadores) {
+				return null;
+			}
+			// reclamar N plazas es una única operación CAS sobre el contador
+			if (!disponibles.compareAndSet(actuales, actuales - maxJugadores)) {
+				continue;
+			}
+			List<PlazaEspera> reservadas = new ArrayList<>(maxJugadores);
+			PlazaEspera plaza;
+			while (reservadas.size() < maxJugadores && (plaza = cola.pollFirst()) != null) {
+				// las canceladas se descartan al sacarlas
+				if (plaza.reservar()) {
+					reservadas.add(plaza);
+				}
+			}
+			if (reservadas.size() == maxJugadores) {
+				List<CanalJugador> jugadores = new ArrayList<>(maxJugadores);
+				for (PlazaEspera reservada : reservadas) {
+					// se marca al jugador antes de confirmar la plaza: quien vea la plaza
+					// EN_PARTIDA ve también que el jugador está en partida, aunque la
+					// DobblePartida todavía no exista
+					reservada.getJugador().setEnPartida(true);
+					reservada.confirmar();
+					jugadores.add(reservada.getJugador());
+				}
+				return jugadores;
+			}
+			// alguna de las plazas contadas se canceló mientras tanto: se devuelven
+			// las reservadas al principio de la cola, en su orden, y se reintenta por si
+			// han llegado otros jugadores
+			for (int i = reservadas.size() - 1; i >= 0; i--) {
+				PlazaEspera reservada = reservadas.get(i);
+				reservada.liberar();
+				cola.offerFirst(reservada);
+			}
+			disponibles.addAndGet(maxJugadores);
+		}
+	}
+
+	// Pre: Ninguna.
+	// Post: Se añaden a 'destino' las plazas de la sala que siguen esperando, en
+	// orden de llegada (una instantánea: puede cambiar mientras tanto).
+	void recogerEsperando(List<PlazaEspera> destino) {
+		for (PlazaEspera plaza : cola) {
+			if (plaza.estaEsperando()) {
+				destino.add(plaza);
+			}
+		}
+	}
+
+	// Pre: 'plaza' es de esta sala. Lo usa la fusión de salas de
+	// CoordinadorPartida para tomar plazas sueltas.
+	// Post: Si la plaza seguía esperando queda RESERVADA por el hilo que llama,
+	// fuera de la cola y descontada, y retorna 'true'. Si no, retorna 'false'.
+	boolean tomar(PlazaEspera plaza) {
+		if (!plaza.reservar()) {
+			return false;
+		}
+		// si otro hilo ya la ha sacado al reclamar una partida, la habrá descartado
+		// al verla reservada; para ese hilo es como una cancelación
+		cola.removeFirstOccurrence(plaza);
+		disponibles.decrementAndGet();
+		return true;
+	}
+
+	// Pre: 'plaza' es de esta sala y la tiene RESERVADA el hilo que llama tras
+	// 'tomar()'.
+	// Post: La plaza vuelve a esperar al principio de la cola.
+	void devolver(PlazaEspera plaza) {
+		plaza.liberar();
+		cola.offerFirst(plaza);
+		disponibles.incrementAndGet();
+	}
+
+	// Pre: Una plaza de esta sala acaba de pasar de ESPERANDO a CANCELADA.
+	// Post: La plaza se descuenta. Si se han acumulado muchas plazas canceladas
+	// en la cola, se barre la cola para quitarlas.
+	void plazaCancelada() {
+		disponibles.decrementAndGet();
+		int total = canceladas.incrementAndGet();
+		if (total >= MIN_CANCELADAS_BARRIDO && total > disponibles.get()) {
+			canceladas.set(0);
+			cola.removeIf(PlazaEspera::estaCancelada);
+		}
+	}
+}
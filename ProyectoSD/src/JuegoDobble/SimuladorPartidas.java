@@ -0,0 +1,197 @@
+package JuegoDobble;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Simulador de partidas en memoria: juega partidas completas con el mismo
+DobblePartida que el servidor, pero sin sockets ni singletons. Los
+jugadores son canales en memoria (CanalMemoria) que cuentan lo que
+reciben, el buzón se vacía en el propio hilo que juega y el ranking y el
+historial son destinos que solo cuentan. Sirve para medir cuántas rondas
+por segundo aguanta el motor sin el ruido de la red.
+Cada hilo juega partidas una tras otra: en cada ronda elige un jugador al
+azar, que pulsa la coincidencia de su carta con la central (o, con la
+tasa de error, otro símbolo de su carta).
+Se configura con propiedades del sistema:
+- dobble.sim.hilos: hilos que juegan a la vez (1).
+- dobble.sim.jugadores: jugadores por partida (2).
+- dobble.sim.orden: orden del mazo (MazoDobble.ORDEN_ESTANDAR).
+- dobble.sim.binario: si los jugadores usan el protocolo binario (false).
+- dobble.sim.error: probabilidad de que un intento sea erróneo (0).
+- dobble.sim.calentamiento: segundos que se juegan sin medir (2).
+- dobble.sim.segundos: segundos que se mide (10).
+- dobble.sim.semilla: semilla de las decisiones de los jugadores.
+*/
+public class SimuladorPartidas {
+
+	private static final int HILOS = Integer.getInteger("dobble.sim.hilos", 1);
+	private static final int JUGADORES = Integer.getInteger("dobble.sim.jugadores", 2);
+	private static final int ORDEN = Integer.getInteger("dobble.sim.orden", MazoDobble.ORDEN_ESTANDAR);
+	private static final boolean BINARIO = Boolean.getBoolean("dobble.sim.binario");
+	private static final double TASA_ERROR = Double.parseDouble(System.getProperty("dobble.sim.error", "0"));
+	private static final int CALENTAMIENTO = Integer.getInteger("dobble.sim.calentamiento", 2);
+	private static final int SEGUNDOS = Integer.getInteger("dobble.sim.segundos", 10);
+	private static final long SEMILLA = Long.getLong("dobble.sim.semilla", System.nanoTime());
+
+	// historial en memoria: cuenta los resúmenes, los bytes de eventos y las bajas
+	private static final class DestinoMemoria implements DestinoPartidas {
+		final LongAdder resumenes = new LongAdder();
+		final LongAdder bajas = new LongAdder();
+		final LongAdder bytesEventos = new LongAdder();
+
+		@Override
+		public void registrarResultado(String resumenPartida) {
+			resumenes.increment();
+		}
+
+		@Override
+		public void registrarEventos(byte[] datos, int longitud) {
+			bytesEventos.add(longitud);
+		}
+
+		@Override
+		public void desregistrarPartida(DobblePartida partida) {
+			bajas.increment();
+		}
+	}
+
+	// lo que ha medido un hilo del simulador
+	private static final class Resultado {
+		long partidas;
+		long rondas;
+		long intentos;
+		long mensajes;
+		long bytes;
+		long nanos;
+	}
+
+	private final MazoDobble mazo = MazoDobble.deOrden(ORDEN);
+	private final LongAdder victorias = new LongAdder();
+	private final DestinoRanking ranking = nombre -> victorias.increment();
+	private final DestinoMemoria destino = new DestinoMemoria();
+
+	// Pre: Ninguna.
+	// Post: Se juegan partidas en memoria durante el calentamiento y la medición
+	// configurados y se muestra el resultado.
+	public static void main(String[] args) throws InterruptedException {
+		// el motor avisa de cada partida que empieza y termina: aquí serían miles por
+		// segundo, así que por defecto solo se muestran los avisos y errores
+		if (System.getProperty("dobble.log.nivel") == null) {
+			System.setProperty("dobble.log.nivel", "aviso");
+		}
+		if (!MazoDobble.esOrdenSoportado(ORDEN) || JUGADORES < 2 || JUGADORES + 1 > MazoDobble.deOrden(ORDEN)
+				.getNumeroCartas()) {
+			System.out.println("Configuración no válida: orden " + ORDEN + " con " + JUGADORES + " jugadores.");
+			return;
+		}
+		new SimuladorPartidas().ejecutar();
+	}
+
+	// Pre: Ninguna.
+	// Post: Cada uno de los HILOS juega partidas hasta agotar el calentamiento y
+	// la medición; después se suman sus resultados y se muestran.
+	private void ejecutar() throws InterruptedException {
+		System.out.println("Simulando partidas de " + JUGADORES + " jugadores con mazo de orden " + ORDEN + " en "
+				+ HILOS + " hilos (" + (BINARIO ? "binario" : "texto") + ", error " + TASA_ERROR + ", semilla "
+				+ SEMILLA + ")");
+		List<Thread> hilos = new ArrayList<>(HILOS);
+		Resultado[] resultados = new Resultado[HILOS];
+		for (int i = 0; i < HILOS; i++) {
+			int indice = i;
+			Thread hilo = new Thread(() -> resultados[indice] = jugar(new Random(SEMILLA + indice)),
+					"dobble-sim-" + i);
+			hilos.add(hilo);
+			hilo.start();
+		}
+		for (Thread hilo : hilos) {
+			hilo.join();
+		}
+
+		Resultado total = new Resultado();
+		for (Resultado r : resultados) {
+			total.partidas += r.partidas;
+			total.rondas += r.rondas;
+			total.intentos += r.intentos;
+			total.mensajes += r.mensajes;
+			total.bytes += r.bytes;
+			total.nanos = Math.max(total.nanos, r.nanos);
+		}
+		double segundos = total.nanos / 1e9;
+		System.out.println("--- Resultado de la simulación ---");
+		System.out.println(String.format("Partidas: %d (%.0f/s)", total.partidas, total.partidas / segundos));
+		System.out.println(String.format("Rondas: %d (%.0f/s, %.0f ns por ronda y hilo)", total.rondas,
+				total.rondas / segundos, total.nanos * (double) HILOS / Math.max(total.rondas, 1)));
+		System.out.println(String.format("Intentos: %d (%.0f/s)", total.intentos, total.intentos / segundos));
+		System.out.println(String.format("Mensajes a jugadores: %d (%.0f/s, %.1f MB/s)", total.mensajes,
+				total.mensajes / segundos, total.bytes / segundos / 1e6));
+		System.out.println("Victorias registradas: " + victorias.sum() + ", resúmenes de historial: "
+				+ destino.resumenes.sum() + ", bajas: " + destino.bajas.sum());
+		System.out.println(String.format("Eventos registrados: %.1f MB (%.1f bytes por intento)",
+				destino.bytesEventos.sum() / 1e6, destino.bytesEventos.sum() / (double) Math.max(total.intentos, 1)));
+	}
+
+	// Pre: 'aleatorio' es el generador del hilo.
+	// Post: Se juegan partidas seguidas durante CALENTAMIENTO segundos sin medir y
+	// después durante SEGUNDOS más, de las que se retorna lo medido.
+	private Resultado jugar(Random aleatorio) {
+		CanalMemoria[] canales = new CanalMemoria[JUGADORES];
+		List<CanalMemoria> jugadores = new ArrayList<>(JUGADORES);
+		for (int i = 0; i < JUGADORES; i++) {
+			canales[i] = new CanalMemoria("jugador" + i, BINARIO);
+			jugadores.add(canales[i]);
+		}
+		Resultado descartado = new Resultado();
+		long finCalentamiento = System.nanoTime() + CALENTAMIENTO * 1_000_000_000L;
+		long id = 0;
+		while (System.nanoTime() < finCalentamiento) {
+			jugarPartida(++id, jugadores, canales, aleatorio, descartado);
+		}
+		for (CanalMemoria canal : canales) {
+			canal.mensajes = 0;
+			canal.bytes = 0;
+		}
+
+		Resultado resultado = new Resultado();
+		long inicio = System.nanoTime();
+		long fin = inicio + SEGUNDOS * 1_000_000_000L;
+		while (System.nanoTime() < fin) {
+			jugarPartida(++id, jugadores, canales, aleatorio, resultado);
+		}
+		resultado.nanos = System.nanoTime() - inicio;
+		for (CanalMemoria canal : canales) {
+			resultado.mensajes += canal.mensajes;
+			resultado.bytes += canal.bytes;
+		}
+		return resultado;
+	}
+
+	// Pre: 'jugadores' y 'canales' son los mismos canales, libres de partida.
+	// Post: Se juega una partida entera en este hilo (su buzón se vacía aquí
+	// mismo) y se suman a 'resultado' la partida, sus rondas y sus intentos.
+	private void jugarPartida(long id, List<CanalMemoria> jugadores, CanalMemoria[] canales, Random aleatorio,
+			Resultado resultado) {
+		DobblePartida partida = new DobblePartida(id, jugadores, mazo, aleatorio.nextLong(), Runnable::run, ranking,
+				destino);
+		partida.iniciar();
+		while (partida.getEstado() == DobblePartida.ESTADO_EN_CURSO) {
+			int asiento = aleatorio.nextInt(JUGADORES);
+			int mano = partida.getCartaJugador(asiento);
+			int simbolo = mazo.getSimboloComun(mano, partida.getCartaCentral());
+			if (TASA_ERROR > 0 && aleatorio.nextDouble() < TASA_ERROR) {
+				// otro símbolo de su carta: no puede ser la coincidencia
+				int comun = simbolo;
+				do {
+					simbolo = mazo.getSimbolo(mano, aleatorio.nextInt(mazo.getSimbolosPorCarta()));
+				} while (simbolo == comun);
+			} else {
+				resultado.rondas++;
+			}
+			resultado.intentos++;
+			partida.procesarIntento(canales[asiento], simbolo);
+		}
+		resultado.partidas++;
+	}
+}
@@ -0,0 +1,314 @@
+package JuegoDobble;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+Búfer reutilizable para codificar y decodificar tramas del protocolo binario
+(ver ProtocoloBinario). Cada conexión tiene las suyas, de forma que enviar o
+recibir una actualización de ronda no crea objetos nuevos.
+Formato de una trama: [longitud varint][opcode u8][datos...], donde la
+longitud cuenta el opcode y los datos.
+*/
+public class TramaBinaria {
+
+	// hueco reservado delante de los datos para escribir la longitud (un varint
+	// de 32 bits ocupa como mucho 5 bytes)
+	private static final int RESERVA_CABECERA = 5;
+
+	private byte[] datos;
+	// al codificar: fin de lo escrito. Al decodificar: tamaño de la trama leída
+	private int longitud;
+	// al codificar: primer byte de la trama ya terminada. Al decodificar: siguiente
+	// byte por leer
+	private int posicion;
+
+	// Pre: 'capacidadInicial' > 0.
+	// Post: Se crea una trama vacía con un búfer de 'capacidadInicial' bytes, que
+	// crece si algún mensaje no cabe.
+	public TramaBinaria(int capacidadInicial) {
+		this.datos = new byte[capacidadInicial + RESERVA_CABECERA];
+	}
+
+	// ---------------------------------------------------------------
+	// Codificación
+	// ---------------------------------------------------------------
+
+	// Pre: 'opcode' es uno de los códigos de ProtocoloBinario.
+	// Post: Se descarta el contenido anterior y se empieza una trama nueva con ese
+	// opcode.
+	public void iniciar(int opcode) {
+		longitud = RESERVA_CABECERA;
+		posicion = 0;
+		escribirByte(opcode);
+	}
+
+	// Pre: 0 <= 'valor' <= 255.
+	// Post: Se añade un byte sin signo a la trama.
+	public void escribirByte(int valor) {
+		asegurarCapacidad(1);
+		datos[longitud++] = (byte) valor;
+	}
+
+	// Pre: 'valor' >= 0.
+	// Post: Se añade el valor como varint (7 bits por byte, el bit alto indica que
+	// sigue otro byte). Los valores menores de 128 ocupan un solo byte.
+	public void escribirVarint(int valor) {
+		asegurarCapacidad(5);
+		while ((valor & ~0x7F) != 0) {
+			datos[longitud++] = (byte) ((valor & 0x7F) | 0x80);
+			valor >>>= 7;
+		}
+		datos[longitud++] = (byte) valor;
+	}
+
+	// Pre: 'carta' es el índice de una carta de 'mazo' o DobbleLogic.SIN_CARTA.
+	// Post: Se añade el número de símbolos (u8) seguido de un byte por símbolo.
+	// Si no hay carta se escribe una carta vacía (0 símbolos).
+	public void escribirCarta(MazoDobble mazo, int carta) {
+		if (carta == DobbleLogic.SIN_CARTA) {
+			escribirByte(0);
+			return;
+		}
+		// la carta ya está codificada en el mazo, solo se copia
+		escribirBytes(mazo.getCartaBinaria(carta));
+	}
+
+	// Pre: 'carta' es el índice de una carta de 'mazo' o DobbleLogic.SIN_CARTA.
+	// Post: Se añaden los símbolos de la carta como texto ("1,2,3"), copiados de
+	// la codificación precalculada del mazo. Si no hay carta no se añade nada.
+	public void escribirCartaTexto(MazoDobble mazo, int carta) {
+		if (carta != DobbleLogic.SIN_CARTA) {
+			escribirBytes(mazo.getCartaTexto(carta));
+		}
+	}
+
+	// Pre: 'bytes' no es nulo.
+	// Post: Se añaden los bytes tal cual.
+	public void escribirBytes(byte[] bytes) {
+		asegurarCapacidad(bytes.length);
+		System.arraycopy(bytes, 0, datos, longitud, bytes.length);
+		longitud += bytes.length;
+	}
+
+	// Pre: 'texto' no es nulo.
+	// Post: Se añade el texto en UTF-8 precedido de su longitud en bytes (u8). Si
+	// ocupa más de 255 bytes se trunca.
+	public void escribirTextoCorto(String texto) {
+		byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+		int n = Math.min(bytes.length, 255);
+		escribirByte(n);
+		asegurarCapacidad(n);
+		System.arraycopy(bytes, 0, datos, longitud, n);
+		longitud += n;
+	}
+
+	// Pre: 'texto' no es nulo.
+	// Post: Se añade el texto en UTF-8 sin longitud: ocupa el resto de la trama.
+	public void escribirTextoFinal(String texto) {
+		byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+		asegurarCapacidad(bytes.length);
+		System.arraycopy(bytes, 0, datos, longitud, bytes.length);
+		longitud += bytes.length;
+	}
+
+	// Pre: Se ha llamado a 'iniciar()' y se han escrito los datos de la trama.
+	// Post: Se escribe la longitud (varint) justo delante del opcode. La trama
+	// completa queda en getDatos()[getInicio() .. getFin()).
+	public void terminar() {
+		int tamano = longitud - RESERVA_CABECERA;
+		int bytesCabecera = tamanoVarint(tamano);
+		posicion = RESERVA_CABECERA - bytesCabecera;
+		int i = posicion;
+		while ((tamano & ~0x7F) != 0) {
+			datos[i++] = (byte) ((tamano & 0x7F) | 0x80);
+			tamano >>>= 7;
+		}
+		datos[i] = (byte) tamano;
+	}
+
+	// Pre: Se ha llamado a 'terminar()'.
+	// Post: Retorna la posición del primer byte de la trama en getDatos().
+	public int getInicio() {
+		return posicion;
+	}
+
+	// Pre: Se ha llamado a 'iniciar()'.
+	// Post: Retorna la posición en getDatos() del primer byte después del opcode.
+	public int getInicioCarga() {
+		return RESERVA_CABECERA + 1;
+	}
+
+	// Pre: Se ha llamado a 'terminar()'.
+	// Post: Retorna la posición siguiente al último byte de la trama.
+	public int getFin() {
+		return longitud;
+	}
+
+	// Pre: Ninguna.
+	// Post: Retorna el búfer interno (no se copia).
+	public byte[] getDatos() {
+		return datos;
+	}
+
+	// ---------------------------------------------------------------
+	// Decodificación
+	// ---------------------------------------------------------------
+
+	// Pre: 'in' está posicionado al principio de una trama. 'maximo' es el tamaño
+	// de trama más grande que se acepta.
+	// Post: Se lee una trama completa en el búfer y se deja lista para leer sus
+	// campos (el opcode con getOpcode()). Retorna 'false' si el flujo terminó
+	// limpiamente antes de empezar la trama. Lanza IOException si la trama supera
+	// 'maximo' o el flujo se corta a mitad.
+	public boolean leerDe(InputStream in, int maximo) throws IOException {
+		int tamano = 0;
+		int desplazamiento = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0) {
+				if (desplazamiento == 0) {
+					return false;
+				}
+				throw new EOFException("Trama cortada en la cabecera");
+			}
+			tamano |= (b & 0x7F) << desplazamiento;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			desplazamiento += 7;
+			if (desplazamiento > 28) {
+				throw new IOException("Cabecera de trama no válida");
+			}
+		}
+		if (tamano < 1 || tamano > maximo) {
+			throw new IOException("Tamaño de trama no válido: " + tamano);
+		}
+		prepararLectura(tamano);
+		int leidos = 0;
+		while (leidos < tamano) {
+			int n = in.read(datos, leidos, tamano - leidos);
+			if (n < 0) {
+				throw new EOFException("Trama cortada");
+			}
+			leidos += n;
+		}
+		return true;
+	}
+
+	// Pre: 'origen[desde .. desde+tamano)' contiene el opcode y los datos de una
+	// trama (sin la cabecera de longitud).
+	// Post: Se copian al búfer y la trama queda lista para leer sus campos.
+	public void cargar(byte[] origen, int desde, int tamano) {
+		prepararLectura(tamano);
+		System.arraycopy(origen, desde, datos, 0, tamano);
+	}
+
+	// Pre: Se ha leído o cargado una trama.
+	// Post: Retorna el opcode de la trama.
+	public int getOpcode() {
+		return datos[0] & 0xFF;
+	}
+
+	// Pre: Se ha leído o cargado una trama.
+	// Post: Retorna su tamaño en bytes, contando el opcode.
+	public int getTamano() {
+		return longitud;
+	}
+
+	// Pre: Quedan datos por leer en la trama.
+	// Post: Retorna el siguiente byte sin signo.
+	public int leerByte() {
+		return datos[posicion++] & 0xFF;
+	}
+
+	// Pre: El siguiente campo de la trama es un varint.
+	// Post: Retorna su valor.
+	public int leerVarint() {
+		int valor = 0;
+		int desplazamiento = 0;
+		int b;
+		do {
+			b = datos[posicion++] & 0xFF;
+			valor |= (b & 0x7F) << desplazamiento;
+			desplazamiento += 7;
+		} while ((b & 0x80) != 0);
+		return valor;
+	}
+
+	// Pre: El siguiente campo es una carta y 'destino' tiene hueco para todos sus
+	// símbolos.
+	// Post: Los símbolos se copian a 'destino' y se retorna cuántos son.
+	public int leerCarta(int[] destino) {
+		int n = leerByte();
+		for (int i = 0; i < n; i++) {
+			destino[i] = leerByte();
+		}
+		return n;
+	}
+
+	// Pre: Se ha leído o cargado una trama.
+	// Post: Retorna 'true' si quedan campos por leer (para los campos opcionales
+	// del final de la trama).
+	public boolean quedanDatos() {
+		return posicion < longitud;
+	}
+
+	// Pre: El siguiente campo es un texto corto (u8 + UTF-8).
+	// Post: Retorna el texto.
+	public String leerTextoCorto() {
+		int n = leerByte();
+		String texto = new String(datos, posicion, n, StandardCharsets.UTF_8);
+		posicion += n;
+		return texto;
+	}
+
+	// Pre: El resto de la trama es un comando del protocolo de texto.
+	// Post: Se analiza en 'comando' sin copiarlo (sobre el búfer de la trama, que
+	// es válido hasta la siguiente lectura) y la trama queda consumida.
+	public void leerComando(ComandoTexto comando) {
+		comando.analizar(datos, posicion, longitud - posicion);
+		posicion = longitud;
+	}
+
+	// Pre: El resto de la trama es un texto UTF-8.
+	// Post: Retorna el texto y la trama queda consumida.
+	public String leerTextoFinal() {
+		String texto = new String(datos, posicion, longitud - posicion, StandardCharsets.UTF_8);
+		posicion = longitud;
+		return texto;
+	}
+
+	// Pre: 'tamano' >= 1.
+	// Post: El búfer tiene al menos 'tamano' bytes, la longitud es 'tamano' y la
+	// posición de lectura apunta al primer byte después del opcode.
+	private void prepararLectura(int tamano) {
+		if (datos.length < tamano) {
+			datos = new byte[Math.max(tamano, datos.length * 2)];
+		}
+		longitud = tamano;
+		posicion = 1;
+	}
+
+	// Pre: 'extra' >= 0.
+	// Post: El búfer tiene hueco para 'extra' bytes más a partir de 'longitud'.
+	private void asegurarCapacidad(int extra) {
+		if (longitud + extra > datos.length) {
+			datos = Arrays.copyOf(datos, Math.max(longitud + extra, datos.length * 2));
+		}
+	}
+
+	// Pre: 'valor' >= 0.
+	// Post: Retorna cuántos bytes ocupa 'valor' codificado como varint (1 a 5).
+	private static int tamanoVarint(int valor) {
+		int n = 1;
+		while ((valor & ~0x7F) != 0) {
+			valor >>>= 7;
+			n++;
+		}
+		return n;
+	}
+}
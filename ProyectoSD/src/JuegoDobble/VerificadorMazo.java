@@ -0,0 +1,52 @@
+package JuegoDobble;
+
+import java.util.concurrent.RecursiveTask;
+
+/*
+Tarea fork/join que comprueba la propiedad básica del Dobble en un mazo:
+cada par de cartas distintas comparte exactamente un símbolo. Se reparte
+el trabajo por bloques de filas (carta A) y cada bloque compara su fila
+con todas las cartas posteriores.
+*/
+public class VerificadorMazo extends RecursiveTask<Integer> {
+
+	private static final long serialVersionUID = 1L;
+	// número de filas por debajo del cual se comprueba sin dividir más
+	private static final int UMBRAL_FILAS = 8;
+
+	private final MazoDobble mazo;
+	private final int desde;
+	private final int hasta;
+
+	// Pre: 0 <= 'desde' <= 'hasta' <= mazo.getNumeroCartas().
+	// Post: Se crea la tarea que verifica las cartas A en [desde, hasta) contra
+	// todas las cartas B > A.
+	public VerificadorMazo(MazoDobble mazo, int desde, int hasta) {
+		this.mazo = mazo;
+		this.desde = desde;
+		this.hasta = hasta;
+	}
+
+	// Pre: Se ejecuta dentro de un ForkJoinPool.
+	// Post: Retorna el número de pares del rango que no comparten exactamente un
+	// símbolo (0 si el rango es correcto).
+	@Override
+	protected Integer compute() {
+		if (hasta - desde <= UMBRAL_FILAS) {
+			int erroneos = 0;
+			for (int a = desde; a < hasta; a++) {
+				for (int b = a + 1; b < mazo.getNumeroCartas(); b++) {
+					if (mazo.contarSimbolosComunes(a, b) != 1) {
+						erroneos++;
+					}
+				}
+			}
+			return erroneos;
+		}
+		int mitad = (desde + hasta) >>> 1;
+		VerificadorMazo izquierda = new VerificadorMazo(mazo, desde, mitad);
+		izquierda.fork();
+		int derecha = new VerificadorMazo(mazo, mitad, hasta).compute();
+		return izquierda.join() + derecha;
+	}
+}